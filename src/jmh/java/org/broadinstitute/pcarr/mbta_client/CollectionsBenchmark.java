@@ -0,0 +1,109 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stop and Route hashCode/equals and comparator costs, in the collections SystemGraph uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class CollectionsBenchmark {
+    private List<Route> routes;
+    private Stop[] stops;
+    private Set<Stop> stopSet;
+    private Map<String,Stop> stopsById;
+    // equal to stops[i], but not the same instance
+    private Stop[] probes;
+
+    @Setup
+    public void setUp() {
+        routes=SystemGraphBenchmark.syntheticRoutes(180, 40, 90, 15);
+        final Set<Stop> all=new HashSet<Stop>();
+        for(final Route route : routes) {
+            all.addAll(route.getStops());
+        }
+        stops=all.toArray(new Stop[all.size()]);
+        probes=new Stop[stops.length];
+        for(int i=0; i<stops.length; ++i) {
+            probes[i]=new Stop(stops[i].getId(), stops[i].getName());
+        }
+        stopSet=new HashSet<Stop>(all);
+        stopsById=new HashMap<String,Stop>();
+        for(final Stop stop : stops) {
+            stopsById.put(stop.getId(), stop);
+        }
+    }
+
+    @Benchmark
+    public int hashSet_contains() {
+        int count=0;
+        for(final Stop probe : probes) {
+            if (stopSet.contains(probe)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int hashMap_getById() {
+        int count=0;
+        for(final Stop probe : probes) {
+            if (stopsById.get(probe.getId()) != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public Set<Stop> hashSet_build() {
+        final Set<Stop> set=new HashSet<Stop>();
+        for(final Stop stop : stops) {
+            set.add(stop);
+        }
+        return set;
+    }
+
+    /** the sorted route sets kept by each Stop */
+    @Benchmark
+    public SortedSet<Route> treeSet_routesByName() {
+        final SortedSet<Route> sorted=new TreeSet<Route>(Route.nameComparator);
+        sorted.addAll(routes);
+        return sorted;
+    }
+
+    @Benchmark
+    public int routeEquals() {
+        int count=0;
+        for(int i=1; i<routes.size(); ++i) {
+            if (routes.get(i).equals(routes.get(i-1))) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+}
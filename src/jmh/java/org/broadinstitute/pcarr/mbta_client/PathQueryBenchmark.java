@@ -0,0 +1,62 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * listRoutesFrom on random pairs of stops, with each search mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class PathQueryBenchmark {
+    private static final int NUM_PAIRS=1024;
+
+    @Param({"fixture", "synthetic"})
+    public String network;
+
+    @Param({"BREADTH_FIRST", "BIDIRECTIONAL", "A_STAR"})
+    public SearchMode searchMode;
+
+    private SystemGraph systemGraph;
+    private Stop[] from;
+    private Stop[] to;
+    private int next=0;
+
+    @Setup
+    public void setUp() throws Exception {
+        systemGraph=new SystemGraph().build(SystemGraphBenchmark.routes(network));
+        final List<Stop> stops=new ArrayList<Stop>(systemGraph.getStops());
+        final Random random=new Random(15);
+        from=new Stop[NUM_PAIRS];
+        to=new Stop[NUM_PAIRS];
+        for(int i=0; i<NUM_PAIRS; ++i) {
+            from[i]=stops.get(random.nextInt(stops.size()));
+            to[i]=stops.get(random.nextInt(stops.size()));
+        }
+    }
+
+    @Benchmark
+    public List<Route> listRoutesFrom() {
+        final int i=next++ & (NUM_PAIRS-1);
+        return systemGraph.listRoutesFrom(from[i], to[i], searchMode);
+    }
+
+}
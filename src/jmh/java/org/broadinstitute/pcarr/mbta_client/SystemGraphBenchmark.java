@@ -0,0 +1,142 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+
+/**
+ * SystemGraph benchmarks: building the graph, and printing the routes between all pairs of stops.
+ * See {@link PathQueryBenchmark} for single path queries.
+ *
+ * The 'fixture' network is the recorded bulk responses in src/test/resources/fixtures/bulk,
+ * the 'synthetic' network is about the size of the full MBTA rail and bus system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SystemGraphBenchmark {
+
+    /** the routes of the 'fixture' or 'synthetic' network */
+    @State(Scope.Benchmark)
+    public static class Network {
+        @Param({"fixture", "synthetic"})
+        public String network;
+
+        private Collection<Route> routes;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            routes=routes(network);
+        }
+    }
+
+    /** the recorded responses, and the graph built from them */
+    @State(Scope.Benchmark)
+    public static class Fixture {
+        private JsonObject routesJson;
+        private JsonObject patternsJson;
+        private JsonObject parentStationsJson;
+        private SystemGraph systemGraph;
+        private PrintStream nullOut;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            routesJson=TestMbtaClient.fixture("bulk/routes.json");
+            patternsJson=TestMbtaClient.fixture("bulk/route_patterns.json");
+            parentStationsJson=TestMbtaClient.fixture("bulk/parent_stations.json");
+            systemGraph=new SystemGraph().build(routes("fixture"));
+            nullOut=new PrintStream(new OutputStream() {
+                public void write(final int b) {
+                }
+                public void write(final byte[] b, final int off, final int len) {
+                }
+            });
+        }
+    }
+
+    /**
+     * Routes which follow random walks on a grid of stops, about 500 m apart,
+     * so that routes cross each other at shared stops.
+     */
+    protected static List<Route> syntheticRoutes(final int numRoutes, final int stopsPerRoute, final int gridSize, final long seed) {
+        final Random random=new Random(seed);
+        final Stop[][] grid=new Stop[gridSize][gridSize];
+        for(int i=0; i<gridSize; ++i) {
+            for(int j=0; j<gridSize; ++j) {
+                final String id=i+"-"+j;
+                grid[i][j]=new Stop(id, "Stop "+id, 42.2+i*0.0045, -71.2+j*0.006, null, Stop.WHEELCHAIR_NO_INFO);
+            }
+        }
+        final List<Route> routes=new ArrayList<Route>(numRoutes);
+        for(int r=0; r<numRoutes; ++r) {
+            final Route route=new Route("R"+r, "Route "+r, ""+r, 3);
+            int i=random.nextInt(gridSize);
+            int j=random.nextInt(gridSize);
+            for(int k=0; k<stopsPerRoute; ++k) {
+                route.addStop(grid[i][j]);
+                grid[i][j].addRoute(route);
+                // mostly straight, sometimes turning
+                if (random.nextBoolean()) {
+                    i=Math.max(0, Math.min(gridSize-1, i+(random.nextBoolean() ? 1 : -1)));
+                }
+                else {
+                    j=Math.max(0, Math.min(gridSize-1, j+(random.nextBoolean() ? 1 : -1)));
+                }
+            }
+            routes.add(route);
+        }
+        return routes;
+    }
+
+    /** the routes of the 'fixture' or 'synthetic' network */
+    protected static Collection<Route> routes(final String network) throws Exception {
+        if ("fixture".equals(network)) {
+            return MbtaClient.assembleRoutes(
+                TestMbtaClient.fixture("bulk/routes.json"),
+                TestMbtaClient.fixture("bulk/route_patterns.json"),
+                TestMbtaClient.fixture("bulk/parent_stations.json"),
+                true);
+        }
+        return syntheticRoutes(180, 40, 90, 15);
+    }
+
+    /** assemble the routes from the recorded responses, and build the graph */
+    @Benchmark
+    public SystemGraph build_fromFixture(final Fixture fixture) {
+        return new SystemGraph().build(MbtaClient.assembleRoutes(
+            fixture.routesJson, fixture.patternsJson, fixture.parentStationsJson, true));
+    }
+
+    @Benchmark
+    public SystemGraph build(final Network network) {
+        return new SystemGraph().build(network.routes);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void printAllRoutesFromAllStops(final Fixture fixture) {
+        fixture.systemGraph.printAllRoutesFromAllStops(fixture.nullOut);
+    }
+
+}
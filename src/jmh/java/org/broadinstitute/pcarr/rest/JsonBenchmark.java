@@ -0,0 +1,100 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonObject;
+
+/**
+ * Parse a large GET /stops response, as a JsonObject tree and with the streaming JsonApiReader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"1000", "8000"})
+    public int numStops;
+
+    private RestClient client;
+    private URI uri;
+    private String json;
+    private byte[] bytes;
+
+    /** a stop resource with all of the attributes returned by GET /stops */
+    protected static String stopJson(final int i) {
+        return "{"
+            + "\"attributes\":{"
+            +   "\"address\":\""+i+" Massachusetts Ave, Cambridge, MA 02139\","
+            +   "\"description\":\"Stop "+i+" - Bus - Inbound\","
+            +   "\"latitude\":"+(42.0+i/100000.0)+","
+            +   "\"location_type\":0,"
+            +   "\"longitude\":"+(-71.0-i/100000.0)+","
+            +   "\"municipality\":\"Cambridge\","
+            +   "\"name\":\"Massachusetts Ave @ Stop "+i+"\","
+            +   "\"on_street\":\"Massachusetts Avenue\","
+            +   "\"platform_code\":null,"
+            +   "\"vehicle_type\":3,"
+            +   "\"wheelchair_boarding\":1"
+            + "},"
+            + "\"id\":\""+i+"\","
+            + "\"links\":{\"self\":\"/stops/"+i+"\"},"
+            + "\"relationships\":{"
+            +   "\"facilities\":{\"links\":{\"related\":\"/facilities/?filter[stop]="+i+"\"}},"
+            +   "\"parent_station\":{\"data\":{\"id\":\"place-"+(i/4)+"\",\"type\":\"stop\"}},"
+            +   "\"zone\":{\"data\":{\"id\":\"LocalBus\",\"type\":\"zone\"}}"
+            + "},"
+            + "\"type\":\"stop\""
+            + "}";
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        final StringBuilder sb=new StringBuilder("{\"data\":[");
+        for(int i=0; i<numStops; ++i) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(stopJson(i));
+        }
+        sb.append("],\"jsonapi\":{\"version\":\"1.0\"}}");
+        json=sb.toString();
+        bytes=json.getBytes("UTF-8");
+        client=new RestClient();
+        uri=new URI("http://localhost/stops");
+    }
+
+    @Benchmark
+    public JsonObject readJsonObject() throws Exception {
+        return client.readJsonObject(new StringReader(json));
+    }
+
+    @Benchmark
+    public int readJsonApi() throws Exception {
+        return client.readContent(uri, new ByteArrayInputStream(bytes), new JsonApiReader(
+            ImmutableSet.of("name", "latitude", "longitude", "wheelchair_boarding"),
+            ImmutableSet.of("parent_station"),
+            new JsonApiReader.Callback() {
+                public void onResource(final JsonApiResource resource) {
+                }
+            }));
+    }
+
+}
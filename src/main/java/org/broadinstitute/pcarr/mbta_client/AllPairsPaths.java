@@ -0,0 +1,103 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed shortest paths between all pairs of stops.
+ * 
+ * For each source stop, the table holds the predecessor edge of every other stop in the 
+ * breadth-first shortest path tree from that source, so a path is traced with one table 
+ * lookup per edge, without searching the graph. The trees are computed in parallel, 
+ * one task per source.
+ * 
+ * The table takes numStops^2 entries, stored as 16-bit chars when the graph has fewer 
+ * than 65535 edges, e.g. about 28 KB for the 120 subway stops, and 128 MB for 8000 stops.
+ */
+public class AllPairsPaths {
+    private static final char NO_EDGE_CHAR=(char) 0xFFFF;
+
+    private final CompactGraph graph;
+    private final int numStops;
+    // one of these is set, [source*numStops+target] -> predecessor edge
+    private final char[] predChars;
+    private final int[] predInts;
+
+    protected AllPairsPaths(final CompactGraph graph) {
+        this.graph=graph;
+        this.numStops=graph.getNumStops();
+        final long size=(long) numStops * numStops;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many stops for an all-pairs table, numStops="+numStops);
+        }
+        if (graph.getNumEdges() < NO_EDGE_CHAR) {
+            predChars=new char[(int) size];
+            predInts=null;
+        }
+        else {
+            predChars=null;
+            predInts=new int[(int) size];
+        }
+    }
+
+    /**
+     * Compute the table, in parallel across the source stops.
+     */
+    public static AllPairsPaths compute(final CompactGraph graph) {
+        final AllPairsPaths table=new AllPairsPaths(graph);
+        IntStream.range(0, graph.getNumStops()).parallel().forEach(new IntConsumer() {
+            public void accept(final int source) {
+                table.setRow(source, graph.shortestPathTree(source));
+            }
+        });
+        return table;
+    }
+
+    private void setRow(final int source, final int[] predEdge) {
+        final int offset=source*numStops;
+        if (predChars != null) {
+            for(int v=0; v<numStops; ++v) {
+                predChars[offset+v]=predEdge[v] == CompactGraph.NO_EDGE ? NO_EDGE_CHAR : (char) predEdge[v];
+            }
+        }
+        else {
+            System.arraycopy(predEdge, 0, predInts, offset, numStops);
+        }
+    }
+
+    private int predEdge(final int source, final int v) {
+        if (predChars != null) {
+            final char e=predChars[source*numStops+v];
+            return e == NO_EDGE_CHAR ? CompactGraph.NO_EDGE : e;
+        }
+        return predInts[source*numStops+v];
+    }
+
+    public CompactGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Get the shortest path from the table.
+     * @return the edge indices of the path, an empty array when from == to,
+     *     or null if there is no path
+     */
+    public int[] path(final int from, final int to) {
+        if (from == to) {
+            return new int[0];
+        }
+        if (predEdge(from, to) == CompactGraph.NO_EDGE) {
+            return null;
+        }
+        int length=0;
+        for(int v=to; v != from; v=graph.getSource(predEdge(from, v))) {
+            ++length;
+        }
+        final int[] path=new int[length];
+        for(int v=to; v != from; v=graph.getSource(predEdge(from, v))) {
+            path[--length]=predEdge(from, v);
+        }
+        return path;
+    }
+
+}
@@ -0,0 +1,954 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.jgrapht.Graph;
+import org.jgrapht.GraphPath;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.jgrapht.graph.GraphWalk;
+
+/**
+ * Dense, int-indexed representation of the graph of stops, used for all path queries.
+ *
+ * Stops and routes are interned to ints, and the edges are stored in compressed sparse row (CSR)
+ * form: the outgoing edges of stop 'i' are the edge indices from offsets[i] to offsets[i+1]-1,
+ * the target stop of edge 'e' is targets[e] and its route is edgeRoutes[e].
+ * Like the jgrapht DefaultDirectedGraph it replaces, there is at most one edge from a stop to
+ * another stop, owned by the first route which adds it. All of the routes which add the edge,
+ * e.g. the Green Line branches along the central subway, are kept in a second CSR array:
+ * the routes of edge 'e' are routeList[routeOffsets[e]] to routeList[routeOffsets[e+1]-1],
+ * starting with edgeRoutes[e].
+ *
+ * A jgrapht view of the same graph is available from {@link #asGraph()}.
+ */
+public class CompactGraph {
+    /** no predecessor edge, for the source and for unreachable stops */
+    public static final int NO_EDGE=-1;
+
+    /**
+     * Add stops and edges, then build the immutable CompactGraph.
+     */
+    public static class Builder {
+        private final List<Stop> stops=new ArrayList<Stop>();
+        private final Map<String,Integer> stopIndex=new HashMap<String,Integer>();
+        private final List<Route> routes=new ArrayList<Route>();
+        private final Map<String,Integer> routeIndex=new HashMap<String,Integer>();
+        // edges as (from, to, route) triples, in insertion order
+        private int[] edges=new int[3*64];
+        private int numEdges=0;
+        // the edge index of each (from << 32 | to), to add the routes of duplicate edges
+        private final Map<Long,Integer> edgeKeys=new HashMap<Long,Integer>();
+        // the routes of duplicate edges as (edge, route) pairs, in insertion order
+        private int[] moreRoutes=new int[2*16];
+        private int numMoreRoutes=0;
+
+        /** add the stop, if it was not already added, and return its index */
+        public int addStop(final Stop stop) {
+            final Integer idx=stopIndex.get(stop.getId());
+            if (idx != null) {
+                return idx;
+            }
+            stopIndex.put(stop.getId(), stops.size());
+            stops.add(stop);
+            return stops.size()-1;
+        }
+
+        /** add the route, if it was not already added, and return its index */
+        public int addRoute(final Route route) {
+            final Integer idx=routeIndex.get(route.getId());
+            if (idx != null) {
+                return idx;
+            }
+            routeIndex.put(route.getId(), routes.size());
+            routes.add(route);
+            return routes.size()-1;
+        }
+
+        /**
+         * add a directed edge, the stops and the route are added as needed.
+         * When there already is an edge from 'from' to 'to', the route is added to that edge's routes.
+         * @return false if there already is an edge from 'from' to 'to'
+         */
+        public boolean addEdge(final Stop from, final Stop to, final Route route) {
+            final int f=addStop(from);
+            final int t=addStop(to);
+            if (f == t) {
+                return false;
+            }
+            final int r=addRoute(route);
+            final Long key=(((long) f) << 32) | t;
+            final Integer existing=edgeKeys.get(key);
+            if (existing != null) {
+                addMoreRoute(existing, r);
+                return false;
+            }
+            edgeKeys.put(key, numEdges);
+            if (3*numEdges+3 > edges.length) {
+                edges=Arrays.copyOf(edges, 2*edges.length);
+            }
+            edges[3*numEdges]=f;
+            edges[3*numEdges+1]=t;
+            edges[3*numEdges+2]=r;
+            ++numEdges;
+            return true;
+        }
+
+        private void addMoreRoute(final int edge, final int route) {
+            if (edges[3*edge+2] == route) {
+                return;
+            }
+            for(int i=0; i<numMoreRoutes; ++i) {
+                if (moreRoutes[2*i] == edge && moreRoutes[2*i+1] == route) {
+                    return;
+                }
+            }
+            if (2*numMoreRoutes+2 > moreRoutes.length) {
+                moreRoutes=Arrays.copyOf(moreRoutes, 2*moreRoutes.length);
+            }
+            moreRoutes[2*numMoreRoutes]=edge;
+            moreRoutes[2*numMoreRoutes+1]=route;
+            ++numMoreRoutes;
+        }
+
+        public CompactGraph build() {
+            final int n=stops.size();
+            final int[] offsets=new int[n+1];
+            for(int e=0; e<numEdges; ++e) {
+                ++offsets[edges[3*e]+1];
+            }
+            for(int i=0; i<n; ++i) {
+                offsets[i+1]+=offsets[i];
+            }
+            final int[] targets=new int[numEdges];
+            final int[] edgeRoutes=new int[numEdges];
+            final int[] sources=new int[numEdges];
+            final int[] next=Arrays.copyOf(offsets, n);
+            // the position of each added edge
+            final int[] positions=new int[numEdges];
+            // stable, so each stop's edges stay in insertion order
+            for(int e=0; e<numEdges; ++e) {
+                final int from=edges[3*e];
+                final int pos=next[from]++;
+                positions[e]=pos;
+                sources[pos]=from;
+                targets[pos]=edges[3*e+1];
+                edgeRoutes[pos]=edges[3*e+2];
+            }
+            // the routes of each edge, the owning route first
+            final int[] routeOffsets=new int[numEdges+1];
+            for(int pos=0; pos<numEdges; ++pos) {
+                routeOffsets[pos+1]=1;
+            }
+            for(int i=0; i<numMoreRoutes; ++i) {
+                ++routeOffsets[positions[moreRoutes[2*i]]+1];
+            }
+            for(int pos=0; pos<numEdges; ++pos) {
+                routeOffsets[pos+1]+=routeOffsets[pos];
+            }
+            final int[] routeList=new int[numEdges+numMoreRoutes];
+            final int[] nextRoute=new int[numEdges];
+            for(int pos=0; pos<numEdges; ++pos) {
+                routeList[routeOffsets[pos]]=edgeRoutes[pos];
+                nextRoute[pos]=routeOffsets[pos]+1;
+            }
+            for(int i=0; i<numMoreRoutes; ++i) {
+                routeList[nextRoute[positions[moreRoutes[2*i]]]++]=moreRoutes[2*i+1];
+            }
+            return new CompactGraph(
+                stops.toArray(new Stop[n]), new HashMap<String,Integer>(stopIndex),
+                routes.toArray(new Route[routes.size()]), new HashMap<String,Integer>(routeIndex),
+                offsets, sources, targets, edgeRoutes, routeOffsets, routeList);
+        }
+    }
+
+    private final Stop[] stops;
+    private final Map<String,Integer> stopIndex;
+    private final Route[] routes;
+    private final Map<String,Integer> routeIndex;
+    private final int[] offsets;
+    private final int[] sources;
+    private final int[] targets;
+    private final int[] edgeRoutes;
+    // all of the routes of each edge, routeList[routeOffsets[e]] to routeList[routeOffsets[e+1]-1]
+    private final int[] routeOffsets;
+    private final int[] routeList;
+
+    // reverse CSR, the incoming edges of stop 'i' are inEdges[inOffsets[i]] to inEdges[inOffsets[i+1]-1]
+    private final int[] inOffsets;
+    private final int[] inEdges;
+    // the longest edge between stops with coordinates, for the A* heuristic, 
+    // or 0 if some stops have no coordinates and there is no admissible heuristic
+    private final double maxEdgeMeters;
+    // the number of pairs of consecutive edges, in-edge then out-edge at the same stop, 
+    // plus the edges out of a stop, which bounds the heap of the weighted search
+    private final int numTurns;
+    // see getChecksum()
+    private final long checksum;
+
+    // scratch space for point-to-point searches, used by one search at a time
+    private static class Workspace {
+        // visited stamps, forward and backward
+        final int[] visited;
+        final int[] visitedBack;
+        final int[] closed;
+        final int[] predEdge;
+        final int[] succEdge;
+        final int[] dist;
+        final int[] distBack;
+        final int[] queue;
+        final int[] queueBack;
+        // the same, by edge, for the weighted search on the edges
+        final int[] edgeSeen;
+        final int[] edgeClosed;
+        final int[] edgeDist;
+        final int[] edgePred;
+        // binary heap for A* and the weighted search, with lazy deletion there is at most
+        // one entry per edge for A*, and one per pair of consecutive edges for the weighted search
+        final int[] heapNodes;
+        final double[] heapKeys;
+        int stamp=0;
+        int numVisited=0;
+
+        Workspace(final int numStops, final int numEdges, final int heapCapacity) {
+            visited=new int[numStops];
+            visitedBack=new int[numStops];
+            closed=new int[numStops];
+            predEdge=new int[numStops];
+            succEdge=new int[numStops];
+            dist=new int[numStops];
+            distBack=new int[numStops];
+            queue=new int[numStops];
+            queueBack=new int[numStops];
+            edgeSeen=new int[numEdges];
+            edgeClosed=new int[numEdges];
+            edgeDist=new int[numEdges];
+            edgePred=new int[numEdges];
+            heapNodes=new int[heapCapacity];
+            heapKeys=new double[heapCapacity];
+        }
+
+        // large enough for a search on a graph of the given size
+        boolean fits(final int numStops, final int numEdges, final int heapCapacity) {
+            return visited.length >= numStops && edgeSeen.length >= numEdges && heapNodes.length >= heapCapacity;
+        }
+
+        int nextStamp() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                Arrays.fill(visitedBack, 0);
+                Arrays.fill(closed, 0);
+                Arrays.fill(edgeSeen, 0);
+                Arrays.fill(edgeClosed, 0);
+                stamp=1;
+            }
+            numVisited=0;
+            return stamp;
+        }
+    }
+
+    /**
+     * The idle workspaces, shared by all of the graphs, so that a refreshed graph reuses the workspaces of the
+     * graph it replaces. A search takes one for its duration and gives it back. The pool is bounded, searches
+     * beyond that many at the same time use a workspace which is dropped after the search.
+     */
+    private static final int MAX_IDLE_WORKSPACES=2*Runtime.getRuntime().availableProcessors();
+    private static final BlockingQueue<Workspace> idleWorkspaces=new ArrayBlockingQueue<Workspace>(MAX_IDLE_WORKSPACES);
+
+    // the number of stops visited by the last search on each thread, see getNumVisited()
+    private static final ThreadLocal<int[]> lastNumVisited=new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private Workspace takeWorkspace() {
+        final int heapCapacity=Math.max(targets.length, numTurns)+1;
+        final Workspace ws=idleWorkspaces.poll();
+        if (ws != null && ws.fits(stops.length, targets.length, heapCapacity)) {
+            return ws;
+        }
+        // a workspace which is too small for this graph is dropped
+        return new Workspace(stops.length, targets.length, heapCapacity);
+    }
+
+    private static void releaseWorkspace(final Workspace ws) {
+        lastNumVisited.get()[0]=ws.numVisited;
+        idleWorkspaces.offer(ws);
+    }
+
+    // lazily initialized jgrapht view
+    private Graph<Stop, RouteEdge> graph=null;
+    private RouteEdge[] routeEdges=null;
+
+    protected CompactGraph(final Stop[] stops, final Map<String,Integer> stopIndex, final Route[] routes, final Map<String,Integer> routeIndex,
+            final int[] offsets, final int[] sources, final int[] targets, final int[] edgeRoutes,
+            final int[] routeOffsets, final int[] routeList) {
+        this.stops=stops;
+        this.stopIndex=stopIndex;
+        this.routes=routes;
+        this.routeIndex=routeIndex;
+        this.offsets=offsets;
+        this.sources=sources;
+        this.targets=targets;
+        this.edgeRoutes=edgeRoutes;
+        this.routeOffsets=routeOffsets;
+        this.routeList=routeList;
+
+        this.inOffsets=new int[stops.length+1];
+        for(final int t : targets) {
+            ++inOffsets[t+1];
+        }
+        for(int i=0; i<stops.length; ++i) {
+            inOffsets[i+1]+=inOffsets[i];
+        }
+        this.inEdges=new int[targets.length];
+        final int[] next=Arrays.copyOf(inOffsets, stops.length);
+        double maxEdge=0;
+        for(int e=0; e<targets.length; ++e) {
+            inEdges[next[targets[e]]++]=e;
+            final double meters=stops[sources[e]].distanceMeters(stops[targets[e]]);
+            if (Double.isNaN(meters)) {
+                maxEdge=Double.NaN;
+            }
+            else if (!Double.isNaN(maxEdge)) {
+                maxEdge=Math.max(maxEdge, meters);
+            }
+        }
+        for(final Stop stop : stops) {
+            if (!stop.hasLocation()) {
+                maxEdge=Double.NaN;
+            }
+        }
+        this.maxEdgeMeters=Double.isNaN(maxEdge) ? 0 : maxEdge;
+
+        long turns=0;
+        int maxOut=0;
+        for(int i=0; i<stops.length; ++i) {
+            final int out=offsets[i+1]-offsets[i];
+            turns+=(long) (inOffsets[i+1]-inOffsets[i])*out;
+            maxOut=Math.max(maxOut, out);
+        }
+        this.numTurns=(int) Math.min(Integer.MAX_VALUE-1, turns+maxOut);
+        this.checksum=computeChecksum();
+    }
+
+    // FNV-1a over the stop ids, the route ids and the edges in CSR order, with their routes
+    private long computeChecksum() {
+        long hash=0xcbf29ce484222325L;
+        for(final Stop stop : stops) {
+            hash=(hash^stop.getId().hashCode())*0x100000001b3L;
+        }
+        for(final Route route : routes) {
+            hash=(hash^route.getId().hashCode())*0x100000001b3L;
+        }
+        for(int e=0; e<targets.length; ++e) {
+            hash=(hash^sources[e])*0x100000001b3L;
+            hash=(hash^targets[e])*0x100000001b3L;
+            for(int i=routeOffsets[e]; i<routeOffsets[e+1]; ++i) {
+                hash=(hash^routeList[i])*0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * A checksum of the stops, the routes and the edges, e.g. to check that an index saved with
+     * a snapshot is for this graph. Graphs with the same layout have the same checksum.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public int getNumStops() {
+        return stops.length;
+    }
+
+    public int getNumRoutes() {
+        return routes.length;
+    }
+
+    public int getNumEdges() {
+        return targets.length;
+    }
+
+    /** get the index of the stop, or -1 if it is not in the graph */
+    public int indexOf(final Stop stop) {
+        if (stop == null) {
+            return -1;
+        }
+        final Integer idx=stopIndex.get(stop.getId());
+        return idx == null ? -1 : idx;
+    }
+
+    /** get the index of the route, or -1 if it is not in the graph */
+    public int indexOf(final Route route) {
+        if (route == null) {
+            return -1;
+        }
+        final Integer idx=routeIndex.get(route.getId());
+        return idx == null ? -1 : idx;
+    }
+
+    public Stop getStop(final int idx) {
+        return stops[idx];
+    }
+
+    public Route getRoute(final int idx) {
+        return routes[idx];
+    }
+
+    /** the stops, in index order, callers must not modify the array */
+    protected Stop[] stops() {
+        return stops;
+    }
+
+    /** the index of the first outgoing edge of the stop */
+    public int firstEdge(final int stop) {
+        return offsets[stop];
+    }
+
+    /** one past the index of the last outgoing edge of the stop */
+    public int endEdge(final int stop) {
+        return offsets[stop+1];
+    }
+
+    public int getSource(final int edge) {
+        return sources[edge];
+    }
+
+    public int getTarget(final int edge) {
+        return targets[edge];
+    }
+
+    /** the route index of the edge, the first route which added it */
+    public int getEdgeRoute(final int edge) {
+        return edgeRoutes[edge];
+    }
+
+    /** the route indices of all of the routes along the edge, starting with {@link #getEdgeRoute(int)} */
+    public int[] getEdgeRoutes(final int edge) {
+        return Arrays.copyOfRange(routeList, routeOffsets[edge], routeOffsets[edge+1]);
+    }
+
+    /** true if the route runs along the edge */
+    public boolean hasRoute(final int edge, final int route) {
+        for(int i=routeOffsets[edge]; i<routeOffsets[edge+1]; ++i) {
+            if (routeList[i] == route) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** true if some route runs along both edges, i.e. there is no transfer from one edge to the other */
+    public boolean sharesRoute(final int edge, final int other) {
+        if (edgeRoutes[edge] == edgeRoutes[other]) {
+            return true;
+        }
+        for(int i=routeOffsets[edge]; i<routeOffsets[edge+1]; ++i) {
+            if (hasRoute(other, routeList[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find a path with the fewest stops, with a breadth-first search which stops
+     * as soon as the target is reached.
+     *
+     * @return the edge indices of the path, an empty array when from == to,
+     *     or null if there is no path
+     */
+    public int[] shortestPath(final int from, final int to) {
+        if (from == to) {
+            return new int[0];
+        }
+        final Workspace ws=takeWorkspace();
+        final int[] visited=ws.visited;
+        final int[] predEdge=ws.predEdge;
+        final int[] queue=ws.queue;
+        final int stamp=ws.nextStamp();
+        int head=0;
+        int tail=0;
+        queue[tail++]=from;
+        visited[from]=stamp;
+        try {
+            while (head < tail) {
+                final int u=queue[head++];
+                for(int e=offsets[u]; e<offsets[u+1]; ++e) {
+                    final int v=targets[e];
+                    if (visited[v] != stamp) {
+                        visited[v]=stamp;
+                        predEdge[v]=e;
+                        if (v == to) {
+                            return tracePath(predEdge, from, to);
+                        }
+                        queue[tail++]=v;
+                    }
+                }
+            }
+            return null;
+        }
+        finally {
+            ws.numVisited=tail;
+            releaseWorkspace(ws);
+        }
+    }
+
+    /**
+     * Find a path with the fewest stops, with the given search algorithm.
+     *
+     * @return the edge indices of the path, an empty array when from == to,
+     *     or null if there is no path
+     */
+    public int[] shortestPath(final int from, final int to, final SearchMode mode) {
+        switch (mode) {
+        case BIDIRECTIONAL:
+            return shortestPathBidirectional(from, to);
+        case A_STAR:
+            return shortestPathAStar(from, to);
+        default:
+            return shortestPath(from, to);
+        }
+    }
+
+    /**
+     * Get the number of stops visited by the last point-to-point search on the calling thread,
+     * to compare the search modes.
+     */
+    public int getNumVisited() {
+        return lastNumVisited.get()[0];
+    }
+
+    /**
+     * Find a path with the fewest stops, with breadth-first searches from both ends which
+     * expand the smaller frontier one level at a time. When a level reaches the other search, 
+     * the shortest of the paths through the edges found in that level is the shortest path.
+     */
+    protected int[] shortestPathBidirectional(final int from, final int to) {
+        if (from == to) {
+            return new int[0];
+        }
+        final Workspace ws=takeWorkspace();
+        try {
+            return shortestPathBidirectional(ws, from, to);
+        }
+        finally {
+            releaseWorkspace(ws);
+        }
+    }
+
+    private int[] shortestPathBidirectional(final Workspace ws, final int from, final int to) {
+        final int[] visited=ws.visited;
+        final int[] visitedBack=ws.visitedBack;
+        final int[] dist=ws.dist;
+        final int[] distBack=ws.distBack;
+        final int[] queue=ws.queue;
+        final int[] queueBack=ws.queueBack;
+        final int stamp=ws.nextStamp();
+        int head=0, tail=0, headBack=0, tailBack=0;
+        queue[tail++]=from;
+        visited[from]=stamp;
+        dist[from]=0;
+        queueBack[tailBack++]=to;
+        visitedBack[to]=stamp;
+        distBack[to]=0;
+
+        int best=Integer.MAX_VALUE;
+        int meetingEdge=-1;
+        while (meetingEdge < 0 && head < tail && headBack < tailBack) {
+            if (tail-head <= tailBack-headBack) {
+                // one level forward
+                final int end=tail;
+                while (head < end) {
+                    final int u=queue[head++];
+                    for(int e=offsets[u]; e<offsets[u+1]; ++e) {
+                        final int v=targets[e];
+                        if (visitedBack[v] == stamp && dist[u]+1+distBack[v] < best) {
+                            best=dist[u]+1+distBack[v];
+                            meetingEdge=e;
+                        }
+                        if (visited[v] != stamp) {
+                            visited[v]=stamp;
+                            dist[v]=dist[u]+1;
+                            ws.predEdge[v]=e;
+                            queue[tail++]=v;
+                        }
+                    }
+                }
+            }
+            else {
+                // one level backward, on the incoming edges
+                final int end=tailBack;
+                while (headBack < end) {
+                    final int v=queueBack[headBack++];
+                    for(int i=inOffsets[v]; i<inOffsets[v+1]; ++i) {
+                        final int e=inEdges[i];
+                        final int u=sources[e];
+                        if (visited[u] == stamp && dist[u]+1+distBack[v] < best) {
+                            best=dist[u]+1+distBack[v];
+                            meetingEdge=e;
+                        }
+                        if (visitedBack[u] != stamp) {
+                            visitedBack[u]=stamp;
+                            distBack[u]=distBack[v]+1;
+                            ws.succEdge[u]=e;
+                            queueBack[tailBack++]=u;
+                        }
+                    }
+                }
+            }
+        }
+        ws.numVisited=tail+tailBack;
+        if (meetingEdge < 0) {
+            return null;
+        }
+        // from 'from' to the source of the meeting edge, then on to 'to'
+        final int[] prefix=tracePath(ws.predEdge, from, sources[meetingEdge]);
+        final int[] path=Arrays.copyOf(prefix, best);
+        int i=prefix.length;
+        path[i++]=meetingEdge;
+        for(int v=targets[meetingEdge]; v != to; v=targets[ws.succEdge[v]]) {
+            path[i++]=ws.succEdge[v];
+        }
+        return path;
+    }
+
+    /**
+     * Find a path with the fewest stops, with an A* search. The heuristic is the great-circle 
+     * distance to the destination divided by the longest edge, which is never more than the number of
+     * stops left to travel; when some stops have no coordinates it is zero, i.e. Dijkstra's algorithm.
+     */
+    protected int[] shortestPathAStar(final int from, final int to) {
+        if (from == to) {
+            return new int[0];
+        }
+        final Workspace ws=takeWorkspace();
+        final int[] seen=ws.visited;
+        final int[] closed=ws.closed;
+        final int[] g=ws.dist;
+        final int[] predEdge=ws.predEdge;
+        final int stamp=ws.nextStamp();
+        final Stop target=stops[to];
+        int size=0;
+        seen[from]=stamp;
+        g[from]=0;
+        size=heapPush(ws, size, from, heuristic(from, target));
+        int numVisited=1;
+        try {
+            while (size > 0) {
+                final int u=ws.heapNodes[0];
+                size=heapPop(ws, size);
+                if (closed[u] == stamp) {
+                    continue;
+                }
+                closed[u]=stamp;
+                if (u == to) {
+                    return tracePath(predEdge, from, to);
+                }
+                for(int e=offsets[u]; e<offsets[u+1]; ++e) {
+                    final int v=targets[e];
+                    if (closed[v] == stamp) {
+                        continue;
+                    }
+                    if (seen[v] != stamp || g[u]+1 < g[v]) {
+                        if (seen[v] != stamp) {
+                            ++numVisited;
+                        }
+                        seen[v]=stamp;
+                        g[v]=g[u]+1;
+                        predEdge[v]=e;
+                        size=heapPush(ws, size, v, g[v]+heuristic(v, target));
+                    }
+                }
+            }
+            return null;
+        }
+        finally {
+            ws.numVisited=numVisited;
+            releaseWorkspace(ws);
+        }
+    }
+
+    /**
+     * Find the path with the lowest total weight, e.g. the scheduled travel time, with Dijkstra's algorithm
+     * on the edges rather than the stops, so that the cost of the next edge can depend on the last one:
+     * each change from an edge to an edge which shares none of its routes adds the transfer penalty.
+     *
+     * @param edgeWeights the non-negative weight of each edge, by edge index
+     * @param transferPenalty the cost of changing routes, in the same units as the weights
+     * @return the edge indices of the path, an empty array when from == to,
+     *     or null if there is no path
+     */
+    public int[] shortestPath(final int from, final int to, final int[] edgeWeights, final int transferPenalty) {
+        if (from == to) {
+            return new int[0];
+        }
+        final Workspace ws=takeWorkspace();
+        final int[] seen=ws.edgeSeen;
+        final int[] closed=ws.edgeClosed;
+        final int[] dist=ws.edgeDist;
+        final int[] pred=ws.edgePred;
+        final int stamp=ws.nextStamp();
+        int size=0;
+        for(int e=offsets[from]; e<offsets[from+1]; ++e) {
+            seen[e]=stamp;
+            dist[e]=edgeWeights[e];
+            pred[e]=NO_EDGE;
+            size=heapPush(ws, size, e, dist[e]);
+        }
+        int numSettled=0;
+        try {
+            while (size > 0) {
+                final int e=ws.heapNodes[0];
+                size=heapPop(ws, size);
+                if (closed[e] == stamp) {
+                    continue;
+                }
+                closed[e]=stamp;
+                ++numSettled;
+                final int u=targets[e];
+                if (u == to) {
+                    int length=0;
+                    for(int a=e; a != NO_EDGE; a=pred[a]) {
+                        ++length;
+                    }
+                    final int[] path=new int[length];
+                    for(int a=e; a != NO_EDGE; a=pred[a]) {
+                        path[--length]=a;
+                    }
+                    return path;
+                }
+                for(int next=offsets[u]; next<offsets[u+1]; ++next) {
+                    if (closed[next] == stamp) {
+                        continue;
+                    }
+                    final int d=dist[e]+edgeWeights[next]+(sharesRoute(e, next) ? 0 : transferPenalty);
+                    if (seen[next] != stamp || d < dist[next]) {
+                        seen[next]=stamp;
+                        dist[next]=d;
+                        pred[next]=e;
+                        size=heapPush(ws, size, next, d);
+                    }
+                }
+            }
+            return null;
+        }
+        finally {
+            // for the weighted search, the number of edges settled
+            ws.numVisited=numSettled;
+            releaseWorkspace(ws);
+        }
+    }
+
+    /**
+     * The total weight of a path, with the transfer penalty for each change of routes, see 
+     * {@link #shortestPath(int, int, int[], int)}.
+     */
+    public int pathWeight(final int[] path, final int[] edgeWeights, final int transferPenalty) {
+        int weight=0;
+        for(int i=0; i<path.length; ++i) {
+            weight+=edgeWeights[path[i]];
+            if (i > 0 && !sharesRoute(path[i-1], path[i])) {
+                weight+=transferPenalty;
+            }
+        }
+        return weight;
+    }
+
+    private double heuristic(final int stop, final Stop target) {
+        if (maxEdgeMeters <= 0) {
+            return 0;
+        }
+        return stops[stop].distanceMeters(target)/maxEdgeMeters;
+    }
+
+    private static int heapPush(final Workspace ws, int size, final int node, final double key) {
+        final int[] nodes=ws.heapNodes;
+        final double[] keys=ws.heapKeys;
+        int i=size++;
+        while (i > 0) {
+            final int parent=(i-1)/2;
+            if (keys[parent] <= key) {
+                break;
+            }
+            nodes[i]=nodes[parent];
+            keys[i]=keys[parent];
+            i=parent;
+        }
+        nodes[i]=node;
+        keys[i]=key;
+        return size;
+    }
+
+    private static int heapPop(final Workspace ws, int size) {
+        final int[] nodes=ws.heapNodes;
+        final double[] keys=ws.heapKeys;
+        --size;
+        final int node=nodes[size];
+        final double key=keys[size];
+        int i=0;
+        while (true) {
+            int child=2*i+1;
+            if (child >= size) {
+                break;
+            }
+            if (child+1 < size && keys[child+1] < keys[child]) {
+                ++child;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            nodes[i]=nodes[child];
+            keys[i]=keys[child];
+            i=child;
+        }
+        nodes[i]=node;
+        keys[i]=key;
+        return size;
+    }
+
+    /**
+     * Compute the breadth-first shortest path tree from the source, visiting stops in the same
+     * order as {@link #shortestPath(int, int)} so that both find the same paths.
+     *
+     * @return predEdge, predEdge[v] is the last edge on the path from the source to 'v', 
+     *     or NO_EDGE for the source and for unreachable stops
+     */
+    public int[] shortestPathTree(final int source) {
+        final int[] predEdge=new int[stops.length];
+        Arrays.fill(predEdge, NO_EDGE);
+        final Workspace ws=takeWorkspace();
+        final int[] queue=ws.queue;
+        int head=0;
+        int tail=0;
+        queue[tail++]=source;
+        try {
+            while (head < tail) {
+                final int u=queue[head++];
+                for(int e=offsets[u]; e<offsets[u+1]; ++e) {
+                    final int v=targets[e];
+                    if (v != source && predEdge[v] == NO_EDGE) {
+                        predEdge[v]=e;
+                        queue[tail++]=v;
+                    }
+                }
+            }
+            return predEdge;
+        }
+        finally {
+            // a tree is not a point-to-point search, keep the last count
+            idleWorkspaces.offer(ws);
+        }
+    }
+
+    /**
+     * Get the path to 'to' from a tree computed by {@link #shortestPathTree(int)}.
+     * @return the edge indices of the path, or null if there is no path
+     */
+    public int[] pathFromTree(final int[] predEdge, final int from, final int to) {
+        if (from == to) {
+            return new int[0];
+        }
+        if (predEdge[to] == NO_EDGE) {
+            return null;
+        }
+        return tracePath(predEdge, from, to);
+    }
+
+    /**
+     * Follow the predecessor edges back from 'to' to 'from'.
+     */
+    protected int[] tracePath(final int[] predEdge, final int from, final int to) {
+        int length=0;
+        for(int v=to; v != from; v=sources[predEdge[v]]) {
+            ++length;
+        }
+        final int[] path=new int[length];
+        for(int v=to; v != from; v=sources[predEdge[v]]) {
+            path[--length]=predEdge[v];
+        }
+        return path;
+    }
+
+    /** the stops along the path, starting with 'from' */
+    public List<Stop> pathStops(final int from, final int[] path) {
+        final List<Stop> list=new ArrayList<Stop>(path.length+1);
+        list.add(stops[from]);
+        for(final int e : path) {
+            list.add(stops[targets[e]]);
+        }
+        return list;
+    }
+
+    /**
+     * the routes along the path, consecutive edges on the same route are listed once.
+     * Where more than one route runs along an edge, take the route which runs furthest along the path,
+     * so that the list has the fewest changes of route.
+     */
+    public List<Route> pathRoutes(final int[] path) {
+        final List<Route> list=new ArrayList<Route>();
+        int i=0;
+        while (i < path.length) {
+            int best=edgeRoutes[path[i]];
+            int bestEnd=i;
+            for(int k=routeOffsets[path[i]]; k<routeOffsets[path[i]+1]; ++k) {
+                final int route=routeList[k];
+                int end=i+1;
+                while (end < path.length && hasRoute(path[end], route)) {
+                    ++end;
+                }
+                if (end > bestEnd) {
+                    best=route;
+                    bestEnd=end;
+                }
+            }
+            list.add(routes[best]);
+            i=bestEnd;
+        }
+        return list;
+    }
+
+    /**
+     * Get the jgrapht view of this graph, created on the first call.
+     */
+    public synchronized Graph<Stop, RouteEdge> asGraph() {
+        if (graph == null) {
+            final Graph<Stop, RouteEdge> g=new DefaultDirectedGraph<Stop, RouteEdge>(RouteEdge.class);
+            for(final Stop stop : stops) {
+                g.addVertex(stop);
+            }
+            final RouteEdge[] edges=new RouteEdge[targets.length];
+            for(int e=0; e<targets.length; ++e) {
+                edges[e]=new RouteEdge(routes[edgeRoutes[e]]);
+                g.addEdge(stops[sources[e]], stops[targets[e]], edges[e]);
+            }
+            routeEdges=edges;
+            graph=g;
+        }
+        return graph;
+    }
+
+    /**
+     * Get the path as a jgrapht GraphPath, on the {@link #asGraph()} view.
+     */
+    public GraphPath<Stop, RouteEdge> asGraphPath(final int from, final int to, final int[] path) {
+        if (path == null) {
+            return null;
+        }
+        final Graph<Stop, RouteEdge> g=asGraph();
+        final List<RouteEdge> edgeList=new ArrayList<RouteEdge>(path.length);
+        for(final int e : path) {
+            edgeList.add(routeEdges[e]);
+        }
+        return new GraphWalk<Stop, RouteEdge>(g, stops[from], stops[to], pathStops(from, path), edgeList, path.length);
+    }
+
+}
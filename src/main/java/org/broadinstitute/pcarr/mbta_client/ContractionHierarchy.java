@@ -0,0 +1,601 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Contraction hierarchy index of a {@link CompactGraph}, for fast point-to-point shortest path queries
+ * on large graphs, e.g. all route types with thousands of stops.
+ *
+ * Preprocessing contracts the stops one at a time, in order of importance (fewest added shortcuts first),
+ * adding a shortcut edge u->w through each contracted stop v when u->v->w is the only shortest path
+ * between u and w among the stops that are left. A query is a bidirectional Dijkstra search which only
+ * follows edges to more important stops, so it settles a few dozen stops instead of a large part of the graph.
+ * Shortcuts are unpacked into the edges of the CompactGraph, so the paths can be used with
+ * {@link CompactGraph#pathStops(int, int[])} and {@link CompactGraph#pathRoutes(int[])}.
+ *
+ * Edge weights default to 1, i.e. the fewest stops, the same path length as
+ * {@link CompactGraph#shortestPath(int, int)}. When there is more than one shortest path,
+ * the two searches can return different paths of the same length, so {@link SystemGraph} only
+ * uses the index when it is asked to, see {@link SystemGraph#withContractionHierarchy(boolean)}.
+ */
+public class ContractionHierarchy {
+    public static final int MAGIC=0x4d424348; // 'MBCH'
+    public static final int VERSION=3;
+
+    /** the kind of edge weights, a weight of 1 for every edge, i.e. the fewest stops */
+    public static final int WEIGHTS_STOPS=0;
+    /** the kind of edge weights, given weights for each edge, e.g. the scheduled travel times */
+    public static final int WEIGHTS_EDGES=1;
+
+    // stop the witness searches after settling this many stops,
+    // a failed search adds a shortcut which may not be needed, but never a wrong one
+    private static final int MAX_WITNESS_SETTLED=500;
+    private static final int INFINITY=Integer.MAX_VALUE;
+
+    // priority queue entries are { key, stop }, ordered by key, then by stop
+    private static final Comparator<long[]> byKey=new Comparator<long[]>() {
+        public int compare(final long[] o1, final long[] o2) {
+            final int cmp=Long.compare(o1[0], o2[0]);
+            return cmp != 0 ? cmp : Long.compare(o1[1], o2[1]);
+        }
+    };
+
+    private final CompactGraph graph;
+    // what the index was built for, see isFor(int[], int)
+    private final int weightKind;
+    private final long weightsChecksum;
+    // always 0, the index has no way to charge for changing routes
+    private final int transferPenalty=0;
+    // rank[v], the contraction order, higher is more important
+    private final int[] rank;
+    // arcs: the original edges, followed by the shortcuts
+    private final int[] arcFrom;
+    private final int[] arcTo;
+    private final int[] arcWeight;
+    // for an original arc, the edge index in the graph and child arcs of -1;
+    // for a shortcut, edge -1 and the two arcs it replaces
+    private final int[] arcEdge;
+    private final int[] arcChild1;
+    private final int[] arcChild2;
+    // search graph in CSR form, upward[v] are arcs v->w with rank[w] > rank[v],
+    // downward[v] are arcs u->v with rank[u] > rank[v], for the backward search
+    private final int[] upOffsets;
+    private final int[] upArcs;
+    private final int[] downOffsets;
+    private final int[] downArcs;
+
+    // per-thread scratch space for queries
+    private static class Workspace {
+        final int[] visited;
+        final int[] visitedBack;
+        final int[] dist;
+        final int[] distBack;
+        final int[] predArc;
+        final int[] succArc;
+        int stamp=0;
+        int numSettled=0;
+
+        Workspace(final int numStops) {
+            visited=new int[numStops];
+            visitedBack=new int[numStops];
+            dist=new int[numStops];
+            distBack=new int[numStops];
+            predArc=new int[numStops];
+            succArc=new int[numStops];
+        }
+
+        int nextStamp() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                Arrays.fill(visitedBack, 0);
+                stamp=1;
+            }
+            numSettled=0;
+            return stamp;
+        }
+    }
+
+    private final ThreadLocal<Workspace> workspace=new ThreadLocal<Workspace>() {
+        protected Workspace initialValue() {
+            return new Workspace(rank.length);
+        }
+    };
+
+    protected ContractionHierarchy(final CompactGraph graph, final int weightKind, final long weightsChecksum, final int[] rank,
+            final int[] arcFrom, final int[] arcTo, final int[] arcWeight,
+            final int[] arcEdge, final int[] arcChild1, final int[] arcChild2) {
+        this.graph=graph;
+        this.weightKind=weightKind;
+        this.weightsChecksum=weightsChecksum;
+        this.rank=rank;
+        this.arcFrom=arcFrom;
+        this.arcTo=arcTo;
+        this.arcWeight=arcWeight;
+        this.arcEdge=arcEdge;
+        this.arcChild1=arcChild1;
+        this.arcChild2=arcChild2;
+
+        final int n=rank.length;
+        upOffsets=new int[n+1];
+        downOffsets=new int[n+1];
+        for(int a=0; a<arcFrom.length; ++a) {
+            if (rank[arcTo[a]] > rank[arcFrom[a]]) {
+                ++upOffsets[arcFrom[a]+1];
+            }
+            else {
+                ++downOffsets[arcTo[a]+1];
+            }
+        }
+        for(int i=0; i<n; ++i) {
+            upOffsets[i+1]+=upOffsets[i];
+            downOffsets[i+1]+=downOffsets[i];
+        }
+        upArcs=new int[upOffsets[n]];
+        downArcs=new int[downOffsets[n]];
+        final int[] nextUp=Arrays.copyOf(upOffsets, n);
+        final int[] nextDown=Arrays.copyOf(downOffsets, n);
+        for(int a=0; a<arcFrom.length; ++a) {
+            if (rank[arcTo[a]] > rank[arcFrom[a]]) {
+                upArcs[nextUp[arcFrom[a]]++]=a;
+            }
+            else {
+                downArcs[nextDown[arcTo[a]]++]=a;
+            }
+        }
+    }
+
+    /**
+     * Build the index with a weight of 1 for every edge.
+     */
+    public static ContractionHierarchy build(final CompactGraph graph) {
+        final int[] weights=new int[graph.getNumEdges()];
+        Arrays.fill(weights, 1);
+        return new Contractor(graph, weights).contract(WEIGHTS_STOPS);
+    }
+
+    /**
+     * Build the index, with no transfer penalty.
+     * @param edgeWeights the non-negative weight of each edge of the graph, by edge index
+     */
+    public static ContractionHierarchy build(final CompactGraph graph, final int[] edgeWeights) {
+        return new Contractor(graph, edgeWeights).contract(WEIGHTS_EDGES);
+    }
+
+    /** a checksum of the edge weights, to check that an index which was read is for the same weights */
+    protected static long checksum(final int[] edgeWeights) {
+        // FNV-1a
+        long hash=0xcbf29ce484222325L;
+        for(final int weight : edgeWeights) {
+            hash^=weight;
+            hash*=0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Is this the index for the given edge weights and transfer penalty.
+     * @param edgeWeights the weights of the edges, or null for the fewest stops
+     */
+    public boolean isFor(final int[] edgeWeights, final int transferPenalty) {
+        if (transferPenalty != this.transferPenalty) {
+            return false;
+        }
+        if (edgeWeights == null) {
+            return weightKind == WEIGHTS_STOPS;
+        }
+        return weightKind == WEIGHTS_EDGES && checksum(edgeWeights) == weightsChecksum;
+    }
+
+    // growable int array
+    private static class IntList {
+        int[] values=new int[4];
+        int size=0;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values=Arrays.copyOf(values, 2*size);
+            }
+            values[size++]=value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // the preprocessing state
+    private static class Contractor {
+        final CompactGraph graph;
+        final int n;
+        final IntList arcFrom=new IntList();
+        final IntList arcTo=new IntList();
+        final IntList arcWeight=new IntList();
+        final IntList arcEdge=new IntList();
+        final IntList arcChild1=new IntList();
+        final IntList arcChild2=new IntList();
+        // arcs by stop, in the remaining graph
+        final List<IntList> out=new ArrayList<IntList>();
+        final List<IntList> in=new ArrayList<IntList>();
+        final boolean[] contracted;
+        final int[] numContractedNeighbors;
+        final int[] rank;
+        // witness search
+        final int[] dist;
+        final int[] visited;
+        int stamp=0;
+
+        final long weightsChecksum;
+
+        Contractor(final CompactGraph graph, final int[] edgeWeights) {
+            this.graph=graph;
+            this.weightsChecksum=checksum(edgeWeights);
+            this.n=graph.getNumStops();
+            for(int v=0; v<n; ++v) {
+                out.add(new IntList());
+                in.add(new IntList());
+            }
+            for(int e=0; e<graph.getNumEdges(); ++e) {
+                if (edgeWeights[e] < 0) {
+                    throw new IllegalArgumentException("negative weight, edge="+e+", weight="+edgeWeights[e]);
+                }
+                addArc(graph.getSource(e), graph.getTarget(e), edgeWeights[e], e, -1, -1);
+            }
+            contracted=new boolean[n];
+            numContractedNeighbors=new int[n];
+            rank=new int[n];
+            dist=new int[n];
+            visited=new int[n];
+        }
+
+        int addArc(final int from, final int to, final int weight, final int edge, final int child1, final int child2) {
+            final int a=arcFrom.size;
+            arcFrom.add(from);
+            arcTo.add(to);
+            arcWeight.add(weight);
+            arcEdge.add(edge);
+            arcChild1.add(child1);
+            arcChild2.add(child2);
+            out.get(from).add(a);
+            in.get(to).add(a);
+            return a;
+        }
+
+        /**
+         * Contract 'v', or just count the shortcuts when 'add' is false.
+         * @return the number of shortcuts
+         */
+        int contract(final int v, final boolean add) {
+            int numShortcuts=0;
+            final IntList ins=in.get(v);
+            final IntList outs=out.get(v);
+            int maxOut=0;
+            for(int j=0; j<outs.size; ++j) {
+                final int a=outs.values[j];
+                if (!contracted[arcTo.values[a]]) {
+                    maxOut=Math.max(maxOut, arcWeight.values[a]);
+                }
+            }
+            for(int i=0; i<ins.size; ++i) {
+                final int inArc=ins.values[i];
+                final int u=arcFrom.values[inArc];
+                if (contracted[u]) {
+                    continue;
+                }
+                final int inWeight=arcWeight.values[inArc];
+                witnessSearch(u, v, inWeight+maxOut);
+                for(int j=0; j<outs.size; ++j) {
+                    final int outArc=outs.values[j];
+                    final int w=arcTo.values[outArc];
+                    if (contracted[w] || w == u) {
+                        continue;
+                    }
+                    final int viaWeight=inWeight+arcWeight.values[outArc];
+                    if (visited[w] == stamp && dist[w] <= viaWeight) {
+                        // there is a path u->w which does not go through v, as short or shorter
+                        continue;
+                    }
+                    ++numShortcuts;
+                    if (add) {
+                        addArc(u, w, viaWeight, -1, inArc, outArc);
+                        // so that a later out arc of 'v' is compared with this shortcut
+                        if (visited[w] != stamp || viaWeight < dist[w]) {
+                            visited[w]=stamp;
+                            dist[w]=viaWeight;
+                        }
+                    }
+                }
+            }
+            return numShortcuts;
+        }
+
+        // Dijkstra from 'source' in the remaining graph without 'skip', up to maxDist
+        void witnessSearch(final int source, final int skip, final int maxDist) {
+            ++stamp;
+            final PriorityQueue<long[]> queue=new PriorityQueue<long[]>(16, byKey);
+            visited[source]=stamp;
+            dist[source]=0;
+            queue.add(new long[] { 0, source });
+            int numSettled=0;
+            while (!queue.isEmpty() && numSettled < MAX_WITNESS_SETTLED) {
+                final long[] next=queue.poll();
+                final int u=(int) next[1];
+                if (next[0] > dist[u]) {
+                    continue;
+                }
+                if (dist[u] > maxDist) {
+                    break;
+                }
+                ++numSettled;
+                final IntList outs=out.get(u);
+                for(int j=0; j<outs.size; ++j) {
+                    final int a=outs.values[j];
+                    final int w=arcTo.values[a];
+                    if (w == skip || contracted[w]) {
+                        continue;
+                    }
+                    final int d=dist[u]+arcWeight.values[a];
+                    if (visited[w] != stamp || d < dist[w]) {
+                        visited[w]=stamp;
+                        dist[w]=d;
+                        queue.add(new long[] { d, w });
+                    }
+                }
+            }
+        }
+
+        int priority(final int v) {
+            int degree=0;
+            for(int i=0; i<in.get(v).size; ++i) {
+                if (!contracted[arcFrom.values[in.get(v).values[i]]]) {
+                    ++degree;
+                }
+            }
+            for(int j=0; j<out.get(v).size; ++j) {
+                if (!contracted[arcTo.values[out.get(v).values[j]]]) {
+                    ++degree;
+                }
+            }
+            // edge difference, plus a term to spread the contraction evenly over the graph
+            return contract(v, false)-degree+numContractedNeighbors[v];
+        }
+
+        ContractionHierarchy contract(final int weightKind) {
+            // lazy updates, re-compute the priority of the next stop before contracting it
+            final PriorityQueue<long[]> queue=new PriorityQueue<long[]>(Math.max(1, n), byKey);
+            for(int v=0; v<n; ++v) {
+                queue.add(new long[] { priority(v), v });
+            }
+            int nextRank=0;
+            while (!queue.isEmpty()) {
+                final long[] next=queue.poll();
+                final int v=(int) next[1];
+                final int priority=priority(v);
+                if (!queue.isEmpty() && priority > queue.peek()[0]) {
+                    queue.add(new long[] { priority, v });
+                    continue;
+                }
+                contract(v, true);
+                contracted[v]=true;
+                rank[v]=nextRank++;
+                for(int i=0; i<in.get(v).size; ++i) {
+                    ++numContractedNeighbors[arcFrom.values[in.get(v).values[i]]];
+                }
+                for(int j=0; j<out.get(v).size; ++j) {
+                    ++numContractedNeighbors[arcTo.values[out.get(v).values[j]]];
+                }
+            }
+            return new ContractionHierarchy(graph, weightKind, weightsChecksum, rank,
+                arcFrom.toArray(), arcTo.toArray(), arcWeight.toArray(),
+                arcEdge.toArray(), arcChild1.toArray(), arcChild2.toArray());
+        }
+    }
+
+    public CompactGraph getGraph() {
+        return graph;
+    }
+
+    /** the number of shortcut edges added by preprocessing */
+    public int getNumShortcuts() {
+        return arcFrom.length-graph.getNumEdges();
+    }
+
+    /**
+     * Get the number of stops settled by the last query on the calling thread.
+     */
+    public int getNumSettled() {
+        return workspace.get().numSettled;
+    }
+
+    /**
+     * Find a shortest path.
+     * @return the edge indices of the path in the CompactGraph, an empty array when from == to,
+     *     or null if there is no path
+     */
+    public int[] shortestPath(final int from, final int to) {
+        if (from == to) {
+            return new int[0];
+        }
+        final Workspace ws=workspace.get();
+        final int stamp=ws.nextStamp();
+        final PriorityQueue<long[]> forward=new PriorityQueue<long[]>(16, byKey);
+        final PriorityQueue<long[]> backward=new PriorityQueue<long[]>(16, byKey);
+        ws.visited[from]=stamp;
+        ws.dist[from]=0;
+        forward.add(new long[] { 0, from });
+        ws.visitedBack[to]=stamp;
+        ws.distBack[to]=0;
+        backward.add(new long[] { 0, to });
+
+        long best=INFINITY;
+        int meeting=-1;
+        while (!forward.isEmpty() || !backward.isEmpty()) {
+            final boolean fwd=backward.isEmpty() || (!forward.isEmpty() && forward.peek()[0] <= backward.peek()[0]);
+            final PriorityQueue<long[]> queue=fwd ? forward : backward;
+            final long[] next=queue.poll();
+            if (next[0] >= best) {
+                // every path through the rest of this queue is at least as long
+                queue.clear();
+                continue;
+            }
+            final int u=(int) next[1];
+            final int[] dist=fwd ? ws.dist : ws.distBack;
+            if (next[0] > dist[u]) {
+                continue;
+            }
+            ++ws.numSettled;
+            // the other search reached 'u' too
+            final boolean otherVisited=fwd ? ws.visitedBack[u] == stamp : ws.visited[u] == stamp;
+            if (otherVisited) {
+                final long total=(long) ws.dist[u]+ws.distBack[u];
+                if (total < best) {
+                    best=total;
+                    meeting=u;
+                }
+            }
+            if (fwd) {
+                for(int i=upOffsets[u]; i<upOffsets[u+1]; ++i) {
+                    final int a=upArcs[i];
+                    final int w=arcTo[a];
+                    final int d=ws.dist[u]+arcWeight[a];
+                    if (ws.visited[w] != stamp || d < ws.dist[w]) {
+                        ws.visited[w]=stamp;
+                        ws.dist[w]=d;
+                        ws.predArc[w]=a;
+                        forward.add(new long[] { d, w });
+                    }
+                }
+            }
+            else {
+                for(int i=downOffsets[u]; i<downOffsets[u+1]; ++i) {
+                    final int a=downArcs[i];
+                    final int w=arcFrom[a];
+                    final int d=ws.distBack[u]+arcWeight[a];
+                    if (ws.visitedBack[w] != stamp || d < ws.distBack[w]) {
+                        ws.visitedBack[w]=stamp;
+                        ws.distBack[w]=d;
+                        ws.succArc[w]=a;
+                        backward.add(new long[] { d, w });
+                    }
+                }
+            }
+        }
+        if (meeting < 0) {
+            return null;
+        }
+
+        final IntList arcs=new IntList();
+        for(int v=meeting; v != from; v=arcFrom[ws.predArc[v]]) {
+            arcs.add(ws.predArc[v]);
+        }
+        final int[] up=arcs.toArray();
+        final IntList edges=new IntList();
+        for(int i=up.length-1; i>=0; --i) {
+            unpack(up[i], edges);
+        }
+        for(int v=meeting; v != to; v=arcTo[ws.succArc[v]]) {
+            unpack(ws.succArc[v], edges);
+        }
+        return edges.toArray();
+    }
+
+    // append the original edges of the arc, in path order
+    private void unpack(final int arc, final IntList edges) {
+        if (arcEdge[arc] >= 0) {
+            edges.add(arcEdge[arc]);
+            return;
+        }
+        unpack(arcChild1[arc], edges);
+        unpack(arcChild2[arc], edges);
+    }
+
+    /**
+     * Write the index, see {@link GraphSnapshot} for the file which holds the graph.
+     * <pre>
+     *   int magic ('MBCH'), int version, int numStops, int numEdges, long graphChecksum,
+     *   int weightKind, long weightsChecksum, int transferPenalty,
+     *   int[numStops] rank,
+     *   int numArcs, { int from, int to, int weight, int edge, int child1, int child2 }
+     * </pre>
+     */
+    public void write(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(graph.getNumStops());
+        out.writeInt(graph.getNumEdges());
+        out.writeLong(graph.getChecksum());
+        out.writeInt(weightKind);
+        out.writeLong(weightsChecksum);
+        out.writeInt(transferPenalty);
+        for(final int r : rank) {
+            out.writeInt(r);
+        }
+        out.writeInt(arcFrom.length);
+        for(int a=0; a<arcFrom.length; ++a) {
+            out.writeInt(arcFrom[a]);
+            out.writeInt(arcTo[a]);
+            out.writeInt(arcWeight[a]);
+            out.writeInt(arcEdge[a]);
+            out.writeInt(arcChild1[a]);
+            out.writeInt(arcChild2[a]);
+        }
+    }
+
+    /**
+     * Read an index written by {@link #write(DataOutputStream)}, for the same graph.
+     * Check that it is for the edge weights in use with {@link #isFor(int[], int)}.
+     * @throws IOException if the index is not valid, or was built for a different graph
+     */
+    public static ContractionHierarchy read(final ByteBuffer buf, final CompactGraph graph) throws IOException {
+        if (buf.remaining() < 16 || buf.getInt() != MAGIC) {
+            throw new IOException("Not a contraction hierarchy index");
+        }
+        final int version=buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported index version="+version+", expecting version="+VERSION);
+        }
+        final int numStops=buf.getInt();
+        final int numEdges=buf.getInt();
+        if (numStops != graph.getNumStops() || numEdges != graph.getNumEdges()) {
+            throw new IOException("Index is for a different graph, numStops="+numStops+", numEdges="+numEdges);
+        }
+        final long graphChecksum=buf.getLong();
+        if (graphChecksum != graph.getChecksum()) {
+            throw new IOException("Index is for a different graph, checksum="+Long.toHexString(graphChecksum)
+                +", expecting checksum="+Long.toHexString(graph.getChecksum()));
+        }
+        final int weightKind=buf.getInt();
+        final long weightsChecksum=buf.getLong();
+        final int transferPenalty=buf.getInt();
+        if ((weightKind != WEIGHTS_STOPS && weightKind != WEIGHTS_EDGES) || transferPenalty != 0) {
+            throw new IOException("Unsupported index weights, weightKind="+weightKind+", transferPenalty="+transferPenalty);
+        }
+        final int[] rank=new int[numStops];
+        for(int i=0; i<numStops; ++i) {
+            rank[i]=buf.getInt();
+        }
+        final int numArcs=buf.getInt();
+        final int[] arcFrom=new int[numArcs];
+        final int[] arcTo=new int[numArcs];
+        final int[] arcWeight=new int[numArcs];
+        final int[] arcEdge=new int[numArcs];
+        final int[] arcChild1=new int[numArcs];
+        final int[] arcChild2=new int[numArcs];
+        for(int a=0; a<numArcs; ++a) {
+            arcFrom[a]=buf.getInt();
+            arcTo[a]=buf.getInt();
+            arcWeight[a]=buf.getInt();
+            arcEdge[a]=buf.getInt();
+            arcChild1[a]=buf.getInt();
+            arcChild2[a]=buf.getInt();
+        }
+        return new ContractionHierarchy(graph, weightKind, weightsChecksum, rank, arcFrom, arcTo, arcWeight, arcEdge, arcChild1, arcChild2);
+    }
+
+}
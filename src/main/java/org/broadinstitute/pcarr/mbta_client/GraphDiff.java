@@ -0,0 +1,309 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * The changes between two versions of the routes and their stops, see {@link SystemGraph#refresh()}.
+ *
+ * Routes and stops are matched by id. A route is changed when its names or type changed, or its stops
+ * are not the same, in the same order; a stop is changed when its name, location, parent station
+ * or wheelchair boarding changed. Edges are between consecutive stops on a route, in each direction.
+ */
+public class GraphDiff {
+
+    /**
+     * a directed edge, from one stop to the next on a route, by id
+     */
+    public static class Edge {
+        private final String fromId;
+        private final String toId;
+        private final String routeId;
+
+        public Edge(final String fromId, final String toId, final String routeId) {
+            this.fromId=fromId;
+            this.toId=toId;
+            this.routeId=routeId;
+        }
+
+        /** the edge of the graph */
+        public static Edge of(final CompactGraph graph, final int edge) {
+            return new Edge(
+                graph.getStop(graph.getSource(edge)).getId(),
+                graph.getStop(graph.getTarget(edge)).getId(),
+                graph.getRoute(graph.getEdgeRoute(edge)).getId());
+        }
+
+        public String getFromId() {
+            return fromId;
+        }
+
+        public String getToId() {
+            return toId;
+        }
+
+        public String getRouteId() {
+            return routeId;
+        }
+
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Edge)) {
+                return false;
+            }
+            final Edge o=(Edge) obj;
+            return fromId.equals(o.fromId) && toId.equals(o.toId) && routeId.equals(o.routeId);
+        }
+
+        public int hashCode() {
+            return Objects.hash(fromId, toId, routeId);
+        }
+
+        public String toString() {
+            return fromId+" -> "+toId+" ("+routeId+")";
+        }
+    }
+
+    private final ImmutableList<Route> addedRoutes;
+    private final ImmutableList<Route> removedRoutes;
+    private final ImmutableList<Route> changedRoutes;
+    private final ImmutableList<Stop> addedStops;
+    private final ImmutableList<Stop> removedStops;
+    private final ImmutableList<Stop> changedStops;
+    private final ImmutableSet<Edge> addedEdges;
+    private final ImmutableSet<Edge> removedEdges;
+
+    protected GraphDiff(final List<Route> addedRoutes, final List<Route> removedRoutes, final List<Route> changedRoutes,
+            final List<Stop> addedStops, final List<Stop> removedStops, final List<Stop> changedStops,
+            final Set<Edge> addedEdges, final Set<Edge> removedEdges) {
+        this.addedRoutes=ImmutableList.copyOf(addedRoutes);
+        this.removedRoutes=ImmutableList.copyOf(removedRoutes);
+        this.changedRoutes=ImmutableList.copyOf(changedRoutes);
+        this.addedStops=ImmutableList.copyOf(addedStops);
+        this.removedStops=ImmutableList.copyOf(removedStops);
+        this.changedStops=ImmutableList.copyOf(changedStops);
+        this.addedEdges=ImmutableSet.copyOf(addedEdges);
+        this.removedEdges=ImmutableSet.copyOf(removedEdges);
+    }
+
+    /**
+     * Compute the changes from the old to the new routes.
+     * Added and changed routes and stops are the new instances, removed ones are the old instances.
+     */
+    public static GraphDiff compute(final Collection<Route> oldRoutes, final Collection<Route> newRoutes) {
+        final Map<String,Route> oldById=routesById(oldRoutes);
+        final Map<String,Route> newById=routesById(newRoutes);
+        final Map<String,Stop> oldStops=stopsById(oldRoutes);
+        final Map<String,Stop> newStops=stopsById(newRoutes);
+
+        final List<Stop> addedStops=new ArrayList<Stop>();
+        final List<Stop> changedStops=new ArrayList<Stop>();
+        for(final Stop stop : newStops.values()) {
+            final Stop old=oldStops.get(stop.getId());
+            if (old == null) {
+                addedStops.add(stop);
+            }
+            else if (!sameAttributes(old, stop)) {
+                changedStops.add(stop);
+            }
+        }
+        final List<Stop> removedStops=new ArrayList<Stop>();
+        for(final Stop stop : oldStops.values()) {
+            if (!newStops.containsKey(stop.getId())) {
+                removedStops.add(stop);
+            }
+        }
+
+        final List<Route> addedRoutes=new ArrayList<Route>();
+        final List<Route> changedRoutes=new ArrayList<Route>();
+        for(final Route route : newById.values()) {
+            final Route old=oldById.get(route.getId());
+            if (old == null) {
+                addedRoutes.add(route);
+            }
+            else if (!sameAttributes(old, route) || !sameStops(old, route)) {
+                changedRoutes.add(route);
+            }
+        }
+        final List<Route> removedRoutes=new ArrayList<Route>();
+        for(final Route route : oldById.values()) {
+            if (!newById.containsKey(route.getId())) {
+                removedRoutes.add(route);
+            }
+        }
+
+        final Set<Edge> oldEdges=edges(oldRoutes);
+        final Set<Edge> newEdges=edges(newRoutes);
+        return new GraphDiff(addedRoutes, removedRoutes, changedRoutes, addedStops, removedStops, changedStops,
+            Sets.difference(newEdges, oldEdges), Sets.difference(oldEdges, newEdges));
+    }
+
+    private static Map<String,Route> routesById(final Collection<Route> routes) {
+        final Map<String,Route> byId=new LinkedHashMap<String,Route>();
+        for(final Route route : routes) {
+            byId.put(route.getId(), route);
+        }
+        return byId;
+    }
+
+    private static Map<String,Stop> stopsById(final Collection<Route> routes) {
+        final Map<String,Stop> byId=new LinkedHashMap<String,Stop>();
+        for(final Route route : routes) {
+            for(final Stop stop : route.getStops()) {
+                if (!byId.containsKey(stop.getId())) {
+                    byId.put(stop.getId(), stop);
+                }
+            }
+        }
+        return byId;
+    }
+
+    /** the edges between consecutive stops on each route, in each direction */
+    protected static Set<Edge> edges(final Collection<Route> routes) {
+        final Set<Edge> edges=new HashSet<Edge>();
+        for(final Route route : routes) {
+            Stop from=null;
+            for(final Stop to : route.getStops()) {
+                if (from != null) {
+                    edges.add(new Edge(from.getId(), to.getId(), route.getId()));
+                    edges.add(new Edge(to.getId(), from.getId(), route.getId()));
+                }
+                from=to;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * the edges of the graph, when more than one route connects the same stops,
+     * the graph has one edge, on the first of the routes
+     */
+    public static Set<Edge> edges(final CompactGraph graph) {
+        final Set<Edge> edges=new HashSet<Edge>();
+        for(int e=0; e<graph.getNumEdges(); ++e) {
+            edges.add(Edge.of(graph, e));
+        }
+        return edges;
+    }
+
+    /**
+     * true when the graphs have the same stops, edges and routes, by id, at the same indices,
+     * so that paths and indexes computed for one are valid for the other
+     */
+    public static boolean sameLayout(final CompactGraph a, final CompactGraph b) {
+        if (a.getNumStops() != b.getNumStops() || a.getNumEdges() != b.getNumEdges() || a.getNumRoutes() != b.getNumRoutes()) {
+            return false;
+        }
+        for(int i=0; i<a.getNumStops(); ++i) {
+            if (!a.getStop(i).getId().equals(b.getStop(i).getId())) {
+                return false;
+            }
+        }
+        for(int i=0; i<a.getNumRoutes(); ++i) {
+            if (!a.getRoute(i).getId().equals(b.getRoute(i).getId())) {
+                return false;
+            }
+        }
+        for(int e=0; e<a.getNumEdges(); ++e) {
+            if (a.getSource(e) != b.getSource(e) || a.getTarget(e) != b.getTarget(e)
+                    || !Arrays.equals(a.getEdgeRoutes(e), b.getEdgeRoutes(e))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean sameAttributes(final Stop a, final Stop b) {
+        return Objects.equals(a.getName(), b.getName())
+            && Double.compare(a.getLatitude(), b.getLatitude()) == 0
+            && Double.compare(a.getLongitude(), b.getLongitude()) == 0
+            && Objects.equals(a.getParentStationId(), b.getParentStationId())
+            && a.getWheelchairBoarding() == b.getWheelchairBoarding();
+    }
+
+    protected static boolean sameAttributes(final Route a, final Route b) {
+        return Objects.equals(a.getLongName(), b.getLongName())
+            && Objects.equals(a.getShortName(), b.getShortName())
+            && a.getType() == b.getType();
+    }
+
+    protected static boolean sameStops(final Route a, final Route b) {
+        final List<Stop> aStops=a.getStops();
+        final List<Stop> bStops=b.getStops();
+        if (aStops.size() != bStops.size()) {
+            return false;
+        }
+        for(int i=0; i<aStops.size(); ++i) {
+            if (!aStops.get(i).getId().equals(bStops.get(i).getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** true when nothing changed */
+    public boolean isEmpty() {
+        return addedRoutes.isEmpty() && removedRoutes.isEmpty() && changedRoutes.isEmpty()
+            && addedStops.isEmpty() && removedStops.isEmpty() && changedStops.isEmpty()
+            && addedEdges.isEmpty() && removedEdges.isEmpty();
+    }
+
+    /** true when the stops or the edges between them changed, i.e. paths may have changed */
+    public boolean isTopologyChanged() {
+        return !addedStops.isEmpty() || !removedStops.isEmpty() || !addedEdges.isEmpty() || !removedEdges.isEmpty();
+    }
+
+    public ImmutableList<Route> getAddedRoutes() {
+        return addedRoutes;
+    }
+
+    public ImmutableList<Route> getRemovedRoutes() {
+        return removedRoutes;
+    }
+
+    /** routes with new names, type, or stops */
+    public ImmutableList<Route> getChangedRoutes() {
+        return changedRoutes;
+    }
+
+    public ImmutableList<Stop> getAddedStops() {
+        return addedStops;
+    }
+
+    public ImmutableList<Stop> getRemovedStops() {
+        return removedStops;
+    }
+
+    /** stops with new attributes, e.g. a new name or location */
+    public ImmutableList<Stop> getChangedStops() {
+        return changedStops;
+    }
+
+    public ImmutableSet<Edge> getAddedEdges() {
+        return addedEdges;
+    }
+
+    public ImmutableSet<Edge> getRemovedEdges() {
+        return removedEdges;
+    }
+
+    public String toString() {
+        return "routes +"+addedRoutes.size()+" -"+removedRoutes.size()+" ~"+changedRoutes.size()
+            +", stops +"+addedStops.size()+" -"+removedStops.size()+" ~"+changedStops.size()
+            +", edges +"+addedEdges.size()+" -"+removedEdges.size();
+    }
+
+}
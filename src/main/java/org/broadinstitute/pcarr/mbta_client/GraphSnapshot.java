@@ -0,0 +1,385 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Save a SystemGraph to a compact binary file, and load it back with memory-mapped I/O,
+ * to start without making any calls to the MBTA service.
+ *
+ * Usage:
+<pre>
+    final GraphSnapshot snapshot=new GraphSnapshot(new File("mbta.graph"))
+        .withMaxAge(1, TimeUnit.DAYS);
+    // load the snapshot, rebuild in the background when it is stale
+    final SystemGraph graph=snapshot.loadOrBuild(new SystemGraph().withClient(client));
+</pre>
+ *
+ * File format, version 2, big-endian:
+<pre>
+    int magic ('MBTG'), int version, long createdMillis
+    int numStops, { string id, string name, double lat, double lon, string parentStationId, int wheelchairBoarding }
+    int numRoutes, { string id, string longName, string shortName, int type, int numStops, { int stopIdx } }
+    int numEdges, { int fromStopIdx, int toStopIdx, int numRoutes, { int routeIdx } }
+</pre>
+ * Strings are written as an int length followed by UTF-8 bytes, a length of -1 means null.
+ *
+ * When the graph has a {@link ContractionHierarchy} index, it is saved alongside the snapshot,
+ * in a file with the same name and a '.ch' suffix, and loaded with it so that it is not rebuilt.
+ */
+public class GraphSnapshot {
+    private static final Logger log = LogManager.getLogger(GraphSnapshot.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+
+    public static final int MAGIC=0x4d425447; // 'MBTG'
+    public static final int VERSION=2;
+
+    private final File file;
+    private long maxAgeMillis=TimeUnit.DAYS.toMillis(1);
+    private Future<SystemGraph> refresh=null;
+
+    public GraphSnapshot(final File file) {
+        this.file=file;
+    }
+
+    /** a snapshot older than this is stale, and is rebuilt from the MBTA service */
+    public GraphSnapshot withMaxAge(final long maxAge, final TimeUnit unit) {
+        this.maxAgeMillis=unit.toMillis(maxAge);
+        return this;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** the contraction hierarchy index, saved alongside the snapshot */
+    public File getIndexFile() {
+        return new File(file.getPath()+".ch");
+    }
+
+    /**
+     * Get the time the snapshot was created, in milliseconds since the epoch,
+     * read from the file header; or -1 if there is no valid snapshot.
+     */
+    public long getCreatedMillis() {
+        if (!file.canRead()) {
+            return -1;
+        }
+        try {
+            final RandomAccessFile raf=new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < 16 || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                    return -1;
+                }
+                return raf.readLong();
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            log.debug("Error reading snapshot header, file="+file, e);
+            return -1;
+        }
+    }
+
+    /**
+     * true if there is a valid snapshot which is not older than the max age.
+     */
+    public boolean isFresh() {
+        final long created=getCreatedMillis();
+        return created >= 0 && System.currentTimeMillis()-created <= maxAgeMillis;
+    }
+
+    /**
+     * Load the graph from the snapshot file when it exists, otherwise build it
+     * with the given (not yet built) SystemGraph and save the snapshot.
+     * When the snapshot is stale, the graph is rebuilt in the background and saved
+     * to the snapshot file; the stale graph is returned right away and the rebuilt one
+     * is available from {@link #getRefresh()}.
+     */
+    public SystemGraph loadOrBuild(final SystemGraph builder) throws IOException {
+        if (getCreatedMillis() < 0) {
+            final SystemGraph graph=builder.build();
+            write(graph);
+            return graph;
+        }
+        final SystemGraph graph=read(builder.newInstance());
+        if (!isFresh()) {
+            log.info("snapshot is stale, rebuilding in the background, file="+file);
+            refresh=refreshInBackground(builder);
+        }
+        return graph;
+    }
+
+    /**
+     * Get the background rebuild started by loadOrBuild, or null if the snapshot was fresh.
+     */
+    public Future<SystemGraph> getRefresh() {
+        return refresh;
+    }
+
+    protected Future<SystemGraph> refreshInBackground(final SystemGraph builder) {
+        final ExecutorService exec=Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread=new Thread(r, "mbta-snapshot-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            return exec.submit(new Callable<SystemGraph>() {
+                public SystemGraph call() throws Exception {
+                    final SystemGraph graph=builder.build();
+                    write(graph);
+                    log.info("snapshot refreshed, file="+file);
+                    return graph;
+                }
+            });
+        }
+        finally {
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * Save the graph to the snapshot file. The file is written to a temporary
+     * file first, and renamed, so that readers never see a partial snapshot.
+     */
+    public void write(final SystemGraph graph) throws IOException {
+        final File parent=file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        final ContractionHierarchy index=graph.getContractionHierarchy();
+        if (index != null) {
+            // before the graph, so that a fresh snapshot is never paired with a stale index
+            replace(getIndexFile(), new Writer() {
+                public void write(final DataOutputStream out) throws IOException {
+                    index.write(out);
+                }
+            });
+        }
+        else {
+            getIndexFile().delete();
+        }
+        replace(file, new Writer() {
+            public void write(final DataOutputStream out) throws IOException {
+                GraphSnapshot.write(graph, out);
+            }
+        });
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // write to a temporary file, and move it over the file, so a reader sees the old file or the new one
+    private static void replace(final File file, final Writer writer) throws IOException {
+        final File tmp=new File(file.getPath()+".tmp");
+        final DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            writer.write(out);
+        }
+        finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    protected static void write(final SystemGraph systemGraph, final DataOutputStream out) throws IOException {
+        final CompactGraph graph=systemGraph.getCompactGraph();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+
+        out.writeInt(graph.getNumStops());
+        for(int i=0; i<graph.getNumStops(); ++i) {
+            final Stop stop=graph.getStop(i);
+            writeString(out, stop.getId());
+            writeString(out, stop.getName());
+            out.writeDouble(stop.getLatitude());
+            out.writeDouble(stop.getLongitude());
+            writeString(out, stop.getParentStationId());
+            out.writeInt(stop.getWheelchairBoarding());
+        }
+
+        final Map<Route,Integer> routeIdx=new HashMap<Route,Integer>();
+        final List<Route> routes=systemGraph.getRoutes().asList();
+        out.writeInt(routes.size());
+        for(final Route route : routes) {
+            routeIdx.put(route, routeIdx.size());
+            writeString(out, route.getId());
+            writeString(out, route.getLongName());
+            writeString(out, route.getShortName());
+            out.writeInt(route.getType());
+            out.writeInt(route.getStops().size());
+            for(final Stop stop : route.getStops()) {
+                out.writeInt(graph.indexOf(stop));
+            }
+        }
+
+        out.writeInt(graph.getNumEdges());
+        for(int e=0; e<graph.getNumEdges(); ++e) {
+            out.writeInt(graph.getSource(e));
+            out.writeInt(graph.getTarget(e));
+            final int[] edgeRoutes=graph.getEdgeRoutes(e);
+            out.writeInt(edgeRoutes.length);
+            for(final int r : edgeRoutes) {
+                out.writeInt(routeIdx.get(graph.getRoute(r)));
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes=value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Load the graph from the memory-mapped snapshot file.
+     */
+    public SystemGraph read() throws IOException {
+        return read(new SystemGraph());
+    }
+
+    /**
+     * Load the graph from the memory-mapped snapshot file into the given, not yet built, SystemGraph.
+     */
+    public SystemGraph read(final SystemGraph into) throws IOException {
+        final ByteBuffer buf=map(file);
+        final ByteBuffer indexBuf=getIndexFile().canRead() ? map(getIndexFile()) : null;
+        return read(buf, indexBuf, into);
+    }
+
+    private static ByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile raf=new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel=raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    protected static SystemGraph read(final ByteBuffer buf) throws IOException {
+        return read(buf, null, new SystemGraph());
+    }
+
+    protected static SystemGraph read(final ByteBuffer buf, final ByteBuffer indexBuf, final SystemGraph into) throws IOException {
+        if (buf.remaining() < 16 || buf.getInt() != MAGIC) {
+            throw new IOException("Not a SystemGraph snapshot");
+        }
+        final int version=buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version="+version+", expecting version="+VERSION);
+        }
+        buf.getLong(); // createdMillis
+
+        final int numStops=buf.getInt();
+        final List<Stop> stops=new ArrayList<Stop>(numStops);
+        for(int i=0; i<numStops; ++i) {
+            stops.add(new Stop(
+                readString(buf), // id
+                readString(buf), // name
+                buf.getDouble(), // latitude
+                buf.getDouble(), // longitude
+                readString(buf), // parentStationId
+                buf.getInt()     // wheelchairBoarding
+            ));
+        }
+
+        final int numRoutes=buf.getInt();
+        final List<Route> routes=new ArrayList<Route>(numRoutes);
+        for(int i=0; i<numRoutes; ++i) {
+            final Route route=new Route(
+                readString(buf), // id
+                readString(buf), // longName
+                readString(buf), // shortName
+                buf.getInt()     // type
+            );
+            final int numRouteStops=buf.getInt();
+            for(int j=0; j<numRouteStops; ++j) {
+                final Stop stop=stops.get(buf.getInt());
+                route.addStop(stop);
+                stop.addRoute(route);
+            }
+            routes.add(route);
+        }
+
+        // the routes and stops in their written order, the same indices as in SystemGraph.initGraph,
+        // for the checksum of the contraction hierarchy index
+        final CompactGraph.Builder graph=new CompactGraph.Builder();
+        for(final Route route : routes) {
+            graph.addRoute(route);
+        }
+        for(final Stop stop : stops) {
+            graph.addStop(stop);
+        }
+        final int numEdges=buf.getInt();
+        for(int i=0; i<numEdges; ++i) {
+            final Stop from=stops.get(buf.getInt());
+            final Stop to=stops.get(buf.getInt());
+            final int numEdgeRoutes=buf.getInt();
+            for(int j=0; j<numEdgeRoutes; ++j) {
+                graph.addEdge(from, to, routes.get(buf.getInt()));
+            }
+        }
+
+        final SortedSet<Route> sorted=Sets.newTreeSet(Route.nameComparator);
+        sorted.addAll(routes);
+        final CompactGraph compactGraph=graph.build();
+        ContractionHierarchy index=null;
+        if (indexBuf != null) {
+            try {
+                index=ContractionHierarchy.read(indexBuf, compactGraph);
+            }
+            catch (IOException e) {
+                log.warn("Ignoring contraction hierarchy index: "+e.getMessage());
+            }
+        }
+        return into.init(sorted, compactGraph, index);
+    }
+
+    private static String readString(final ByteBuffer buf) {
+        final int length=buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes=new byte[length];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+}
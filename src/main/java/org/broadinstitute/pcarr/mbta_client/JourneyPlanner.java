@@ -0,0 +1,497 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.broadinstitute.pcarr.metrics.Counter;
+import org.broadinstitute.pcarr.metrics.Distribution;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.metrics.Timer;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Time-dependent journey planner, which finds the earliest arrival on the scheduled trips of a {@link Timetable}
+ * with the round-based RAPTOR algorithm (Delling, Pajor and Werneck, "Round-Based Public Transit Routing").
+ *
+ * Round 'k' finds the earliest arrival at each stop with at most 'k' trips: it scans each pattern which
+ * stops at a stop improved in the previous round, once, from the first such stop to the end, boarding
+ * the earliest trip which departs after the previous round's arrival plus the minimum transfer time.
+ * The search is array scans over the Timetable and the per-thread labels, with no allocation until the
+ * journey is reconstructed.
+ *
+ * Transfers are between routes at the same stop, which in the stop graph is the parent station; there
+ * are no footpaths between stations.
+ *
+ * A profile query runs rRAPTOR: one search for each departure from the origin, latest first,
+ * which keeps the labels from the later departures, so each search only explores what the
+ * earlier departure improves.
+ */
+public class JourneyPlanner {
+    /** the default max number of transfers */
+    public static final int DEFAULT_MAX_TRANSFERS=4;
+    /** the default minimum time to change trips at a stop, in seconds */
+    public static final int DEFAULT_MIN_TRANSFER_SECONDS=120;
+
+    /** the query kind in the metric names, e.g. 'query.latency:raptor', see SystemGraph */
+    public static final String QUERY_RAPTOR="raptor";
+
+    private static final int NO_TIME=Timetable.NO_TIME;
+
+    /**
+     * one trip, from boarding to alighting
+     */
+    public static class Leg {
+        private final Route route;
+        private final String tripId;
+        private final Stop from;
+        private final Stop to;
+        private final int departureTime;
+        private final int arrivalTime;
+
+        protected Leg(final Route route, final String tripId, final Stop from, final Stop to, final int departureTime, final int arrivalTime) {
+            this.route=route;
+            this.tripId=tripId;
+            this.from=from;
+            this.to=to;
+            this.departureTime=departureTime;
+            this.arrivalTime=arrivalTime;
+        }
+
+        public Route getRoute() {
+            return route;
+        }
+
+        public String getTripId() {
+            return tripId;
+        }
+
+        public Stop getFrom() {
+            return from;
+        }
+
+        public Stop getTo() {
+            return to;
+        }
+
+        /** seconds since the start of the service day */
+        public int getDepartureTime() {
+            return departureTime;
+        }
+
+        /** seconds since the start of the service day */
+        public int getArrivalTime() {
+            return arrivalTime;
+        }
+
+        public String toString() {
+            return route.getId()+" "+from.getName()+" "+Timetable.formatTime(departureTime)
+                +" -> "+to.getName()+" "+Timetable.formatTime(arrivalTime);
+        }
+    }
+
+    /**
+     * a journey: the legs, in travel order, and the stops to change at
+     */
+    public static class Journey {
+        private final ImmutableList<Leg> legs;
+        private final int departureTime;
+        private final int arrivalTime;
+
+        protected Journey(final List<Leg> legs, final int departureTime, final int arrivalTime) {
+            this.legs=ImmutableList.copyOf(legs);
+            this.departureTime=departureTime;
+            this.arrivalTime=arrivalTime;
+        }
+
+        /** the legs, in travel order, empty when the origin is the destination */
+        public ImmutableList<Leg> getLegs() {
+            return legs;
+        }
+
+        /** the departure of the first leg, or the query time when there are no legs */
+        public int getDepartureTime() {
+            return departureTime;
+        }
+
+        public int getArrivalTime() {
+            return arrivalTime;
+        }
+
+        /** the time from the first departure to the arrival, in seconds */
+        public int getDuration() {
+            return arrivalTime-departureTime;
+        }
+
+        public List<Route> getRoutes() {
+            final List<Route> routes=new ArrayList<Route>(legs.size());
+            for(final Leg leg : legs) {
+                routes.add(leg.getRoute());
+            }
+            return routes;
+        }
+
+        /** the stops at which to change trips, transferStops[i] is between legs[i] and legs[i+1] */
+        public List<Stop> getTransferStops() {
+            final List<Stop> stops=new ArrayList<Stop>();
+            for(int i=1; i<legs.size(); ++i) {
+                stops.add(legs.get(i).getFrom());
+            }
+            return stops;
+        }
+
+        public int getNumTransfers() {
+            return Math.max(0, legs.size()-1);
+        }
+
+        public String toString() {
+            return Timetable.formatTime(departureTime)+" -> "+Timetable.formatTime(arrivalTime)+" "+legs;
+        }
+    }
+
+    // per-thread labels, in rounds, arrival[k*numStops+s] is the earliest arrival at stop 's' with 'k' trips
+    private static class Workspace {
+        final int[] arrival;
+        // the trip to stop 's' in round 'k', and the positions at which it was boarded and left in its pattern
+        final int[] labelTrip;
+        final int[] labelBoard;
+        final int[] labelAlight;
+        // the earliest arrival at each stop, in any round
+        final int[] best;
+        // the stops improved in the last round
+        final boolean[] marked;
+        final int[] markedStops;
+        int numMarked=0;
+        // the earliest position of each pattern to scan in this round, or -1
+        final int[] patternFrom;
+        final int[] patternQueue;
+        int numScanned=0;
+        // the rounds allocated, and the rounds searched by the current query
+        final int capacity;
+        int numRounds=0;
+
+        Workspace(final int numStops, final int numPatterns, final int capacity) {
+            this.capacity=capacity;
+            arrival=new int[(capacity+1)*numStops];
+            labelTrip=new int[arrival.length];
+            labelBoard=new int[arrival.length];
+            labelAlight=new int[arrival.length];
+            best=new int[numStops];
+            marked=new boolean[numStops];
+            markedStops=new int[numStops];
+            patternFrom=new int[numPatterns];
+            Arrays.fill(patternFrom, -1);
+            patternQueue=new int[numPatterns];
+        }
+
+        void reset() {
+            Arrays.fill(arrival, NO_TIME);
+            Arrays.fill(best, NO_TIME);
+        }
+
+        void mark(final int s) {
+            if (!marked[s]) {
+                marked[s]=true;
+                markedStops[numMarked++]=s;
+            }
+        }
+    }
+
+    private final Timetable timetable;
+    private int maxTransfers=DEFAULT_MAX_TRANSFERS;
+    private int minTransferSeconds=DEFAULT_MIN_TRANSFER_SECONDS;
+    private Timer latency=null;
+    private Distribution scanned=null;
+    private Counter noPath=null;
+
+    private final ThreadLocal<Workspace> workspace=new ThreadLocal<Workspace>();
+
+    public JourneyPlanner(final Timetable timetable) {
+        this.timetable=timetable;
+    }
+
+    /** the max number of transfers */
+    public JourneyPlanner withMaxTransfers(final int maxTransfers) {
+        this.maxTransfers=maxTransfers;
+        return this;
+    }
+
+    /** the minimum time to change trips at a stop, in seconds */
+    public JourneyPlanner withMinTransferSeconds(final int minTransferSeconds) {
+        this.minTransferSeconds=minTransferSeconds;
+        return this;
+    }
+
+    /**
+     * Record the query latency, the number of stop times scanned and the queries with no journey,
+     * as 'query.latency:raptor', 'query.visited:raptor' and 'query.no_path:raptor'.
+     */
+    public JourneyPlanner withMetrics(final MetricsRegistry metrics) {
+        if (metrics == null) {
+            this.latency=null;
+            this.scanned=null;
+            this.noPath=null;
+        }
+        else {
+            this.latency=metrics.timer("query.latency:"+QUERY_RAPTOR);
+            this.scanned=metrics.distribution("query.visited:"+QUERY_RAPTOR);
+            this.noPath=metrics.counter("query.no_path:"+QUERY_RAPTOR);
+        }
+        return this;
+    }
+
+    public Timetable getTimetable() {
+        return timetable;
+    }
+
+    public int getMaxTransfers() {
+        return maxTransfers;
+    }
+
+    public int getMinTransferSeconds() {
+        return minTransferSeconds;
+    }
+
+    /**
+     * Get the number of stop times scanned by the last query on the calling thread.
+     */
+    public int getNumScanned() {
+        final Workspace ws=workspace.get();
+        return ws == null ? 0 : ws.numScanned;
+    }
+
+    // the calling thread's workspace, with room for the rounds of the current max number of transfers
+    private Workspace workspace() {
+        final int numRounds=maxTransfers+1;
+        Workspace ws=workspace.get();
+        if (ws == null || ws.capacity < numRounds) {
+            ws=new Workspace(timetable.getGraph().getNumStops(), timetable.getNumPatterns(), numRounds);
+            workspace.set(ws);
+        }
+        ws.numRounds=numRounds;
+        return ws;
+    }
+
+    /**
+     * Find the journey which arrives earliest, departing the origin at or after the given time,
+     * with the fewest trips as a tie-breaker.
+     * @param departAfter seconds since the start of the service day
+     * @return the journey, or null if the destination can't be reached that day
+     */
+    public Journey earliestArrival(final Stop from, final Stop to, final int departAfter) {
+        final long start=System.nanoTime();
+        final CompactGraph graph=timetable.getGraph();
+        final int origin=graph.indexOf(from);
+        final int target=graph.indexOf(to);
+        if (origin < 0 || target < 0) {
+            return record(start, null);
+        }
+        if (origin == target) {
+            return record(start, new Journey(Collections.<Leg>emptyList(), departAfter, departAfter));
+        }
+        final Workspace ws=workspace();
+        ws.reset();
+        ws.numScanned=0;
+        search(ws, origin, target, departAfter);
+        return record(start, journey(ws, origin, target, departAfter));
+    }
+
+    /**
+     * Find the journeys which depart in the time range, each of which arrives earlier than
+     * any journey departing later, i.e. the best way to travel for any departure time in the range.
+     * @param startTime seconds since the start of the service day
+     * @param endTime seconds since the start of the service day, inclusive
+     * @return the journeys, by departure time
+     */
+    public List<Journey> profile(final Stop from, final Stop to, final int startTime, final int endTime) {
+        final long start=System.nanoTime();
+        final CompactGraph graph=timetable.getGraph();
+        final int origin=graph.indexOf(from);
+        final int target=graph.indexOf(to);
+        final List<Journey> journeys=new ArrayList<Journey>();
+        if (origin < 0 || target < 0 || origin == target) {
+            record(start, null);
+            return journeys;
+        }
+        final int[] departures=timetable.departuresFrom(from);
+        final Workspace ws=workspace();
+        ws.reset();
+        ws.numScanned=0;
+        for(int i=departures.length-1; i>=0; --i) {
+            final int departAfter=departures[i];
+            if (departAfter < startTime || departAfter > endTime) {
+                continue;
+            }
+            final int prevBest=ws.best[target];
+            search(ws, origin, target, departAfter);
+            if (ws.best[target] < prevBest) {
+                final Journey journey=journey(ws, origin, target, departAfter);
+                // a later search can find a different journey which leaves at the same time
+                if (!journeys.isEmpty() && journeys.get(journeys.size()-1).getDepartureTime() == journey.getDepartureTime()) {
+                    journeys.remove(journeys.size()-1);
+                }
+                journeys.add(journey);
+            }
+        }
+        Collections.reverse(journeys);
+        record(start, journeys.isEmpty() ? null : journeys.get(0));
+        return journeys;
+    }
+
+    private Journey record(final long startNanos, final Journey journey) {
+        if (latency != null) {
+            latency.stop(startNanos);
+            scanned.record(getNumScanned());
+            if (journey == null) {
+                noPath.increment();
+            }
+        }
+        return journey;
+    }
+
+    // the RAPTOR rounds, from the origin at the given time, keeping the labels of earlier searches
+    private void search(final Workspace ws, final int origin, final int target, final int departAfter) {
+        final Timetable tt=timetable;
+        final int numStops=tt.getGraph().getNumStops();
+        final int[] arrival=ws.arrival;
+        final int[] best=ws.best;
+        final int[] patternFrom=ws.patternFrom;
+        final int[] patternQueue=ws.patternQueue;
+        final int[] stopPatternStart=tt.stopPatternStart;
+        final int[] stopPatterns=tt.stopPatterns;
+        final int[] stopPatternPositions=tt.stopPatternPositions;
+        final int[] patternStopStart=tt.patternStopStart;
+        final int[] patternStops=tt.patternStops;
+        final int[] patternTripStart=tt.patternTripStart;
+        final int[] patternTimeStart=tt.patternTimeStart;
+        final int[] arrivals=tt.arrivals;
+        final int[] departures=tt.departures;
+
+        if (departAfter < arrival[origin]) {
+            arrival[origin]=departAfter;
+        }
+        best[origin]=Math.min(best[origin], departAfter);
+        ws.mark(origin);
+        for(int k=1; k<=ws.numRounds && ws.numMarked > 0; ++k) {
+            final int prevRound=(k-1)*numStops;
+            final int round=k*numStops;
+            final int slack=k == 1 ? 0 : minTransferSeconds;
+            // queue the patterns at the marked stops, from the earliest marked position
+            int numQueued=0;
+            for(int m=0; m<ws.numMarked; ++m) {
+                final int s=ws.markedStops[m];
+                ws.marked[s]=false;
+                for(int j=stopPatternStart[s]; j<stopPatternStart[s+1]; ++j) {
+                    final int p=stopPatterns[j];
+                    final int i=stopPatternPositions[j];
+                    if (patternFrom[p] < 0) {
+                        patternQueue[numQueued++]=p;
+                        patternFrom[p]=i;
+                    }
+                    else if (i < patternFrom[p]) {
+                        patternFrom[p]=i;
+                    }
+                }
+            }
+            ws.numMarked=0;
+
+            // scan each pattern
+            for(int q=0; q<numQueued; ++q) {
+                final int p=patternQueue[q];
+                final int first=patternStopStart[p];
+                final int size=patternStopStart[p+1]-first;
+                final int firstTrip=patternTripStart[p];
+                final int numTrips=patternTripStart[p+1]-firstTrip;
+                // the offset of the boarded trip's times, or -1
+                int trip=-1;
+                int times=-1;
+                int board=-1;
+                for(int i=patternFrom[p]; i<size; ++i) {
+                    final int s=patternStops[first+i];
+                    ++ws.numScanned;
+                    if (trip >= 0) {
+                        final int a=arrivals[times+i];
+                        if (a < best[s] && a < best[target]) {
+                            arrival[round+s]=a;
+                            best[s]=a;
+                            ws.labelTrip[round+s]=trip;
+                            ws.labelBoard[round+s]=board;
+                            ws.labelAlight[round+s]=i;
+                            ws.mark(s);
+                        }
+                    }
+                    // board an earlier trip here
+                    final int prev=arrival[prevRound+s];
+                    if (prev != NO_TIME && i < size-1) {
+                        final int ready=prev+slack;
+                        if (trip < 0 || ready <= departures[times+i]) {
+                            // the first trip which departs at or after 'ready', among the trips before the current one
+                            int lo=0;
+                            int hi=trip < 0 ? numTrips : trip-firstTrip;
+                            final int base=patternTimeStart[p]+i;
+                            while (lo < hi) {
+                                final int mid=(lo+hi) >>> 1;
+                                if (departures[base+mid*size] < ready) {
+                                    lo=mid+1;
+                                }
+                                else {
+                                    hi=mid;
+                                }
+                            }
+                            if (lo < (trip < 0 ? numTrips : trip-firstTrip)) {
+                                trip=firstTrip+lo;
+                                times=patternTimeStart[p]+lo*size;
+                                board=i;
+                            }
+                        }
+                    }
+                }
+                patternFrom[p]=-1;
+            }
+        }
+        // the marks of the last round, when it reached the max number of trips
+        for(int m=0; m<ws.numMarked; ++m) {
+            ws.marked[ws.markedStops[m]]=false;
+        }
+        ws.numMarked=0;
+    }
+
+    // walk the labels back from the target, from the round with the earliest arrival
+    private Journey journey(final Workspace ws, final int origin, final int target, final int departAfter) {
+        final Timetable tt=timetable;
+        final CompactGraph graph=tt.getGraph();
+        final int numStops=graph.getNumStops();
+        if (ws.best[target] == NO_TIME) {
+            return null;
+        }
+        int round=-1;
+        for(int k=1; k<=ws.numRounds; ++k) {
+            if (ws.arrival[k*numStops+target] == ws.best[target]) {
+                round=k;
+                break;
+            }
+        }
+        final List<Leg> legs=new ArrayList<Leg>();
+        int s=target;
+        for(int k=round; k > 0; --k) {
+            final int label=k*numStops+s;
+            final int trip=ws.labelTrip[label];
+            final int p=tt.tripPatterns[trip];
+            final int first=tt.patternStopStart[p];
+            final int boardStop=tt.patternStops[first+ws.labelBoard[label]];
+            legs.add(new Leg(graph.getRoute(tt.patternRoutes[p]), tt.tripIds[trip],
+                graph.getStop(boardStop), graph.getStop(s),
+                tt.departures[tt.timeIndex(trip, ws.labelBoard[label])],
+                tt.arrivals[tt.timeIndex(trip, ws.labelAlight[label])]));
+            s=boardStop;
+            if (s == origin) {
+                break;
+            }
+        }
+        Collections.reverse(legs);
+        return new Journey(legs, legs.get(0).getDepartureTime(), ws.best[target]);
+    }
+
+}
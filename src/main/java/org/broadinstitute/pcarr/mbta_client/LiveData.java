@@ -0,0 +1,143 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.broadinstitute.pcarr.rest.EventStreamClient;
+import org.broadinstitute.pcarr.rest.RetryPolicy;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Real-time vehicles and predictions for the routes, streamed from the MBTA api as server-sent events.
+ *
+ * Instead of polling the full lists, each stream sends the full state once, as a 'reset' event,
+ * then only the changes, which are applied to the {@link LiveResources} as they arrive.
+ * The streams reconnect on their own, see {@link EventStreamClient}.
+ *
+ * Usage:
+<pre>
+    final LiveData live=new LiveData(systemGraph.getRoutes())
+        .withApiKey(MbtaClient.apiKey)
+        .start();
+    try {
+        ...
+        for(final JsonApiResource vehicle : live.getVehicles().getByRoute("Red")) {
+            ...
+        }
+    }
+    finally {
+        live.close();
+    }
+</pre>
+ */
+public class LiveData implements Closeable {
+    public static final int DEFAULT_MAX_VEHICLES=5000;
+    public static final int DEFAULT_MAX_PREDICTIONS=50000;
+
+    private final ImmutableList<Route> routes;
+    private String apiPrefix=MbtaClient.API_PREFIX;
+    private String apiKey=null;
+    private int maxVehicles=DEFAULT_MAX_VEHICLES;
+    private int maxPredictions=DEFAULT_MAX_PREDICTIONS;
+    private boolean withPredictions=true;
+    private int queueCapacity=EventStreamClient.DEFAULT_QUEUE_CAPACITY;
+    private RetryPolicy retryPolicy=null;
+
+    private LiveResources vehicles=null;
+    private LiveResources predictions=null;
+    private final List<EventStreamClient> streams=new ArrayList<EventStreamClient>();
+
+    public LiveData(final Collection<Route> routes) {
+        this.routes=ImmutableList.copyOf(routes);
+    }
+
+    /** the api root of the streams, by default {@link MbtaClient#API_PREFIX} */
+    public LiveData withApiPrefix(final String apiPrefix) {
+        this.apiPrefix=apiPrefix;
+        return this;
+    }
+
+    public LiveData withApiKey(final String apiKey) {
+        this.apiKey=apiKey;
+        return this;
+    }
+
+    /** the max number of vehicles and predictions to keep, see {@link LiveResources} */
+    public LiveData withMaxResources(final int maxVehicles, final int maxPredictions) {
+        this.maxVehicles=maxVehicles;
+        this.maxPredictions=maxPredictions;
+        return this;
+    }
+
+    /** when false, only stream the vehicles */
+    public LiveData withPredictions(final boolean withPredictions) {
+        this.withPredictions=withPredictions;
+        return this;
+    }
+
+    /** the max number of events waiting to be applied, per stream */
+    public LiveData withQueueCapacity(final int queueCapacity) {
+        this.queueCapacity=queueCapacity;
+        return this;
+    }
+
+    /** the backoff between failed connections, see {@link EventStreamClient#withRetryPolicy(RetryPolicy)} */
+    public LiveData withRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy=retryPolicy;
+        return this;
+    }
+
+    /**
+     * Open the streams, the state is filled in in the background, see {@link LiveResources#isCurrent()}.
+     */
+    public synchronized LiveData start() {
+        if (vehicles != null) {
+            throw new IllegalStateException("already started");
+        }
+        vehicles=new LiveResources("vehicle", MbtaClient.vehicleAttributes, MbtaClient.vehicleRelationships, maxVehicles);
+        streams.add(newStream(MbtaClient.getVehiclesStreamUrl(routes)).start(vehicles));
+        if (withPredictions) {
+            predictions=new LiveResources("prediction", MbtaClient.predictionAttributes, MbtaClient.predictionRelationships, maxPredictions);
+            streams.add(newStream(MbtaClient.getPredictionsStreamUrl(routes)).start(predictions));
+        }
+        return this;
+    }
+
+    // the stream for the endpoint, relative to the api prefix
+    private EventStreamClient newStream(final String url) {
+        final EventStreamClient stream=new EventStreamClient(apiPrefix+url)
+            .withQueueCapacity(queueCapacity);
+        if (apiKey != null) {
+            stream.withApiKey(apiKey);
+        }
+        if (retryPolicy != null) {
+            stream.withRetryPolicy(retryPolicy);
+        }
+        return stream;
+    }
+
+    /** the vehicles, or null if not started */
+    public synchronized LiveResources getVehicles() {
+        return vehicles;
+    }
+
+    /** the predictions, or null if not started or not enabled */
+    public synchronized LiveResources getPredictions() {
+        return predictions;
+    }
+
+    /** the streams, vehicles first */
+    public synchronized ImmutableList<EventStreamClient> getStreams() {
+        return ImmutableList.copyOf(streams);
+    }
+
+    public synchronized void close() {
+        for(final EventStreamClient stream : streams) {
+            stream.close();
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.broadinstitute.pcarr.rest.EventStreamClient;
+import org.broadinstitute.pcarr.rest.JsonApiReader;
+import org.broadinstitute.pcarr.rest.JsonApiResource;
+import org.broadinstitute.pcarr.rest.RestClientException;
+import org.broadinstitute.pcarr.rest.ServerSentEvent;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.SetMultimap;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The current state of one type of streamed resources, e.g. vehicles, kept up to date from the
+ * 'reset', 'add', 'update' and 'remove' events of an {@link EventStreamClient}, see {@link LiveData}.
+ *
+ * Each event changes only the resources in it, and the indexes by route and stop.
+ * Memory is bounded: only the selected attributes and relationships are kept, see {@link JsonApiReader},
+ * and over maxResources the least recently updated resources are evicted.
+ * Safe for use by multiple threads, the events are applied by the stream's dispatcher thread.
+ */
+public class LiveResources implements EventStreamClient.Listener {
+    private static final Logger log = LogManager.getLogger(LiveResources.class);
+
+    private final String type;
+    private final Set<String> attributeNames;
+    private final Set<String> relationshipNames;
+    private final int maxResources;
+
+    // by id, least recently updated first
+    private final LinkedHashMap<String,JsonApiResource> byId;
+    // related id -> resource ids
+    private final SetMultimap<String,String> byRoute=HashMultimap.create();
+    private final SetMultimap<String,String> byStop=HashMultimap.create();
+    // false from when a connection is opened until its first 'reset'
+    private boolean current=false;
+
+    private long numResets=0;
+    private long numAdds=0;
+    private long numUpdates=0;
+    private long numRemoves=0;
+    private long numEvicted=0;
+    private long numErrors=0;
+
+    public LiveResources(final String type, final Set<String> attributeNames, final Set<String> relationshipNames, final int maxResources) {
+        this.type=type;
+        this.attributeNames=attributeNames;
+        this.relationshipNames=relationshipNames;
+        this.maxResources=maxResources;
+        this.byId=new LinkedHashMap<String,JsonApiResource>() {
+            private static final long serialVersionUID=1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<String,JsonApiResource> eldest) {
+                if (size() > LiveResources.this.maxResources) {
+                    unindex(eldest.getValue());
+                    ++numEvicted;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void onOpen() {
+        // the server sends a 'reset' with the full state first
+        current=false;
+    }
+
+    public void onEvent(final ServerSentEvent event) {
+        final List<JsonApiResource> resources;
+        try {
+            resources=parse(event.getData());
+        }
+        catch (IOException | RestClientException | JsonParseException | IllegalStateException e) {
+            synchronized (this) {
+                ++numErrors;
+            }
+            log.warn("Error parsing "+type+" event="+event+": "+e);
+            return;
+        }
+        synchronized (this) {
+            if ("reset".equals(event.getType())) {
+                ++numResets;
+                byId.clear();
+                byRoute.clear();
+                byStop.clear();
+                for(final JsonApiResource resource : resources) {
+                    put(resource);
+                }
+                current=true;
+            }
+            else if ("add".equals(event.getType())) {
+                for(final JsonApiResource resource : resources) {
+                    ++numAdds;
+                    put(resource);
+                }
+            }
+            else if ("update".equals(event.getType())) {
+                for(final JsonApiResource resource : resources) {
+                    ++numUpdates;
+                    put(resource);
+                }
+            }
+            else if ("remove".equals(event.getType())) {
+                for(final JsonApiResource resource : resources) {
+                    ++numRemoves;
+                    final JsonApiResource removed=byId.remove(resource.getId());
+                    if (removed != null) {
+                        unindex(removed);
+                    }
+                }
+            }
+            else {
+                log.debug("ignoring "+type+" event="+event);
+            }
+        }
+    }
+
+    private List<JsonApiResource> parse(final String data) throws IOException, RestClientException {
+        final List<JsonApiResource> resources=new ArrayList<JsonApiResource>();
+        final JsonReader reader=new JsonReader(new StringReader(data));
+        try {
+            new JsonApiReader(attributeNames, relationshipNames, new JsonApiReader.Callback() {
+                public void onResource(final JsonApiResource resource) {
+                    if (resource.getId() != null) {
+                        resources.add(resource);
+                    }
+                }
+            }).readResources(reader);
+        }
+        finally {
+            reader.close();
+        }
+        return resources;
+    }
+
+    // add or replace, as the most recently updated
+    private void put(final JsonApiResource resource) {
+        final JsonApiResource previous=byId.remove(resource.getId());
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(resource);
+        byId.put(resource.getId(), resource);
+    }
+
+    private void index(final JsonApiResource resource) {
+        final String routeId=resource.getRelatedId("route");
+        if (routeId != null) {
+            byRoute.put(routeId, resource.getId());
+        }
+        final String stopId=resource.getRelatedId("stop");
+        if (stopId != null) {
+            byStop.put(stopId, resource.getId());
+        }
+    }
+
+    private void unindex(final JsonApiResource resource) {
+        final String routeId=resource.getRelatedId("route");
+        if (routeId != null) {
+            byRoute.remove(routeId, resource.getId());
+        }
+        final String stopId=resource.getRelatedId("stop");
+        if (stopId != null) {
+            byStop.remove(stopId, resource.getId());
+        }
+    }
+
+    private List<JsonApiResource> lookup(final Set<String> ids) {
+        final List<JsonApiResource> resources=new ArrayList<JsonApiResource>(ids.size());
+        for(final String id : ids) {
+            resources.add(byId.get(id));
+        }
+        return resources;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /** get the resource, or null */
+    public synchronized JsonApiResource get(final String id) {
+        return byId.get(id);
+    }
+
+    /** get all of the resources, least recently updated first */
+    public synchronized ImmutableList<JsonApiResource> getAll() {
+        return ImmutableList.copyOf(byId.values());
+    }
+
+    /** get the resources related to the route, by route id, e.g. 'Red' */
+    public synchronized ImmutableList<JsonApiResource> getByRoute(final String routeId) {
+        return ImmutableList.copyOf(lookup(byRoute.get(routeId)));
+    }
+
+    /** get the resources related to the stop, by stop id, e.g. 'place-pktrm' or a platform id */
+    public synchronized ImmutableList<JsonApiResource> getByStop(final String stopId) {
+        return ImmutableList.copyOf(lookup(byStop.get(stopId)));
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public int getMaxResources() {
+        return maxResources;
+    }
+
+    /** true once the full state was received, false while reconnecting */
+    public synchronized boolean isCurrent() {
+        return current;
+    }
+
+    public synchronized long getNumResets() {
+        return numResets;
+    }
+
+    public synchronized long getNumAdds() {
+        return numAdds;
+    }
+
+    public synchronized long getNumUpdates() {
+        return numUpdates;
+    }
+
+    public synchronized long getNumRemoves() {
+        return numRemoves;
+    }
+
+    /** the number of resources evicted to stay under maxResources */
+    public synchronized long getNumEvicted() {
+        return numEvicted;
+    }
+
+    /** the number of events which could not be parsed */
+    public synchronized long getNumErrors() {
+        return numErrors;
+    }
+
+    public synchronized String toString() {
+        return type+" size="+byId.size()+", resets="+numResets+", adds="+numAdds+", updates="+numUpdates
+            +", removes="+numRemoves+", evicted="+numEvicted+", errors="+numErrors;
+    }
+
+}
@@ -1,8 +1,19 @@
 package org.broadinstitute.pcarr.mbta_client;
 
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.broadinstitute.pcarr.metrics.DefaultMetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsReporter;
+import org.broadinstitute.pcarr.rest.CircuitBreaker;
 import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.RestClientException;
+import org.broadinstitute.pcarr.rest.TokenBucket;
 
 /**
  * MBTA client demo.
@@ -20,6 +31,18 @@ import org.broadinstitute.pcarr.rest.RestClient;
  *      Ashmont to Arlington -> Redline, Greenline 
  *   How you handle input, represent train routes and present output is your choice.
  * 
+ * (4) Optionally, keep running and answer route queries over http, see {@link QueryServer}:
+ *   java -jar mbta-client.jar serve [{port}]
+ * 
+ * (5) Optionally, load today's schedules and list the journeys for the next hour, see {@link JourneyPlanner}:
+ *   java -jar mbta-client.jar journeys
+ * 
+ * Optionally, weight the routes by today's scheduled travel times, so the route queries find the fastest trip:
+ *   java -Dmbta.travelTimes=true -jar mbta-client.jar
+ * 
+ * Optionally, record http, build and query metrics, and log them every {seconds}:
+ *   java -Dmbta.metrics={seconds} -jar mbta-client.jar
+ * 
  * Example curl commands:
  <pre>
    curl -X GET "https://api-v3.mbta.com/routes?sort=long_name&filter%5Btype%5D=filter%5Btype%5D%3D0%2C1" 
@@ -35,42 +58,138 @@ import org.broadinstitute.pcarr.rest.RestClient;
  </pre>
  */
 public class Main {
+    public static final int DEFAULT_PORT=8080;
+
+    /**
+     * Answer route queries over http, until the process is killed.
+     */
+    protected static void serve(final SystemGraph graph, final int port) throws IOException {
+        // the headers and the body are written separately, without TCP_NODELAY each keep-alive
+        // request waits for the client's delayed ack; read once, before the first HttpServer is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        final QueryServer server=new QueryServer(graph)
+            .withHost(System.getProperty("mbta.serverHost", "127.0.0.1"))
+            .withPort(port);
+        final String prefix=server.start();
+        System.out.println();
+        System.out.println("Serving route queries at "+prefix+", e.g. "+prefix+"/path/routes?from=Ashmont&to=Arlington");
+        try {
+            Thread.currentThread().join();
+        }
+        catch (InterruptedException e) {
+            server.stop();
+        }
+    }
+
+    /**
+     * List the journeys from one stop to another which depart in the next hour, on today's schedules.
+     */
+    protected static void printJourneys(final RestClient client, final SystemGraph graph, final String fromStation, final String toStation) {
+        final ZonedDateTime now=ZonedDateTime.now(Timetable.TIME_ZONE);
+        final LocalDate today=now.toLocalDate();
+        Timetable timetable=graph.getTimetable();
+        if (timetable == null || !today.equals(timetable.getServiceDate())) {
+            try {
+                timetable=MbtaClient.readTimetable(client, graph, today);
+            }
+            catch (RestClientException e) {
+                System.err.println("Error loading schedules: "+e.getMessage());
+                return;
+            }
+        }
+        System.out.println(timetable);
+        final JourneyPlanner planner=new JourneyPlanner(timetable).withMetrics(graph.getMetrics());
+        final int startTime=Timetable.secondsOfServiceDay(today, now.toOffsetDateTime().toString());
+        System.out.println("Journeys from "+fromStation+" to "+toStation+", departing "+Timetable.formatTime(startTime)+" to "+Timetable.formatTime(startTime+3600)+" ...");
+        for(final JourneyPlanner.Journey journey : planner.profile(graph.stop(fromStation), graph.stop(toStation), startTime, startTime+3600)) {
+            System.out.println("    "+journey);
+        }
+    }
 
-    public static void main( String[] args ) {
+    public static void main( String[] args ) throws IOException {
         System.out.println( "--------------------" );
         System.out.println( "  mbta-client demo" );
         System.out.println( "--------------------" );
         boolean verbose=false;
         RestClient client=new RestClient()
             .withApiKey(MbtaClient.apiKey)
+            .withApiPrefix(MbtaClient.API_PREFIX)
+            .withRateLimiter(new TokenBucket(MbtaClient.API_KEY_REQUESTS_PER_MINUTE/60.0, MbtaClient.DEFAULT_MAX_CONCURRENCY))
+            .withCircuitBreaker(new CircuitBreaker())
             .withVerbose(verbose);
 
-        System.out.print("Initializing route graph mbta service ... ");
-        final SystemGraph graph=new SystemGraph()
-            .withClient(client)
-        .build();
+        // optionally, log the metrics periodically, e.g. -Dmbta.metrics=60
+        final long metricsSeconds=Long.getLong("mbta.metrics", 0);
+        final MetricsRegistry metrics=metricsSeconds > 0 ? new DefaultMetricsRegistry() : null;
+        final MetricsReporter reporter=metrics == null ? null : new MetricsReporter(metrics).start(metricsSeconds, TimeUnit.SECONDS);
+        client.withMetrics(metrics);
 
-        System.out.println("");
-        final List<String> longNames=graph.getLongNames();
-        System.out.println("Listing all subway routes by 'long_name' ...");
-        System.out.println("    "+longNames);
-        System.out.println("");
-        System.out.println("Counting routes, stops, and connections ...");
-        System.out.println("Q: Which rail route(s) has the most stops?");
-        Route longestRoute=graph.getLongestRoutes().asList().get(0);
-        System.out.println("A: "+longestRoute+", with "+longestRoute.getStops().size()+" stops");
-        Route shortestRoute=graph.getShortestRoutes().asList().get(0);
-        System.out.println("Q:  Which rail route has the fewest stops?");
-        System.out.println("A: "+shortestRoute+", with "+shortestRoute.getStops().size()+" stops");
+        try {
+            System.out.print("Initializing route graph mbta service ... ");
+            final SystemGraph builder=new SystemGraph()
+                .withClient(client)
+                .withMaxConcurrency(MbtaClient.DEFAULT_MAX_CONCURRENCY)
+                // for debugging, keep the JSON representation of each route and stop, e.g. -Dmbta.retainJson=true
+                .withRetainJson(Boolean.getBoolean("mbta.retainJson"))
+                .withMetrics(metrics);
+            // optionally, weight the edges by travel time, e.g. -Dmbta.travelTimes=true
+            if (Boolean.getBoolean("mbta.travelTimes")) {
+                builder.withScheduleDate(LocalDate.now(Timetable.TIME_ZONE));
+            }
+            // optionally, start from a saved snapshot, e.g. -Dmbta.snapshot=mbta.graph
+            final String snapshotPath=System.getProperty("mbta.snapshot");
+            final SystemGraph graph;
+            if (snapshotPath != null) {
+                graph=new GraphSnapshot(new File(snapshotPath)).loadOrBuild(builder);
+            }
+            else {
+                graph=builder.build();
+            }
+
+            System.out.println("");
+            final List<String> longNames=graph.getLongNames();
+            System.out.println("Listing all subway routes by 'long_name' ...");
+            System.out.println("    "+longNames);
+            System.out.println("");
+            System.out.println("Counting routes, stops, and connections ...");
+            System.out.println("Q: Which rail route(s) has the most stops?");
+            Route longestRoute=graph.getLongestRoutes().asList().get(0);
+            System.out.println("A: "+longestRoute+", with "+longestRoute.getStops().size()+" stops");
+            Route shortestRoute=graph.getShortestRoutes().asList().get(0);
+            System.out.println("Q:  Which rail route has the fewest stops?");
+            System.out.println("A: "+shortestRoute+", with "+shortestRoute.getStops().size()+" stops");
         
-        graph.printConnectingRoutes(System.out);
-        System.out.println("");
-        System.out.println("Done");
+            graph.printConnectingRoutes(System.out);
+            System.out.println("");
+            System.out.println("Done");
         
-        // list the rail routes you would travel to get from one to the other ...
-        System.out.println();
-        System.out.println("List routes from stop {A} to stop {B} ...");
-        graph.printRoutesFrom(System.out, "Davis", "Kendall/MIT");
-        graph.printRoutesFrom(System.out, "Ashmont", "Arlington");
+            // list the rail routes you would travel to get from one to the other ...
+            System.out.println();
+            System.out.println("List routes from stop {A} to stop {B} ...");
+            graph.printRoutesFrom(System.out, "Davis", "Kendall/MIT");
+            graph.printRoutesFrom(System.out, "Ashmont", "Arlington");
+
+            if (args.length > 0 && "journeys".equals(args[0])) {
+                System.out.println();
+                printJourneys(client, graph, "Ashmont", "Arlington");
+            }
+            if (args.length > 0 && "serve".equals(args[0])) {
+                serve(graph, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+            }
+        }
+        finally {
+            if (reporter != null) {
+                reporter.close();
+            }
+            // release pooled connections
+            try {
+                client.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
     }
 }
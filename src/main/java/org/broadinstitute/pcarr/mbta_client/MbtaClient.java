@@ -1,22 +1,78 @@
 package org.broadinstitute.pcarr.mbta_client;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.rest.AsyncRestClient;
+import org.broadinstitute.pcarr.rest.JsonApiReader;
+import org.broadinstitute.pcarr.rest.JsonApiResource;
 import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.RestClientException;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 public class MbtaClient {
+    private static final Logger log = LogManager.getLogger(MbtaClient.class);
+
     // api root
-    private static final String apiPrefix="https://api-v3.mbta.com";
+    public static final String DEFAULT_API_PREFIX="https://api-v3.mbta.com";
+
+    // the api root for the clients made by the launchers, e.g. -Dmbta.apiPrefix=http://127.0.0.1:8080 
+    // to run against a local StandInServer instead of the MBTA service.
+    // The endpoints below are relative, see RestClient.withApiPrefix
+    public static final String API_PREFIX=System.getProperty("mbta.apiPrefix", DEFAULT_API_PREFIX);
 
     // mbta api key, x-api-key: {apiKey}
-    public static String apiKey="bb7ea6600a394d98ac5cef4512c6e1be";
+    public static String apiKey=System.getProperty("mbta.apiKey", "bb7ea6600a394d98ac5cef4512c6e1be");
+
+    // default number of concurrent requests when loading stops in parallel
+    public static final int DEFAULT_MAX_CONCURRENCY=8;
+
+    // the request quota for an api key, see https://www.mbta.com/developers/v3-api
+    public static final int API_KEY_REQUESTS_PER_MINUTE=1000;
+
+    /**
+     * Record the time since the start of a build phase, e.g. 'build.fetch_stops', when metrics are enabled.
+     * @return the start of the next phase
+     */
+    protected static long recordPhase(final MetricsRegistry metrics, final String name, final long startNanos) {
+        final long now=System.nanoTime();
+        if (metrics != null) {
+            metrics.timer(name).record(now-startNanos);
+        }
+        return now;
+    }
 
     /**
      * Get the list of routes from the MBTA service.
@@ -34,11 +90,15 @@ public class MbtaClient {
      *   ...
      *   7
      */
-    protected static JsonObject getRoutesJson(final RestClient client) {
+    protected static JsonObject getRoutesJson(final RestClient client) throws RestClientException {
         return getRoutes(client, false);
     }
 
-    protected static JsonObject getRoutes(final RestClient client, final boolean includeRail) {
+    protected static JsonObject getRoutes(final RestClient client, final boolean includeRail) throws RestClientException {
+        return RestClient.getJson(client, routesEndpoint(includeRail));
+    }
+
+    protected static String routesEndpoint(final boolean includeRail) {
         final String type;
         if (!includeRail) {
             type="0,1";
@@ -47,7 +107,91 @@ public class MbtaClient {
             type="0,1,2";
         }
         String typeFilter="filter[type]="+type;
-        return RestClient.getJson(client, apiPrefix+"/routes?"+typeFilter);
+        return "/routes?"+typeFilter;
+    }
+
+    // the attributes and relationships read by the streaming parser
+    protected static final ImmutableSet<String> routeAttributes=ImmutableSet.of("long_name", "short_name", "type");
+    protected static final ImmutableSet<String> stopAttributes=ImmutableSet.of("name", "latitude", "longitude", "wheelchair_boarding");
+    protected static final ImmutableSet<String> stopRelationships=ImmutableSet.of("parent_station");
+    // the attributes and relationships kept for the streamed vehicles and predictions, see LiveData
+    protected static final ImmutableSet<String> vehicleAttributes=ImmutableSet.of(
+        "label", "current_status", "current_stop_sequence", "direction_id", "latitude", "longitude", "bearing", "updated_at");
+    protected static final ImmutableSet<String> vehicleRelationships=ImmutableSet.of("route", "stop", "trip");
+    protected static final ImmutableSet<String> predictionAttributes=ImmutableSet.of(
+        "arrival_time", "departure_time", "direction_id", "stop_sequence", "status", "schedule_relationship");
+    protected static final ImmutableSet<String> predictionRelationships=ImmutableSet.of("route", "stop", "trip", "vehicle");
+    // the attributes and relationships read for the Timetable
+    protected static final ImmutableSet<String> scheduleAttributes=ImmutableSet.of("arrival_time", "departure_time", "stop_sequence");
+    protected static final ImmutableSet<String> scheduleRelationships=ImmutableSet.of("route", "stop", "trip");
+
+    protected static Route newRoute(final JsonApiResource resource) {
+        return new Route(resource.getId(), 
+            resource.getString("long_name"), 
+            resource.getString("short_name"), 
+            resource.getInt("type", Route.TYPE_UNKNOWN));
+    }
+
+    protected static Stop newStop(final JsonApiResource resource) {
+        return new Stop(resource.getId(), 
+            resource.getString("name"),
+            resource.getDouble("latitude", Double.NaN),
+            resource.getDouble("longitude", Double.NaN),
+            resource.getRelatedId("parent_station"),
+            resource.getInt("wheelchair_boarding", Stop.WHEELCHAIR_NO_INFO));
+    }
+
+    /**
+     * Stream the list of routes from the MBTA service, 
+     * reading only the fields used by the Route class.
+     * When retainJson is set, the full JSON representation is parsed and kept instead.
+     */
+    protected static List<Route> readRoutes(final RestClient client, final boolean includeRail, final boolean retainJson) throws RestClientException {
+        final List<Route> routes=new ArrayList<Route>();
+        if (retainJson) {
+            final JsonArray data=RestClient.getJson(client, routesEndpoint(includeRail)).get("data").getAsJsonArray();
+            for(int i=0; i<data.size(); ++i) {
+                final JsonObject jsonObj=data.get(i).getAsJsonObject();
+                routes.add(new Route(jsonObj.get("id").getAsString(), jsonObj, retainJson));
+            }
+            return routes;
+        }
+        readJsonApi(client, routesEndpoint(includeRail), routeAttributes, ImmutableSet.<String>of(), new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                routes.add(newRoute(resource));
+            }
+        });
+        return routes;
+    }
+
+    /**
+     * Stream the list of stops for a particular route from the MBTA service,
+     * reading only the fields used by the Stop class.
+     * When retainJson is set, the full JSON representation is parsed and kept instead.
+     */
+    protected static List<Stop> readStops(final RestClient client, final Route route, final boolean retainJson) throws RestClientException {
+        if (retainJson) {
+            return parseStops(RestClient.getJson(client, stopsEndpoint(route)), retainJson);
+        }
+        final List<Stop> stops=new ArrayList<Stop>();
+        readJsonApi(client, stopsEndpoint(route), stopAttributes, stopRelationships, new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                stops.add(newStop(resource));
+            }
+        });
+        return stops;
+    }
+
+    private static void readJsonApi(final RestClient client, final String endpoint, final Set<String> attributes, final Set<String> relationships, final JsonApiReader.Callback callback) throws RestClientException {
+        try {
+            client.getJson(endpoint, new JsonApiReader(attributes, relationships, callback));
+        }
+        catch (RestClientException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RestClientException("GET "+endpoint+" failed", e);
+        }
     }
 
     /**
@@ -56,13 +200,17 @@ public class MbtaClient {
      *   GET /stops?filter[direction_id]=0&filter[route]={routeId}
      * 
      */
-    protected static JsonObject getStopsJson(final RestClient client, final Route route) {
-        return RestClient.getJson(client, apiPrefix+"/stops?filter[direction_id]=0&filter[route]="+route.getId());
+    protected static JsonObject getStopsJson(final RestClient client, final Route route) throws RestClientException {
+        return RestClient.getJson(client, stopsEndpoint(route));
+    }
+
+    protected static String stopsEndpoint(final Route route) {
+        return "/stops?filter[direction_id]=0&filter[route]="+route.getId();
     }
 
     // curl -X GET "https://api-v3.mbta.com/stops?filter%5Bdirection_id%5D=0&filter%5Broute%5D=Red" -H "accept: application/vnd.api+json"
-    protected static JsonObject getStopsByRouteId(final RestClient client, final String routeId) {
-        return RestClient.getJson(client, apiPrefix+"/stops?filter[direction_id]=0&filter[route]="+routeId);
+    protected static JsonObject getStopsByRouteId(final RestClient client, final String routeId) throws RestClientException {
+        return RestClient.getJson(client, "/stops?filter[direction_id]=0&filter[route]="+routeId);
     }
 
     /**
@@ -72,25 +220,55 @@ public class MbtaClient {
      *   Command:
      *     curl -X GET "https://api-v3.mbta.com/routes?filter%5Btype%5D=0%2C1" -H "accept: application/vnd.api+json"
      */
-    public static SortedSet<Route> initRoutes(final RestClient client, final boolean withStops, final boolean withConnections) {
+    public static SortedSet<Route> initRoutes(final RestClient client, final boolean withStops, final boolean withConnections) throws RestClientException {
+        return initRoutes(client, withStops, withConnections, 1);
+    }
+
+    /**
+     * Get the list of routes, loading the stops for each route with up to 'maxConcurrency'
+     * requests in flight. Responses are streamed, see {@link #readRoutes(RestClient, boolean, boolean)}.
+     * @throws RestClientException when the routes, or the stops of any route, could not be loaded
+     */
+    public static SortedSet<Route> initRoutes(final RestClient client, final boolean withStops, final boolean withConnections, final int maxConcurrency) throws RestClientException {
+        return initRoutes(client, withStops, withConnections, maxConcurrency, false);
+    }
+
+    /**
+     * Get the list of routes, see {@link #initRoutes(RestClient, boolean, boolean, int)}.
+     * When retainJson is set, each Route and Stop keeps its full JSON representation, for debugging.
+     */
+    public static SortedSet<Route> initRoutes(final RestClient client, final boolean withStops, final boolean withConnections, final int maxConcurrency, final boolean retainJson) throws RestClientException {
         SortedSet<Route> routes=Sets.newTreeSet(Route.nameComparator);
         boolean includeRail=false;
+        final MetricsRegistry metrics=client.getMetrics();
+        long start=System.nanoTime();
 
-        final JsonObject routesJson=getRoutes(client, includeRail);
-        final JsonArray data=routesJson.get("data").getAsJsonArray();
-        for(int i=0; i<data.size(); ++i) {
-            final JsonObject jsonObj=data.get(i).getAsJsonObject();
-            // data[i]."id"
-            final String id = jsonObj.get("id").getAsString();
-            Route route=new Route(id, jsonObj);
-            routes.add(route);
-        }
+        routes.addAll(readRoutes(client, includeRail, retainJson));
+        start=recordPhase(metrics, "build.fetch_routes", start);
         
-        if (withStops) {
+        if (withStops && maxConcurrency > 1) {
+            final Map<Route,List<Stop>> routeStops=fetchStops(client, routes, maxConcurrency, retainJson);
             for(final Route route : routes) {
-                appendStops(client, route);
+                final List<Stop> stops=routeStops.get(route);
+                if (stops == null) {
+                    // the cause is logged by fetchStops
+                    throw new RestClientException("Error loading stops for route="+route);
+                }
+                for(final Stop stop : stops) {
+                    route.addStop(stop);
+                }
+            }
+        }
+        else if (withStops) {
+            for(final Route route : routes) {
+                for(final Stop stop : readStops(client, route, retainJson)) {
+                    route.addStop(stop);
+                }
             }
         }
+        if (withStops) {
+            recordPhase(metrics, "build.fetch_stops", start);
+        }
         
         if (withConnections) {
             for(final Route route : routes) {
@@ -102,29 +280,34 @@ public class MbtaClient {
         return routes;
     }
     
-    protected static Route appendStops(final RestClient client, final Route route) {
+    protected static Route appendStops(final RestClient client, final Route route) throws RestClientException {
         final JsonObject stopsJson=MbtaClient.getStopsJson(client, route);
+        for(final Stop stop : parseStops(stopsJson, false)) {
+            route.addStop(stop);
+        }
+        return route;
+    }
+
+    /**
+     * Create the list of stops from the 'data' array of a /stops response.
+     */
+    protected static List<Stop> parseStops(final JsonObject stopsJson, final boolean retainJson) {
         final JsonArray stopsArr=stopsJson.get("data").getAsJsonArray();
+        final List<Stop> stops=new ArrayList<Stop>(stopsArr.size());
         for(int i=0; i<stopsArr.size(); ++i) {
             final JsonObject jsonObj=stopsArr.get(i).getAsJsonObject();
             // data[i]."id"
             final String id = jsonObj.get("id").getAsString();
-            final Stop stop=new Stop(id, jsonObj);
-            route.addStop(stop);
+            stops.add(new Stop(id, jsonObj, retainJson));
         }
-        return route;
+        return stops;
     }
     
-    public static Multimap<Route,Stop> initStops(final RestClient client, final Collection<Route> routes) {
+    public static Multimap<Route,Stop> initStops(final RestClient client, final Collection<Route> routes) throws RestClientException {
         ArrayListMultimap<Route,Stop> routeIdStops=ArrayListMultimap.create(); 
         for(final Route route : routes) {
             final JsonObject stopsJson=MbtaClient.getStopsJson(client, route);
-            final JsonArray stopsArr=stopsJson.get("data").getAsJsonArray();
-            for(int i=0; i<stopsArr.size(); ++i) {
-                final JsonObject jsonObj=stopsArr.get(i).getAsJsonObject();
-                // data[i]."id"
-                final String id = jsonObj.get("id").getAsString();
-                final Stop to=new Stop(id, jsonObj);
+            for(final Stop to : parseStops(stopsJson, false)) {
                 to.addRoute(route);
                 routeIdStops.put(route, to);
             }
@@ -132,4 +315,570 @@ public class MbtaClient {
         return routeIdStops;
     }
 
+    /**
+     * Parallel version of {@link #initStops(RestClient, Collection)}, with up to 'maxConcurrency'
+     * requests in flight. Entries are in the same order as the given routes; routes for which 
+     * the stops could not be loaded are logged and skipped.
+     */
+    public static Multimap<Route,Stop> initStops(final RestClient client, final Collection<Route> routes, final int maxConcurrency) {
+        ArrayListMultimap<Route,Stop> routeIdStops=ArrayListMultimap.create(); 
+        for(final Entry<Route,List<Stop>> entry : fetchStops(client, routes, maxConcurrency, false).entrySet()) {
+            final Route route=entry.getKey();
+            for(final Stop to : entry.getValue()) {
+                to.addRoute(route);
+                routeIdStops.put(route, to);
+            }
+        }
+        return routeIdStops;
+    }
+
+    /**
+     * Fetch the stops for each route concurrently, with at most 'maxConcurrency' requests in flight.
+     * Returns a map of route -> stops, in the same order as the given routes.
+     * A failed request is logged and the route is left out of the map, 
+     * it does not cancel the requests for the other routes.
+     */
+    protected static Map<Route,List<Stop>> fetchStops(final RestClient client, final Collection<Route> routes, final int maxConcurrency, final boolean retainJson) {
+        final Map<Route,Future<List<Stop>>> futures=new LinkedHashMap<Route,Future<List<Stop>>>();
+        final Map<Route,List<Stop>> routeStops=new LinkedHashMap<Route,List<Stop>>();
+        if (routes.isEmpty()) {
+            return routeStops;
+        }
+        final ExecutorService exec=newLoaderExecutor(Math.min(maxConcurrency, routes.size()));
+        try {
+            for(final Route route : routes) {
+                futures.put(route, exec.submit(new Callable<List<Stop>>() {
+                    public List<Stop> call() throws Exception {
+                        return readStops(client, route, retainJson);
+                    }
+                }));
+            }
+            for(final Entry<Route,Future<List<Stop>>> entry : futures.entrySet()) {
+                try {
+                    routeStops.put(entry.getKey(), entry.getValue().get());
+                }
+                catch (ExecutionException e) {
+                    log.error("Error loading stops for route="+entry.getKey(), e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while loading stops", e);
+        }
+        finally {
+            exec.shutdownNow();
+        }
+        return routeStops;
+    }
+
+    /**
+     * Non-blocking version of {@link #getRoutes(RestClient, boolean)}.
+     */
+    public static CompletableFuture<JsonObject> getRoutesAsync(final AsyncRestClient client, final boolean includeRail) {
+        return client.getJson(routesEndpoint(includeRail));
+    }
+
+    /**
+     * Non-blocking version of {@link #getStopsJson(RestClient, Route)}.
+     */
+    public static CompletableFuture<JsonObject> getStopsJsonAsync(final AsyncRestClient client, final Route route) {
+        return client.getJson(stopsEndpoint(route));
+    }
+
+    /**
+     * Non-blocking version of {@link #readRoutes(RestClient, boolean, boolean)}.
+     */
+    protected static CompletableFuture<List<Route>> readRoutesAsync(final AsyncRestClient client, final boolean includeRail, final boolean retainJson) {
+        if (retainJson) {
+            return getRoutesAsync(client, includeRail).thenApply(new Function<JsonObject,List<Route>>() {
+                public List<Route> apply(final JsonObject json) {
+                    final List<Route> routes=new ArrayList<Route>();
+                    for(final JsonElement e : json.get("data").getAsJsonArray()) {
+                        final JsonObject jsonObj=e.getAsJsonObject();
+                        routes.add(new Route(jsonObj.get("id").getAsString(), jsonObj, retainJson));
+                    }
+                    return routes;
+                }
+            });
+        }
+        final List<Route> routes=new ArrayList<Route>();
+        return client.getJson(routesEndpoint(includeRail), new JsonApiReader(routeAttributes, ImmutableSet.<String>of(), new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                routes.add(newRoute(resource));
+            }
+        })).thenApply(new Function<Integer,List<Route>>() {
+            public List<Route> apply(final Integer count) {
+                return routes;
+            }
+        });
+    }
+
+    /**
+     * Non-blocking version of {@link #readStops(RestClient, Route, boolean)}.
+     */
+    protected static CompletableFuture<List<Stop>> readStopsAsync(final AsyncRestClient client, final Route route, final boolean retainJson) {
+        if (retainJson) {
+            return getStopsJsonAsync(client, route).thenApply(new Function<JsonObject,List<Stop>>() {
+                public List<Stop> apply(final JsonObject json) {
+                    return parseStops(json, retainJson);
+                }
+            });
+        }
+        final List<Stop> stops=new ArrayList<Stop>();
+        return client.getJson(stopsEndpoint(route), new JsonApiReader(stopAttributes, stopRelationships, new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                stops.add(newStop(resource));
+            }
+        })).thenApply(new Function<Integer,List<Stop>>() {
+            public List<Stop> apply(final Integer count) {
+                return stops;
+            }
+        });
+    }
+
+    /**
+     * Non-blocking version of {@link #initRoutes(RestClient, boolean, boolean, int)}, which requests the stops
+     * for all routes at once, as soon as the routes are loaded. The number of requests in flight is limited
+     * by the client's connection pool, not by a number of threads.
+     * When the routes, or the stops of any route, could not be loaded the future completes exceptionally,
+     * as soon as the first request fails, with a RestClientException.
+     */
+    public static CompletableFuture<SortedSet<Route>> initRoutesAsync(final AsyncRestClient client, final boolean withConnections) {
+        return initRoutesAsync(client, true, withConnections, false);
+    }
+
+    /**
+     * Non-blocking version of {@link #initRoutes(RestClient, boolean, boolean, int, boolean)},
+     * see {@link #initRoutesAsync(AsyncRestClient, boolean)}.
+     */
+    public static CompletableFuture<SortedSet<Route>> initRoutesAsync(final AsyncRestClient client, final boolean withStops, final boolean withConnections, final boolean retainJson) {
+        final boolean includeRail=false;
+        final MetricsRegistry metrics=client.getMetrics();
+        final long start=System.nanoTime();
+        return readRoutesAsync(client, includeRail, retainJson).thenCompose(new Function<List<Route>,CompletionStage<SortedSet<Route>>>() {
+            public CompletionStage<SortedSet<Route>> apply(final List<Route> routeList) {
+                final long stopsStart=recordPhase(metrics, "build.fetch_routes", start);
+                final SortedSet<Route> routes=Sets.newTreeSet(Route.nameComparator);
+                routes.addAll(routeList);
+                if (!withStops) {
+                    return CompletableFuture.completedFuture(routes);
+                }
+                final CompletableFuture<SortedSet<Route>> result=new CompletableFuture<SortedSet<Route>>();
+                final Map<Route,CompletableFuture<List<Stop>>> futures=new LinkedHashMap<Route,CompletableFuture<List<Stop>>>();
+                for(final Route route : routes) {
+                    final CompletableFuture<List<Stop>> future=readStopsAsync(client, route, retainJson);
+                    // fail on the first error, as initRoutes does, instead of waiting for the other routes
+                    future.whenComplete(new BiConsumer<List<Stop>,Throwable>() {
+                        public void accept(final List<Stop> stops, final Throwable t) {
+                            if (t != null) {
+                                final Throwable cause=t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                                result.completeExceptionally(new RestClientException("Error loading stops for route="+route, cause));
+                            }
+                        }
+                    });
+                    futures.put(route, future);
+                }
+                CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+                    .thenRun(new Runnable() {
+                        public void run() {
+                            for(final Entry<Route,CompletableFuture<List<Stop>>> entry : futures.entrySet()) {
+                                for(final Stop stop : entry.getValue().join()) {
+                                    entry.getKey().addStop(stop);
+                                }
+                            }
+                            recordPhase(metrics, "build.fetch_stops", stopsStart);
+                            if (withConnections) {
+                                for(final Route route : routes) {
+                                    for(final Stop stop : route.getStops()) {
+                                        stop.addRoute(route);
+                                    }
+                                }
+                            }
+                            result.complete(routes);
+                        }
+                    });
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Get the list of routes and their stops with a fixed number of API calls, 
+     * independent of the number of routes, instead of one /stops call per route.
+     * 
+     *   GET /routes?filter[type]=0,1
+     *   GET /route_patterns?filter[route]={routeIds}&filter[direction_id]=0&include=representative_trip.stops
+     *   GET /stops?filter[id]={parentStationIds}
+     * 
+     * The stops for each route are the stops of the representative trips of its 
+     * most typical route patterns (e.g. both branches of the Red Line), in travel order.
+     * Platforms are replaced by their parent station, to match the stops returned by
+     * {@link #getStopsJson(RestClient, Route)}.
+     */
+    public static SortedSet<Route> initRoutesBulk(final RestClient client, final boolean withConnections) throws RestClientException {
+        return initRoutesBulk(client, withConnections, false);
+    }
+
+    /**
+     * Get the list of routes and their stops with a fixed number of API calls, see {@link #initRoutesBulk(RestClient, boolean)}.
+     * When retainJson is set, each Route and Stop keeps its full JSON representation, for debugging.
+     */
+    public static SortedSet<Route> initRoutesBulk(final RestClient client, final boolean withConnections, final boolean retainJson) throws RestClientException {
+        boolean includeRail=false;
+        final MetricsRegistry metrics=client.getMetrics();
+        final long start=System.nanoTime();
+        final JsonObject routesJson=getRoutes(client, includeRail);
+        final long stopsStart=recordPhase(metrics, "build.fetch_routes", start);
+        final List<String> routeIds=new ArrayList<String>();
+        for(final JsonElement route : routesJson.get("data").getAsJsonArray()) {
+            routeIds.add(route.getAsJsonObject().get("id").getAsString());
+        }
+        final JsonObject patternsJson=getRoutePatternsJson(client, routeIds);
+        final Set<String> parentStationIds=parentStationIds(patternsJson);
+        final JsonObject parentStationsJson;
+        if (parentStationIds.isEmpty()) {
+            parentStationsJson=null;
+        }
+        else {
+            parentStationsJson=RestClient.getJson(client, "/stops?filter[id]="+Joiner.on(",").join(parentStationIds));
+        }
+        recordPhase(metrics, "build.fetch_stops", stopsStart);
+        return assembleRoutes(routesJson, patternsJson, parentStationsJson, withConnections, retainJson);
+    }
+
+    /**
+     * The streaming endpoint for the vehicles on the routes, see {@link LiveData}.
+     * 
+     *   GET /vehicles?filter[route]={routeIds}, with 'Accept: text/event-stream'
+     */
+    public static String getVehiclesStreamUrl(final Collection<Route> routes) {
+        return "/vehicles?filter[route]="+Joiner.on(",").join(routeIds(routes));
+    }
+
+    /**
+     * The streaming endpoint for the predictions for the routes, see {@link LiveData}.
+     * 
+     *   GET /predictions?filter[route]={routeIds}, with 'Accept: text/event-stream'
+     */
+    public static String getPredictionsStreamUrl(final Collection<Route> routes) {
+        return "/predictions?filter[route]="+Joiner.on(",").join(routeIds(routes));
+    }
+
+    /**
+     * The scheduled stop times for the routes on one service day.
+     * 
+     *   GET /schedules?filter[route]={routeIds}&filter[date]={yyyy-mm-dd}
+     */
+    protected static String schedulesEndpoint(final Collection<Route> routes, final LocalDate serviceDate) {
+        return "/schedules?filter[route]="+Joiner.on(",").join(routeIds(routes))+"&filter[date]="+serviceDate;
+    }
+
+    /**
+     * The platforms of the routes, the schedules stop at platforms rather than at the parent stations in the graph.
+     * 
+     *   GET /stops?filter[route]={routeIds}&filter[location_type]=0
+     */
+    protected static String platformsEndpoint(final Collection<Route> routes) {
+        return "/stops?filter[route]="+Joiner.on(",").join(routeIds(routes))+"&filter[location_type]=0";
+    }
+
+    /**
+     * Load the schedules of all of the routes in the graph for one service day, see {@link Timetable}.
+     * The scheduled stops are platforms, which are mapped to their parent stations in the graph.
+     */
+    public static Timetable readTimetable(final RestClient client, final SystemGraph systemGraph, final LocalDate serviceDate) throws RestClientException {
+        final MetricsRegistry metrics=client.getMetrics();
+        long start=System.nanoTime();
+        final Collection<Route> routes=systemGraph.getRoutes();
+        // platform id -> parent station id
+        final Map<String,String> parentStations=new HashMap<String,String>();
+        readJsonApi(client, platformsEndpoint(routes), ImmutableSet.<String>of(), stopRelationships, new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                final String parentStationId=resource.getRelatedId("parent_station");
+                if (parentStationId != null) {
+                    parentStations.put(resource.getId(), parentStationId);
+                }
+            }
+        });
+        final Timetable.Builder builder=new Timetable.Builder(systemGraph.getCompactGraph());
+        readJsonApi(client, schedulesEndpoint(routes, serviceDate), scheduleAttributes, scheduleRelationships, new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                final String stopId=resource.getRelatedId("stop");
+                Stop stop=systemGraph.stopById(stopId);
+                if (stop == null && parentStations.containsKey(stopId)) {
+                    stop=systemGraph.stopById(parentStations.get(stopId));
+                }
+                final String arrival=resource.getString("arrival_time");
+                final String departure=resource.getString("departure_time");
+                builder.addStopTime(resource.getRelatedId("trip"), 
+                    systemGraph.routeById(resource.getRelatedId("route")), 
+                    stop,
+                    resource.getInt("stop_sequence", 0),
+                    arrival == null ? Timetable.NO_TIME : Timetable.secondsOfServiceDay(serviceDate, arrival),
+                    departure == null ? Timetable.NO_TIME : Timetable.secondsOfServiceDay(serviceDate, departure));
+            }
+        });
+        start=recordPhase(metrics, "build.fetch_schedules", start);
+        final Timetable timetable=builder.build(serviceDate);
+        recordPhase(metrics, "build.timetable", start);
+        return timetable;
+    }
+
+    private static List<String> routeIds(final Collection<Route> routes) {
+        final List<String> routeIds=new ArrayList<String>(routes.size());
+        for(final Route route : routes) {
+            routeIds.add(route.getId());
+        }
+        return routeIds;
+    }
+
+    /**
+     * Get the route patterns, with their representative trips and stops, for all of the given routes.
+     * 
+     *   GET /route_patterns?filter[route]={routeIds}&filter[direction_id]=0&include=representative_trip.stops
+     */
+    protected static JsonObject getRoutePatternsJson(final RestClient client, final Collection<String> routeIds) throws RestClientException {
+        return RestClient.getJson(client, "/route_patterns?filter[route]="+Joiner.on(",").join(routeIds)
+            +"&filter[direction_id]=0&include=representative_trip.stops");
+    }
+
+    /**
+     * Index the 'included' resources of a compound document, by "{type}/{id}".
+     */
+    protected static Map<String,JsonObject> indexIncluded(final JsonObject doc) {
+        final Map<String,JsonObject> index=new HashMap<String,JsonObject>();
+        if (doc == null || !doc.has("included")) {
+            return index;
+        }
+        for(final JsonElement e : doc.get("included").getAsJsonArray()) {
+            final JsonObject resource=e.getAsJsonObject();
+            index.put(resource.get("type").getAsString()+"/"+resource.get("id").getAsString(), resource);
+        }
+        return index;
+    }
+
+    /**
+     * Get the id of the related resource, e.g. "relationships"."route"."data"."id",
+     * or null if there is no such relationship.
+     */
+    protected static String relatedId(final JsonObject resource, final String relationship) {
+        final JsonObject data=relatedData(resource, relationship);
+        if (data == null) {
+            return null;
+        }
+        return data.get("id").getAsString();
+    }
+
+    private static JsonObject relatedData(final JsonObject resource, final String relationship) {
+        if (!resource.has("relationships")) {
+            return null;
+        }
+        final JsonObject relationships=resource.get("relationships").getAsJsonObject();
+        if (!relationships.has(relationship) || !relationships.get(relationship).isJsonObject()) {
+            return null;
+        }
+        final JsonElement data=relationships.get(relationship).getAsJsonObject().get("data");
+        if (data == null || !data.isJsonObject()) {
+            return null;
+        }
+        return data.getAsJsonObject();
+    }
+
+    private static List<String> relatedIds(final JsonObject resource, final String relationship) {
+        final List<String> ids=new ArrayList<String>();
+        if (!resource.has("relationships")) {
+            return ids;
+        }
+        final JsonObject relationships=resource.get("relationships").getAsJsonObject();
+        if (!relationships.has(relationship)) {
+            return ids;
+        }
+        final JsonElement data=relationships.get(relationship).getAsJsonObject().get("data");
+        if (data != null && data.isJsonArray()) {
+            for(final JsonElement e : data.getAsJsonArray()) {
+                ids.add(e.getAsJsonObject().get("id").getAsString());
+            }
+        }
+        return ids;
+    }
+
+    private static int intAttribute(final JsonObject resource, final String name, final int defaultValue) {
+        if (!resource.has("attributes")) {
+            return defaultValue;
+        }
+        final JsonElement value=resource.get("attributes").getAsJsonObject().get(name);
+        if (value == null || value.isJsonNull()) {
+            return defaultValue;
+        }
+        return value.getAsInt();
+    }
+
+    /**
+     * Get the ids of the parent stations of all included stops.
+     */
+    protected static Set<String> parentStationIds(final JsonObject patternsJson) {
+        final Set<String> ids=Sets.newLinkedHashSet();
+        for(final JsonObject resource : indexIncluded(patternsJson).values()) {
+            if ("stop".equals(resource.get("type").getAsString())) {
+                final String parentId=relatedId(resource, "parent_station");
+                if (parentId != null) {
+                    ids.add(parentId);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /** to sort route patterns, most typical first, then by 'sort_order' */
+    private static final Comparator<JsonObject> routePatternComparator=new Comparator<JsonObject>() {
+        public int compare(final JsonObject o1, final JsonObject o2) {
+            int c=Integer.compare(intAttribute(o1, "typicality", 1), intAttribute(o2, "typicality", 1));
+            if (c != 0) {
+                return c;
+            }
+            return Integer.compare(intAttribute(o1, "sort_order", 0), intAttribute(o2, "sort_order", 0));
+        }
+    };
+
+    /**
+     * Create the routes and stops from the responses of the bulk API calls.
+     * 
+     * @param routesJson, the /routes response
+     * @param patternsJson, the /route_patterns response, including the representative trips and their stops,
+     *     can be null, for routes without stops
+     * @param parentStationsJson, the /stops response for the parent stations, can be null
+     */
+    protected static SortedSet<Route> assembleRoutes(final JsonObject routesJson, final JsonObject patternsJson, final JsonObject parentStationsJson, final boolean withConnections) {
+        return assembleRoutes(routesJson, patternsJson, parentStationsJson, withConnections, false);
+    }
+
+    /**
+     * Create the routes and stops from the responses of the bulk API calls, see {@link #assembleRoutes(JsonObject, JsonObject, JsonObject, boolean)}.
+     * When retainJson is set, each Route and Stop keeps its JSON representation.
+     */
+    protected static SortedSet<Route> assembleRoutes(final JsonObject routesJson, final JsonObject patternsJson, final JsonObject parentStationsJson, final boolean withConnections, final boolean retainJson) {
+        final SortedSet<Route> routes=Sets.newTreeSet(Route.nameComparator);
+        final Map<String,Route> routesById=new HashMap<String,Route>();
+        for(final JsonElement e : routesJson.get("data").getAsJsonArray()) {
+            final JsonObject jsonObj=e.getAsJsonObject();
+            final Route route=new Route(jsonObj.get("id").getAsString(), jsonObj, retainJson);
+            routes.add(route);
+            routesById.put(route.getId(), route);
+        }
+
+        // parent stations, by id
+        final Map<String,Stop> parentStations=new HashMap<String,Stop>();
+        if (parentStationsJson != null) {
+            for(final Stop stop : parseStops(parentStationsJson, retainJson)) {
+                parentStations.put(stop.getId(), stop);
+            }
+        }
+
+        // route patterns, by route id
+        final ArrayListMultimap<String,JsonObject> patternsByRoute=ArrayListMultimap.create();
+        final JsonArray patternsData=patternsJson == null ? new JsonArray() : patternsJson.get("data").getAsJsonArray();
+        for(final JsonElement e : patternsData) {
+            final JsonObject pattern=e.getAsJsonObject();
+            final String routeId=relatedId(pattern, "route");
+            if (routeId != null && routesById.containsKey(routeId)) {
+                patternsByRoute.put(routeId, pattern);
+            }
+        }
+
+        final Map<String,JsonObject> included=indexIncluded(patternsJson);
+        final Map<String,Stop> stopsById=new HashMap<String,Stop>();
+        for(final Route route : routes) {
+            final List<JsonObject> patterns=new ArrayList<JsonObject>(patternsByRoute.get(route.getId()));
+            if (patterns.isEmpty()) {
+                log.warn("No route patterns for route="+route);
+                continue;
+            }
+            Collections.sort(patterns, routePatternComparator);
+            final int typicality=intAttribute(patterns.get(0), "typicality", 1);
+            final Map<String,Stop> routeStops=new LinkedHashMap<String,Stop>();
+            for(final JsonObject pattern : patterns) {
+                if (intAttribute(pattern, "typicality", 1) != typicality) {
+                    break;
+                }
+                final JsonObject trip=included.get("trip/"+relatedId(pattern, "representative_trip"));
+                if (trip == null) {
+                    log.warn("Missing representative_trip for route_pattern="+pattern.get("id"));
+                    continue;
+                }
+                for(final String stopId : relatedIds(trip, "stops")) {
+                    final Stop stop=resolveStop(stopId, included, parentStations, stopsById, retainJson);
+                    if (stop != null && !routeStops.containsKey(stop.getId())) {
+                        routeStops.put(stop.getId(), stop);
+                    }
+                }
+            }
+            for(final Stop stop : routeStops.values()) {
+                route.addStop(stop);
+                if (withConnections) {
+                    stop.addRoute(route);
+                }
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Get the Stop for the included stop resource, replaced by its parent station when known.
+     * Stops are shared between routes.
+     */
+    private static Stop resolveStop(final String stopId, final Map<String,JsonObject> included, final Map<String,Stop> parentStations, final Map<String,Stop> stopsById, final boolean retainJson) {
+        final JsonObject resource=included.get("stop/"+stopId);
+        if (resource == null) {
+            log.warn("Missing included stop, id="+stopId);
+            return null;
+        }
+        final String parentId=relatedId(resource, "parent_station");
+        if (parentId != null && parentStations.containsKey(parentId)) {
+            return parentStations.get(parentId);
+        }
+        Stop stop=stopsById.get(stopId);
+        if (stop == null) {
+            stop=new Stop(stopId, resource, retainJson);
+            stopsById.put(stopId, stop);
+        }
+        return stop;
+    }
+
+    /**
+     * Create a bounded executor for concurrent requests, 
+     * backed by virtual threads when the runtime supports them (java 21+).
+     */
+    protected static ExecutorService newLoaderExecutor(final int numThreads) {
+        return Executors.newFixedThreadPool(numThreads, loaderThreadFactory());
+    }
+
+    protected static ThreadFactory loaderThreadFactory() {
+        return loaderThreadFactory(Thread.class);
+    }
+
+    /**
+     * Create a factory for virtual threads, with threadClass.ofVirtual(), when the class has it,
+     * otherwise for daemon platform threads named 'mbta-loader-*'.
+     */
+    protected static ThreadFactory loaderThreadFactory(final Class<?> threadClass) {
+        try {
+            // Thread.ofVirtual().factory(), by reflection so that we still run on older JVMs
+            final Object builder=threadClass.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch (Throwable t) {
+            // virtual threads not available
+        }
+        return new ThreadFactory() {
+            private final ThreadFactory delegate=Executors.defaultThreadFactory();
+            public Thread newThread(final Runnable r) {
+                final Thread thread=delegate.newThread(r);
+                thread.setName("mbta-loader-"+thread.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
 }
@@ -0,0 +1,238 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Bounded cache of shortest path trees, keyed by origin stop, which evicts the 
+ * least recently used origins first.
+ * 
+ * Each entry is the predecessor edge array from {@link CompactGraph#shortestPathTree(int)}, 
+ * one int per stop, so every query from a cached origin is answered by tracing the path
+ * back from the destination, without searching the graph.
+ * Safe for use by multiple threads, trees are computed outside of the lock.
+ */
+public class PathTreeCache {
+    public static final int DEFAULT_MAX_ORIGINS=256;
+
+    private final int maxOrigins;
+    private CompactGraph graph;
+    private final LinkedHashMap<Integer,int[]> trees;
+
+    private long hitCount=0;
+    private long missCount=0;
+    private long evictionCount=0;
+    private long invalidationCount=0;
+
+    public PathTreeCache(final CompactGraph graph) {
+        this(graph, DEFAULT_MAX_ORIGINS);
+    }
+
+    public PathTreeCache(final CompactGraph graph, final int maxOrigins) {
+        this.graph=graph;
+        this.maxOrigins=maxOrigins;
+        this.trees=new LinkedHashMap<Integer,int[]>(16, 0.75f, true) {
+            private static final long serialVersionUID=1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<Integer,int[]> eldest) {
+                if (size() > PathTreeCache.this.maxOrigins) {
+                    ++evictionCount;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the shortest path tree from the origin, computed on a miss.
+     */
+    public int[] getTree(final int origin) {
+        return getTree(getGraph(), origin);
+    }
+
+    /**
+     * Get the shortest path tree from the origin in the given graph, which is cached only
+     * while the graph is the current one, so that callers get a tree of the graph they index into.
+     */
+    protected int[] getTree(final CompactGraph g, final int origin) {
+        synchronized (this) {
+            final int[] tree=g == graph ? trees.get(origin) : null;
+            if (tree != null) {
+                ++hitCount;
+                return tree;
+            }
+            ++missCount;
+        }
+        final int[] tree=g.shortestPathTree(origin);
+        synchronized (this) {
+            // don't cache a tree for a graph which was replaced in the meantime
+            if (g == graph) {
+                trees.put(origin, tree);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Get the shortest path, from the cached tree of the origin.
+     * @return the edge indices of the path, an empty array when from == to,
+     *     or null if there is no path
+     */
+    public int[] path(final int from, final int to) {
+        return path(getGraph(), from, to);
+    }
+
+    /**
+     * Get the shortest path in the given graph, see {@link #getTree(CompactGraph, int)}.
+     */
+    protected int[] path(final CompactGraph g, final int from, final int to) {
+        return g.pathFromTree(getTree(g, from), from, to);
+    }
+
+    public synchronized CompactGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Drop all of the cached trees, e.g. when the graph is rebuilt.
+     * The counters are kept.
+     */
+    public synchronized void invalidate(final CompactGraph graph) {
+        this.graph=graph;
+        trees.clear();
+        ++invalidationCount;
+    }
+
+    /**
+     * Switch to the refreshed graph, keeping the cached trees which are still shortest path trees,
+     * see {@link SystemGraph#refresh()}. A tree is kept when none of its edges was removed, and
+     * no added edge leads to a stop which is then closer to the origin, or was unreachable.
+     * The kept trees are remapped to the stop and edge indices of the new graph.
+     *
+     * @param removedEdges the edges of the old graph which are not in the new graph
+     * @param addedEdges the edges of the new graph which are not in the old graph
+     * @return the number of trees kept
+     */
+    public synchronized int retain(final CompactGraph newGraph, final Set<GraphDiff.Edge> removedEdges, final Set<GraphDiff.Edge> addedEdges) {
+        final CompactGraph oldGraph=this.graph;
+        final Map<String,Integer> oldStopIndex=new HashMap<String,Integer>();
+        for(int i=0; i<oldGraph.getNumStops(); ++i) {
+            oldStopIndex.put(oldGraph.getStop(i).getId(), i);
+        }
+        final Map<GraphDiff.Edge,Integer> newEdgeIndex=new HashMap<GraphDiff.Edge,Integer>();
+        for(int e=0; e<newGraph.getNumEdges(); ++e) {
+            newEdgeIndex.put(GraphDiff.Edge.of(newGraph, e), e);
+        }
+
+        final LinkedHashMap<Integer,int[]> kept=new LinkedHashMap<Integer,int[]>();
+        for(final Entry<Integer,int[]> entry : trees.entrySet()) {
+            final int origin=entry.getKey();
+            final int newOrigin=newGraph.indexOf(oldGraph.getStop(origin));
+            if (newOrigin < 0) {
+                continue;
+            }
+            final int[] tree=remap(oldGraph, newGraph, oldStopIndex, newEdgeIndex,
+                origin, entry.getValue(), removedEdges, addedEdges);
+            if (tree != null) {
+                kept.put(newOrigin, tree);
+            }
+        }
+        this.graph=newGraph;
+        trees.clear();
+        // in the same order, least recently used first
+        trees.putAll(kept);
+        ++invalidationCount;
+        return kept.size();
+    }
+
+    /**
+     * @return the tree with new graph indices, or null if it is no longer a shortest path tree
+     */
+    private static int[] remap(final CompactGraph oldGraph, final CompactGraph newGraph,
+            final Map<String,Integer> oldStopIndex, final Map<GraphDiff.Edge,Integer> newEdgeIndex,
+            final int origin, final int[] predEdge, final Set<GraphDiff.Edge> removedEdges, final Set<GraphDiff.Edge> addedEdges) {
+        final int[] depth=depths(oldGraph, origin, predEdge);
+        for(final GraphDiff.Edge edge : addedEdges) {
+            final Integer from=oldStopIndex.get(edge.getFromId());
+            if (from == null || depth[from] < 0) {
+                // from a new or unreachable stop, which is still unreachable when the tree is kept
+                continue;
+            }
+            final Integer to=oldStopIndex.get(edge.getToId());
+            if (to == null || depth[to] < 0 || depth[to] > depth[from]+1) {
+                return null;
+            }
+        }
+
+        final int[] tree=new int[newGraph.getNumStops()];
+        Arrays.fill(tree, CompactGraph.NO_EDGE);
+        for(int v=0; v<predEdge.length; ++v) {
+            if (predEdge[v] == CompactGraph.NO_EDGE) {
+                continue;
+            }
+            final GraphDiff.Edge edge=GraphDiff.Edge.of(oldGraph, predEdge[v]);
+            final Integer e=newEdgeIndex.get(edge);
+            if (e == null || removedEdges.contains(edge)) {
+                return null;
+            }
+            tree[newGraph.getTarget(e)]=e;
+        }
+        return tree;
+    }
+
+    /**
+     * @return the number of edges from the origin to each stop in the tree, -1 for unreachable stops
+     */
+    private static int[] depths(final CompactGraph graph, final int origin, final int[] predEdge) {
+        final int[] depth=new int[predEdge.length];
+        Arrays.fill(depth, -1);
+        depth[origin]=0;
+        for(int v=0; v<predEdge.length; ++v) {
+            if (depth[v] >= 0 || predEdge[v] == CompactGraph.NO_EDGE) {
+                continue;
+            }
+            // walk back to a stop with a known depth, then fill in the depths on the way back
+            int length=0;
+            int u=v;
+            while (depth[u] < 0) {
+                u=graph.getSource(predEdge[u]);
+                ++length;
+            }
+            final int base=depth[u];
+            for(int w=v; depth[w] < 0; w=graph.getSource(predEdge[w])) {
+                depth[w]=base+length--;
+            }
+        }
+        return depth;
+    }
+
+    public synchronized int size() {
+        return trees.size();
+    }
+
+    public int getMaxOrigins() {
+        return maxOrigins;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+}
@@ -0,0 +1,412 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running http server which answers route queries from a SystemGraph, which is built once,
+ * so that each query only pays for the path search.
+ *
+ * Endpoints, all GET, with JSON responses:
+<pre>
+    /routes                          all routes
+    /routes/longest, /routes/shortest
+    /connections                     route id -> ids of the connected routes
+    /path/routes?from={stop}&to={stop}   the routes to travel, see SystemGraph#listRoutesFrom
+    /path/stops?from={stop}&to={stop}    the stops to travel, see SystemGraph#listStopsFrom
+    /itinerary?from={stop}&to={stop}     the trip with the fewest route changes, see SystemGraph#findItinerary
+    /stats                           request counters
+    /metrics                         a snapshot of the graph's metrics, when enabled, see SystemGraph#withMetrics
+</pre>
+ * Stops are given by name, e.g. 'Park Street', or by id, e.g. 'place-pktrm'.
+ * The responses which don't depend on the query are serialized once, when the server starts.
+ * Requests are handled by a bounded pool of threads, virtual threads when the runtime supports them,
+ * path queries are safe for concurrent use, see {@link SystemGraph}; the graph must not be rebuilt or refreshed
+ * while the server is running.
+ *
+ * The response headers and the body are written separately, so run with -Dsun.net.httpserver.nodelay=true,
+ * otherwise each keep-alive request waits for the client's delayed ack. The setting is read once per jvm,
+ * before the first HttpServer is created, {@link Main} sets it for the 'serve' command, and the pom for the tests.
+ *
+ * Usage:
+<pre>
+    final QueryServer server=new QueryServer(systemGraph).withPort(8080);
+    server.start();
+    ...
+    server.stop();
+</pre>
+ */
+public class QueryServer {
+    private static final Logger log = LogManager.getLogger(QueryServer.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE="application/json";
+
+    private final SystemGraph graph;
+    private String host="127.0.0.1";
+    private int port=0;
+    private int numThreads=2*Runtime.getRuntime().availableProcessors();
+    private int backlog=1024;
+
+    private HttpServer server=null;
+    private ExecutorService exec=null;
+    // path -> serialized response, for the endpoints which don't depend on the query
+    private final Map<String,byte[]> staticResponses=new HashMap<String,byte[]>();
+
+    private final AtomicLong numRequests=new AtomicLong();
+    private final AtomicLong numPathQueries=new AtomicLong();
+    private final AtomicLong numErrors=new AtomicLong();
+
+    public QueryServer(final SystemGraph graph) {
+        this.graph=graph;
+    }
+
+    protected void checkNotStarted() {
+        if (server != null) {
+            throw new IllegalStateException("server already started");
+        }
+    }
+
+    /** the port to listen on, by default 0, for any free port */
+    public QueryServer withPort(final int port) {
+        checkNotStarted();
+        this.port=port;
+        return this;
+    }
+
+    /** the address to listen on, by default '127.0.0.1' */
+    public QueryServer withHost(final String host) {
+        checkNotStarted();
+        this.host=host;
+        return this;
+    }
+
+    /** the max number of requests handled at the same time, by default two per cpu */
+    public QueryServer withThreads(final int numThreads) {
+        checkNotStarted();
+        this.numThreads=numThreads;
+        return this;
+    }
+
+    /** the max number of connections waiting to be accepted */
+    public QueryServer withBacklog(final int backlog) {
+        checkNotStarted();
+        this.backlog=backlog;
+        return this;
+    }
+
+    /**
+     * Start the server.
+     * @return the url prefix, e.g. 'http://127.0.0.1:54321'
+     */
+    public synchronized String start() throws IOException {
+        checkNotStarted();
+        initStaticResponses();
+        exec=MbtaClient.newLoaderExecutor(numThreads);
+        server=HttpServer.create(new InetSocketAddress(host, port), backlog);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    QueryServer.this.handle(exchange);
+                }
+                catch (IOException e) {
+                    // e.g. the client closed the connection
+                    log.debug("Error sending response="+exchange.getRequestURI(), e);
+                }
+                catch (Throwable t) {
+                    log.error("Error handling request="+exchange.getRequestURI(), t);
+                    try {
+                        sendError(exchange, 500, "internal_error");
+                    }
+                    catch (IOException e) {
+                        log.debug("Error sending error response", e);
+                    }
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(exec);
+        server.start();
+        log.info("query server started, prefix="+getPrefix()+", threads="+numThreads);
+        return getPrefix();
+    }
+
+    /** the url prefix, e.g. 'http://127.0.0.1:54321', or null if the server is not started */
+    public synchronized String getPrefix() {
+        if (server == null) {
+            return null;
+        }
+        return "http://"+host+":"+server.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        exec.shutdownNow();
+        server=null;
+        exec=null;
+    }
+
+    private void initStaticResponses() throws IOException {
+        staticResponses.put("/routes", routesJson(graph.getRoutes()));
+        staticResponses.put("/routes/longest", routesJson(graph.getLongestRoutes()));
+        staticResponses.put("/routes/shortest", routesJson(graph.getShortestRoutes()));
+
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final JsonWriter writer=newWriter(bytes);
+        writer.beginObject();
+        for(final Entry<Route,Collection<Route>> entry : graph.getRouteConnections().entrySet()) {
+            writer.name(entry.getKey().getId());
+            writer.beginArray();
+            for(final Route route : entry.getValue()) {
+                writer.value(route.getId());
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.close();
+        staticResponses.put("/connections", bytes.toByteArray());
+    }
+
+    private static JsonWriter newWriter(final OutputStream out) {
+        return new JsonWriter(new OutputStreamWriter(out, UTF_8));
+    }
+
+    private static byte[] routesJson(final Collection<Route> routes) throws IOException {
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final JsonWriter writer=newWriter(bytes);
+        writer.beginArray();
+        for(final Route route : routes) {
+            writeRoute(writer, route);
+            writer.name("num_stops").value(route.getStops().size());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    // begin the route object, the caller ends it
+    private static void writeRoute(final JsonWriter writer, final Route route) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(route.getId());
+        writer.name("long_name").value(route.getLongName());
+        writer.name("short_name").value(route.getShortName());
+        writer.name("type").value(route.getType());
+    }
+
+    private static void writeStop(final JsonWriter writer, final Stop stop) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(stop.getId());
+        writer.name("name").value(stop.getName());
+        writer.endObject();
+    }
+
+    protected void handle(final HttpExchange exchange) throws IOException {
+        numRequests.incrementAndGet();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "method_not_allowed");
+            return;
+        }
+        final String path=exchange.getRequestURI().getPath();
+        final byte[] body=staticResponses.get(path);
+        if (body != null) {
+            send(exchange, 200, body);
+            return;
+        }
+        if ("/stats".equals(path)) {
+            send(exchange, 200, statsJson());
+            return;
+        }
+        if ("/metrics".equals(path) && graph.getMetrics() != null) {
+            final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+            final OutputStreamWriter writer=new OutputStreamWriter(bytes, UTF_8);
+            graph.getMetrics().snapshot().writeJson(writer);
+            writer.close();
+            send(exchange, 200, bytes.toByteArray());
+            return;
+        }
+        if (!"/path/routes".equals(path) && !"/path/stops".equals(path) && !"/itinerary".equals(path)) {
+            sendError(exchange, 404, "not_found");
+            return;
+        }
+
+        final Map<String,String> params;
+        try {
+            params=parseQuery(exchange.getRequestURI().getRawQuery());
+        }
+        catch (IllegalArgumentException e) {
+            // e.g. a malformed '%' escape
+            sendError(exchange, 400, "invalid_query");
+            return;
+        }
+        final String fromParam=params.get("from");
+        final String toParam=params.get("to");
+        if (fromParam == null || toParam == null) {
+            sendError(exchange, 400, "missing_from_or_to");
+            return;
+        }
+        final Stop from=findStop(fromParam);
+        final Stop to=findStop(toParam);
+        if (from == null || to == null) {
+            sendError(exchange, 404, "stop_not_found");
+            return;
+        }
+        numPathQueries.incrementAndGet();
+
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream(256);
+        final JsonWriter writer=newWriter(bytes);
+        writer.beginObject();
+        writer.name("from");
+        writeStop(writer, from);
+        writer.name("to");
+        writeStop(writer, to);
+        if ("/path/routes".equals(path)) {
+            final List<Route> routes=graph.listRoutesFrom(from, to);
+            writer.name("routes");
+            writeRoutes(writer, routes);
+        }
+        else if ("/path/stops".equals(path)) {
+            final List<Stop> stops=graph.listStopsFrom(from, to);
+            writer.name("stops");
+            if (stops == null) {
+                writer.nullValue();
+            }
+            else {
+                writer.beginArray();
+                for(final Stop stop : stops) {
+                    writeStop(writer, stop);
+                }
+                writer.endArray();
+            }
+        }
+        else {
+            final TransferRouter.Itinerary itinerary=graph.findItinerary(from, to);
+            if (itinerary == null) {
+                writer.name("routes").nullValue();
+            }
+            else {
+                writer.name("routes");
+                writeRoutes(writer, itinerary.getRoutes());
+                writer.name("transfer_stops");
+                writer.beginArray();
+                for(final Stop stop : itinerary.getTransferStops()) {
+                    writeStop(writer, stop);
+                }
+                writer.endArray();
+                writer.name("num_stops").value(itinerary.getNumStops());
+            }
+        }
+        writer.endObject();
+        writer.close();
+        send(exchange, 200, bytes.toByteArray());
+    }
+
+    private static void writeRoutes(final JsonWriter writer, final List<Route> routes) throws IOException {
+        if (routes == null) {
+            // no path
+            writer.nullValue();
+            return;
+        }
+        writer.beginArray();
+        for(final Route route : routes) {
+            writeRoute(writer, route);
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    /** find the stop by name, or by id */
+    protected Stop findStop(final String nameOrId) {
+        final Stop stop=graph.stop(nameOrId);
+        if (stop != null) {
+            return stop;
+        }
+        return graph.stopById(nameOrId);
+    }
+
+    /**
+     * Parse the url-encoded query parameters.
+     * @throws IllegalArgumentException if a parameter is not properly encoded
+     */
+    protected static Map<String,String> parseQuery(final String rawQuery) throws UnsupportedEncodingException {
+        final Map<String,String> params=new HashMap<String,String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for(final String param : rawQuery.split("&")) {
+            final int eq=param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq+1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private byte[] statsJson() throws IOException {
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final JsonWriter writer=newWriter(bytes);
+        writer.beginObject();
+        writer.name("requests").value(numRequests.get());
+        writer.name("path_queries").value(numPathQueries.get());
+        writer.name("errors").value(numErrors.get());
+        writer.name("num_stops").value(graph.getNumStops());
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private void sendError(final HttpExchange exchange, final int statusCode, final String code) throws IOException {
+        if (statusCode != 404) {
+            numErrors.incrementAndGet();
+        }
+        send(exchange, statusCode, ("{\"errors\":[{\"status\":\""+statusCode+"\",\"code\":\""+code+"\"}]}").getBytes(UTF_8));
+    }
+
+    private static void send(final HttpExchange exchange, final int statusCode, final byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(statusCode, body.length);
+        final OutputStream out=exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /** the number of path and itinerary queries */
+    public long getNumPathQueries() {
+        return numPathQueries.get();
+    }
+
+    /** the number of failed requests, not counting '404 Not Found' */
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+}
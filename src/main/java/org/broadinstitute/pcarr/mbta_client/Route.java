@@ -8,12 +8,37 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-/** a route (aka a line) */
+/** 
+ * a route (aka a line) 
+<pre>
+  "data": [
+    {
+      "id": "Red",
+      "attributes": {
+        ...
+        "long_name": "Red Line",
+        "short_name": "",
+        "type": 1
+        ...
+      },
+      "type": "route"
+    },
+    ...
+   ]
+</pre>
+ * 
+ * Only the parsed fields are kept, the JSON representation is dropped unless
+ * the loader is asked to retain it, see {@link SystemGraph#withRetainJson(boolean)}.
+ */
 public class Route {
     private static final Logger log = LogManager.getLogger(Route.class);
 
+    /** the route type is not known */
+    public static final int TYPE_UNKNOWN=-1;
+
     /** to sort routes by name */
     public static final Comparator<Route> nameComparator=new Comparator<Route>() {
         public int compare(Route o1, Route o2) {
@@ -35,16 +60,64 @@ public class Route {
             return null;
         }
     }
+
+    // data[i]."attributes"."{name}", or null if missing
+    private static JsonElement extractAttribute(final JsonObject jsonObj, final String name) {
+        if (!jsonObj.has("attributes")) {
+            return null;
+        }
+        final JsonElement value=jsonObj.get("attributes").getAsJsonObject().get(name);
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+        return value;
+    }
     
-    final String id;
-    final JsonObject json;
-    final String longName;
-    final List<Stop> stops;
+    private final String id;
+    private final String longName;
+    private final String shortName;
+    private final int type;
+    private final JsonObject json;
+    private final List<Stop> stops;
     
     public Route(final String id, final JsonObject json) {
+        this(id, json, false);
+    }
+
+    /**
+     * @param retainJson when true, keep the JSON representation, for debugging
+     */
+    public Route(final String id, final JsonObject json, final boolean retainJson) {
         this.id=id;
-        this.json=json;
         this.longName=extractLongName(json);
+        final JsonElement shortName=extractAttribute(json, "short_name");
+        this.shortName=shortName == null ? null : shortName.getAsString();
+        final JsonElement type=extractAttribute(json, "type");
+        this.type=type == null ? TYPE_UNKNOWN : type.getAsInt();
+        this.json=retainJson ? json : null;
+        this.stops=new ArrayList<Stop>();
+    }
+
+    public Route(final String id, final String longName) {
+        this(id, longName, null, TYPE_UNKNOWN);
+    }
+
+    public Route(final String id, final String longName, final String shortName, final int type) {
+        this.id=id;
+        this.longName=longName;
+        this.shortName=shortName;
+        this.type=type;
+        this.json=null;
+        this.stops=new ArrayList<Stop>();
+    }
+    
+    // a copy of the attributes, without the stops, see SystemGraph.refresh
+    Route(final Route other) {
+        this.id=other.id;
+        this.longName=other.longName;
+        this.shortName=other.shortName;
+        this.type=other.type;
+        this.json=other.json;
         this.stops=new ArrayList<Stop>();
     }
     
@@ -59,6 +132,20 @@ public class Route {
     public String getLongName() {
         return longName;
     }
+
+    public String getShortName() {
+        return shortName;
+    }
+
+    /** the GTFS route type, e.g. 0 for light rail, 1 for subway, see MbtaClient.getRoutes */
+    public int getType() {
+        return type;
+    }
+
+    /** the JSON representation, only available when it was retained when loading */
+    public JsonObject getJson() {
+        return json;
+    }
     
     public ImmutableList<Stop> getStops() {
         return ImmutableList.copyOf(stops);
@@ -69,11 +156,12 @@ public class Route {
     }
     
     public boolean equals(Object obj) {
-        return obj instanceof Route && ((Route)obj).getId() == id;
+        return (this == obj) ||
+               ( (obj instanceof Route) && id.equals(((Route)obj).getId()) );
     }
 
     public int hashCode() {
         return id.hashCode();
     }
 
-}
\ No newline at end of file
+}
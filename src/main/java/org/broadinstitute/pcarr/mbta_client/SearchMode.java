@@ -0,0 +1,14 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+/**
+ * The search algorithm for a point-to-point path query, see {@link CompactGraph#shortestPath(int, int, SearchMode)}.
+ * All modes find a path with the fewest stops, they differ in how much of the graph they explore.
+ */
+public enum SearchMode {
+    /** breadth-first search from the origin, which stops when the destination is reached */
+    BREADTH_FIRST,
+    /** alternating breadth-first searches from the origin and, on the reverse edges, from the destination, until they meet */
+    BIDIRECTIONAL,
+    /** A* search, with the great-circle distance to the destination over the longest edge as the heuristic */
+    A_STAR
+}
@@ -6,6 +6,7 @@ import java.util.TreeSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 /**
@@ -16,7 +17,14 @@ import com.google.gson.JsonObject;
       "id": "place-alfcl",
       "attributes": {
         ...
+        "latitude": 42.395428,
+        "longitude": -71.142483,
         "name": "Alewife",
+        "wheelchair_boarding": 1,
+        ...
+      },
+      "relationships": {
+        "parent_station": { "data": null },
         ...
       },
       "type": "stop"
@@ -24,20 +32,74 @@ import com.google.gson.JsonObject;
     ...
    ]
 </pre>
+ * 
+ * Only the parsed fields are kept, the JSON representation is dropped unless
+ * the loader is asked to retain it, see {@link SystemGraph#withRetainJson(boolean)}.
  */
 
 public class Stop {
     private static final Logger log = LogManager.getLogger(Stop.class);
+
+    /** GTFS wheelchair_boarding values */
+    public static final int WHEELCHAIR_NO_INFO=0;
+    public static final int WHEELCHAIR_ACCESSIBLE=1;
+    public static final int WHEELCHAIR_INACCESSIBLE=2;
+
+    /** mean radius of the earth, in meters */
+    public static final double EARTH_RADIUS_METERS=6371008.8;
     
-    final String id;
-    final String name;
-    final JsonObject json;
-    final SortedSet<Route> routes;
+    private final String id;
+    private final String name;
+    private final double latitude;
+    private final double longitude;
+    private final String parentStationId;
+    private final int wheelchairBoarding;
+    private final JsonObject json;
+    private final SortedSet<Route> routes;
     
     public Stop(final String id, final JsonObject json) {
+        this(id, json, false);
+    }
+
+    /**
+     * @param retainJson when true, keep the JSON representation, for debugging
+     */
+    public Stop(final String id, final JsonObject json, final boolean retainJson) {
         this.id=id;
-        this.json=json;
         this.name=extractName(json);
+        this.latitude=extractDouble(json, "latitude");
+        this.longitude=extractDouble(json, "longitude");
+        this.parentStationId=extractParentStationId(json);
+        final JsonElement wheelchairBoarding=extractAttribute(json, "wheelchair_boarding");
+        this.wheelchairBoarding=wheelchairBoarding == null ? WHEELCHAIR_NO_INFO : wheelchairBoarding.getAsInt();
+        this.json=retainJson ? json : null;
+        this.routes=new TreeSet<Route>(Route.nameComparator);
+    }
+
+    public Stop(final String id, final String name) {
+        this(id, name, Double.NaN, Double.NaN, null, WHEELCHAIR_NO_INFO);
+    }
+
+    public Stop(final String id, final String name, final double latitude, final double longitude, final String parentStationId, final int wheelchairBoarding) {
+        this.id=id;
+        this.name=name;
+        this.latitude=latitude;
+        this.longitude=longitude;
+        this.parentStationId=parentStationId;
+        this.wheelchairBoarding=wheelchairBoarding;
+        this.json=null;
+        this.routes=new TreeSet<Route>(Route.nameComparator);
+    }
+    
+    // a copy of the attributes, without the routes, see SystemGraph.refresh
+    Stop(final Stop other) {
+        this.id=other.id;
+        this.name=other.name;
+        this.latitude=other.latitude;
+        this.longitude=other.longitude;
+        this.parentStationId=other.parentStationId;
+        this.wheelchairBoarding=other.wheelchairBoarding;
+        this.json=other.json;
         this.routes=new TreeSet<Route>(Route.nameComparator);
     }
     
@@ -52,6 +114,53 @@ public class Stop {
     public String getName() {
         return name;
     }
+
+    /** the latitude in degrees, or NaN if not known */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /** the longitude in degrees, or NaN if not known */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /** true if the stop has coordinates */
+    public boolean hasLocation() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    /**
+     * the great-circle (haversine) distance to the other stop, in meters,
+     * or NaN if either stop has no location
+     */
+    public double distanceMeters(final Stop other) {
+        return distanceMeters(latitude, longitude, other.latitude, other.longitude);
+    }
+
+    /** the great-circle (haversine) distance between two points, in meters */
+    public static double distanceMeters(final double lat1, final double lon1, final double lat2, final double lon2) {
+        final double dLat=Math.toRadians(lat2-lat1);
+        final double dLon=Math.toRadians(lon2-lon1);
+        final double a=Math.sin(dLat/2)*Math.sin(dLat/2)
+            + Math.cos(Math.toRadians(lat1))*Math.cos(Math.toRadians(lat2))*Math.sin(dLon/2)*Math.sin(dLon/2);
+        return 2*EARTH_RADIUS_METERS*Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /** the id of the parent station, or null if this stop is not part of a station */
+    public String getParentStationId() {
+        return parentStationId;
+    }
+
+    /** the GTFS wheelchair_boarding value, one of the WHEELCHAIR_ constants */
+    public int getWheelchairBoarding() {
+        return wheelchairBoarding;
+    }
+
+    /** the JSON representation, only available when it was retained when loading */
+    public JsonObject getJson() {
+        return json;
+    }
     
     public SortedSet<Route> getRoutes() {
         return routes;
@@ -66,7 +175,42 @@ public class Stop {
             .getAsString();
         }
         catch (Throwable t) {
-            log.error("Unexpected error getting 'long_name' from JSON representation", t);
+            log.error("Unexpected error getting 'name' from JSON representation", t);
+            return null;
+        }
+    }
+
+    // data[i]."attributes"."{name}", or null if missing
+    private static JsonElement extractAttribute(final JsonObject jsonObj, final String name) {
+        if (!jsonObj.has("attributes")) {
+            return null;
+        }
+        final JsonElement value=jsonObj.get("attributes").getAsJsonObject().get(name);
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+        return value;
+    }
+
+    private static double extractDouble(final JsonObject jsonObj, final String name) {
+        final JsonElement value=extractAttribute(jsonObj, name);
+        return value == null ? Double.NaN : value.getAsDouble();
+    }
+
+    // data[i]."relationships"."parent_station"."data"."id"
+    private static String extractParentStationId(final JsonObject jsonObj) {
+        try {
+            final JsonElement data=jsonObj
+                .getAsJsonObject("relationships")
+                .getAsJsonObject("parent_station")
+                .get("data");
+            if (data == null || !data.isJsonObject()) {
+                return null;
+            }
+            return data.getAsJsonObject().get("id").getAsString();
+        }
+        catch (Throwable t) {
+            // no relationships
             return null;
         }
     }
@@ -76,12 +220,12 @@ public class Stop {
     }
     
     public int hashCode() {
-        return toString().hashCode();
+        return id.hashCode();
     }
     
     public boolean equals(Object o) {
         return (this == o) || 
-               ( (o instanceof Stop) && (toString().equals(o.toString())) );
+               ( (o instanceof Stop) && id.equals(((Stop)o).getId()) );
     }
 
-}
\ No newline at end of file
+}
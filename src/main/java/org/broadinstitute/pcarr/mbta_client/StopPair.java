@@ -0,0 +1,42 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+/**
+ * An origin and destination stop, for batch path queries, see {@link SystemGraph#listRoutesFrom(java.util.List)}.
+ */
+public class StopPair {
+    private final Stop from;
+    private final Stop to;
+
+    public StopPair(final Stop from, final Stop to) {
+        this.from=from;
+        this.to=to;
+    }
+
+    public Stop getFrom() {
+        return from;
+    }
+
+    public Stop getTo() {
+        return to;
+    }
+
+    public String toString() {
+        return from+" -> "+to;
+    }
+
+    public int hashCode() {
+        return 31*from.hashCode()+to.hashCode();
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StopPair)) {
+            return false;
+        }
+        final StopPair other=(StopPair) o;
+        return from.equals(other.from) && to.equals(other.to);
+    }
+
+}
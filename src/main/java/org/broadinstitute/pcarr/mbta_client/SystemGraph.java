@@ -1,51 +1,124 @@
 package org.broadinstitute.pcarr.mbta_client;
 
 import java.io.PrintStream;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.broadinstitute.pcarr.metrics.Counter;
+import org.broadinstitute.pcarr.metrics.Distribution;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.metrics.Timer;
+import org.broadinstitute.pcarr.rest.AsyncRestClient;
 import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.RestClientException;
 
 import org.jgrapht.Graph;
 import org.jgrapht.GraphPath;
 import org.jgrapht.alg.connectivity.KosarajuStrongConnectivityInspector;
 import org.jgrapht.alg.interfaces.StrongConnectivityAlgorithm;
-import org.jgrapht.alg.interfaces.ShortestPathAlgorithm.SingleSourcePaths;
-import org.jgrapht.alg.shortestpath.DijkstraShortestPath;
-import org.jgrapht.graph.DefaultDirectedGraph;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.collect.TreeMultimap;
 
 /**
- * a graph of the MBTA system implemented with the org.jgrapht library.
+ * a graph of the MBTA system.
+ * Path queries run on an int-indexed {@link CompactGraph}, 
+ * a view of the graph for the org.jgrapht library is available from {@link #getGraph()}.
+ * By default they find the fewest stops; with a {@link Timetable}, see {@link #withTravelTimes(Timetable)},
+ * the edges are weighted by the scheduled travel time, and they find the fastest path, 
+ * with a penalty for each change of routes.
  */
 public class SystemGraph {
-    // the set of all routes
-    protected SortedSet<Route> routes;
-    // all routes, by 'id'
-    protected Map<String,Route> routesById=Maps.newHashMap();
-    // all routes, by 'name'
-    protected Map<String,Route> routesByName=Maps.newHashMap();
-    // the set of all stops, indexed by 'id'
-    protected Map<String,Stop> stops=Maps.newHashMap();
-    // secondary, set of all stops, indexed by 'name'
-    protected Map<String,Stop> nameToStop=Maps.newHashMap();
-    // each route is connected to one or more other routes
-    // map of route -> list<route>, connections
-    protected TreeMultimap<Route,Route> routeConnections=TreeMultimap.create(Route.nameComparator, Route.nameComparator);
-    protected Set<Route> longestRoutes;
-    protected Set<Route> shortestRoutes;
-
-    private Graph<Stop, RouteEdge> graph;
+    private static final Logger log = LogManager.getLogger(SystemGraph.class);
+
+    /** the default cost of changing routes, in seconds, for the travel time weighted path queries */
+    public static final int DEFAULT_TRANSFER_SECONDS=300;
+    /** the travel time of an edge, in seconds, when there are no scheduled trips to weight any edge */
+    public static final int DEFAULT_EDGE_SECONDS=120;
+
+    /**
+     * The routes, the lookup tables, the graph of stops and its indexes, which the queries read.
+     * Not modified once it is published: build and refresh prepare a new State on the side and
+     * replace the old one with a single write, so that a query sees either the old or the new graph.
+     */
+    private static class State {
+        // the set of all routes
+        SortedSet<Route> routes;
+        // all routes, by 'id'
+        Map<String,Route> routesById=Maps.newHashMap();
+        // all routes, by 'name'
+        Map<String,Route> routesByName=Maps.newHashMap();
+        // the set of all stops, indexed by 'id'
+        Map<String,Stop> stops=Maps.newHashMap();
+        // secondary, set of all stops, indexed by 'name'
+        Map<String,Stop> nameToStop=Maps.newHashMap();
+        // each route is connected to one or more other routes
+        // map of route -> list<route>, connections
+        TreeMultimap<Route,Route> routeConnections=TreeMultimap.create(Route.nameComparator, Route.nameComparator);
+        Set<Route> longestRoutes;
+        Set<Route> shortestRoutes;
+
+        CompactGraph graph;
+        // optional, precomputed shortest paths between all pairs of stops
+        AllPairsPaths allPairsPaths=null;
+        // optional, contraction hierarchy index for point-to-point queries
+        ContractionHierarchy contractionHierarchy=null;
+        // route-level router, for the fewest route changes
+        TransferRouter transferRouter;
+        // optional, the travel time of each edge in seconds, by edge index, see initEdgeWeights
+        int[] edgeWeights=null;
+
+        // a copy to publish with another all-pairs table, the lookup tables are shared
+        State withAllPairsPaths(final AllPairsPaths allPairsPaths) {
+            final State copy=new State(this);
+            copy.allPairsPaths=allPairsPaths;
+            return copy;
+        }
+
+        State() {
+        }
+
+        private State(final State other) {
+            routes=other.routes;
+            routesById=other.routesById;
+            routesByName=other.routesByName;
+            stops=other.stops;
+            nameToStop=other.nameToStop;
+            routeConnections=other.routeConnections;
+            longestRoutes=other.longestRoutes;
+            shortestRoutes=other.shortestRoutes;
+            graph=other.graph;
+            allPairsPaths=other.allPairsPaths;
+            contractionHierarchy=other.contractionHierarchy;
+            transferRouter=other.transferRouter;
+            edgeWeights=other.edgeWeights;
+        }
+    }
+
+    // empty until the graph is built
+    private volatile State state=new State();
+    // optional, shortest path trees of recent origins, it tracks the graph it is for, see PathTreeCache.retain
+    private volatile PathTreeCache pathTreeCache=null;
 
     public SystemGraph() {
     }
@@ -57,52 +130,292 @@ public class SystemGraph {
         return this;
     }
 
-    private void addStop(final Route route, final Stop stop) {
-        Stop existing = stops.get(stop.getId());
-        if (existing == null) {
-            stop.addRoute(route);
-            stops.put(stop.id, stop);
-            nameToStop.put(stop.name, stop);
+    // when set, load the routes and stops with non-blocking requests, see MbtaClient.initRoutesAsync
+    private AsyncRestClient asyncClient=null;
+    public SystemGraph withAsyncClient(final AsyncRestClient asyncClient) {
+        this.asyncClient=asyncClient;
+        return this;
+    }
+
+    // max number of concurrent requests when loading stops, 1 means load one route at a time
+    private int maxConcurrency=1;
+    public SystemGraph withMaxConcurrency(final int maxConcurrency) {
+        this.maxConcurrency=maxConcurrency;
+        return this;
+    }
+
+    // when true, load all routes and stops with a fixed number of requests, see MbtaClient.initRoutesBulk
+    private boolean bulkLoad=false;
+    public SystemGraph withBulkLoad(final boolean bulkLoad) {
+        this.bulkLoad=bulkLoad;
+        return this;
+    }
+
+    // for debugging, when true each loaded Route and Stop keeps its full JSON representation
+    private boolean retainJson=false;
+    public SystemGraph withRetainJson(final boolean retainJson) {
+        this.retainJson=retainJson;
+        return this;
+    }
+
+    // when true, precompute the shortest paths between all pairs of stops after the graph is built,
+    // so that path queries are table lookups, see AllPairsPaths
+    private boolean allPairs=false;
+    public SystemGraph withAllPairs(final boolean allPairs) {
+        this.allPairs=allPairs;
+        return this;
+    }
+
+    // when > 0, cache the shortest path trees of up to this many recent origin stops, see PathTreeCache
+    private int maxCachedOrigins=0;
+    public SystemGraph withPathTreeCache(final int maxCachedOrigins) {
+        this.maxCachedOrigins=maxCachedOrigins;
+        return this;
+    }
+
+    // the cost of changing routes, in stops, for findItinerary
+    private double transferPenalty=TransferRouter.DEFAULT_TRANSFER_PENALTY;
+    public SystemGraph withTransferPenalty(final double transferPenalty) {
+        this.transferPenalty=transferPenalty;
+        return this;
+    }
+
+    // runs the batch path queries, one task per distinct origin
+    private ForkJoinPool batchPool=ForkJoinPool.commonPool();
+    public SystemGraph withBatchPool(final ForkJoinPool batchPool) {
+        this.batchPool=batchPool;
+        return this;
+    }
+
+    // when true, build a contraction hierarchy index after the graph is built, or use the one loaded with a snapshot,
+    // and use it for path queries, see ContractionHierarchy. When there is more than one shortest path,
+    // the index may return a different one than the breadth-first search, so it is not used by default
+    private boolean withContractionHierarchy=false;
+    public SystemGraph withContractionHierarchy(final boolean withContractionHierarchy) {
+        this.withContractionHierarchy=withContractionHierarchy;
+        return this;
+    }
+
+    // optional, build phase timings and query metrics, see recordQuery
+    private MetricsRegistry metrics=null;
+    // query kind -> metrics, resolved once so that recording a query doesn't look up the names
+    private Map<String,QueryMetrics> queryMetrics=null;
+    public SystemGraph withMetrics(final MetricsRegistry metrics) {
+        this.metrics=metrics;
+        if (metrics == null) {
+            this.queryMetrics=null;
         }
         else {
+            final Map<String,QueryMetrics> queryMetrics=new HashMap<String,QueryMetrics>();
+            for(final String kind : QUERY_KINDS) {
+                queryMetrics.put(kind, new QueryMetrics(metrics, kind));
+            }
+            this.queryMetrics=queryMetrics;
+        }
+        return this;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // when set, weight the edges by the median scheduled travel time between their stops, so that
+    // path queries find the fastest path instead of the fewest stops, see Timetable.medianTravelTimes
+    private Timetable timetable=null;
+    public SystemGraph withTravelTimes(final Timetable timetable) {
+        this.timetable=timetable;
+        return this;
+    }
+
+    // when set, load the schedules for the service day after the graph is built, and weight the edges by travel time
+    private LocalDate scheduleDate=null;
+    public SystemGraph withScheduleDate(final LocalDate scheduleDate) {
+        this.scheduleDate=scheduleDate;
+        return this;
+    }
+
+    // the cost of changing routes, in seconds, for the travel time weighted path queries
+    private int transferSeconds=DEFAULT_TRANSFER_SECONDS;
+    public SystemGraph withTransferSeconds(final int transferSeconds) {
+        this.transferSeconds=transferSeconds;
+        return this;
+    }
+
+    /**
+     * Create a new, not yet built, SystemGraph with the same options as this one.
+     */
+    protected SystemGraph newInstance() {
+        return new SystemGraph()
+            .withClient(client)
+            .withAsyncClient(asyncClient)
+            .withMaxConcurrency(maxConcurrency)
+            .withBulkLoad(bulkLoad)
+            .withRetainJson(retainJson)
+            .withAllPairs(allPairs)
+            .withPathTreeCache(maxCachedOrigins)
+            .withTransferPenalty(transferPenalty)
+            .withBatchPool(batchPool)
+            .withContractionHierarchy(withContractionHierarchy)
+            .withTravelTimes(timetable)
+            .withScheduleDate(scheduleDate)
+            .withTransferSeconds(transferSeconds)
+            .withMetrics(metrics);
+    }
+
+    private static void addStop(final State state, final Route route, final Stop stop) {
+        Stop existing = state.stops.get(stop.getId());
+        if (existing == null) {
+            existing=stop;
+            state.stops.put(stop.getId(), stop);
+            state.nameToStop.put(stop.getName(), stop);
+        }
+        // the instances kept by refresh are already on the route, and are not modified
+        if (!existing.getRoutes().contains(route)) {
             existing.addRoute(route);
         }
     }
 
-    private void addConnection(final Route from, final Route to, final Stop at) {
+    private static void addConnection(final State state, final Route from, final Route to, final Stop at) {
         if (from.equals(to)) {
             return;
         }
-        routeConnections.put(from, to);
-        routeConnections.put(to, from);
+        state.routeConnections.put(from, to);
+        state.routeConnections.put(to, from);
     }
 
     /**
      * Initialize a local data structure (SystemGraph) by making API calls to the MBTA service.
      */
     public SystemGraph build() {
+        final long start=System.nanoTime();
+        build(loadRoutes());
+        MbtaClient.recordPhase(metrics, "build.total", start);
+        return this;
+    }
+
+    /**
+     * Load the routes, with their stops, from the MBTA service.
+     * @throws IllegalStateException when the routes could not be loaded
+     */
+    protected SortedSet<Route> loadRoutes() {
         final boolean withStops=true;
         final boolean withConnections=true;
-        this.routes=MbtaClient.initRoutes(client, withStops, withConnections);
+        if (asyncClient != null && !bulkLoad) {
+            try {
+                return MbtaClient.initRoutesAsync(asyncClient, withStops, withConnections, retainJson).join();
+            }
+            catch (CompletionException e) {
+                throw new IllegalStateException("Error loading routes", e.getCause());
+            }
+        }
+        try {
+            if (bulkLoad) {
+                return MbtaClient.initRoutesBulk(client, withConnections, retainJson);
+            }
+            return MbtaClient.initRoutes(client, withStops, withConnections, maxConcurrency, retainJson);
+        }
+        catch (RestClientException e) {
+            throw new IllegalStateException("Error loading routes", e);
+        }
+    }
+
+    /**
+     * Initialize the SystemGraph from routes, with their stops, which were already loaded.
+     */
+    public SystemGraph build(final Collection<Route> routes) {
+        final SortedSet<Route> sorted=Sets.newTreeSet(Route.nameComparator);
+        sorted.addAll(routes);
+        final long start=System.nanoTime();
+        final CompactGraph graph=initGraph(sorted);
+        MbtaClient.recordPhase(metrics, "build.graph", start);
+        return init(sorted, graph);
+    }
 
-        // init route graph
-        this.graph =
-            new DefaultDirectedGraph<Stop, RouteEdge>(RouteEdge.class); 
+    /**
+     * Create the graph of stops, with an edge in each direction between consecutive stops on the same route.
+     */
+    protected static CompactGraph initGraph(final Collection<Route> routes) {
+        final CompactGraph.Builder builder=new CompactGraph.Builder();
         for(final Route route : routes) {
-            // init route lookup
-            this.routesById.put(route.getId(), route);
-            this.routesByName.put(route.getLongName(), route);
+            builder.addRoute(route);
             Stop from=null;
             for(final Stop to : route.getStops()) {
-                graph.addVertex(to);
+                builder.addStop(to);
                 if (from != null) {
-                    graph.addEdge(from, to, new RouteEdge(route));
-                    graph.addEdge(to, from, new RouteEdge(route));
-                }
-                else {
-                    from=to;
+                    builder.addEdge(from, to, route);
+                    builder.addEdge(to, from, route);
                 }
+                from=to;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Initialize the lookup tables from the routes and the graph of stops.
+     */
+    protected SystemGraph init(final SortedSet<Route> routes, final CompactGraph graph) {
+        return init(routes, graph, null);
+    }
+
+    /**
+     * Initialize the lookup tables from the routes and the graph of stops,
+     * with a contraction hierarchy index which was already built for the graph, e.g. loaded with a snapshot.
+     * The index is not used unless {@link #withContractionHierarchy(boolean)} is set,
+     * and it was built for the same edge weights and transfer penalty, see {@link ContractionHierarchy#isFor(int[], int)}.
+     */
+    protected SystemGraph init(final SortedSet<Route> routes, final CompactGraph graph, final ContractionHierarchy index) {
+        final State next=initTables(routes, graph);
+        next.edgeWeights=initEdgeWeights(next);
+        if (index != null && withContractionHierarchy) {
+            if (index.isFor(next.edgeWeights, next.edgeWeights == null ? 0 : transferSeconds)) {
+                next.contractionHierarchy=index;
             }
+            else {
+                log.info("Ignoring contraction hierarchy index, it was built for different edge weights");
+            }
+        }
+        initIndexes(next);
+        this.state=next;
+        if (pathTreeCache != null) {
+            // rebuilt, the cached trees are for the old graph
+            pathTreeCache.invalidate(graph);
+        }
+        else if (maxCachedOrigins > 0) {
+            pathTreeCache=new PathTreeCache(graph, maxCachedOrigins);
+        }
+        return this;
+    }
+
+    /**
+     * Compute the optional indexes which are enabled, and not already set, before the State is published.
+     */
+    private void initIndexes(final State next) {
+        if (allPairs && next.edgeWeights == null && next.allPairsPaths == null) {
+            final long start=System.nanoTime();
+            next.allPairsPaths=AllPairsPaths.compute(next.graph);
+            MbtaClient.recordPhase(metrics, "build.all_pairs", start);
+        }
+        if (withContractionHierarchy && next.contractionHierarchy == null) {
+            final long start=System.nanoTime();
+            next.contractionHierarchy=buildContractionHierarchy(next.graph, next.edgeWeights);
+            MbtaClient.recordPhase(metrics, "build.contraction_hierarchy", start);
+        }
+    }
+
+    /**
+     * Create the lookup tables, route connections and the route-level router,
+     * but not the optional path indexes.
+     */
+    private State initTables(final SortedSet<Route> routes, final CompactGraph graph) {
+        final long start=System.nanoTime();
+        final State next=new State();
+        next.routes=routes;
+        next.graph=graph;
+        for(final Route route : routes) {
+            // init route lookup
+            next.routesById.put(route.getId(), route);
+            next.routesByName.put(route.getLongName(), route);
         }
 
         // record longest and shortest routes
@@ -117,59 +430,372 @@ public class SystemGraph {
                 max=numStops;
             }
         }
-        longestRoutes=Sets.newHashSet();
-        shortestRoutes=Sets.newHashSet();
+        next.longestRoutes=Sets.newHashSet();
+        next.shortestRoutes=Sets.newHashSet();
         for(final Route route : routes) {
             int numStops=route.getStops().size();
             if (numStops == min) {
-                shortestRoutes.add(route);
+                next.shortestRoutes.add(route);
             }
             if (numStops == max) {
-                longestRoutes.add(route);
+                next.longestRoutes.add(route);
             }
         }
         
         // record route connections
         for(final Route route : routes) {
             for(final Stop stop : route.getStops()) {
-                addStop(route, stop);
+                addStop(next, route, stop);
             }
         }
 
-        for(final Stop stop : stops.values()) {
-            final Route first=stop.getRoutes().first();
-            for(final Route route : stop.getRoutes()) {
-                addConnection(first, route, stop);
+        // every pair of routes which share a stop
+        for(final Stop stop : next.stops.values()) {
+            for(final Route from : stop.getRoutes()) {
+                for(final Route to : stop.getRoutes().tailSet(from)) {
+                    addConnection(next, from, to, stop);
+                }
             }
         }
 
-        return this;
+        next.transferRouter=new TransferRouter(routes).withTransferPenalty(transferPenalty);
+        MbtaClient.recordPhase(metrics, "build.connections", start);
+        return next;
+    }
+
+    /**
+     * Weight the edges by the median scheduled travel time between their stops, when there is a timetable,
+     * loading it first when a schedule date is set. An edge which no scheduled trip runs along gets the time
+     * of the edge in the other direction, or else the median of all of the scheduled edges.
+     * @return the weights, or null when there is no timetable
+     */
+    private int[] initEdgeWeights(final State next) {
+        final CompactGraph graph=next.graph;
+        if (scheduleDate != null && client != null && (timetable == null || !scheduleDate.equals(timetable.getServiceDate()))) {
+            try {
+                // read for the stops and routes of the new graph, which is not published yet
+                final SystemGraph staged=newInstance();
+                staged.state=next;
+                timetable=MbtaClient.readTimetable(client, staged, scheduleDate);
+            }
+            catch (RestClientException e) {
+                log.error("Error loading schedules, the edges are not weighted by travel time", e);
+            }
+        }
+        if (timetable == null) {
+            return null;
+        }
+        final long start=System.nanoTime();
+        final int[] medians=timetable.medianTravelTimes(graph);
+        final int[] scheduled=new int[medians.length];
+        int numScheduled=0;
+        for(final int seconds : medians) {
+            if (seconds >= 0) {
+                scheduled[numScheduled++]=seconds;
+            }
+        }
+        Arrays.sort(scheduled, 0, numScheduled);
+        final int fallback=numScheduled == 0 ? DEFAULT_EDGE_SECONDS : scheduled[numScheduled/2];
+        final int[] weights=Arrays.copyOf(medians, medians.length);
+        for(int e=0; e<weights.length; ++e) {
+            if (medians[e] >= 0) {
+                continue;
+            }
+            final int source=graph.getSource(e);
+            final int target=graph.getTarget(e);
+            weights[e]=fallback;
+            for(int reverse=graph.firstEdge(target); reverse<graph.endEdge(target); ++reverse) {
+                if (graph.getTarget(reverse) == source && medians[reverse] >= 0) {
+                    weights[e]=medians[reverse];
+                }
+            }
+        }
+        MbtaClient.recordPhase(metrics, "build.travel_times", start);
+        return weights;
+    }
+
+    /**
+     * Build the contraction hierarchy for the fewest stops, or for the travel times when there is no transfer penalty,
+     * the index has no way to charge for changing routes. Otherwise there is no index.
+     */
+    private ContractionHierarchy buildContractionHierarchy(final CompactGraph graph, final int[] edgeWeights) {
+        if (edgeWeights == null) {
+            return ContractionHierarchy.build(graph);
+        }
+        return transferSeconds == 0 ? ContractionHierarchy.build(graph, edgeWeights) : null;
+    }
+
+    /**
+     * Load the routes again from the MBTA service, and apply the changes, see {@link #refresh(Collection)}.
+     */
+    public GraphDiff refresh() {
+        return refresh(loadRoutes());
+    }
+
+    /**
+     * Apply the changes from newly loaded routes, with their stops, instead of building the graph again.
+     *
+     * When nothing changed this is a no-op, the graph, the indexes and the cached paths are kept.
+     * Otherwise the new graph and its lookup tables are prepared on the side and published with a single write,
+     * so path queries can run at the same time, and see either the old or the new graph. The published Route and
+     * Stop instances are never modified: an instance is kept when nothing about it changed, including the stops
+     * of a route and the routes of a stop, and everything else is a new instance, see {@link #mergeRoutes(State, Collection)}.
+     * The all-pairs table and the contraction hierarchy are kept when the graph has the same stops and edges,
+     * e.g. when only names changed, and the same edge weights, and recomputed otherwise. The cached shortest path
+     * trees which are not affected by the changed edges are kept, see {@link PathTreeCache#retain(CompactGraph, Set, Set)}.
+     *
+     * Like {@link #build()}, this must not run at the same time as another build or refresh.
+     *
+     * @return the changes which were applied
+     */
+    public GraphDiff refresh(final Collection<Route> fresh) {
+        final long start=System.nanoTime();
+        final State old=state;
+        final GraphDiff diff=GraphDiff.compute(old.routes, fresh);
+        if (diff.isEmpty()) {
+            MbtaClient.recordPhase(metrics, "build.refresh", start);
+            return diff;
+        }
+
+        final SortedSet<Route> merged=mergeRoutes(old, fresh);
+        final CompactGraph oldGraph=old.graph;
+        final CompactGraph newGraph=initGraph(merged);
+        final State next=initTables(merged, newGraph);
+        next.edgeWeights=initEdgeWeights(next);
+        if (GraphDiff.sameLayout(oldGraph, newGraph)) {
+            // the same stop and edge indices, the indexes are still valid for the same weights
+            if (next.edgeWeights == null) {
+                next.allPairsPaths=old.allPairsPaths;
+            }
+            final ContractionHierarchy index=old.contractionHierarchy;
+            if (index != null && index.isFor(next.edgeWeights, next.edgeWeights == null ? 0 : transferSeconds)) {
+                next.contractionHierarchy=index;
+            }
+        }
+        initIndexes(next);
+        this.state=next;
+        if (pathTreeCache != null) {
+            final Set<GraphDiff.Edge> oldEdges=GraphDiff.edges(oldGraph);
+            final Set<GraphDiff.Edge> newEdges=GraphDiff.edges(newGraph);
+            pathTreeCache.retain(newGraph, Sets.difference(oldEdges, newEdges), Sets.difference(newEdges, oldEdges));
+        }
+        MbtaClient.recordPhase(metrics, "build.refresh", start);
+        return diff;
+    }
+
+    /**
+     * The refreshed routes, with their stops, without modifying the published instances.
+     * An old Route is kept when it has the same attributes and the same stops, and an old Stop when it has the same
+     * attributes and is on the same routes, as long as all of the stops of a kept route, and all of the routes of
+     * a kept stop, are kept too. The other routes and stops are new instances, copied from the fresh ones.
+     */
+    private static SortedSet<Route> mergeRoutes(final State old, final Collection<Route> fresh) {
+        // stop id -> the ids of the fresh routes along it
+        final Map<String,Set<String>> freshRouteIds=Maps.newHashMap();
+        final Map<String,Stop> freshStops=Maps.newHashMap();
+        for(final Route route : fresh) {
+            for(final Stop stop : route.getStops()) {
+                Set<String> routeIds=freshRouteIds.get(stop.getId());
+                if (routeIds == null) {
+                    routeIds=Sets.newHashSet();
+                    freshRouteIds.put(stop.getId(), routeIds);
+                    freshStops.put(stop.getId(), stop);
+                }
+                routeIds.add(route.getId());
+            }
+        }
+
+        final Set<String> keptRoutes=Sets.newHashSet();
+        for(final Route route : fresh) {
+            final Route existing=old.routesById.get(route.getId());
+            if (existing != null && GraphDiff.sameAttributes(existing, route) && sameIds(existing.getStops(), route.getStops())) {
+                keptRoutes.add(route.getId());
+            }
+        }
+        final Set<String> keptStops=Sets.newHashSet();
+        for(final Stop stop : freshStops.values()) {
+            final Stop existing=old.stops.get(stop.getId());
+            if (existing != null && GraphDiff.sameAttributes(existing, stop) && routeIds(existing).equals(freshRouteIds.get(stop.getId()))) {
+                keptStops.add(stop.getId());
+            }
+        }
+        // a route with a new stop instance needs a new instance, and so does a stop on a new route
+        boolean changed=true;
+        while (changed) {
+            changed=false;
+            for(final Iterator<String> it=keptRoutes.iterator(); it.hasNext(); ) {
+                final Route route=old.routesById.get(it.next());
+                for(final Stop stop : route.getStops()) {
+                    if (!keptStops.contains(stop.getId())) {
+                        it.remove();
+                        changed=true;
+                        break;
+                    }
+                }
+            }
+            for(final Iterator<String> it=keptStops.iterator(); it.hasNext(); ) {
+                final Stop stop=old.stops.get(it.next());
+                for(final Route route : stop.getRoutes()) {
+                    if (!keptRoutes.contains(route.getId())) {
+                        it.remove();
+                        changed=true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // the stops of the new routes are all new instances, a kept stop is only on kept routes
+        final Map<String,Stop> newStops=Maps.newHashMap();
+        final SortedSet<Route> merged=Sets.newTreeSet(Route.nameComparator);
+        for(final Route route : fresh) {
+            if (keptRoutes.contains(route.getId())) {
+                merged.add(old.routesById.get(route.getId()));
+                continue;
+            }
+            final Route copy=new Route(route);
+            for(final Stop stop : route.getStops()) {
+                Stop newStop=newStops.get(stop.getId());
+                if (newStop == null) {
+                    newStop=new Stop(stop);
+                    newStops.put(stop.getId(), newStop);
+                }
+                copy.addStop(newStop);
+                newStop.addRoute(copy);
+            }
+            merged.add(copy);
+        }
+        return merged;
+    }
+
+    private static boolean sameIds(final List<Stop> a, final List<Stop> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for(int i=0; i<a.size(); ++i) {
+            if (!a.get(i).getId().equals(b.get(i).getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> routeIds(final Stop stop) {
+        final Set<String> routeIds=Sets.newHashSet();
+        for(final Route route : stop.getRoutes()) {
+            routeIds.add(route.getId());
+        }
+        return routeIds;
     }
     
+    /**
+     * get the graph of stops, used for all path queries
+     */
+    protected CompactGraph getCompactGraph() {
+        return state.graph;
+    }
+
+    /**
+     * Compute the shortest paths between all pairs of stops, 
+     * path queries are table lookups from then on.
+     * @throws IllegalStateException when the edges are weighted by travel time, the table has the paths
+     *     with the fewest stops, not the fastest paths
+     */
+    public void precomputeAllPairs() {
+        final long start=System.nanoTime();
+        final State current=state;
+        if (current.edgeWeights != null) {
+            throw new IllegalStateException("Can't precompute the fewest stops paths, the edges are weighted by travel time");
+        }
+        this.state=current.withAllPairsPaths(AllPairsPaths.compute(current.graph));
+        MbtaClient.recordPhase(metrics, "build.all_pairs", start);
+    }
+
+    /**
+     * get the precomputed all-pairs paths, or null if they were not computed
+     */
+    protected AllPairsPaths getAllPairsPaths() {
+        return state.allPairsPaths;
+    }
+
+    /**
+     * get the contraction hierarchy index, or null if it is not enabled
+     */
+    public ContractionHierarchy getContractionHierarchy() {
+        return state.contractionHierarchy;
+    }
+
+    /**
+     * get the cache of shortest path trees, or null if it is not enabled
+     */
+    public PathTreeCache getPathTreeCache() {
+        return pathTreeCache;
+    }
+
+    /**
+     * get the scheduled trips, or null if the edges are not weighted by travel time
+     */
+    public Timetable getTimetable() {
+        return timetable;
+    }
+
+    /**
+     * get the travel time of each edge in seconds, by edge index, or null if the edges are not weighted
+     */
+    protected int[] getEdgeWeights() {
+        return state.edgeWeights;
+    }
+
+    public int getTransferSeconds() {
+        return transferSeconds;
+    }
+
+    /**
+     * get the jgrapht view of the graph of stops
+     */
+    protected Graph<Stop, RouteEdge> getGraph() {
+        return state.graph.asGraph();
+    }
+
     /**
      * get the total number of stops in the system
      */
     public int getNumStops() {
-        return graph.vertexSet().size();
+        return state.graph.getNumStops();
     }
     
     /**
      * get all of the routes in the system
      */
     public ImmutableSet<Route> getRoutes() {
-        return ImmutableSet.copyOf(routes);
+        return ImmutableSet.copyOf(state.routes);
     }
     
     /**
      * get all of the stops in the system
      */
     public ImmutableSet<Stop> getStops() {
-        return ImmutableSet.copyOf(graph.vertexSet());
+        return ImmutableSet.copyOf(state.graph.stops());
     }
 
     /** get the Stop by name, or null if no matching stop is found */
     public Stop stop(final String name) {
-        return nameToStop.get(name);
+        return state.nameToStop.get(name);
+    }
+
+    /** get the Stop by id, e.g. 'place-pktrm', or null if no matching stop is found */
+    public Stop stopById(final String id) {
+        return state.stops.get(id);
+    }
+
+    /** get the Route by id, e.g. 'Red', or null if no matching route is found */
+    public Route routeById(final String id) {
+        return state.routesById.get(id);
+    }
+
+    /** get the Route by long name, e.g. 'Red Line', or null if no matching route is found */
+    public Route routeByName(final String name) {
+        return state.routesByName.get(name);
     }
 
     /**
@@ -187,14 +813,14 @@ public class SystemGraph {
      * which rail route(s) has the most stops?
      */
     public ImmutableSet<Route> getLongestRoutes() {
-        return ImmutableSet.copyOf(longestRoutes);
+        return ImmutableSet.copyOf(state.longestRoutes);
     }
     
     /**
      * which rail route(s) has the fewest stops?
      */
     public ImmutableSet<Route> getShortestRoutes() {
-        return ImmutableSet.copyOf(shortestRoutes);
+        return ImmutableSet.copyOf(state.shortestRoutes);
     }
 
     /**
@@ -203,14 +829,259 @@ public class SystemGraph {
      *   route -> list of connected routes
      */
     public Map<Route,Collection<Route>> getRouteConnections() {
-        return routeConnections.asMap();
+        return state.routeConnections.asMap();
+    }
+
+    /**
+     * Get the shortest path as the edge indices in the compact graph, 
+     * or null if there is no path.
+     * When the edges are weighted by travel time, this is the fastest path, with the transfer penalty.
+     */
+    protected int[] getPath(final Stop from, final Stop to) {
+        final State s=state;
+        return getPath(s, indexOf(s, from), indexOf(s, to));
+    }
+
+    // the path on one published state, so that the indices, the graph and the indexes all agree
+    private int[] getPath(final State s, final int fromIdx, final int toIdx) {
+        final Map<String,QueryMetrics> queryMetrics=this.queryMetrics;
+        final long start=queryMetrics == null ? 0 : System.nanoTime();
+        if (s.allPairsPaths != null) {
+            return recordQuery(queryMetrics, s, QUERY_ALL_PAIRS, start, s.allPairsPaths.path(fromIdx, toIdx));
+        }
+        if (s.contractionHierarchy != null) {
+            return recordQuery(queryMetrics, s, QUERY_CONTRACTION_HIERARCHY, start, s.contractionHierarchy.shortestPath(fromIdx, toIdx));
+        }
+        if (s.edgeWeights != null) {
+            return recordQuery(queryMetrics, s, QUERY_TRAVEL_TIME, start, s.graph.shortestPath(fromIdx, toIdx, s.edgeWeights, transferSeconds));
+        }
+        final PathTreeCache cache=pathTreeCache;
+        if (cache != null) {
+            return recordQuery(queryMetrics, s, QUERY_PATH_TREE_CACHE, start, cache.path(s.graph, fromIdx, toIdx));
+        }
+        return recordQuery(queryMetrics, s, searchModeKinds.get(SearchMode.BREADTH_FIRST), start, s.graph.shortestPath(fromIdx, toIdx));
+    }
+
+    /**
+     * Get the shortest path with the given search algorithm, see {@link SearchMode}.
+     * BREADTH_FIRST uses the all-pairs table or the path tree cache when they are enabled.
+     * All modes find the fewest stops, also when the edges are weighted by travel time.
+     */
+    protected int[] getPath(final Stop from, final Stop to, final SearchMode mode) {
+        return getPath(state, from, to, mode);
+    }
+
+    private int[] getPath(final State s, final Stop from, final Stop to, final SearchMode mode) {
+        final int fromIdx=indexOf(s, from);
+        final int toIdx=indexOf(s, to);
+        if (mode == SearchMode.BREADTH_FIRST && s.edgeWeights == null) {
+            return getPath(s, fromIdx, toIdx);
+        }
+        final Map<String,QueryMetrics> queryMetrics=this.queryMetrics;
+        final long start=queryMetrics == null ? 0 : System.nanoTime();
+        return recordQuery(queryMetrics, s, searchModeKinds.get(mode), start, s.graph.shortestPath(fromIdx, toIdx, mode));
+    }
+
+    /**
+     * The kinds of path queries, in the metric names, e.g. 'query.latency:contraction_hierarchy'.
+     * Queries without an index are named for the SearchMode, e.g. 'query.latency:bidirectional'.
+     */
+    protected static final String QUERY_ALL_PAIRS="all_pairs";
+    protected static final String QUERY_CONTRACTION_HIERARCHY="contraction_hierarchy";
+    protected static final String QUERY_PATH_TREE_CACHE="path_tree_cache";
+    protected static final String QUERY_BATCH="batch";
+    protected static final String QUERY_ITINERARY="itinerary";
+    protected static final String QUERY_TRAVEL_TIME="travel_time";
+    private static final Map<SearchMode,String> searchModeKinds=new EnumMap<SearchMode,String>(SearchMode.class);
+    private static final List<String> QUERY_KINDS=new ArrayList<String>();
+    static {
+        for(final SearchMode mode : SearchMode.values()) {
+            searchModeKinds.put(mode, mode.name().toLowerCase());
+            QUERY_KINDS.add(mode.name().toLowerCase());
+        }
+        QUERY_KINDS.add(QUERY_ALL_PAIRS);
+        QUERY_KINDS.add(QUERY_CONTRACTION_HIERARCHY);
+        QUERY_KINDS.add(QUERY_PATH_TREE_CACHE);
+        QUERY_KINDS.add(QUERY_BATCH);
+        QUERY_KINDS.add(QUERY_ITINERARY);
+        QUERY_KINDS.add(QUERY_TRAVEL_TIME);
+    }
+
+    /**
+     * The metrics for one kind of query:
+     <pre>
+         query.latency:{kind}    timer
+         query.visited:{kind}    distribution, the stops visited by the search, for the searches which report it
+         query.no_path:{kind}    counter, the queries with no path
+     </pre>
+     */
+    private static class QueryMetrics {
+        final Timer latency;
+        final Distribution visited;
+        final Counter noPath;
+
+        QueryMetrics(final MetricsRegistry registry, final String kind) {
+            this.latency=registry.timer("query.latency:"+kind);
+            this.visited=registry.distribution("query.visited:"+kind);
+            this.noPath=registry.counter("query.no_path:"+kind);
+        }
+    }
+
+    /**
+     * Record the latency of a path query, when metrics are enabled, and the number of stops the search
+     * visited on the calling thread. The all-pairs table and the path tree cache are lookups, which don't visit stops.
+     */
+    private int[] recordQuery(final Map<String,QueryMetrics> queryMetrics, final State s, final String kind, final long startNanos, final int[] path) {
+        if (queryMetrics == null) {
+            return path;
+        }
+        final QueryMetrics metrics=queryMetrics.get(kind);
+        metrics.latency.stop(startNanos);
+        if (QUERY_CONTRACTION_HIERARCHY.equals(kind)) {
+            metrics.visited.record(s.contractionHierarchy.getNumSettled());
+        }
+        else if (!QUERY_ALL_PAIRS.equals(kind) && !QUERY_PATH_TREE_CACHE.equals(kind)) {
+            metrics.visited.record(s.graph.getNumVisited());
+        }
+        if (path == null) {
+            metrics.noPath.increment();
+        }
+        return path;
+    }
+
+    /**
+     * Get the shortest paths for many origin/destination pairs, in the iteration order of the pairs.
+     * The pairs are grouped by origin, so that each distinct origin is searched once, 
+     * and the groups run in parallel on the batch pool.
+     * When the edges are weighted by travel time, each pair is a separate search for the fastest path.
+     * 
+     * @return the edge indices of each path, or null for pairs with no path
+     */
+    protected int[][] getPaths(final Collection<StopPair> pairs) {
+        return getPaths(state, pairs);
+    }
+
+    private int[][] getPaths(final State s, final Collection<StopPair> pairs) {
+        final long start=System.nanoTime();
+        final CompactGraph graph=s.graph;
+        final AllPairsPaths table=s.allPairsPaths;
+        final PathTreeCache cache=pathTreeCache;
+        final int[] weights=s.edgeWeights;
+        final int transferSeconds=this.transferSeconds;
+        final int[] from=new int[pairs.size()];
+        final int[] to=new int[pairs.size()];
+        // origin -> positions of the pairs from that origin, in input order
+        final Map<Integer,List<Integer>> byOrigin=new LinkedHashMap<Integer,List<Integer>>();
+        int i=0;
+        for(final StopPair pair : pairs) {
+            from[i]=indexOf(s, pair.getFrom());
+            to[i]=indexOf(s, pair.getTo());
+            List<Integer> positions=byOrigin.get(from[i]);
+            if (positions == null) {
+                positions=new ArrayList<Integer>();
+                byOrigin.put(from[i], positions);
+            }
+            positions.add(i);
+            ++i;
+        }
+
+        final int[][] paths=new int[from.length][];
+        final List<Callable<Void>> tasks=new ArrayList<Callable<Void>>(byOrigin.size());
+        for(final Entry<Integer,List<Integer>> entry : byOrigin.entrySet()) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    final int origin=entry.getKey();
+                    if (table != null) {
+                        for(final int i : entry.getValue()) {
+                            paths[i]=table.path(origin, to[i]);
+                        }
+                        return null;
+                    }
+                    if (weights != null) {
+                        for(final int i : entry.getValue()) {
+                            paths[i]=graph.shortestPath(origin, to[i], weights, transferSeconds);
+                        }
+                        return null;
+                    }
+                    final int[] tree=cache != null ? cache.getTree(graph, origin) : graph.shortestPathTree(origin);
+                    for(final int i : entry.getValue()) {
+                        paths[i]=graph.pathFromTree(tree, origin, to[i]);
+                    }
+                    return null;
+                }
+            });
+        }
+        // invokeAll waits for all of the tasks, and establishes happens-before for the writes to 'paths'
+        for(final Future<Void> future : batchPool.invokeAll(tasks)) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted computing batch paths", e);
+            }
+            catch (ExecutionException e) {
+                throw new IllegalStateException("Error computing batch paths", e.getCause());
+            }
+        }
+        final Map<String,QueryMetrics> queryMetrics=this.queryMetrics;
+        if (queryMetrics != null) {
+            final QueryMetrics batch=queryMetrics.get(QUERY_BATCH);
+            batch.latency.stop(start);
+            // for a batch, the number of distinct origins searched
+            batch.visited.record(byOrigin.size());
+        }
+        return paths;
+    }
+
+    /**
+     * Given many origin/destination pairs, list the stops you would travel for each pair,
+     * in the iteration order of the pairs, with a null entry for pairs with no path.
+     * See {@link #getPaths(Collection)}.
+     */
+    public List<List<Stop>> listStopsFrom(final Collection<StopPair> pairs) {
+        final State s=state;
+        final int[][] paths=getPaths(s, pairs);
+        final List<List<Stop>> results=new ArrayList<List<Stop>>(paths.length);
+        int i=0;
+        for(final StopPair pair : pairs) {
+            results.add(paths[i] == null ? null : s.graph.pathStops(indexOf(s, pair.getFrom()), paths[i]));
+            ++i;
+        }
+        return results;
+    }
+
+    /**
+     * Given many origin/destination pairs, list the rail routes you would travel for each pair,
+     * in the iteration order of the pairs, with a null entry for pairs with no path.
+     * See {@link #getPaths(Collection)}.
+     */
+    public List<List<Route>> listRoutesFrom(final Collection<StopPair> pairs) {
+        final State s=state;
+        final int[][] paths=getPaths(s, pairs);
+        final List<List<Route>> results=new ArrayList<List<Route>>(paths.length);
+        for(final int[] path : paths) {
+            results.add(path == null ? null : s.graph.pathRoutes(path));
+        }
+        return results;
+    }
+
+    private static int indexOf(final State s, final Stop stop) {
+        final int idx=s.graph.indexOf(stop);
+        if (idx < 0) {
+            throw new IllegalArgumentException("stop not found: "+stop);
+        }
+        return idx;
     }
 
+    /**
+     * Get the shortest path as a jgrapht GraphPath, or null if there is no path.
+     */
     protected GraphPath<Stop, RouteEdge> getGraphPath(final Stop from, final Stop to) {
-        DijkstraShortestPath<Stop, RouteEdge> dijkstraAlg =
-            new DijkstraShortestPath<Stop, RouteEdge>(graph);
-        SingleSourcePaths<Stop, RouteEdge> iPaths = dijkstraAlg.getPaths(from);
-        return iPaths.getPath(to);
+        final State s=state;
+        final int fromIdx=indexOf(s, from);
+        final int toIdx=indexOf(s, to);
+        return s.graph.asGraphPath(fromIdx, toIdx, getPath(s, fromIdx, toIdx));
     }
 
     /**
@@ -219,8 +1090,7 @@ public class SystemGraph {
      * Computed as the shortest path from point a to point b.
      */    
     public List<Stop> listStopsFrom(final String fromStation, final String toStation) {
-        GraphPath<Stop, RouteEdge> path=getGraphPath(stop(fromStation), stop(toStation));
-        return path.getVertexList();
+        return listStopsFrom(stop(fromStation), stop(toStation));
     }
 
     /**
@@ -229,10 +1099,28 @@ public class SystemGraph {
      * Computed as the shortest path from point a to point b.
      */    
     public List<Stop> listStopsFrom(final Stop from, final Stop to) {
-        GraphPath<Stop, RouteEdge> path=getGraphPath(from, to);
-        return path.getVertexList();
+        final State s=state;
+        final int fromIdx=indexOf(s, from);
+        final int[] path=getPath(s, fromIdx, indexOf(s, to));
+        if (path == null) {
+            return null;
+        }
+        return s.graph.pathStops(fromIdx, path);
     }
     
+    /**
+     * Given any two stops, list the stops you would travel to get from one to the other,
+     * with the given search algorithm. Returns null if there is no path between the stops.
+     */
+    public List<Stop> listStopsFrom(final Stop from, final Stop to, final SearchMode mode) {
+        final State s=state;
+        final int[] path=getPath(s, from, to, mode);
+        if (path == null) {
+            return null;
+        }
+        return s.graph.pathStops(indexOf(s, from), path);
+    }
+
     /**
      * Given any two stations, 
      * list the rail routes you would travel to get from one to the other.
@@ -247,21 +1135,75 @@ public class SystemGraph {
     /**
      * Given any two stops, 
      * list the rail routes you would travel to get from one to the other.
+     * Returns null if there is no path between the stops.
      */
     public List<Route> listRoutesFrom(final Stop from, final Stop to) {
-        final GraphPath<Stop, RouteEdge> path=getGraphPath(from, to);
-        final List<Route> routes=Lists.newArrayList();
-        Route prev=null;
-        for(RouteEdge edge : path.getEdgeList()) {
-            Route next=edge.getRoute();
-            if (prev != next) {
-                routes.add(next);
-            }
-            prev=next;                
+        final State s=state;
+        final int[] path=getPath(s, indexOf(s, from), indexOf(s, to));
+        if (path == null) {
+            return null;
         }
-        return routes;
+        return s.graph.pathRoutes(path);
     }
     
+    /**
+     * Given any two stops, list the rail routes you would travel to get from one to the other,
+     * with the given search algorithm. Returns null if there is no path between the stops.
+     */
+    public List<Route> listRoutesFrom(final Stop from, final Stop to, final SearchMode mode) {
+        final State s=state;
+        final int[] path=getPath(s, from, to, mode);
+        if (path == null) {
+            return null;
+        }
+        return s.graph.pathRoutes(path);
+    }
+
+    /**
+     * Given any two stops, the scheduled travel time in seconds along the path from {@link #listStopsFrom(Stop, Stop)},
+     * including the transfer penalties, or -1 if there is no path or the edges are not weighted by travel time.
+     */
+    public int getTravelSeconds(final Stop from, final Stop to) {
+        final State s=state;
+        final int[] path=getPath(s, indexOf(s, from), indexOf(s, to));
+        if (s.edgeWeights == null || path == null) {
+            return -1;
+        }
+        return s.graph.pathWeight(path, s.edgeWeights, transferSeconds);
+    }
+
+    /**
+     * Given any two stations by name, find the trip with the fewest route changes,
+     * see {@link TransferRouter}.
+     */
+    public TransferRouter.Itinerary findItinerary(final String fromStation, final String toStation) {
+        return findItinerary(stop(fromStation), stop(toStation));
+    }
+
+    /**
+     * Given any two stops, find the trip with the fewest route changes, 
+     * with the routes to take and the stops to change at.
+     * Returns null if there is no trip between the stops.
+     */
+    public TransferRouter.Itinerary findItinerary(final Stop from, final Stop to) {
+        final State s=state;
+        // check that both stops are in the system
+        indexOf(s, from);
+        indexOf(s, to);
+        final Map<String,QueryMetrics> queryMetrics=this.queryMetrics;
+        if (queryMetrics == null) {
+            return s.transferRouter.route(from, to);
+        }
+        final QueryMetrics itinerary=queryMetrics.get(QUERY_ITINERARY);
+        final long start=itinerary.latency.start();
+        final TransferRouter.Itinerary result=s.transferRouter.route(from, to);
+        itinerary.latency.stop(start);
+        if (result == null) {
+            itinerary.noPath.increment();
+        }
+        return result;
+    }
+
     public void printRoutesFrom(final PrintStream out, final String fromStation, final String toStation) {
         Stop from=stop(fromStation);
         Stop to=stop(toStation);
@@ -294,7 +1236,7 @@ public class SystemGraph {
         }
         
         out.println("A: There are {N} connections at {stop} : [{routeIds}]...");
-        for(final Stop stop : stops.values()) {
+        for(final Stop stop : state.stops.values()) {
             final Set<Route> routes=stop.getRoutes();
             if (stop.getRoutes().size()>1) {
                 out.println("    There are "+routes.size()+" connections at stopId="+stop.getId()+", "+stop.getName()+" : "+routes);
@@ -307,8 +1249,9 @@ public class SystemGraph {
      * Print the routes to take to get from A to B.
      */
     public void printAllRoutesFromAllStops(final PrintStream out) { 
-        for(final Stop from : getStops()) {
-            for(final Stop to : getStops()) {
+        final ImmutableSet<Stop> stops=getStops();
+        for(final Stop from : stops) {
+            for(final Stop to : stops) {
                 printRoutesFrom(out, from, to);
             }
         } 
@@ -320,7 +1263,7 @@ public class SystemGraph {
     protected void debugGraph(final PrintStream out) {
         // computes all the strongly connected components of the directed graph
         KosarajuStrongConnectivityInspector<Stop, RouteEdge> kosarajuStrongConnectivityInspector = 
-                new KosarajuStrongConnectivityInspector<Stop, RouteEdge>(graph);
+                new KosarajuStrongConnectivityInspector<Stop, RouteEdge>(getGraph());
         StrongConnectivityAlgorithm<Stop, RouteEdge> scAlg =
             kosarajuStrongConnectivityInspector;
         List<Graph<Stop, RouteEdge>> stronglyConnectedSubgraphs =
@@ -0,0 +1,450 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The scheduled trips of one service day, in flat arrays for the {@link JourneyPlanner}.
+ *
+ * Stops and routes are the int indices of a {@link CompactGraph}. The trips are grouped into
+ * patterns, the trips of a route which stop at the same sequence of stops, and within a pattern
+ * the trips are sorted by departure time with no trip overtaking another, so the earliest trip
+ * which can be boarded at any stop is found with a binary search.
+ *
+ * The stop times of pattern 'p' are stored trip by trip: with 'k' stops, the time of its j'th trip
+ * at position 'i' is at index patternTimeStart[p] + j*k + i of arrivals and departures.
+ * Times are seconds since the start of the service day, and may be past midnight, e.g. 25:10:00.
+ */
+public class Timetable {
+    /** the time zone of the schedules */
+    public static final ZoneId TIME_ZONE=ZoneId.of("America/New_York");
+
+    /** no time, e.g. an unreachable stop */
+    public static final int NO_TIME=Integer.MAX_VALUE;
+
+    private final CompactGraph graph;
+    private final LocalDate serviceDate;
+
+    // pattern 'p' is a trip of route patternRoutes[p] along the stops
+    // patternStops[patternStopStart[p]] to patternStops[patternStopStart[p+1]-1]
+    final int[] patternRoutes;
+    final int[] patternStopStart;
+    final int[] patternStops;
+    // the trips of pattern 'p' are patternTripStart[p] to patternTripStart[p+1]-1, by departure time
+    final int[] patternTripStart;
+    final int[] patternTimeStart;
+    final String[] tripIds;
+    final int[] tripPatterns;
+    final int[] arrivals;
+    final int[] departures;
+
+    // reverse index, the patterns which stop at stop 's' are stopPatterns[stopPatternStart[s]] to
+    // stopPatterns[stopPatternStart[s+1]-1], at the position stopPatternPositions[..] in the pattern
+    final int[] stopPatternStart;
+    final int[] stopPatterns;
+    final int[] stopPatternPositions;
+
+    private Timetable(final CompactGraph graph, final LocalDate serviceDate,
+            final int[] patternRoutes, final int[] patternStopStart, final int[] patternStops,
+            final int[] patternTripStart, final int[] patternTimeStart, final String[] tripIds, final int[] tripPatterns,
+            final int[] arrivals, final int[] departures) {
+        this.graph=graph;
+        this.serviceDate=serviceDate;
+        this.patternRoutes=patternRoutes;
+        this.patternStopStart=patternStopStart;
+        this.patternStops=patternStops;
+        this.patternTripStart=patternTripStart;
+        this.patternTimeStart=patternTimeStart;
+        this.tripIds=tripIds;
+        this.tripPatterns=tripPatterns;
+        this.arrivals=arrivals;
+        this.departures=departures;
+
+        final int numStops=graph.getNumStops();
+        this.stopPatternStart=new int[numStops+1];
+        for(final int s : patternStops) {
+            ++stopPatternStart[s+1];
+        }
+        for(int s=0; s<numStops; ++s) {
+            stopPatternStart[s+1]+=stopPatternStart[s];
+        }
+        this.stopPatterns=new int[patternStops.length];
+        this.stopPatternPositions=new int[patternStops.length];
+        final int[] next=Arrays.copyOf(stopPatternStart, numStops);
+        for(int p=0; p<patternRoutes.length; ++p) {
+            for(int i=patternStopStart[p]; i<patternStopStart[p+1]; ++i) {
+                final int s=patternStops[i];
+                stopPatterns[next[s]]=p;
+                stopPatternPositions[next[s]]=i-patternStopStart[p];
+                ++next[s];
+            }
+        }
+    }
+
+    public CompactGraph getGraph() {
+        return graph;
+    }
+
+    public LocalDate getServiceDate() {
+        return serviceDate;
+    }
+
+    public int getNumPatterns() {
+        return patternRoutes.length;
+    }
+
+    public int getNumTrips() {
+        return tripIds.length;
+    }
+
+    /** the number of stop times, over all trips */
+    public int getNumStopTimes() {
+        return arrivals.length;
+    }
+
+    /** the number of stops on the pattern */
+    int patternSize(final int p) {
+        return patternStopStart[p+1]-patternStopStart[p];
+    }
+
+    /** the index of the time of trip 't' at position 'i' of its pattern */
+    int timeIndex(final int t, final int i) {
+        final int p=tripPatterns[t];
+        return patternTimeStart[p]+(t-patternTripStart[p])*patternSize(p)+i;
+    }
+
+    /** the departure times from the stop, for all patterns, sorted and without duplicates */
+    public int[] departuresFrom(final Stop stop) {
+        final int s=graph.indexOf(stop);
+        if (s < 0) {
+            return new int[0];
+        }
+        int n=0;
+        for(int j=stopPatternStart[s]; j<stopPatternStart[s+1]; ++j) {
+            final int p=stopPatterns[j];
+            n+=patternTripStart[p+1]-patternTripStart[p];
+        }
+        final int[] times=new int[n];
+        n=0;
+        for(int j=stopPatternStart[s]; j<stopPatternStart[s+1]; ++j) {
+            final int p=stopPatterns[j];
+            final int i=stopPatternPositions[j];
+            // no departure from the last stop
+            if (i == patternSize(p)-1) {
+                continue;
+            }
+            for(int t=patternTripStart[p]; t<patternTripStart[p+1]; ++t) {
+                times[n++]=departures[timeIndex(t, i)];
+            }
+        }
+        Arrays.sort(times, 0, n);
+        int m=0;
+        for(int i=0; i<n; ++i) {
+            if (m == 0 || times[i] != times[m-1]) {
+                times[m++]=times[i];
+            }
+        }
+        return Arrays.copyOf(times, m);
+    }
+
+    /**
+     * The median scheduled time between the stops of each edge of a graph, over the trips which stop
+     * at one and then the other. The graph may be another build of the same routes, stops are matched by id.
+     * @return the seconds for each edge, by edge index, or -1 for the edges which no trip runs along
+     */
+    public int[] medianTravelTimes(final CompactGraph into) {
+        final int numEdges=into.getNumEdges();
+        // the index in 'into' of each of our stops
+        final int[] stopMap=new int[graph.getNumStops()];
+        for(int s=0; s<stopMap.length; ++s) {
+            stopMap[s]=into == graph ? s : into.indexOf(graph.getStop(s));
+        }
+        // the segments of each pattern which are edges of the graph, and the number of trips along each edge
+        final int[] segmentEdges=new int[patternStops.length];
+        final int[] counts=new int[numEdges+1];
+        for(int p=0; p<patternRoutes.length; ++p) {
+            final int numTrips=patternTripStart[p+1]-patternTripStart[p];
+            for(int i=patternStopStart[p]; i<patternStopStart[p+1]-1; ++i) {
+                segmentEdges[i]=edgeBetween(into, stopMap[patternStops[i]], stopMap[patternStops[i+1]]);
+                if (segmentEdges[i] >= 0) {
+                    counts[segmentEdges[i]+1]+=numTrips;
+                }
+            }
+        }
+        for(int e=0; e<numEdges; ++e) {
+            counts[e+1]+=counts[e];
+        }
+        // the durations of each edge are durations[counts[e]] to durations[counts[e+1]-1]
+        final int[] durations=new int[counts[numEdges]];
+        final int[] next=Arrays.copyOf(counts, numEdges);
+        for(int p=0; p<patternRoutes.length; ++p) {
+            final int size=patternSize(p);
+            for(int i=0; i<size-1; ++i) {
+                final int e=segmentEdges[patternStopStart[p]+i];
+                if (e < 0) {
+                    continue;
+                }
+                for(int t=patternTripStart[p]; t<patternTripStart[p+1]; ++t) {
+                    final int k=timeIndex(t, i);
+                    durations[next[e]++]=arrivals[k+1]-departures[k];
+                }
+            }
+        }
+        final int[] medians=new int[numEdges];
+        for(int e=0; e<numEdges; ++e) {
+            final int n=counts[e+1]-counts[e];
+            if (n == 0) {
+                medians[e]=-1;
+                continue;
+            }
+            Arrays.sort(durations, counts[e], counts[e+1]);
+            medians[e]=(durations[counts[e]+(n-1)/2]+durations[counts[e]+n/2])/2;
+        }
+        return medians;
+    }
+
+    // the edge from one stop to another, or -1
+    private static int edgeBetween(final CompactGraph graph, final int from, final int to) {
+        if (from < 0 || to < 0) {
+            return -1;
+        }
+        for(int e=graph.firstEdge(from); e<graph.endEdge(from); ++e) {
+            if (graph.getTarget(e) == to) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convert an ISO-8601 timestamp, e.g. '2019-05-01T08:15:00-04:00', to seconds since the start of the
+     * service day. As in GTFS, the day starts at noon minus 12 hours, which is midnight except on the
+     * days the clocks change.
+     */
+    public static int secondsOfServiceDay(final LocalDate serviceDate, final String timestamp) {
+        final OffsetDateTime time=OffsetDateTime.parse(timestamp);
+        final ZonedDateTime start=serviceDate.atTime(12, 0).atZone(TIME_ZONE).minusHours(12);
+        return (int) Duration.between(start, time).getSeconds();
+    }
+
+    /** format seconds since the start of the service day as 'HH:MM:SS', e.g. 25:10:00 */
+    public static String formatTime(final int seconds) {
+        if (seconds == NO_TIME) {
+            return "--:--:--";
+        }
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    public String toString() {
+        return "Timetable "+serviceDate+": "+getNumPatterns()+" patterns, "+getNumTrips()+" trips, "+getNumStopTimes()+" stop times";
+    }
+
+    /**
+     * Add the stop times of each trip, in any order, then build the Timetable.
+     */
+    public static class Builder {
+        private final CompactGraph graph;
+        // trip id -> trip index
+        private final Map<String,Integer> tripIndex=new LinkedHashMap<String,Integer>();
+        private final List<String> tripIds=new ArrayList<String>();
+        private final List<Integer> tripRoutes=new ArrayList<Integer>();
+        // stop times as (trip, stop, stopSequence, arrival, departure), in insertion order
+        private int[] stopTimes=new int[5*64];
+        private int numStopTimes=0;
+
+        public Builder(final CompactGraph graph) {
+            this.graph=graph;
+        }
+
+        /**
+         * Add the time at which a trip stops at a stop. Stops and routes which are not in the graph are ignored.
+         * @param arrival seconds since the start of the service day, or NO_TIME for the first stop of a trip
+         * @param departure seconds since the start of the service day, or NO_TIME for the last stop of a trip
+         */
+        public Builder addStopTime(final String tripId, final Route route, final Stop stop, final int stopSequence, final int arrival, final int departure) {
+            final int s=graph.indexOf(stop);
+            final int r=graph.indexOf(route);
+            if (s < 0 || r < 0 || (arrival == NO_TIME && departure == NO_TIME)) {
+                return this;
+            }
+            Integer t=tripIndex.get(tripId);
+            if (t == null) {
+                t=tripIds.size();
+                tripIndex.put(tripId, t);
+                tripIds.add(tripId);
+                tripRoutes.add(r);
+            }
+            if (5*(numStopTimes+1) > stopTimes.length) {
+                stopTimes=Arrays.copyOf(stopTimes, 2*stopTimes.length);
+            }
+            final int k=5*numStopTimes++;
+            stopTimes[k]=t;
+            stopTimes[k+1]=s;
+            stopTimes[k+2]=stopSequence;
+            stopTimes[k+3]=arrival == NO_TIME ? departure : arrival;
+            stopTimes[k+4]=departure == NO_TIME ? arrival : departure;
+            return this;
+        }
+
+        // one trip, with its stops in order
+        private static class Trip {
+            final int index;
+            final int route;
+            final int[] stops;
+            final int[] arrivals;
+            final int[] departures;
+
+            Trip(final int index, final int route, final int[] stops, final int[] arrivals, final int[] departures) {
+                this.index=index;
+                this.route=route;
+                this.stops=stops;
+                this.arrivals=arrivals;
+                this.departures=departures;
+            }
+
+            // true if this trip never arrives or departs before the other, at any stop
+            boolean follows(final Trip other) {
+                for(int i=0; i<stops.length; ++i) {
+                    if (arrivals[i] < other.arrivals[i] || departures[i] < other.departures[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        private static final Comparator<Trip> departureComparator=new Comparator<Trip>() {
+            public int compare(final Trip o1, final Trip o2) {
+                int c=Integer.compare(o1.departures[0], o2.departures[0]);
+                if (c == 0) {
+                    c=Integer.compare(o1.arrivals[o1.arrivals.length-1], o2.arrivals[o2.arrivals.length-1]);
+                }
+                return c;
+            }
+        };
+
+        /** the stop times of each trip, by stop sequence, consecutive visits to the same stop are merged */
+        private List<Trip> trips() {
+            // sort by (trip, stopSequence)
+            final Integer[] order=new Integer[numStopTimes];
+            for(int i=0; i<numStopTimes; ++i) {
+                order[i]=i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(final Integer o1, final Integer o2) {
+                    final int c=Integer.compare(stopTimes[5*o1], stopTimes[5*o2]);
+                    return c != 0 ? c : Integer.compare(stopTimes[5*o1+2], stopTimes[5*o2+2]);
+                }
+            });
+            final List<Trip> trips=new ArrayList<Trip>();
+            int i=0;
+            while (i < numStopTimes) {
+                final int t=stopTimes[5*order[i]];
+                int end=i;
+                while (end < numStopTimes && stopTimes[5*order[end]] == t) {
+                    ++end;
+                }
+                final int[] stops=new int[end-i];
+                final int[] arr=new int[stops.length];
+                final int[] dep=new int[stops.length];
+                int n=0;
+                for(; i<end; ++i) {
+                    final int k=5*order[i];
+                    if (n > 0 && stops[n-1] == stopTimes[k+1]) {
+                        // e.g. two platforms of the same station
+                        dep[n-1]=Math.max(dep[n-1], stopTimes[k+4]);
+                        continue;
+                    }
+                    stops[n]=stopTimes[k+1];
+                    // times never go backwards along a trip
+                    arr[n]=n == 0 ? stopTimes[k+3] : Math.max(stopTimes[k+3], dep[n-1]);
+                    dep[n]=Math.max(stopTimes[k+4], arr[n]);
+                    ++n;
+                }
+                if (n >= 2) {
+                    trips.add(new Trip(t, tripRoutes.get(t), Arrays.copyOf(stops, n), Arrays.copyOf(arr, n), Arrays.copyOf(dep, n)));
+                }
+            }
+            return trips;
+        }
+
+        public Timetable build(final LocalDate serviceDate) {
+            // group the trips by route and stops
+            final Map<String,List<Trip>> byPattern=new LinkedHashMap<String,List<Trip>>();
+            for(final Trip trip : trips()) {
+                final String key=trip.route+":"+Arrays.toString(trip.stops);
+                List<Trip> list=byPattern.get(key);
+                if (list == null) {
+                    list=new ArrayList<Trip>();
+                    byPattern.put(key, list);
+                }
+                list.add(trip);
+            }
+            // split each group into patterns in which no trip overtakes another
+            final List<List<Trip>> patterns=new ArrayList<List<Trip>>();
+            for(final List<Trip> group : byPattern.values()) {
+                Collections.sort(group, departureComparator);
+                final List<List<Trip>> split=new ArrayList<List<Trip>>();
+                for(final Trip trip : group) {
+                    List<Trip> pattern=null;
+                    for(final List<Trip> candidate : split) {
+                        if (trip.follows(candidate.get(candidate.size()-1))) {
+                            pattern=candidate;
+                            break;
+                        }
+                    }
+                    if (pattern == null) {
+                        pattern=new ArrayList<Trip>();
+                        split.add(pattern);
+                    }
+                    pattern.add(trip);
+                }
+                patterns.addAll(split);
+            }
+
+            final int numPatterns=patterns.size();
+            final int[] patternRoutes=new int[numPatterns];
+            final int[] patternStopStart=new int[numPatterns+1];
+            final int[] patternTripStart=new int[numPatterns+1];
+            final int[] patternTimeStart=new int[numPatterns+1];
+            for(int p=0; p<numPatterns; ++p) {
+                final List<Trip> trips=patterns.get(p);
+                final int size=trips.get(0).stops.length;
+                patternRoutes[p]=trips.get(0).route;
+                patternStopStart[p+1]=patternStopStart[p]+size;
+                patternTripStart[p+1]=patternTripStart[p]+trips.size();
+                patternTimeStart[p+1]=patternTimeStart[p]+size*trips.size();
+            }
+            final int[] patternStops=new int[patternStopStart[numPatterns]];
+            final String[] ids=new String[patternTripStart[numPatterns]];
+            final int[] tripPatterns=new int[ids.length];
+            final int[] arrivals=new int[patternTimeStart[numPatterns]];
+            final int[] departures=new int[arrivals.length];
+            for(int p=0; p<numPatterns; ++p) {
+                final List<Trip> trips=patterns.get(p);
+                final int size=trips.get(0).stops.length;
+                System.arraycopy(trips.get(0).stops, 0, patternStops, patternStopStart[p], size);
+                for(int j=0; j<trips.size(); ++j) {
+                    final Trip trip=trips.get(j);
+                    ids[patternTripStart[p]+j]=tripIds.get(trip.index);
+                    tripPatterns[patternTripStart[p]+j]=p;
+                    System.arraycopy(trip.arrivals, 0, arrivals, patternTimeStart[p]+j*size, size);
+                    System.arraycopy(trip.departures, 0, departures, patternTimeStart[p]+j*size, size);
+                }
+            }
+            return new Timetable(graph, serviceDate, patternRoutes, patternStopStart, patternStops,
+                patternTripStart, patternTimeStart, ids, tripPatterns, arrivals, departures);
+        }
+    }
+
+}
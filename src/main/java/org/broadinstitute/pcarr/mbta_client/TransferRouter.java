@@ -0,0 +1,272 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Route-level router, which finds the trip with the fewest route changes.
+ *
+ * The search runs on (route, stop) states, where the stops are only the origin, the destination
+ * and the transfer stops, i.e. the stops which connect routes. From each state you can ride
+ * the route to another transfer stop, at a cost of one per stop, or change to another route at the
+ * same stop, at a cost of the transfer penalty. With the default penalty, which is larger than the
+ * number of stops on any trip, this finds the fewest transfers, with the fewest stops as a tie-breaker;
+ * with a smaller penalty it trades transfers for shorter rides.
+ *
+ * The ride distances along each route are computed on the route's own stops, so a shared
+ * track segment is never credited to the wrong route, as it can be on the stop graph where each
+ * edge belongs to one route.
+ */
+public class TransferRouter {
+    /** the default cost of changing routes, in stops */
+    public static final double DEFAULT_TRANSFER_PENALTY=1000;
+
+    /**
+     * a trip: the routes to take, in order, and the stops to change at
+     */
+    public static class Itinerary {
+        private final ImmutableList<Route> routes;
+        private final ImmutableList<Stop> transferStops;
+        private final int numStops;
+        private final double cost;
+
+        protected Itinerary(final List<Route> routes, final List<Stop> transferStops, final int numStops, final double cost) {
+            this.routes=ImmutableList.copyOf(routes);
+            this.transferStops=ImmutableList.copyOf(transferStops);
+            this.numStops=numStops;
+            this.cost=cost;
+        }
+
+        /** the routes, in travel order, empty when the origin is the destination */
+        public ImmutableList<Route> getRoutes() {
+            return routes;
+        }
+
+        /** the stops at which to change routes, transferStops[i] is between routes[i] and routes[i+1] */
+        public ImmutableList<Stop> getTransferStops() {
+            return transferStops;
+        }
+
+        public int getNumTransfers() {
+            return transferStops.size();
+        }
+
+        /** the number of stops traveled, not counting the origin */
+        public int getNumStops() {
+            return numStops;
+        }
+
+        /** numStops + numTransfers * transferPenalty */
+        public double getCost() {
+            return cost;
+        }
+
+        public String toString() {
+            return routes+", change at "+transferStops+", "+numStops+" stops";
+        }
+    }
+
+    // the stops of one route, and the adjacency of consecutive stops
+    private static class RouteStops {
+        private final Route route;
+        private final Map<String,Integer> index=new HashMap<String,Integer>();
+        private final List<Stop> stops=new ArrayList<Stop>();
+        private final List<Set<Integer>> adjacent=new ArrayList<Set<Integer>>();
+        // hop distances from a stop, computed as needed, by local stop index
+        private final Map<Integer,int[]> distances=new ConcurrentHashMap<Integer,int[]>();
+
+        RouteStops(final Route route) {
+            this.route=route;
+            int prev=-1;
+            for(final Stop stop : route.getStops()) {
+                final int next=indexOf(stop);
+                if (prev >= 0 && prev != next) {
+                    adjacent.get(prev).add(next);
+                    adjacent.get(next).add(prev);
+                }
+                prev=next;
+            }
+        }
+
+        private int indexOf(final Stop stop) {
+            final Integer idx=index.get(stop.getId());
+            if (idx != null) {
+                return idx;
+            }
+            index.put(stop.getId(), stops.size());
+            stops.add(stop);
+            adjacent.add(new HashSet<Integer>());
+            return stops.size()-1;
+        }
+
+        /** hop distances from the stop to all stops on the route, -1 if not reachable */
+        int[] distancesFrom(final int from) {
+            int[] dist=distances.get(from);
+            if (dist == null) {
+                dist=new int[stops.size()];
+                Arrays.fill(dist, -1);
+                final int[] queue=new int[stops.size()];
+                int head=0;
+                int tail=0;
+                dist[from]=0;
+                queue[tail++]=from;
+                while (head < tail) {
+                    final int u=queue[head++];
+                    for(final int v : adjacent.get(u)) {
+                        if (dist[v] < 0) {
+                            dist[v]=dist[u]+1;
+                            queue[tail++]=v;
+                        }
+                    }
+                }
+                distances.put(from, dist);
+            }
+            return dist;
+        }
+    }
+
+    // a search state, riding 'route' at 'stop'
+    private static class State implements Comparable<State> {
+        final RouteStops route;
+        final int stop;
+        final double cost;
+        final int numStops;
+        final State prev;
+
+        State(final RouteStops route, final int stop, final double cost, final int numStops, final State prev) {
+            this.route=route;
+            this.stop=stop;
+            this.cost=cost;
+            this.numStops=numStops;
+            this.prev=prev;
+        }
+
+        Stop getStop() {
+            return route.stops.get(stop);
+        }
+
+        String key() {
+            return route.route.getId()+"/"+getStop().getId();
+        }
+
+        public int compareTo(final State o) {
+            return Double.compare(cost, o.cost);
+        }
+    }
+
+    // the routes which serve each stop, by stop id
+    private final Map<String,List<RouteStops>> stopRoutes=new HashMap<String,List<RouteStops>>();
+    private double transferPenalty=DEFAULT_TRANSFER_PENALTY;
+
+    /**
+     * @param routes the routes, with their stops
+     */
+    public TransferRouter(final Collection<Route> routes) {
+        for(final Route route : routes) {
+            final RouteStops routeStops=new RouteStops(route);
+            // stops are matched by id, the routes don't need to share Stop instances
+            for(final Stop stop : routeStops.stops) {
+                List<RouteStops> list=stopRoutes.get(stop.getId());
+                if (list == null) {
+                    list=new ArrayList<RouteStops>(2);
+                    stopRoutes.put(stop.getId(), list);
+                }
+                list.add(routeStops);
+            }
+        }
+    }
+
+    /** the cost of changing routes, in stops */
+    public TransferRouter withTransferPenalty(final double transferPenalty) {
+        this.transferPenalty=transferPenalty;
+        return this;
+    }
+
+    public double getTransferPenalty() {
+        return transferPenalty;
+    }
+
+    private List<RouteStops> routesAt(final Stop stop) {
+        final List<RouteStops> list=stopRoutes.get(stop.getId());
+        return list == null ? Collections.<RouteStops>emptyList() : list;
+    }
+
+    private boolean isTransferStop(final Stop stop) {
+        return routesAt(stop).size() > 1;
+    }
+
+    /**
+     * Find the trip with the lowest cost from one stop to another.
+     * @return the itinerary, or null if the destination can't be reached
+     */
+    public Itinerary route(final Stop from, final Stop to) {
+        if (from.equals(to)) {
+            return new Itinerary(Collections.<Route>emptyList(), Collections.<Stop>emptyList(), 0, 0);
+        }
+        final PriorityQueue<State> queue=new PriorityQueue<State>();
+        final Set<String> settled=new HashSet<String>();
+        for(final RouteStops routeStops : routesAt(from)) {
+            queue.add(new State(routeStops, routeStops.index.get(from.getId()), 0, 0, null));
+        }
+        while (!queue.isEmpty()) {
+            final State state=queue.poll();
+            if (!settled.add(state.key())) {
+                continue;
+            }
+            final Stop stop=state.getStop();
+            if (stop.equals(to)) {
+                return toItinerary(state);
+            }
+            // ride to the next transfer stops, or to the destination
+            final int[] dist=state.route.distancesFrom(state.stop);
+            for(int i=0; i<dist.length; ++i) {
+                if (dist[i] <= 0) {
+                    continue;
+                }
+                final Stop next=state.route.stops.get(i);
+                if (next.equals(to) || isTransferStop(next)) {
+                    queue.add(new State(state.route, i, state.cost+dist[i], state.numStops+dist[i], state));
+                }
+            }
+            // change routes
+            for(final RouteStops other : routesAt(stop)) {
+                if (other != state.route) {
+                    queue.add(new State(other, other.index.get(stop.getId()), state.cost+transferPenalty, state.numStops, state));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Itinerary toItinerary(final State last) {
+        final List<State> states=new ArrayList<State>();
+        for(State state=last; state != null; state=state.prev) {
+            states.add(state);
+        }
+        Collections.reverse(states);
+        final List<Route> routes=new ArrayList<Route>();
+        final List<Stop> transferStops=new ArrayList<Stop>();
+        for(final State state : states) {
+            if (routes.isEmpty()) {
+                routes.add(state.route.route);
+            }
+            else if (!routes.get(routes.size()-1).equals(state.route.route)) {
+                routes.add(state.route.route);
+                transferStops.add(state.getStop());
+            }
+        }
+        return new Itinerary(routes, transferStops, last.numStops, last.cost);
+    }
+
+}
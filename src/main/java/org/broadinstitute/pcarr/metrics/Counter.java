@@ -0,0 +1,37 @@
+package org.broadinstitute.pcarr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count which only goes up, e.g. the number of requests or of bytes transferred.
+ * Thread-safe.
+ */
+public class Counter {
+    private final String name;
+    private final AtomicLong count=new AtomicLong();
+
+    public Counter(final String name) {
+        this.name=name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(final long n) {
+        count.addAndGet(n);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public String toString() {
+        return name+"="+count;
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.broadinstitute.pcarr.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * In-memory metrics registry, the metrics are kept for the life of the registry.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry {
+    // name -> Counter or Distribution
+    private final ConcurrentMap<String,Object> metrics=new ConcurrentHashMap<String,Object>();
+
+    public Counter counter(final String name) {
+        final Object metric=metrics.get(name);
+        if (metric != null) {
+            return checkType(name, metric, Counter.class);
+        }
+        return register(name, new Counter(name), Counter.class);
+    }
+
+    public Distribution distribution(final String name) {
+        final Object metric=metrics.get(name);
+        if (metric != null) {
+            return checkType(name, metric, Distribution.class);
+        }
+        return register(name, new Distribution(name), Distribution.class);
+    }
+
+    public Timer timer(final String name) {
+        final Object metric=metrics.get(name);
+        if (metric != null) {
+            return checkType(name, metric, Timer.class);
+        }
+        return register(name, new Timer(name), Timer.class);
+    }
+
+    // when another thread registered the name first, use that one
+    private <T> T register(final String name, final T metric, final Class<T> type) {
+        final Object existing=metrics.putIfAbsent(name, metric);
+        if (existing != null) {
+            return checkType(name, existing, type);
+        }
+        return metric;
+    }
+
+    private static <T> T checkType(final String name, final Object metric, final Class<T> type) {
+        if (!type.isInstance(metric) || (type == Distribution.class && metric instanceof Timer)) {
+            throw new IllegalArgumentException("metric name="+name+" is a "+metric.getClass().getSimpleName()+", not a "+type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    public MetricsSnapshot snapshot() {
+        final ImmutableSortedMap.Builder<String,Long> counters=ImmutableSortedMap.naturalOrder();
+        final ImmutableSortedMap.Builder<String,Distribution.Snapshot> distributions=ImmutableSortedMap.naturalOrder();
+        for(final Object metric : metrics.values()) {
+            if (metric instanceof Counter) {
+                final Counter counter=(Counter) metric;
+                counters.put(counter.getName(), counter.getCount());
+            }
+            else {
+                final Distribution distribution=(Distribution) metric;
+                distributions.put(distribution.getName(), distribution.snapshot());
+            }
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counters.build(), distributions.build());
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.broadinstitute.pcarr.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The distribution of recorded values, e.g. the number of stops visited by a path search,
+ * in an HdrHistogram, so that percentiles are available without keeping the values.
+ *
+ * Values are recorded with a relative error of at most 1%, see {@link #SIGNIFICANT_DIGITS},
+ * and the histogram grows as needed for larger values. Recording is wait-free, so it is safe
+ * to call from many threads on the query path; {@link #snapshot()} takes a lock.
+ *
+ * @see Timer
+ */
+public class Distribution {
+    /** the precision of the recorded values, 2 significant digits */
+    public static final int SIGNIFICANT_DIGITS=2;
+
+    private final String name;
+    private final Recorder recorder=new Recorder(SIGNIFICANT_DIGITS);
+    // all of the values recorded before the last snapshot
+    private final Histogram total=new Histogram(SIGNIFICANT_DIGITS);
+    // recycled by the recorder
+    private Histogram interval=null;
+
+    public Distribution(final String name) {
+        this.name=name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** record a value, negative values are recorded as 0 */
+    public void record(final long value) {
+        recorder.recordValue(value < 0 ? 0 : value);
+    }
+
+    /** get all of the values recorded so far */
+    public synchronized Snapshot snapshot() {
+        interval=recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return new Snapshot(name, isTimer(), total.copy());
+    }
+
+    /** true when the values are durations in nanoseconds */
+    protected boolean isTimer() {
+        return false;
+    }
+
+    /**
+     * An immutable copy of a distribution.
+     * Timer values are in nanoseconds, see {@link #toString()} for a summary in milliseconds.
+     */
+    public static class Snapshot {
+        private final String name;
+        private final boolean timer;
+        private final Histogram histogram;
+
+        protected Snapshot(final String name, final boolean timer, final Histogram histogram) {
+            this.name=name;
+            this.timer=timer;
+            this.histogram=histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isTimer() {
+            return timer;
+        }
+
+        public long getCount() {
+            return histogram.getTotalCount();
+        }
+
+        /** the smallest value, or 0 when nothing was recorded */
+        public long getMin() {
+            return getCount() == 0 ? 0 : histogram.getMinValue();
+        }
+
+        public long getMax() {
+            return histogram.getMaxValue();
+        }
+
+        public double getMean() {
+            return histogram.getMean();
+        }
+
+        /** the value at the percentile, between 0 and 100, e.g. 99 for the 99th percentile */
+        public long getPercentile(final double percentile) {
+            return histogram.getValueAtPercentile(percentile);
+        }
+
+        // milliseconds for timers
+        private String format(final double value) {
+            return timer ? String.format("%.3fms", value/1e6) : String.format("%.0f", value);
+        }
+
+        /** e.g. 'count=120, mean=1.503ms, p50=1.200ms, p90=2.100ms, p99=8.400ms, max=9.100ms' */
+        public String toString() {
+            return "count="+getCount()
+                +", mean="+format(getMean())
+                +", p50="+format(getPercentile(50))
+                +", p90="+format(getPercentile(90))
+                +", p99="+format(getPercentile(99))
+                +", max="+format(getMax());
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.broadinstitute.pcarr.metrics;
+
+/**
+ * Pluggable registry of named metrics. Metrics are created on first use, and the same name
+ * always returns the same metric. Implementations must be thread-safe.
+ *
+ * Names are dot separated, with the endpoint or the search mode after a ':', for example
+ * 'http.latency:/stops', 'build.fetch_stops' and 'query.visited:bidirectional'.
+ *
+ * @see DefaultMetricsRegistry
+ * @see MetricsReporter
+ */
+public interface MetricsRegistry {
+    Counter counter(String name);
+
+    Distribution distribution(String name);
+
+    Timer timer(String name);
+
+    /** get the current value of all of the metrics */
+    MetricsSnapshot snapshot();
+}
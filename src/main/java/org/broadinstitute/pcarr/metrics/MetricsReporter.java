@@ -0,0 +1,91 @@
+package org.broadinstitute.pcarr.metrics;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Periodically dump a snapshot of the metrics, to the log at 'info' level or to a PrintStream,
+ * and once more when closed.
+ <pre>
+     final MetricsReporter reporter=new MetricsReporter(registry)
+         .start(60, TimeUnit.SECONDS);
+     try {
+         ...
+     }
+     finally {
+         reporter.close();
+     }
+ </pre>
+ */
+public class MetricsReporter implements Closeable {
+    private static final Logger log = LogManager.getLogger(MetricsReporter.class);
+
+    private final MetricsRegistry registry;
+    private PrintStream out=null;
+    private ScheduledExecutorService scheduler=null;
+
+    public MetricsReporter(final MetricsRegistry registry) {
+        this.registry=registry;
+    }
+
+    /** print to the stream instead of logging */
+    public MetricsReporter withOutput(final PrintStream out) {
+        this.out=out;
+        return this;
+    }
+
+    public synchronized MetricsReporter start(final long period, final TimeUnit unit) {
+        if (scheduler != null) {
+            throw new IllegalStateException("already started");
+        }
+        scheduler=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread=new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    report();
+                }
+                catch (Throwable t) {
+                    // keep reporting
+                    log.error("Error reporting metrics", t);
+                }
+            }
+        }, period, period, unit);
+        return this;
+    }
+
+    /** dump the current snapshot now */
+    public void report() {
+        final MetricsSnapshot snapshot=registry.snapshot();
+        if (out != null) {
+            out.print(snapshot);
+            out.flush();
+        }
+        else if (log.isInfoEnabled()) {
+            log.info("metrics ...\n"+snapshot);
+        }
+    }
+
+    /** stop the periodic dumps, after a final one */
+    public synchronized void close() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler=null;
+        report();
+    }
+
+}
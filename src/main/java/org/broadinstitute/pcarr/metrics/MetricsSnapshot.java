@@ -0,0 +1,108 @@
+package org.broadinstitute.pcarr.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map.Entry;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The values of all of the metrics in a registry at one time, sorted by name.
+ */
+public class MetricsSnapshot {
+    private final long timestamp;
+    private final ImmutableSortedMap<String,Long> counters;
+    private final ImmutableSortedMap<String,Distribution.Snapshot> distributions;
+
+    public MetricsSnapshot(final long timestamp, final ImmutableSortedMap<String,Long> counters, final ImmutableSortedMap<String,Distribution.Snapshot> distributions) {
+        this.timestamp=timestamp;
+        this.counters=counters;
+        this.distributions=distributions;
+    }
+
+    /** when the snapshot was taken, in milliseconds since the epoch */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public ImmutableSortedMap<String,Long> getCounters() {
+        return counters;
+    }
+
+    /** the distributions and the timers */
+    public ImmutableSortedMap<String,Distribution.Snapshot> getDistributions() {
+        return distributions;
+    }
+
+    /** the value of the counter, or 0 if there is no such counter */
+    public long getCount(final String name) {
+        final Long count=counters.get(name);
+        return count == null ? 0 : count;
+    }
+
+    /** the distribution or timer, or null if there is no such metric */
+    public Distribution.Snapshot getDistribution(final String name) {
+        return distributions.get(name);
+    }
+
+    /**
+     * Write the snapshot as a JSON object, e.g.
+     <pre>
+     {"timestamp":1556712000000,
+      "counters":{"http.bytes:/stops":1234},
+      "timers":{"http.latency:/stops":{"count":2,"mean":..,"p50":..,"p90":..,"p99":..,"max":..}},
+      "distributions":{...}}
+     </pre>
+     * Timer values are in milliseconds.
+     */
+    public void writeJson(final Writer out) throws IOException {
+        final JsonWriter writer=new JsonWriter(out);
+        writer.beginObject();
+        writer.name("timestamp").value(timestamp);
+        writer.name("counters");
+        writer.beginObject();
+        for(final Entry<String,Long> entry : counters.entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+        writeDistributions(writer, "timers", true);
+        writeDistributions(writer, "distributions", false);
+        writer.endObject();
+        writer.flush();
+    }
+
+    private void writeDistributions(final JsonWriter writer, final String name, final boolean timers) throws IOException {
+        writer.name(name);
+        writer.beginObject();
+        for(final Distribution.Snapshot snapshot : distributions.values()) {
+            if (snapshot.isTimer() != timers) {
+                continue;
+            }
+            final double scale=timers ? 1e6 : 1;
+            writer.name(snapshot.getName());
+            writer.beginObject();
+            writer.name("count").value(snapshot.getCount());
+            writer.name("mean").value(snapshot.getMean()/scale);
+            writer.name("p50").value(snapshot.getPercentile(50)/scale);
+            writer.name("p90").value(snapshot.getPercentile(90)/scale);
+            writer.name("p99").value(snapshot.getPercentile(99)/scale);
+            writer.name("max").value(snapshot.getMax()/scale);
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    /** one line per metric */
+    public String toString() {
+        final StringBuilder buf=new StringBuilder();
+        for(final Entry<String,Long> entry : counters.entrySet()) {
+            buf.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        for(final Distribution.Snapshot snapshot : distributions.values()) {
+            buf.append(snapshot.getName()).append(": ").append(snapshot).append('\n');
+        }
+        return buf.toString();
+    }
+
+}
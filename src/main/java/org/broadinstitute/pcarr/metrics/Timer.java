@@ -0,0 +1,43 @@
+package org.broadinstitute.pcarr.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The distribution of durations, recorded in nanoseconds.
+ <pre>
+     final long start=timer.start();
+     ...
+     timer.stop(start);
+ </pre>
+ */
+public class Timer extends Distribution {
+
+    public Timer(final String name) {
+        super(name);
+    }
+
+    /** @return the start time, to pass to {@link #stop(long)} */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time since the start.
+     * @return the elapsed nanoseconds
+     */
+    public long stop(final long startNanos) {
+        final long elapsed=System.nanoTime()-startNanos;
+        record(elapsed);
+        return elapsed;
+    }
+
+    public void record(final long duration, final TimeUnit unit) {
+        record(unit.toNanos(duration));
+    }
+
+    @Override
+    protected boolean isTimer() {
+        return true;
+    }
+
+}
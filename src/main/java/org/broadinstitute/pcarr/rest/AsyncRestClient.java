@@ -0,0 +1,710 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Non-blocking counterpart of {@link RestClient}, which returns a CompletableFuture for each request.
+ *
+ * Requests are sent by a non-blocking http engine, with a few i/o dispatch threads for all connections,
+ * so that many requests can be in flight without a thread for each one. The body of a successful response
+ * is parsed on the parse executor, by default the common ForkJoinPool, as it arrives: the i/o threads hand
+ * each chunk to the parser without waiting for it, so that parsing overlaps with the transfer of the same
+ * response and of the others, and a large response is never held in memory in full. Retries and rate
+ * limiter waits are scheduled on a timer instead of blocking a thread.
+ *
+ * Compressed responses are decompressed while they are parsed, on the parse executor.
+ * Retries, rate limiting and circuit breaking are configured as for the RestClient, with a
+ * {@link RetryPolicy}, {@link TokenBucket} and {@link CircuitBreaker}. There is no response cache.
+ *
+ * Usage:
+<pre>
+    final AsyncRestClient client=new AsyncRestClient()
+        .withApiKey(apiKey)
+        .withApiPrefix(MbtaClient.API_PREFIX)
+        .withMaxConnections(64, 32);
+    try {
+        final CompletableFuture&lt;JsonObject&gt; routes=client.getJson(endpoint);
+        ...
+    }
+    finally {
+        client.close();
+    }
+</pre>
+ */
+public class AsyncRestClient implements Closeable {
+    private static final Logger log = LogManager.getLogger(AsyncRestClient.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+
+    public static final int DEFAULT_IO_THREADS=2;
+
+    private final LinkedHashMap<String,String> withHeaders=new LinkedHashMap<String,String>();
+    // optional, the root of relative endpoints
+    private String apiPrefix=null;
+    private int maxConnTotal=RestClient.DEFAULT_MAX_CONN_TOTAL;
+    private int maxConnPerRoute=RestClient.DEFAULT_MAX_CONN_PER_ROUTE;
+    private int connectTimeoutMillis=RestClient.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis=RestClient.DEFAULT_READ_TIMEOUT_MILLIS;
+    private int ioThreads=DEFAULT_IO_THREADS;
+    private Executor parseExecutor=ForkJoinPool.commonPool();
+
+    private boolean compression=true;
+    private final TransferStats transferStats=new TransferStats();
+
+    private RetryPolicy retryPolicy=new RetryPolicy();
+    private TokenBucket rateLimiter=null;
+    private CircuitBreaker circuitBreaker=null;
+    private HttpMetrics metrics=null;
+
+    // lazily initialized on the first request
+    private CloseableHttpAsyncClient httpClient=null;
+    private ScheduledExecutorService timer=null;
+    private boolean closed=false;
+
+    private final AtomicLong retryCount=new AtomicLong();
+    private final AtomicInteger inFlight=new AtomicInteger();
+    private final AtomicInteger maxInFlight=new AtomicInteger();
+
+    // parse the response as a JsonObject
+    private static final JsonStreamHandler<JsonObject> jsonObjectHandler=new JsonStreamHandler<JsonObject>() {
+        public JsonObject read(final JsonReader reader) throws RestClientException {
+            final JsonElement jsonElement=new JsonParser().parse(reader);
+            if (jsonElement == null || !jsonElement.isJsonObject()) {
+                throw new RestClientException("Expecting a JSON object, jsonElement="+jsonElement);
+            }
+            return jsonElement.getAsJsonObject();
+        }
+    };
+
+    public AsyncRestClient withHeader(final String key, final String value) {
+        checkNotStarted();
+        withHeaders.put(key, value);
+        return this;
+    }
+
+    public AsyncRestClient withApiKey(final String apiKey) {
+        return withHeader("x-api-key", apiKey);
+    }
+
+    /** The root of relative endpoints, see {@link RestClient#withApiPrefix(String)}. */
+    public AsyncRestClient withApiPrefix(final String apiPrefix) {
+        this.apiPrefix=apiPrefix;
+        return this;
+    }
+
+    public String getApiPrefix() {
+        return apiPrefix;
+    }
+
+    /** Set the max number of connections, in total and per route (aka host). */
+    public AsyncRestClient withMaxConnections(final int maxConnTotal, final int maxConnPerRoute) {
+        checkNotStarted();
+        this.maxConnTotal=maxConnTotal;
+        this.maxConnPerRoute=maxConnPerRoute;
+        return this;
+    }
+
+    /** Set the timeout in milliseconds to establish a connection, 0 means no timeout. */
+    public AsyncRestClient withConnectTimeout(final int connectTimeoutMillis) {
+        checkNotStarted();
+        this.connectTimeoutMillis=connectTimeoutMillis;
+        return this;
+    }
+
+    /** Set the socket read timeout in milliseconds, 0 means no timeout. */
+    public AsyncRestClient withReadTimeout(final int readTimeoutMillis) {
+        checkNotStarted();
+        this.readTimeoutMillis=readTimeoutMillis;
+        return this;
+    }
+
+    /** Set the number of i/o dispatch threads, shared by all connections. */
+    public AsyncRestClient withIoThreads(final int ioThreads) {
+        checkNotStarted();
+        this.ioThreads=ioThreads;
+        return this;
+    }
+
+    /** Parse responses, and complete the futures, on this executor. */
+    public AsyncRestClient withParseExecutor(final Executor parseExecutor) {
+        this.parseExecutor=parseExecutor;
+        return this;
+    }
+
+    /** Ask for gzip or deflate compressed responses, by default true. */
+    public AsyncRestClient withCompression(final boolean compression) {
+        this.compression=compression;
+        return this;
+    }
+
+    /** the transferred and decompressed response byte counts */
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    public AsyncRestClient withRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy=retryPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public AsyncRestClient withRateLimiter(final TokenBucket rateLimiter) {
+        this.rateLimiter=rateLimiter;
+        return this;
+    }
+
+    public AsyncRestClient withCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker=circuitBreaker;
+        return this;
+    }
+
+    /** the number of retried requests */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /** Record per-endpoint metrics, see {@link RestClient#withMetrics(MetricsRegistry)}. */
+    public AsyncRestClient withMetrics(final MetricsRegistry registry) {
+        this.metrics=registry == null ? null : new HttpMetrics(registry);
+        return this;
+    }
+
+    /** the metrics registry, or null if metrics are not enabled */
+    public MetricsRegistry getMetrics() {
+        return metrics == null ? null : metrics.getRegistry();
+    }
+
+    /** the highest number of requests in flight at the same time */
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    private synchronized void checkNotStarted() {
+        if (httpClient != null || closed) {
+            throw new IllegalStateException("Can't change connection settings after the first request");
+        }
+    }
+
+    protected synchronized CloseableHttpAsyncClient getHttpClient() {
+        if (closed) {
+            throw new IllegalStateException("AsyncRestClient is closed");
+        }
+        if (httpClient == null) {
+            final RequestConfig requestConfig=RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+            .build();
+            httpClient=HttpAsyncClients.custom()
+                .setMaxConnTotal(maxConnTotal)
+                .setMaxConnPerRoute(maxConnPerRoute)
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                    .setIoThreadCount(ioThreads)
+                    .setSoTimeout(readTimeoutMillis)
+                    .setConnectTimeout(connectTimeoutMillis)
+                .build())
+            .build();
+            httpClient.start();
+            timer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread thread=new Thread(r, "async-rest-client-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return httpClient;
+    }
+
+    /**
+     * Shut down the http engine, and release all connections. Requests which are still in flight fail.
+     */
+    public synchronized void close() throws IOException {
+        closed=true;
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient=null;
+            timer.shutdownNow();
+            timer=null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * GET the JSON representation of the given endpoint, fully-qualified or relative to the api prefix.
+     */
+    public CompletableFuture<JsonObject> getJson(final String endpoint) {
+        return getJson(endpoint, jsonObjectHandler);
+    }
+
+    /**
+     * GET the given endpoint, fully-qualified or relative to the api prefix, and pass the JSON response
+     * to the handler, on the parse executor.
+     * The future fails with a RestClientException when the request fails, after retries.
+     * Cancelling the future aborts the request in flight.
+     */
+    public <T> CompletableFuture<T> getJson(final String endpoint, final JsonStreamHandler<T> handler) {
+        final CompletableFuture<T> future=new CompletableFuture<T>();
+        final URI uri;
+        try {
+            uri=RestClient.resolve(apiPrefix, endpoint);
+            getHttpClient();
+        }
+        catch (URISyntaxException | RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        final HttpMetrics metrics=this.metrics;
+        if (metrics == null) {
+            acquire(uri, handler, 1, future, System.currentTimeMillis(), 0);
+            return future;
+        }
+        final long start=System.nanoTime();
+        // completes after the request is recorded
+        final CompletableFuture<T> recorded=future.whenComplete(new BiConsumer<T,Throwable>() {
+            public void accept(final T value, final Throwable t) {
+                metrics.onComplete(uri, start, t == null);
+            }
+        });
+        recorded.whenComplete(new BiConsumer<T,Throwable>() {
+            public void accept(final T value, final Throwable t) {
+                if (recorded.isCancelled()) {
+                    future.cancel(false);
+                }
+            }
+        });
+        acquire(uri, handler, 1, future, System.currentTimeMillis(), 0);
+        return recorded;
+    }
+
+    // wait for the rate limiter on the timer, then send the request
+    private <T> void acquire(final URI uri, final JsonStreamHandler<T> handler, final int attempt, final CompletableFuture<T> future, final long startMillis, final long waitedMillis) {
+        if (rateLimiter != null) {
+            final long wait=rateLimiter.tryAcquire();
+            if (wait > 0) {
+                if (System.currentTimeMillis()+wait > startMillis+rateLimiter.getMaxWaitMillis()) {
+                    future.completeExceptionally(new RestClientException("GET "+uri+" failed, timed out waiting for the rate limiter"));
+                    return;
+                }
+                schedule(future, new Runnable() {
+                    public void run() {
+                        acquire(uri, handler, attempt, future, startMillis, waitedMillis+wait);
+                    }
+                }, wait);
+                return;
+            }
+            if (waitedMillis > 0) {
+                rateLimiter.recordWait(waitedMillis);
+            }
+        }
+        execute(uri, handler, attempt, future);
+    }
+
+    private <T> void execute(final URI uri, final JsonStreamHandler<T> handler, final int attempt, final CompletableFuture<T> future) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            future.completeExceptionally(new RestClientException("GET "+uri+" failed fast, the circuit breaker is open"));
+            return;
+        }
+        final HttpGet get=new HttpGet(uri);
+        for(final Entry<String,String> header : withHeaders.entrySet()) {
+            get.setHeader(header.getKey(), header.getValue());
+        }
+        get.setHeader("Accept", "application/json");
+        if (compression) {
+            get.setHeader(HttpHeaders.ACCEPT_ENCODING, TransferStats.ACCEPT_ENCODING);
+        }
+
+        final int n=inFlight.incrementAndGet();
+        while (true) {
+            final int max=maxInFlight.get();
+            if (n <= max || maxInFlight.compareAndSet(max, n)) {
+                break;
+            }
+        }
+        final CloseableHttpAsyncClient client;
+        try {
+            client=getHttpClient();
+        }
+        catch (IllegalStateException e) {
+            inFlight.decrementAndGet();
+            if (circuitBreaker != null) {
+                circuitBreaker.onAbort();
+            }
+            future.completeExceptionally(e);
+            return;
+        }
+        final ResponseConsumer<T> consumer=new ResponseConsumer<T>(uri, handler, attempt, future);
+        final Future<HttpResponse> request=client.execute(HttpAsyncMethods.create(get), consumer, new FutureCallback<HttpResponse>() {
+            public void completed(final HttpResponse response) {
+                // handled by the consumer, as the response arrived
+                inFlight.decrementAndGet();
+            }
+
+            public void failed(final Exception e) {
+                inFlight.decrementAndGet();
+                if (metrics != null) {
+                    metrics.onIoError(uri);
+                }
+                if (circuitBreaker != null) {
+                    circuitBreaker.onFailure();
+                }
+                if (consumer.isResponseReceived()) {
+                    // the response was already handled, when the body was being parsed the parser fails with the error
+                    log.debug("GET "+uri+" failed, after the response was received: "+e);
+                    return;
+                }
+                if (attempt < retryPolicy.getMaxAttempts() && e instanceof IOException) {
+                    log.debug("GET "+uri+" failed, retrying: "+e);
+                    retry(uri, handler, attempt, future, retryPolicy.backoffMillis(attempt));
+                    return;
+                }
+                future.completeExceptionally(new RestClientException("GET "+uri+" failed", e));
+            }
+
+            public void cancelled() {
+                inFlight.decrementAndGet();
+                if (circuitBreaker != null) {
+                    circuitBreaker.onAbort();
+                }
+                future.cancel(false);
+            }
+        });
+        // cancelling the future aborts the request
+        future.whenComplete(new BiConsumer<T,Throwable>() {
+            public void accept(final T value, final Throwable t) {
+                if (future.isCancelled()) {
+                    request.cancel(true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Handle the status of the response, when its headers are received.
+     * @return true when the body should be parsed, otherwise the body is discarded,
+     *     and the future is completed, or the request retried
+     */
+    private <T> boolean onHeaders(final URI uri, final JsonStreamHandler<T> handler, final int attempt, final CompletableFuture<T> future, final HttpResponse response) {
+        final int statusCode=response.getStatusLine().getStatusCode();
+        if (metrics != null) {
+            metrics.onStatus(uri, statusCode);
+        }
+        if (circuitBreaker != null) {
+            if (statusCode >= 500) {
+                circuitBreaker.onFailure();
+            }
+            else {
+                circuitBreaker.onSuccess();
+            }
+        }
+        if (rateLimiter != null) {
+            final long resetMillis=RetryPolicy.rateLimitResetMillis(response);
+            if (resetMillis > 0) {
+                rateLimiter.pauseUntil(resetMillis);
+            }
+        }
+        if (retryPolicy.isRetryable(statusCode)) {
+            final long delay=retryPolicy.delayMillis(attempt, response);
+            if (delay >= 0) {
+                log.debug("GET "+uri+" failed, "+response.getStatusLine()+", retrying in "+delay+" ms");
+                retry(uri, handler, attempt, future, delay);
+                return false;
+            }
+        }
+        if (statusCode < 200 || statusCode >= 300) {
+            future.completeExceptionally(new RestClientException(
+                "GET "+uri+" failed! "+statusCode+": "+response.getStatusLine().getReasonPhrase()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the response on the i/o thread as it arrives. The status is handled when the headers are received,
+     * see {@link AsyncRestClient#onHeaders}; the body of a successful response is parsed on the parse executor
+     * from the chunks received so far, and the body of any other response is discarded.
+     */
+    private class ResponseConsumer<T> extends AbstractAsyncResponseConsumer<HttpResponse> {
+        private final URI uri;
+        private final JsonStreamHandler<T> handler;
+        private final int attempt;
+        private final CompletableFuture<T> future;
+        private final ByteBuffer buffer=ByteBuffer.allocate(8192);
+        private volatile boolean responseReceived=false;
+        private HttpResponse response=null;
+        private boolean accepted=false;
+        // null when the body is discarded
+        private BodyStream body=null;
+
+        ResponseConsumer(final URI uri, final JsonStreamHandler<T> handler, final int attempt, final CompletableFuture<T> future) {
+            this.uri=uri;
+            this.handler=handler;
+            this.attempt=attempt;
+            this.future=future;
+        }
+
+        boolean isResponseReceived() {
+            return responseReceived;
+        }
+
+        protected void onResponseReceived(final HttpResponse response) {
+            this.response=response;
+            this.responseReceived=true;
+            this.accepted=onHeaders(uri, handler, attempt, future, response);
+        }
+
+        protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) {
+            if (!accepted) {
+                return;
+            }
+            final BodyStream body=new BodyStream();
+            final String encoding=TransferStats.contentEncoding(response);
+            try {
+                parseExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            future.complete(parse(uri, body, encoding, handler));
+                        }
+                        catch (Throwable t) {
+                            future.completeExceptionally(t);
+                        }
+                    }
+                });
+                this.body=body;
+            }
+            catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+            while (decoder.read(buffer) > 0) {
+                buffer.flip();
+                if (body != null) {
+                    body.append(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        protected HttpResponse buildResult(final HttpContext context) {
+            if (accepted && body == null && !future.isDone()) {
+                future.completeExceptionally(new RestClientException("GET "+uri+" failed! The response should contain an entity"));
+            }
+            if (body != null) {
+                body.end(null);
+            }
+            return response;
+        }
+
+        protected void releaseResources() {
+            // when the response is complete the body has ended already, otherwise the parser fails
+            if (body != null) {
+                body.end(new IOException("GET "+uri+", the response was not received in full"));
+            }
+        }
+    }
+
+    /**
+     * The chunks of a response body, appended by the i/o thread, which never waits, and read by the parser,
+     * which waits for the next chunk.
+     */
+    private static class BodyStream extends InputStream {
+        private static final byte[] END=new byte[0];
+        private final BlockingQueue<byte[]> chunks=new LinkedBlockingQueue<byte[]>();
+        private final AtomicBoolean ended=new AtomicBoolean();
+        // written by the i/o thread before the chunks are queued, read by the parser after the END
+        private long numBytes=0;
+        private IOException error=null;
+        private byte[] chunk=null;
+        private int pos=0;
+
+        void append(final ByteBuffer buffer) {
+            final byte[] bytes=new byte[buffer.remaining()];
+            buffer.get(bytes);
+            numBytes+=bytes.length;
+            chunks.add(bytes);
+        }
+
+        // the first call wins, with a null error at the end of the response
+        void end(final IOException error) {
+            if (ended.compareAndSet(false, true)) {
+                this.error=error;
+                chunks.add(END);
+            }
+        }
+
+        /** the number of bytes received, once the stream was read to the end */
+        long getNumBytes() {
+            return numBytes;
+        }
+
+        public int read() throws IOException {
+            final byte[] one=new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunk == null || pos == chunk.length) {
+                if (chunk == END) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                chunk=take();
+                pos=0;
+            }
+            final int n=Math.min(len, chunk.length-pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos+=n;
+            return n;
+        }
+
+        private byte[] take() throws IOException {
+            final byte[][] next=new byte[][] { chunks.poll() };
+            if (next[0] != null) {
+                return next[0];
+            }
+            try {
+                // the parser waits for the i/o thread, a fork/join pool, e.g. the default parse executor,
+                // can add a thread meanwhile
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    public boolean block() throws InterruptedException {
+                        if (next[0] == null) {
+                            next[0]=chunks.take();
+                        }
+                        return true;
+                    }
+
+                    public boolean isReleasable() {
+                        if (next[0] == null) {
+                            next[0]=chunks.poll();
+                        }
+                        return next[0] != null;
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the response");
+            }
+            return next[0];
+        }
+    }
+
+    private <T> void retry(final URI uri, final JsonStreamHandler<T> handler, final int attempt, final CompletableFuture<T> future, final long delayMillis) {
+        retryCount.incrementAndGet();
+        if (metrics != null) {
+            metrics.onRetry(uri);
+        }
+        schedule(future, new Runnable() {
+            public void run() {
+                acquire(uri, handler, attempt+1, future, System.currentTimeMillis(), 0);
+            }
+        }, delayMillis);
+    }
+
+    private void schedule(final CompletableFuture<?> future, final Runnable task, final long delayMillis) {
+        final ScheduledExecutorService timer=getTimer();
+        if (timer == null) {
+            future.completeExceptionally(new IllegalStateException("AsyncRestClient is closed"));
+            return;
+        }
+        try {
+            timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private <T> T parse(final URI uri, final BodyStream body, final String encoding, final JsonStreamHandler<T> handler) throws RestClientException {
+        try {
+            final CountingInputStream content=new CountingInputStream(TransferStats.decode(body, encoding));
+            final JsonReader reader=new JsonReader(new InputStreamReader(content, UTF_8));
+            try {
+                final T value=handler.read(reader);
+                // to the end of the response, for the byte counts
+                ByteStreams.exhaust(content);
+                transferStats.record(encoding, body.getNumBytes(), content.getCount());
+                if (metrics != null) {
+                    metrics.onTransfer(uri, body.getNumBytes(), content.getCount());
+                }
+                return value;
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException e) {
+            throw new RestClientException("GET "+uri+", I/O error handling response", e);
+        }
+        catch (RestClientException e) {
+            throw new RestClientException("GET "+uri+", Error parsing JSON response", e);
+        }
+        catch (RuntimeException e) {
+            throw new RestClientException("GET "+uri+", Unexpected error reading response", e);
+        }
+    }
+
+}
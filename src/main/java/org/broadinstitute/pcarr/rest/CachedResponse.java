@@ -0,0 +1,61 @@
+package org.broadinstitute.pcarr.rest;
+
+/**
+ * A response body saved by a {@link ResponseCache}, with the validators needed to
+ * revalidate it with a conditional GET ('If-None-Match' and 'If-Modified-Since').
+ */
+public class CachedResponse {
+    private final String key;
+    private final String etag;
+    private final String lastModified;
+    private final long storedMillis;
+    private final byte[] body;
+
+    // the parsed body, kept in memory only, so that a '304 Not Modified' response is not parsed again
+    private volatile Object parsed=null;
+
+    public CachedResponse(final String key, final String etag, final String lastModified, final long storedMillis, final byte[] body) {
+        this.key=key;
+        this.etag=etag;
+        this.lastModified=lastModified;
+        this.storedMillis=storedMillis;
+        this.body=body;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /** the 'ETag' response header, can be null */
+    public String getEtag() {
+        return etag;
+    }
+
+    /** the 'Last-Modified' response header, can be null */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getStoredMillis() {
+        return storedMillis;
+    }
+
+    /** the response body, callers must not modify the array */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /** the size of the entry, for bounding the cache */
+    public int getSize() {
+        return body.length+key.length();
+    }
+
+    protected Object getParsed() {
+        return parsed;
+    }
+
+    protected void setParsed(final Object parsed) {
+        this.parsed=parsed;
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fail fast while the service is down, instead of piling up requests and retries,
+ * see {@link RestClient#withCircuitBreaker(CircuitBreaker)}.
+ *
+ * The circuit opens after 'failureThreshold' consecutive failures, i.e. connection errors and
+ * '5xx' responses. While it is open, requests are rejected without being sent. After 'openMillis'
+ * one trial request is let through (half-open): when it succeeds the circuit closes,
+ * when it fails the circuit opens again. A request which was let through must end with
+ * one of {@link #onSuccess()}, {@link #onFailure()} or {@link #onAbort()}.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LogManager.getLogger(CircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD=5;
+    public static final long DEFAULT_OPEN_MILLIS=30*1000;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state=State.CLOSED;
+    private int consecutiveFailures=0;
+    private long openedMillis=0;
+    private boolean trialInFlight=false;
+
+    private final AtomicLong numRejected=new AtomicLong();
+    private final AtomicLong numOpened=new AtomicLong();
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public CircuitBreaker(final int failureThreshold, final long openTime, final TimeUnit unit) {
+        this.failureThreshold=failureThreshold;
+        this.openMillis=unit.toMillis(openTime);
+    }
+
+    /**
+     * @return true if the request may be sent, false if it must fail fast
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis()-openedMillis >= openMillis) {
+            state=State.HALF_OPEN;
+            trialInFlight=false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight=true;
+            return true;
+        }
+        numRejected.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("circuit closed");
+        }
+        state=State.CLOSED;
+        consecutiveFailures=0;
+        trialInFlight=false;
+    }
+
+    public synchronized void onFailure() {
+        ++consecutiveFailures;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn("circuit opened after "+consecutiveFailures+" consecutive failures");
+            state=State.OPEN;
+            openedMillis=System.currentTimeMillis();
+            trialInFlight=false;
+            numOpened.incrementAndGet();
+        }
+    }
+
+    /**
+     * The request ended without a response or a connection error, e.g. it was cancelled.
+     * When it was the half-open trial, the next request is let through as the trial instead.
+     */
+    public synchronized void onAbort() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight=false;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** the number of requests rejected while the circuit was open */
+    public long getNumRejected() {
+        return numRejected.get();
+    }
+
+    /** the number of times the circuit opened */
+    public long getNumOpened() {
+        return numOpened.get();
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Response cache which saves one file per entry in a directory, so that cached responses 
+ * survive a restart. Usually the second tier of an {@link LruResponseCache}.
+ * The file name is the SHA-256 hash of the key, so that secrets in the request headers
+ * (e.g. the api key) are not written to disk.
+ */
+public class DiskResponseCache implements ResponseCache {
+    private static final Logger log = LogManager.getLogger(DiskResponseCache.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+    private static final int MAGIC=0x4d425243; // 'MBRC'
+
+    private final File dir;
+
+    public DiskResponseCache(final File dir) {
+        this.dir=dir;
+    }
+
+    protected File fileFor(final String key) {
+        return new File(dir, Hashing.sha256().hashString(key, UTF_8).toString()+".cache");
+    }
+
+    public CachedResponse get(final String key) {
+        final File file=fileFor(key);
+        if (!file.canRead()) {
+            return null;
+        }
+        try {
+            final DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return null;
+                }
+                final String storedKey=in.readUTF();
+                if (!key.equals(storedKey)) {
+                    // hash collision
+                    return null;
+                }
+                final String etag=readNullableUTF(in);
+                final String lastModified=readNullableUTF(in);
+                final long storedMillis=in.readLong();
+                final byte[] body=new byte[in.readInt()];
+                in.readFully(body);
+                return new CachedResponse(key, etag, lastModified, storedMillis, body);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            log.debug("Error reading cached response, file="+file, e);
+            return null;
+        }
+    }
+
+    public void put(final CachedResponse response) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        final File file=fileFor(response.getKey());
+        File tmp=null;
+        try {
+            // a temporary file per writer, moved over the entry, so a reader never sees a partial entry
+            tmp=File.createTempFile(file.getName(), ".tmp", dir);
+            final DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(response.getKey());
+                writeNullableUTF(out, response.getEtag());
+                writeNullableUTF(out, response.getLastModified());
+                out.writeLong(response.getStoredMillis());
+                out.writeInt(response.getBody().length);
+                out.write(response.getBody());
+            }
+            finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            log.debug("Error writing cached response, file="+file, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    public void remove(final String key) {
+        fileFor(key).delete();
+    }
+
+    private static String readNullableUTF(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Subscriber for a 'text/event-stream' endpoint, such as the MBTA api's streaming '/vehicles' and '/predictions'.
+ *
+ * A reader thread parses the events, see {@link EventStreamReader}, into a bounded queue, and a dispatcher
+ * thread passes them to the {@link Listener} in order. When the listener falls behind and the queue is full,
+ * the reader waits, so it stops reading from the connection and the server is slowed down by tcp flow
+ * control, instead of buffering without bound.
+ *
+ * The connection is opened again when it is closed by the server, fails, or is idle for longer than the
+ * idle timeout, after the server's 'retry' time or an exponential backoff, see {@link RetryPolicy};
+ * the 'Last-Event-ID' is sent when the server sends event ids. '429' and '5xx' responses are retried,
+ * other errors, e.g. '403 Forbidden' for a bad api key, stop the subscriber.
+ *
+ * Usage:
+<pre>
+    final EventStreamClient client=new EventStreamClient(apiPrefix+"/vehicles?filter[route]=Red")
+        .withApiKey(apiKey)
+        .start(new EventStreamClient.Listener() {
+            public void onOpen() {
+            }
+            public void onEvent(final ServerSentEvent event) {
+                ...
+            }
+        });
+    try {
+        ...
+    }
+    finally {
+        client.close();
+    }
+</pre>
+ */
+public class EventStreamClient implements Closeable {
+    private static final Logger log = LogManager.getLogger(EventStreamClient.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+
+    public static final String CONTENT_TYPE="text/event-stream";
+    public static final int DEFAULT_QUEUE_CAPACITY=1024;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS=10*1000;
+    public static final int DEFAULT_IDLE_TIMEOUT_MILLIS=90*1000;
+    public static final long DEFAULT_RECONNECT_MILLIS=1000;
+    public static final long DEFAULT_MAX_RECONNECT_MILLIS=60*1000;
+
+    public interface Listener {
+        /** a connection was opened, the events which follow are from the new connection */
+        void onOpen();
+
+        /** called from the dispatcher thread, one event at a time */
+        void onEvent(ServerSentEvent event) throws Exception;
+    }
+
+    // queued before the events of each connection, for Listener.onOpen
+    private static final ServerSentEvent OPEN=new ServerSentEvent("", "", null);
+    // queued by close, to stop the dispatcher
+    private static final ServerSentEvent CLOSED=new ServerSentEvent("", "", null);
+
+    private final String url;
+    private final LinkedHashMap<String,String> withHeaders=new LinkedHashMap<String,String>();
+    private int queueCapacity=DEFAULT_QUEUE_CAPACITY;
+    private int maxEventChars=EventStreamReader.DEFAULT_MAX_EVENT_CHARS;
+    private int connectTimeoutMillis=DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int idleTimeoutMillis=DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private RetryPolicy retryPolicy=new RetryPolicy().withBackoff(DEFAULT_RECONNECT_MILLIS, DEFAULT_MAX_RECONNECT_MILLIS);
+
+    private BlockingQueue<ServerSentEvent> queue=null;
+    private CloseableHttpClient httpClient=null;
+    private Thread readerThread=null;
+    private Thread dispatcherThread=null;
+    private volatile boolean closed=false;
+    private volatile boolean connected=false;
+    private volatile HttpGet current=null;
+    private String lastEventId=null;
+    // the reconnect time from the server's 'retry' field
+    private long reconnectMillis=DEFAULT_RECONNECT_MILLIS;
+
+    private final AtomicLong numConnects=new AtomicLong();
+    private final AtomicLong numEvents=new AtomicLong();
+    private final AtomicLong numOversized=new AtomicLong();
+    private final AtomicLong numQueueFull=new AtomicLong();
+    private final AtomicLong numListenerErrors=new AtomicLong();
+    private volatile int maxQueueSize=0;
+
+    public EventStreamClient(final String url) {
+        this.url=url;
+    }
+
+    protected void checkNotStarted() {
+        if (readerThread != null) {
+            throw new IllegalStateException("already started");
+        }
+    }
+
+    public EventStreamClient withHeader(final String key, final String value) {
+        withHeaders.put(key, value);
+        return this;
+    }
+
+    public EventStreamClient withApiKey(final String apiKey) {
+        return withHeader("x-api-key", apiKey);
+    }
+
+    /** the max number of events waiting for the listener, when it is full the reader waits */
+    public EventStreamClient withQueueCapacity(final int queueCapacity) {
+        checkNotStarted();
+        this.queueCapacity=queueCapacity;
+        return this;
+    }
+
+    /** events with more data are skipped, see {@link EventStreamReader} */
+    public EventStreamClient withMaxEventChars(final int maxEventChars) {
+        this.maxEventChars=maxEventChars;
+        return this;
+    }
+
+    public EventStreamClient withConnectTimeout(final int connectTimeoutMillis) {
+        checkNotStarted();
+        this.connectTimeoutMillis=connectTimeoutMillis;
+        return this;
+    }
+
+    /** reconnect when nothing, not even a keep-alive comment, is received for this long */
+    public EventStreamClient withIdleTimeout(final int idleTimeoutMillis) {
+        checkNotStarted();
+        this.idleTimeoutMillis=idleTimeoutMillis;
+        return this;
+    }
+
+    /** the backoff between failed connections, the max number of attempts is ignored, it reconnects until closed */
+    public EventStreamClient withRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy=retryPolicy;
+        return this;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Connect, and pass the events to the listener, from the dispatcher thread, until closed.
+     */
+    public synchronized EventStreamClient start(final Listener listener) {
+        checkNotStarted();
+        if (closed) {
+            throw new IllegalStateException("closed");
+        }
+        queue=new ArrayBlockingQueue<ServerSentEvent>(queueCapacity);
+        httpClient=HttpClients.custom()
+            // events are passed on as they arrive, don't buffer them in a decompressor
+            .disableContentCompression()
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(idleTimeoutMillis)
+                .build())
+            .build();
+        dispatcherThread=new Thread(new Runnable() {
+            public void run() {
+                dispatch(listener);
+            }
+        }, "event-stream-dispatcher");
+        dispatcherThread.setDaemon(true);
+        readerThread=new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "event-stream-reader");
+        readerThread.setDaemon(true);
+        dispatcherThread.start();
+        readerThread.start();
+        return this;
+    }
+
+    private void read() {
+        int failures=0;
+        while (!closed) {
+            long delay;
+            final HttpGet get=new HttpGet(url);
+            get.setHeader("Accept", CONTENT_TYPE);
+            get.setHeader("Cache-Control", "no-cache");
+            for(final Entry<String,String> entry : withHeaders.entrySet()) {
+                get.setHeader(entry.getKey(), entry.getValue());
+            }
+            if (lastEventId != null) {
+                get.setHeader("Last-Event-ID", lastEventId);
+            }
+            current=get;
+            try {
+                final CloseableHttpResponse response=httpClient.execute(get);
+                try {
+                    final int statusCode=response.getStatusLine().getStatusCode();
+                    if (statusCode == HttpStatus.SC_OK) {
+                        final boolean received=readEvents(response);
+                        failures=received ? 0 : failures+1;
+                        delay=received ? reconnectMillis : Math.max(reconnectMillis, retryPolicy.backoffMillis(failures));
+                        log.debug("stream closed, url="+url+", reconnecting in "+delay+" ms");
+                    }
+                    else if (retryPolicy.isRetryable(statusCode)) {
+                        ++failures;
+                        delay=RetryPolicy.retryAfterMillis(response, System.currentTimeMillis());
+                        if (delay < 0) {
+                            delay=retryPolicy.backoffMillis(failures);
+                        }
+                        log.warn("stream failed, url="+url+", status="+response.getStatusLine()+", reconnecting in "+delay+" ms");
+                    }
+                    else {
+                        log.error("stream failed, url="+url+", status="+response.getStatusLine()+", not reconnecting");
+                        break;
+                    }
+                }
+                finally {
+                    connected=false;
+                    response.close();
+                }
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                ++failures;
+                delay=retryPolicy.backoffMillis(failures);
+                log.warn("stream failed, url="+url+", reconnecting in "+delay+" ms: "+e);
+            }
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+        }
+        current=null;
+    }
+
+    /**
+     * Read the events of one connection into the queue.
+     * @return true if any events were received
+     */
+    private boolean readEvents(final CloseableHttpResponse response) throws IOException, InterruptedException {
+        numConnects.incrementAndGet();
+        connected=true;
+        enqueue(OPEN);
+        final EventStreamReader reader=new EventStreamReader(
+            new BufferedReader(new InputStreamReader(response.getEntity().getContent(), UTF_8)), maxEventChars, lastEventId);
+        boolean received=false;
+        try {
+            ServerSentEvent event;
+            while (!closed && (event=reader.next()) != null) {
+                received=true;
+                lastEventId=reader.getLastEventId();
+                enqueue(event);
+            }
+        }
+        finally {
+            numOversized.addAndGet(reader.getNumOversized());
+            if (reader.getRetryMillis() >= 0) {
+                reconnectMillis=reader.getRetryMillis();
+            }
+        }
+        return received;
+    }
+
+    private void enqueue(final ServerSentEvent event) throws InterruptedException {
+        if (!queue.offer(event)) {
+            // backpressure, wait for the listener
+            numQueueFull.incrementAndGet();
+            queue.put(event);
+        }
+        final int size=queue.size();
+        if (size > maxQueueSize) {
+            maxQueueSize=size;
+        }
+    }
+
+    private void dispatch(final Listener listener) {
+        while (true) {
+            final ServerSentEvent event;
+            try {
+                event=queue.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (event == CLOSED) {
+                return;
+            }
+            try {
+                if (event == OPEN) {
+                    listener.onOpen();
+                }
+                else {
+                    numEvents.incrementAndGet();
+                    listener.onEvent(event);
+                }
+            }
+            catch (Throwable t) {
+                numListenerErrors.incrementAndGet();
+                log.error("Error handling event="+event+", url="+url, t);
+            }
+        }
+    }
+
+    /**
+     * Stop reading and dispatching, the events which are still queued are dropped.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed=true;
+        final HttpGet get=current;
+        if (get != null) {
+            get.abort();
+        }
+        if (readerThread != null) {
+            readerThread.interrupt();
+            try {
+                readerThread.join(connectTimeoutMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            queue.clear();
+            queue.offer(CLOSED);
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            }
+            catch (IOException e) {
+                log.debug("Error closing http client", e);
+            }
+        }
+    }
+
+    /** true while a connection is open */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /** the number of connections which were opened */
+    public long getNumConnects() {
+        return numConnects.get();
+    }
+
+    /** the number of events passed to the listener */
+    public long getNumEvents() {
+        return numEvents.get();
+    }
+
+    /** the number of events which were skipped for being larger than maxEventChars */
+    public long getNumOversized() {
+        return numOversized.get();
+    }
+
+    /** the number of times the reader waited for the listener */
+    public long getNumQueueFull() {
+        return numQueueFull.get();
+    }
+
+    /** the number of events for which the listener failed */
+    public long getNumListenerErrors() {
+        return numListenerErrors.get();
+    }
+
+    /** the max number of events which were waiting for the listener */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+}
@@ -0,0 +1,169 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Parser for a 'text/event-stream' response, one event at a time, as in the html spec for server-sent events.
+ *
+ * Memory use is bounded: an event with more than maxEventChars of data is skipped, without buffering
+ * the rest of it, and counted, see {@link #getNumOversized()}. The underlying reader should be buffered.
+ */
+public class EventStreamReader {
+    public static final int DEFAULT_MAX_EVENT_CHARS=8*1024*1024;
+
+    private final Reader in;
+    private final int maxEventChars;
+
+    private final StringBuilder line=new StringBuilder();
+    private final StringBuilder data=new StringBuilder();
+    private String type=null;
+    private boolean oversized=false;
+    // the previous char was '\r', so skip a following '\n'
+    private boolean afterCr=false;
+
+    private String lastEventId;
+    private long retryMillis=-1;
+    private long numOversized=0;
+    private long numComments=0;
+
+    public EventStreamReader(final Reader in) {
+        this(in, DEFAULT_MAX_EVENT_CHARS, null);
+    }
+
+    /**
+     * @param lastEventId the id of the last event from an earlier connection, or null
+     */
+    public EventStreamReader(final Reader in, final int maxEventChars, final String lastEventId) {
+        this.in=in;
+        this.maxEventChars=maxEventChars;
+        this.lastEventId=lastEventId;
+    }
+
+    /**
+     * Read the next event, blocking until it is complete.
+     * @return the event, or null at the end of the stream; an incomplete last event is discarded
+     */
+    public ServerSentEvent next() throws IOException {
+        while (readLine()) {
+            if (line.length() == 0) {
+                final ServerSentEvent event=dispatch();
+                if (event != null) {
+                    return event;
+                }
+                continue;
+            }
+            if (line.charAt(0) == ':') {
+                // a comment, e.g. a keep-alive
+                ++numComments;
+                continue;
+            }
+            final int colon=line.indexOf(":");
+            final String field=colon < 0 ? line.toString() : line.substring(0, colon);
+            int start=colon < 0 ? line.length() : colon+1;
+            if (start < line.length() && line.charAt(start) == ' ') {
+                ++start;
+            }
+            if ("data".equals(field)) {
+                if (!oversized) {
+                    if (data.length()+line.length()-start+1 > maxEventChars) {
+                        oversized=true;
+                        data.setLength(0);
+                    }
+                    else {
+                        data.append(line, start, line.length()).append('\n');
+                    }
+                }
+            }
+            else if ("event".equals(field)) {
+                type=line.substring(start);
+            }
+            else if ("id".equals(field)) {
+                if (line.indexOf("\0", start) < 0) {
+                    lastEventId=line.substring(start);
+                }
+            }
+            else if ("retry".equals(field)) {
+                try {
+                    retryMillis=Long.parseLong(line.substring(start));
+                }
+                catch (NumberFormatException e) {
+                    // ignored, as in the spec
+                }
+            }
+        }
+        return null;
+    }
+
+    private ServerSentEvent dispatch() {
+        final String eventType=type == null || type.isEmpty() ? ServerSentEvent.DEFAULT_TYPE : type;
+        type=null;
+        if (oversized) {
+            oversized=false;
+            ++numOversized;
+            return null;
+        }
+        if (data.length() == 0) {
+            return null;
+        }
+        // drop the last '\n'
+        final String eventData=data.substring(0, data.length()-1);
+        data.setLength(0);
+        return new ServerSentEvent(eventType, eventData, lastEventId);
+    }
+
+    /**
+     * Read a line, ended by '\r\n', '\n' or '\r', into 'line'; a line which is longer than
+     * maxEventChars is truncated, and skips the rest of the event.
+     * @return false at the end of the stream
+     */
+    private boolean readLine() throws IOException {
+        line.setLength(0);
+        while (true) {
+            final int c=in.read();
+            if (c < 0) {
+                return false;
+            }
+            if (afterCr) {
+                afterCr=false;
+                if (c == '\n') {
+                    continue;
+                }
+            }
+            if (c == '\n') {
+                return true;
+            }
+            if (c == '\r') {
+                afterCr=true;
+                return true;
+            }
+            if (line.length() < maxEventChars) {
+                line.append((char) c);
+            }
+            else {
+                oversized=true;
+            }
+        }
+    }
+
+    /** the id of the last event, to send as 'Last-Event-ID' when reconnecting, or null */
+    public String getLastEventId() {
+        return lastEventId;
+    }
+
+    /** the reconnection time requested by the server, or -1 if it did not say */
+    public long getRetryMillis() {
+        return retryMillis;
+    }
+
+    /** the number of events which were skipped for being larger than maxEventChars */
+    public long getNumOversized() {
+        return numOversized;
+    }
+
+    /** the number of comment lines, e.g. keep-alives */
+    public long getNumComments() {
+        return numComments;
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.net.URI;
+
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+
+/**
+ * Records the per-endpoint request metrics for the RestClient and the AsyncRestClient.
+ * The endpoint is the path of the request, without the query, e.g. '/stops'.
+ <pre>
+     http.latency:{path}      timer, from the first attempt until the response is read or the request fails, including retries
+     http.status.{code}:{path} counter, for each response, including the retried ones
+     http.io_errors:{path}    counter, for each attempt which failed without a response
+     http.retries:{path}      counter
+     http.failures:{path}     counter, for each request which failed after retries
+     http.bytes:{path}        counter, response body bytes as transferred
+     http.content_bytes:{path} counter, response body bytes after decompression
+ </pre>
+ */
+class HttpMetrics {
+    private final MetricsRegistry registry;
+
+    HttpMetrics(final MetricsRegistry registry) {
+        this.registry=registry;
+    }
+
+    MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    static String endpoint(final URI uri) {
+        final String path=uri.getPath();
+        return path == null || path.isEmpty() ? "/" : path;
+    }
+
+    void onStatus(final URI uri, final int statusCode) {
+        registry.counter("http.status."+statusCode+":"+endpoint(uri)).increment();
+    }
+
+    void onIoError(final URI uri) {
+        registry.counter("http.io_errors:"+endpoint(uri)).increment();
+    }
+
+    void onRetry(final URI uri) {
+        registry.counter("http.retries:"+endpoint(uri)).increment();
+    }
+
+    void onTransfer(final URI uri, final long transferred, final long content) {
+        final String endpoint=endpoint(uri);
+        registry.counter("http.bytes:"+endpoint).add(transferred);
+        registry.counter("http.content_bytes:"+endpoint).add(content);
+    }
+
+    /** record the latency of the request, and count it when it failed */
+    void onComplete(final URI uri, final long startNanos, final boolean success) {
+        final String endpoint=endpoint(uri);
+        registry.timer("http.latency:"+endpoint).stop(startNanos);
+        if (!success) {
+            registry.counter("http.failures:"+endpoint).increment();
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming reader for the top-level "data" of a JSON:API document.
+ * Each resource is passed to the callback as soon as it is read, keeping only the 
+ * selected attributes and relationships, so memory use is bounded by the size of 
+ * one resource rather than the whole response.
+ * 
+ * Usage:
+<pre>
+    client.getJson(endpoint, new JsonApiReader(
+        ImmutableSet.of("name"),
+        ImmutableSet.of("parent_station"),
+        new JsonApiReader.Callback() {
+            public void onResource(final JsonApiResource resource) {
+                ...
+            }
+        }));
+</pre>
+ */
+public class JsonApiReader implements JsonStreamHandler<Integer> {
+
+    public interface Callback {
+        void onResource(JsonApiResource resource) throws RestClientException;
+    }
+
+    private final ImmutableSet<String> attributeNames;
+    private final ImmutableSet<String> relationshipNames;
+    private final Callback callback;
+
+    public JsonApiReader(final Set<String> attributeNames, final Callback callback) {
+        this(attributeNames, ImmutableSet.<String>of(), callback);
+    }
+
+    public JsonApiReader(final Set<String> attributeNames, final Set<String> relationshipNames, final Callback callback) {
+        this.attributeNames=ImmutableSet.copyOf(attributeNames);
+        this.relationshipNames=ImmutableSet.copyOf(relationshipNames);
+        this.callback=callback;
+    }
+
+    /**
+     * Read the document, skipping everything but the "data" member.
+     * @return the number of resources passed to the callback
+     */
+    public Integer read(final JsonReader reader) throws IOException, RestClientException {
+        int count=0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name=reader.nextName();
+            if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    callback.onResource(readResource(reader));
+                    ++count;
+                }
+                reader.endArray();
+            }
+            else if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                callback.onResource(readResource(reader));
+                ++count;
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+
+    /**
+     * Read a bare resource, or an array of resources, e.g. the data of a streamed event, see {@link ServerSentEvent}.
+     * @return the number of resources passed to the callback
+     */
+    public int readResources(final JsonReader reader) throws IOException, RestClientException {
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            callback.onResource(readResource(reader));
+            return 1;
+        }
+        int count=0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            callback.onResource(readResource(reader));
+            ++count;
+        }
+        reader.endArray();
+        return count;
+    }
+
+    protected JsonApiResource readResource(final JsonReader reader) throws IOException {
+        String id=null;
+        String type=null;
+        final Map<String,JsonPrimitive> attributes=new HashMap<String,JsonPrimitive>();
+        final Map<String,String> relationships=new HashMap<String,String>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name=reader.nextName();
+            if ("id".equals(name)) {
+                id=reader.nextString();
+            }
+            else if ("type".equals(name)) {
+                type=reader.nextString();
+            }
+            else if ("attributes".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readAttributes(reader, attributes);
+            }
+            else if ("relationships".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readRelationships(reader, relationships);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new JsonApiResource(id, type, attributes, relationships);
+    }
+
+    private void readAttributes(final JsonReader reader, final Map<String,JsonPrimitive> attributes) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name=reader.nextName();
+            if (!attributeNames.contains(name)) {
+                reader.skipValue();
+                continue;
+            }
+            switch (reader.peek()) {
+            case STRING:
+                attributes.put(name, new JsonPrimitive(reader.nextString()));
+                break;
+            case NUMBER:
+                // keep the number as a string, it is converted on access
+                attributes.put(name, new JsonPrimitive(reader.nextString()));
+                break;
+            case BOOLEAN:
+                attributes.put(name, new JsonPrimitive(reader.nextBoolean()));
+                break;
+            default:
+                // null, or a nested object or array
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readRelationships(final JsonReader reader, final Map<String,String> relationships) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name=reader.nextName();
+            if (!relationshipNames.contains(name) || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            // "{name}": { "data": { "id": ..., "type": ... } }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("data".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("id".equals(reader.nextName())) {
+                            relationships.put(name, reader.nextString());
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A flattened JSON:API resource object, with only the selected attributes 
+ * and the ids of the selected to-one relationships.
+<pre>
+    {
+      "id": "place-alfcl",
+      "type": "stop",
+      "attributes": { "name": "Alewife", ... },
+      "relationships": { "parent_station": { "data": { "id": ..., "type": "stop" } }, ... }
+    }
+</pre>
+ * 
+ * @see JsonApiReader
+ */
+public class JsonApiResource {
+    private final String id;
+    private final String type;
+    private final ImmutableMap<String,JsonPrimitive> attributes;
+    private final ImmutableMap<String,String> relationships;
+
+    public JsonApiResource(final String id, final String type, final Map<String,JsonPrimitive> attributes, final Map<String,String> relationships) {
+        this.id=id;
+        this.type=type;
+        this.attributes=ImmutableMap.copyOf(attributes);
+        this.relationships=ImmutableMap.copyOf(relationships);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /** get the attribute as a String, or null if it is missing or null */
+    public String getString(final String name) {
+        final JsonPrimitive value=attributes.get(name);
+        if (value == null) {
+            return null;
+        }
+        return value.getAsString();
+    }
+
+    /** get the attribute as a double, or the default value if it is missing or null */
+    public double getDouble(final String name, final double defaultValue) {
+        final JsonPrimitive value=attributes.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.getAsDouble();
+    }
+
+    /** get the attribute as an int, or the default value if it is missing or null */
+    public int getInt(final String name, final int defaultValue) {
+        final JsonPrimitive value=attributes.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.getAsInt();
+    }
+
+    /** get the id of the related resource, or null if the relationship is missing or empty */
+    public String getRelatedId(final String relationship) {
+        return relationships.get(relationship);
+    }
+
+    public String toString() {
+        return type+" ("+id+")";
+    }
+
+}
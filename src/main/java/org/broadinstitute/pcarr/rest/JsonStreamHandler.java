@@ -0,0 +1,19 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Callback to read a JSON response one token at a time, 
+ * without materializing the whole document as a JsonObject.
+ * 
+ * @see RestClient#getJson(String, JsonStreamHandler)
+ */
+public interface JsonStreamHandler<T> {
+    /**
+     * Read the response from the given reader, which is positioned before the first token.
+     * The calling method closes the reader.
+     */
+    T read(JsonReader reader) throws IOException, RestClientException;
+}
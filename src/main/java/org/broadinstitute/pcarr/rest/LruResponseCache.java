@@ -0,0 +1,120 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory response cache, bounded by the total size of the cached bodies,
+ * which evicts the least recently used entries first.
+ * Optionally backed by a second tier, e.g. a {@link DiskResponseCache}, which is checked on a 
+ * miss and keeps the entries that are evicted from memory.
+ */
+public class LruResponseCache implements ResponseCache {
+    public static final long DEFAULT_MAX_BYTES=16L*1024*1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String,CachedResponse> entries=new LinkedHashMap<String,CachedResponse>(16, 0.75f, true);
+    private long numBytes=0;
+    private ResponseCache secondTier=null;
+
+    private long hitCount=0;
+    private long missCount=0;
+    private long evictionCount=0;
+
+    public LruResponseCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public LruResponseCache(final long maxBytes) {
+        this.maxBytes=maxBytes;
+    }
+
+    public LruResponseCache withSecondTier(final ResponseCache secondTier) {
+        this.secondTier=secondTier;
+        return this;
+    }
+
+    public CachedResponse get(final String key) {
+        synchronized (this) {
+            final CachedResponse response=entries.get(key);
+            if (response != null) {
+                ++hitCount;
+                return response;
+            }
+        }
+        if (secondTier != null) {
+            final CachedResponse response=secondTier.get(key);
+            if (response != null) {
+                synchronized (this) {
+                    ++hitCount;
+                    putInMemory(response);
+                }
+                return response;
+            }
+        }
+        synchronized (this) {
+            ++missCount;
+        }
+        return null;
+    }
+
+    public void put(final CachedResponse response) {
+        synchronized (this) {
+            putInMemory(response);
+        }
+        if (secondTier != null) {
+            secondTier.put(response);
+        }
+    }
+
+    public void remove(final String key) {
+        synchronized (this) {
+            final CachedResponse removed=entries.remove(key);
+            if (removed != null) {
+                numBytes-=removed.getSize();
+            }
+        }
+        if (secondTier != null) {
+            secondTier.remove(key);
+        }
+    }
+
+    private void putInMemory(final CachedResponse response) {
+        final CachedResponse prev=entries.put(response.getKey(), response);
+        if (prev != null) {
+            numBytes-=prev.getSize();
+        }
+        numBytes+=response.getSize();
+        // evict least recently used entries, in access order
+        final Iterator<Map.Entry<String,CachedResponse>> it=entries.entrySet().iterator();
+        while (numBytes > maxBytes && it.hasNext()) {
+            final CachedResponse eldest=it.next().getValue();
+            it.remove();
+            numBytes-=eldest.getSize();
+            ++evictionCount;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** the total size of the entries in memory */
+    public synchronized long getNumBytes() {
+        return numBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Recorded response bodies, one file per request in a directory, for replaying
+ * a REST service without a network connection, see {@link StandInServer}.
+ *
+ * A request is identified by its path and decoded query, with the query parameters in sorted order,
+ * so that e.g. 'filter%5Broute%5D=Red' and 'filter[route]=Red' match the same recording.
+ * The file name is the key with unsafe characters replaced, followed by a hash of the key,
+ * e.g. 'stops_filter-direction_id-=0&filter-route-=Red-1a2b3c4d.json'.
+ */
+public class RecordedResponses {
+    private static final Logger log = LogManager.getLogger(RecordedResponses.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+    // the number of key characters kept in the file name
+    private static final int MAX_NAME_LENGTH=96;
+
+    private final File dir;
+
+    public RecordedResponses(final File dir) {
+        this.dir=dir;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Get the recording key for a request.
+     * @param path the request path, e.g. '/stops'
+     * @param query the decoded query, e.g. 'filter[route]=Red', or null
+     */
+    public static String key(final String path, final String query) {
+        if (Strings.isNullOrEmpty(query)) {
+            return path;
+        }
+        final String[] params=query.split("&");
+        Arrays.sort(params);
+        return path+"?"+Joiner.on("&").join(params);
+    }
+
+    /**
+     * Get the recording key for a fully-qualified endpoint, e.g. 'https://api-v3.mbta.com/stops?filter[route]=Red'.
+     */
+    public static String key(final String endpoint) throws URISyntaxException {
+        final URI uri=new URI(endpoint);
+        return key(uri.getPath(), uri.getQuery());
+    }
+
+    protected File fileFor(final String key) {
+        String name=key.replaceAll("^/+", "").replace('?', '_').replaceAll("[^A-Za-z0-9_.,=&-]", "-");
+        if (name.length() > MAX_NAME_LENGTH) {
+            name=name.substring(0, MAX_NAME_LENGTH);
+        }
+        final String hash=Hashing.sha256().hashString(key, UTF_8).toString().substring(0, 8);
+        return new File(dir, name+"-"+hash+".json");
+    }
+
+    public boolean contains(final String key) {
+        return fileFor(key).canRead();
+    }
+
+    /**
+     * Get the recorded response body, or null if there is no recording.
+     */
+    public byte[] get(final String key) {
+        final File file=fileFor(key);
+        if (!file.canRead()) {
+            return null;
+        }
+        try {
+            return Files.toByteArray(file);
+        }
+        catch (IOException e) {
+            log.debug("Error reading recorded response, file="+file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the response body, replacing the earlier recording if there is one.
+     */
+    public void put(final String key, final byte[] body) throws IOException {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        final File file=fileFor(key);
+        final File tmp=new File(file.getPath()+".tmp");
+        Files.write(body, tmp);
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,18 @@
+package org.broadinstitute.pcarr.rest;
+
+/**
+ * Pluggable cache of response bodies for the RestClient, keyed by request URI and headers.
+ * Implementations must be thread-safe.
+ * 
+ * @see RestClient#withResponseCache(ResponseCache)
+ * @see LruResponseCache
+ * @see DiskResponseCache
+ */
+public interface ResponseCache {
+    /** get the cached response, or null if there is none */
+    CachedResponse get(String key);
+
+    void put(CachedResponse response);
+
+    void remove(String key);
+}
@@ -0,0 +1,157 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * When and how long to wait before retrying a failed request, see {@link RestClient#withRetryPolicy(RetryPolicy)}.
+ *
+ * Connection errors and '429 Too Many Requests', '500', '502', '503' and '504' responses are retried,
+ * up to maxAttempts in total. The wait is the server's 'Retry-After' header when there is one,
+ * or the time to the 'x-ratelimit-reset' of an exhausted rate limit; otherwise an exponential backoff
+ * with full jitter, a random time between 0 and min(maxDelay, baseDelay * 2^retry), so that clients
+ * which failed together don't retry together.
+ * The wait is bounded: a server which asks to wait longer than maxRetryAfter is not retried.
+ */
+public class RetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS=3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS=200;
+    public static final long DEFAULT_MAX_DELAY_MILLIS=5*1000;
+    public static final long DEFAULT_MAX_RETRY_AFTER_MILLIS=30*1000;
+
+    /** a policy which never retries */
+    public static RetryPolicy none() {
+        return new RetryPolicy().withMaxAttempts(1);
+    }
+
+    private int maxAttempts=DEFAULT_MAX_ATTEMPTS;
+    private long baseDelayMillis=DEFAULT_BASE_DELAY_MILLIS;
+    private long maxDelayMillis=DEFAULT_MAX_DELAY_MILLIS;
+    private long maxRetryAfterMillis=DEFAULT_MAX_RETRY_AFTER_MILLIS;
+
+    /** the max number of attempts, including the first one */
+    public RetryPolicy withMaxAttempts(final int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be >= 1, maxAttempts="+maxAttempts);
+        }
+        this.maxAttempts=maxAttempts;
+        return this;
+    }
+
+    /** the backoff before the first retry, doubled for each retry, and capped at maxDelay */
+    public RetryPolicy withBackoff(final long baseDelayMillis, final long maxDelayMillis) {
+        this.baseDelayMillis=baseDelayMillis;
+        this.maxDelayMillis=maxDelayMillis;
+        return this;
+    }
+
+    /** the longest 'Retry-After' to wait for, longer waits fail right away */
+    public RetryPolicy withMaxRetryAfter(final long maxRetryAfterMillis) {
+        this.maxRetryAfterMillis=maxRetryAfterMillis;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getMaxRetryAfterMillis() {
+        return maxRetryAfterMillis;
+    }
+
+    public boolean isRetryable(final int statusCode) {
+        switch (statusCode) {
+        case 429:
+        case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+        case HttpStatus.SC_BAD_GATEWAY:
+        case HttpStatus.SC_SERVICE_UNAVAILABLE:
+        case HttpStatus.SC_GATEWAY_TIMEOUT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * The random backoff before the given retry, 1 for the first retry.
+     */
+    public long backoffMillis(final int retry) {
+        final long ceiling=Math.min(maxDelayMillis, baseDelayMillis << Math.min(retry-1, 30));
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling+1);
+    }
+
+    /**
+     * The wait before the given retry after a failed response, 1 for the first retry;
+     * or -1 if the request should not be retried.
+     */
+    public long delayMillis(final int retry, final HttpResponse response) {
+        if (retry >= maxAttempts) {
+            return -1;
+        }
+        final long retryAfter=retryAfterMillis(response, System.currentTimeMillis());
+        if (retryAfter > maxRetryAfterMillis) {
+            return -1;
+        }
+        if (retryAfter >= 0) {
+            return retryAfter;
+        }
+        return backoffMillis(retry);
+    }
+
+    /**
+     * The wait requested by the server, from the 'Retry-After' header, in seconds or as an http date,
+     * or from the 'x-ratelimit-reset' header, in epoch seconds, when 'x-ratelimit-remaining' is 0;
+     * or -1 if the server did not say.
+     */
+    public static long retryAfterMillis(final HttpResponse response, final long nowMillis) {
+        final Header retryAfter=response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            final String value=retryAfter.getValue().trim();
+            try {
+                return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+            }
+            catch (NumberFormatException e) {
+                final Date date=DateUtils.parseDate(value);
+                if (date != null) {
+                    return Math.max(0, date.getTime()-nowMillis);
+                }
+            }
+        }
+        final long resetMillis=rateLimitResetMillis(response);
+        if (resetMillis >= 0) {
+            return Math.max(0, resetMillis-nowMillis);
+        }
+        return -1;
+    }
+
+    /**
+     * When the 'x-ratelimit-remaining' header is 0, the time the rate limit is reset,
+     * in milliseconds since the epoch, from the 'x-ratelimit-reset' header; otherwise -1.
+     */
+    public static long rateLimitResetMillis(final HttpResponse response) {
+        final Header remaining=response.getFirstHeader("x-ratelimit-remaining");
+        final Header reset=response.getFirstHeader("x-ratelimit-reset");
+        if (remaining == null || reset == null) {
+            return -1;
+        }
+        try {
+            if (Long.parseLong(remaining.getValue().trim()) > 0) {
+                return -1;
+            }
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(reset.getValue().trim()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
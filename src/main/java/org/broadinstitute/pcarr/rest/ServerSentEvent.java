@@ -0,0 +1,39 @@
+package org.broadinstitute.pcarr.rest;
+
+/**
+ * One event from a 'text/event-stream' response, see {@link EventStreamReader}.
+ * The MBTA api streams 'reset', 'add', 'update' and 'remove' events, with JSON:API resources as the data.
+ */
+public class ServerSentEvent {
+    /** the type of an event without an 'event' field */
+    public static final String DEFAULT_TYPE="message";
+
+    private final String type;
+    private final String data;
+    private final String id;
+
+    public ServerSentEvent(final String type, final String data, final String id) {
+        this.type=type;
+        this.data=data;
+        this.id=id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /** the data lines, joined with '\n' */
+    public String getData() {
+        return data;
+    }
+
+    /** the last event id, or null if the stream did not send one */
+    public String getId() {
+        return id;
+    }
+
+    public String toString() {
+        return type+" ("+data.length()+" chars)";
+    }
+
+}
@@ -0,0 +1,583 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for a JSON:API service, such as the MBTA v3 api, which serves
+ * {@link RecordedResponses} over http, for offline tests and repeatable load tests.
+ *
+ * Faults can be injected, to exercise the client's concurrency and error handling:
+ * a random latency for each response, a rate of '500 Internal Server Error' responses,
+ * a rate of connections closed without a response,
+ * and a request rate limit, over which requests are rejected with '429 Too Many Requests'
+ * and the same 'x-ratelimit-*' and 'Retry-After' headers as the MBTA service.
+ * Responses are gzip compressed when the client accepts it, as by the MBTA service.
+ * Random choices are made with a seeded generator, so a run with the same requests in the
+ * same order injects the same faults.
+ *
+ * In record mode, requests without a recording are forwarded to the upstream service,
+ * with the request's 'x-api-key' header, and successful responses are saved.
+ *
+ * Paths registered with {@link #withEventStream(String)} are served as 'text/event-stream' to clients
+ * which accept it, like the MBTA api's streaming '/vehicles' and '/predictions'. Events are sent to the
+ * connected clients with {@link #publish(String, String, String)}, each new client first gets the last
+ * 'reset' event, and {@link #disconnectStreams()} drops the connections, to test reconnecting.
+ *
+ * Usage:
+<pre>
+    final StandInServer server=new StandInServer(new RecordedResponses(dir))
+        .withLatency(20, 80)
+        .withErrorRate(0.05);
+    final RestClient client=new RestClient()
+        .withApiPrefix(server.start());
+    try {
+        ...
+    }
+    finally {
+        server.stop();
+    }
+</pre>
+ * Or from the command line, see {@link #main(String[])}.
+ */
+public class StandInServer {
+    private static final Logger log = LogManager.getLogger(StandInServer.class);
+    private static final Charset UTF_8=Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE="application/vnd.api+json";
+    // a comment line, sent to idle event streams
+    private static final String KEEP_ALIVE=":\n";
+    // queued to end an event stream
+    private static final String END_OF_STREAM="";
+
+    private final RecordedResponses recordings;
+    private String host="127.0.0.1";
+    private int port=0;
+    private long minLatencyMillis=0;
+    private long maxLatencyMillis=0;
+    private double errorRate=0;
+    private double dropRate=0;
+    private int rateLimit=0;
+    private Random random=new Random(0);
+    private String upstreamPrefix=null;
+    private boolean compression=true;
+    private long keepAliveMillis=15*1000;
+
+    // event stream path -> the queues of the connected clients
+    private final ConcurrentHashMap<String,List<BlockingQueue<String>>> streams=new ConcurrentHashMap<String,List<BlockingQueue<String>>>();
+    // event stream path -> the last 'reset' event
+    private final ConcurrentHashMap<String,String> resets=new ConcurrentHashMap<String,String>();
+
+    private HttpServer server=null;
+    private ExecutorService exec=null;
+    private CloseableHttpClient upstream=null;
+
+    // fixed one second rate limit window
+    private long windowStartMillis=0;
+    private int windowCount=0;
+
+    private final AtomicLong numRequests=new AtomicLong();
+    private final AtomicLong numNotFound=new AtomicLong();
+    private final AtomicLong numNotModified=new AtomicLong();
+    private final AtomicLong numErrors=new AtomicLong();
+    private final AtomicLong numDropped=new AtomicLong();
+    private final AtomicLong numThrottled=new AtomicLong();
+    private final AtomicLong numRecorded=new AtomicLong();
+    private final AtomicLong numStreams=new AtomicLong();
+    private final AtomicLong numEvents=new AtomicLong();
+
+    public StandInServer(final RecordedResponses recordings) {
+        this.recordings=recordings;
+    }
+
+    protected void checkNotStarted() {
+        if (server != null) {
+            throw new IllegalStateException("server already started");
+        }
+    }
+
+    /** the port to listen on, by default 0, for any free port */
+    public StandInServer withPort(final int port) {
+        checkNotStarted();
+        this.port=port;
+        return this;
+    }
+
+    /** the address to listen on, by default '127.0.0.1' */
+    public StandInServer withHost(final String host) {
+        checkNotStarted();
+        this.host=host;
+        return this;
+    }
+
+    /** delay each response by a random time between min and max milliseconds */
+    public StandInServer withLatency(final long minMillis, final long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("invalid latency, min="+minMillis+", max="+maxMillis);
+        }
+        this.minLatencyMillis=minMillis;
+        this.maxLatencyMillis=maxMillis;
+        return this;
+    }
+
+    /** the fraction of requests, between 0 and 1, which fail with '500 Internal Server Error' */
+    public StandInServer withErrorRate(final double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("invalid errorRate="+errorRate);
+        }
+        this.errorRate=errorRate;
+        return this;
+    }
+
+    /** the fraction of requests, between 0 and 1, for which the connection is closed without a response */
+    public StandInServer withDropRate(final double dropRate) {
+        if (dropRate < 0 || dropRate > 1) {
+            throw new IllegalArgumentException("invalid dropRate="+dropRate);
+        }
+        this.dropRate=dropRate;
+        return this;
+    }
+
+    /** the max number of requests per second, over which requests fail with '429 Too Many Requests'; 0 for no limit */
+    public StandInServer withRateLimit(final int requestsPerSecond) {
+        this.rateLimit=requestsPerSecond;
+        return this;
+    }
+
+    /** gzip the responses when the client accepts it, by default true */
+    public StandInServer withCompression(final boolean compression) {
+        this.compression=compression;
+        return this;
+    }
+
+    /** the seed for the injected latency and errors */
+    public StandInServer withSeed(final long seed) {
+        this.random=new Random(seed);
+        return this;
+    }
+
+    /** forward requests without a recording to the upstream service, e.g. 'https://api-v3.mbta.com', and save the responses */
+    public StandInServer withRecording(final String upstreamPrefix) {
+        checkNotStarted();
+        this.upstreamPrefix=upstreamPrefix;
+        return this;
+    }
+
+    /** serve the path, e.g. '/vehicles', as an event stream, for any query */
+    public StandInServer withEventStream(final String path) {
+        streams.putIfAbsent(path, new CopyOnWriteArrayList<BlockingQueue<String>>());
+        return this;
+    }
+
+    /** the time between keep-alive comments on an idle event stream */
+    public StandInServer withKeepAlive(final long keepAliveMillis) {
+        this.keepAliveMillis=keepAliveMillis;
+        return this;
+    }
+
+    /**
+     * Send the event to the clients of the event stream, a 'reset' event is also sent to
+     * the clients which connect later.
+     * @return the number of connected clients
+     */
+    public int publish(final String path, final String event, final String data) {
+        final List<BlockingQueue<String>> clients=streams.get(path);
+        if (clients == null) {
+            throw new IllegalArgumentException("not an event stream: "+path);
+        }
+        final StringBuilder message=new StringBuilder();
+        message.append("event: ").append(event).append('\n');
+        for(final String line : data.split("\n", -1)) {
+            message.append("data: ").append(line).append('\n');
+        }
+        message.append('\n');
+        if ("reset".equals(event)) {
+            resets.put(path, message.toString());
+        }
+        for(final BlockingQueue<String> client : clients) {
+            client.offer(message.toString());
+        }
+        numEvents.incrementAndGet();
+        return clients.size();
+    }
+
+    /** close the connections of all event stream clients */
+    public void disconnectStreams() {
+        for(final List<BlockingQueue<String>> clients : streams.values()) {
+            for(final BlockingQueue<String> client : clients) {
+                client.offer(END_OF_STREAM);
+            }
+        }
+    }
+
+    /** the number of clients connected to the event stream */
+    public int getNumStreamClients(final String path) {
+        final List<BlockingQueue<String>> clients=streams.get(path);
+        return clients == null ? 0 : clients.size();
+    }
+
+    public RecordedResponses getRecordings() {
+        return recordings;
+    }
+
+    /**
+     * Start the server.
+     * @return the api prefix for the clients, e.g. 'http://127.0.0.1:54321'
+     */
+    public synchronized String start() throws IOException {
+        checkNotStarted();
+        exec=Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count=new AtomicInteger();
+            public Thread newThread(final Runnable r) {
+                final Thread thread=new Thread(r, "stand-in-server-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (upstreamPrefix != null) {
+            upstream=HttpClients.createDefault();
+        }
+        server=HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    StandInServer.this.handle(exchange);
+                }
+                catch (IOException e) {
+                    // e.g. the client closed the connection
+                    log.debug("Error sending response="+exchange.getRequestURI(), e);
+                }
+                catch (Throwable t) {
+                    log.error("Error handling request="+exchange.getRequestURI(), t);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(exec);
+        server.start();
+        log.info("stand-in server started, prefix="+getPrefix()+", recordings="+recordings.getDir());
+        return getPrefix();
+    }
+
+    /** the api prefix, e.g. 'http://127.0.0.1:54321', or null if the server is not started */
+    public synchronized String getPrefix() {
+        if (server == null) {
+            return null;
+        }
+        return "http://"+host+":"+server.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        exec.shutdownNow();
+        if (upstream != null) {
+            try {
+                upstream.close();
+            }
+            catch (IOException e) {
+                log.debug("Error closing upstream client", e);
+            }
+            upstream=null;
+        }
+        server=null;
+        exec=null;
+    }
+
+    protected void handle(final HttpExchange exchange) throws IOException, InterruptedException {
+        numRequests.incrementAndGet();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "method_not_allowed");
+            return;
+        }
+        final long latency;
+        final boolean error;
+        final boolean drop;
+        synchronized (random) {
+            latency=minLatencyMillis+(long) (random.nextDouble()*(maxLatencyMillis-minLatencyMillis));
+            error=random.nextDouble() < errorRate;
+            // drawn only when set, so that the other faults are the same as before for a given seed
+            drop=dropRate > 0 && random.nextDouble() < dropRate;
+        }
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (!checkRateLimit(exchange)) {
+            numThrottled.incrementAndGet();
+            sendError(exchange, 429, "rate_limited");
+            return;
+        }
+        if (error) {
+            numErrors.incrementAndGet();
+            sendError(exchange, 500, "internal_error");
+            return;
+        }
+        if (drop) {
+            numDropped.incrementAndGet();
+            // closed before the response headers are sent, the connection is closed
+            exchange.close();
+            return;
+        }
+
+        final List<BlockingQueue<String>> clients=streams.get(exchange.getRequestURI().getPath());
+        final String accept=exchange.getRequestHeaders().getFirst("Accept");
+        if (clients != null && accept != null && accept.contains(EventStreamClient.CONTENT_TYPE)) {
+            stream(exchange, clients);
+            return;
+        }
+
+        final String key=RecordedResponses.key(exchange.getRequestURI().getPath(), exchange.getRequestURI().getQuery());
+        byte[] body=recordings.get(key);
+        if (body == null && upstream != null) {
+            body=record(exchange, key);
+        }
+        if (body == null) {
+            numNotFound.incrementAndGet();
+            log.debug("no recording for key="+key);
+            sendError(exchange, 404, "not_found");
+            return;
+        }
+
+        final String etag="\""+Hashing.sha256().hashBytes(body).toString().substring(0, 16)+"\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            numNotModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        final String acceptEncoding=exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compression && acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            final ByteArrayOutputStream compressed=new ByteArrayOutputStream(body.length/4+64);
+            final GZIPOutputStream gzip=new GZIPOutputStream(compressed);
+            gzip.write(body);
+            gzip.close();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            send(exchange, 200, compressed.toByteArray());
+            return;
+        }
+        send(exchange, 200, body);
+    }
+
+    // send the events to the client, until it disconnects or the stream is ended
+    private void stream(final HttpExchange exchange, final List<BlockingQueue<String>> clients) throws IOException {
+        numStreams.incrementAndGet();
+        final BlockingQueue<String> queue=new LinkedBlockingQueue<String>();
+        final String reset=resets.get(exchange.getRequestURI().getPath());
+        if (reset != null) {
+            queue.offer(reset);
+        }
+        clients.add(queue);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", EventStreamClient.CONTENT_TYPE);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            final OutputStream out=exchange.getResponseBody();
+            while (true) {
+                final String message;
+                try {
+                    message=queue.poll(keepAliveMillis, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    // stopped
+                    break;
+                }
+                if (message == END_OF_STREAM) {
+                    break;
+                }
+                out.write((message == null ? KEEP_ALIVE : message).getBytes(UTF_8));
+                out.flush();
+            }
+            out.close();
+        }
+        finally {
+            clients.remove(queue);
+        }
+    }
+
+    // count the request in the current window, and set the rate limit headers
+    private boolean checkRateLimit(final HttpExchange exchange) {
+        if (rateLimit <= 0) {
+            return true;
+        }
+        final long now=System.currentTimeMillis();
+        final int count;
+        final long resetMillis;
+        synchronized (this) {
+            if (now-windowStartMillis >= 1000) {
+                windowStartMillis=now;
+                windowCount=0;
+            }
+            count=++windowCount;
+            resetMillis=windowStartMillis+1000;
+        }
+        exchange.getResponseHeaders().set("x-ratelimit-limit", Integer.toString(rateLimit));
+        exchange.getResponseHeaders().set("x-ratelimit-remaining", Integer.toString(Math.max(0, rateLimit-count)));
+        exchange.getResponseHeaders().set("x-ratelimit-reset", Long.toString(TimeUnit.MILLISECONDS.toSeconds(resetMillis+999)));
+        if (count <= rateLimit) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(resetMillis-now+999))));
+        return false;
+    }
+
+    // fetch the response from the upstream service, and save it
+    private byte[] record(final HttpExchange exchange, final String key) throws IOException {
+        final HttpGet get=new HttpGet(upstreamPrefix+exchange.getRequestURI().toString());
+        get.setHeader("Accept", CONTENT_TYPE);
+        final String apiKey=exchange.getRequestHeaders().getFirst("x-api-key");
+        if (apiKey != null) {
+            get.setHeader("x-api-key", apiKey);
+        }
+        final HttpResponse response;
+        try {
+            response=upstream.execute(get);
+        }
+        catch (IOException e) {
+            log.warn("not recording key="+key+", upstream request failed: "+e);
+            return null;
+        }
+        try {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                log.warn("not recording key="+key+", upstream status="+response.getStatusLine());
+                return null;
+            }
+            final byte[] body=EntityUtils.toByteArray(response.getEntity());
+            recordings.put(key, body);
+            numRecorded.incrementAndGet();
+            log.info("recorded key="+key);
+            return body;
+        }
+        finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    private static void sendError(final HttpExchange exchange, final int statusCode, final String code) throws IOException {
+        send(exchange, statusCode, ("{\"errors\":[{\"status\":\""+statusCode+"\",\"code\":\""+code+"\"}]}").getBytes(UTF_8));
+    }
+
+    private static void send(final HttpExchange exchange, final int statusCode, final byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(statusCode, body.length);
+        final OutputStream out=exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /** the number of requests without a recording */
+    public long getNumNotFound() {
+        return numNotFound.get();
+    }
+
+    public long getNumNotModified() {
+        return numNotModified.get();
+    }
+
+    /** the number of injected '500' responses */
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    /** the number of connections closed without a response */
+    public long getNumDropped() {
+        return numDropped.get();
+    }
+
+    /** the number of '429' responses */
+    public long getNumThrottled() {
+        return numThrottled.get();
+    }
+
+    /** the number of responses recorded from the upstream service */
+    public long getNumRecorded() {
+        return numRecorded.get();
+    }
+
+    /** the number of event stream connections */
+    public long getNumStreams() {
+        return numStreams.get();
+    }
+
+    /** the number of published events */
+    public long getNumEvents() {
+        return numEvents.get();
+    }
+
+    /**
+     * Run the server from the command line, until it is killed.
+     *   StandInServer {recordingsDir} [{port} [{upstreamPrefix}]]
+     *
+     * Faults are set with system properties:
+     *   -Dstandin.latency={minMillis},{maxMillis}
+     *   -Dstandin.errorRate={0..1}
+     *   -Dstandin.dropRate={0..1}
+     *   -Dstandin.rateLimit={requestsPerSecond}
+     *   -Dstandin.seed={seed}
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: StandInServer {recordingsDir} [{port} [{upstreamPrefix}]]");
+            System.exit(1);
+        }
+        // reply without waiting for the client's delayed ack, before the HttpServer is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        final StandInServer server=new StandInServer(new RecordedResponses(new File(args[0])));
+        if (args.length > 1) {
+            server.withPort(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            server.withRecording(args[2]);
+        }
+        final String latency=System.getProperty("standin.latency");
+        if (latency != null) {
+            final String[] minMax=latency.split(",");
+            server.withLatency(Long.parseLong(minMax[0]), Long.parseLong(minMax[minMax.length-1]));
+        }
+        server.withErrorRate(Double.parseDouble(System.getProperty("standin.errorRate", "0")));
+        server.withDropRate(Double.parseDouble(System.getProperty("standin.dropRate", "0")));
+        server.withRateLimit(Integer.getInteger("standin.rateLimit", 0));
+        server.withSeed(Long.getLong("standin.seed", 0L));
+        System.out.println("Serving "+args[0]+" at "+server.start());
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side rate limiter, to stay under the api key's request quota, see {@link RestClient#withRateLimiter(TokenBucket)}.
+ *
+ * The bucket holds up to 'burst' permits, and is refilled at 'permitsPerSecond'. Each request takes
+ * a permit, waiting for the next one when the bucket is empty, but for no longer than maxWait.
+ * When the server reports that the quota is used up, with 'x-ratelimit-remaining: 0', the bucket
+ * is paused until the 'x-ratelimit-reset' time, so that requests wait on the client instead of
+ * being rejected with '429 Too Many Requests'.
+ */
+public class TokenBucket {
+    public static final long DEFAULT_MAX_WAIT_MILLIS=30*1000;
+
+    private final double permitsPerSecond;
+    private final double capacity;
+    private long maxWaitMillis=DEFAULT_MAX_WAIT_MILLIS;
+
+    private double permits;
+    private long lastRefillNanos;
+    private long pausedUntilMillis=0;
+
+    private final AtomicLong numWaits=new AtomicLong();
+    private final AtomicLong waitMillis=new AtomicLong();
+
+    public TokenBucket(final double permitsPerSecond, final int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate, permitsPerSecond="+permitsPerSecond+", burst="+burst);
+        }
+        this.permitsPerSecond=permitsPerSecond;
+        this.capacity=burst;
+        this.permits=burst;
+        this.lastRefillNanos=System.nanoTime();
+    }
+
+    /** the longest wait for a permit, longer waits fail right away */
+    public TokenBucket withMaxWait(final long maxWait, final TimeUnit unit) {
+        this.maxWaitMillis=unit.toMillis(maxWait);
+        return this;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Take a permit, waiting for one if needed.
+     * @return false, without waiting, if no permit is available within maxWait
+     */
+    public boolean acquire() throws InterruptedException {
+        final long deadline=System.currentTimeMillis()+maxWaitMillis;
+        boolean waited=false;
+        while (true) {
+            final long wait=tryAcquire();
+            if (wait == 0) {
+                if (waited) {
+                    numWaits.incrementAndGet();
+                }
+                return true;
+            }
+            final long now=System.currentTimeMillis();
+            if (now+wait > deadline) {
+                return false;
+            }
+            waited=true;
+            waitMillis.addAndGet(wait);
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Take a permit and return 0 if one is available, otherwise return the time in milliseconds
+     * until the next permit, without waiting. For callers which can't block, see {@link AsyncRestClient}.
+     */
+    public synchronized long tryAcquire() {
+        final long now=System.currentTimeMillis();
+        if (now < pausedUntilMillis) {
+            return pausedUntilMillis-now;
+        }
+        final long nanos=System.nanoTime();
+        permits=Math.min(capacity, permits+(nanos-lastRefillNanos)*permitsPerSecond/TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos=nanos;
+        if (permits >= 1) {
+            permits-=1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1-permits)*1000/permitsPerSecond));
+    }
+
+    /**
+     * Hold all requests until the given time, in milliseconds since the epoch,
+     * e.g. when the server's rate limit is used up.
+     */
+    public synchronized void pauseUntil(final long untilMillis) {
+        if (untilMillis > pausedUntilMillis) {
+            pausedUntilMillis=untilMillis;
+            permits=0;
+        }
+    }
+
+    // for callers which wait without calling acquire
+    void recordWait(final long millis) {
+        numWaits.incrementAndGet();
+        waitMillis.addAndGet(millis);
+    }
+
+    /** the number of requests which waited for a permit */
+    public long getNumWaits() {
+        return numWaits.get();
+    }
+
+    /** the total time spent waiting for permits */
+    public long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+}
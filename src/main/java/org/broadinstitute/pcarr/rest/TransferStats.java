@@ -0,0 +1,101 @@
+package org.broadinstitute.pcarr.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+
+import com.google.common.base.Strings;
+
+/**
+ * Response byte counts, as transferred and after decompression, for the responses read by a client.
+ *
+ * Clients advertise the supported encodings, see {@link #ACCEPT_ENCODING}, and decompress the
+ * response with {@link #decode(InputStream, String)} as it is read, so that a compressed response is
+ * never held in memory in full.
+ */
+public class TransferStats {
+    /** the value of the 'Accept-Encoding' request header */
+    public static final String ACCEPT_ENCODING="gzip, deflate";
+
+    private final AtomicLong numResponses=new AtomicLong();
+    private final AtomicLong numCompressed=new AtomicLong();
+    private final AtomicLong transferredBytes=new AtomicLong();
+    private final AtomicLong contentBytes=new AtomicLong();
+
+    /**
+     * Get the 'Content-Encoding' of the response, in lower case, or null if it is not encoded.
+     */
+    public static String contentEncoding(final HttpResponse response) {
+        final Header header=response.getEntity() == null ? null : response.getEntity().getContentEncoding();
+        final Header value=header != null ? header : response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        if (value == null || Strings.isNullOrEmpty(value.getValue()) || "identity".equalsIgnoreCase(value.getValue().trim())) {
+            return null;
+        }
+        return value.getValue().trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Wrap the content in a stream which decompresses it as it is read.
+     * @param encoding the 'Content-Encoding', or null for no encoding
+     * @throws IOException for an unsupported encoding
+     */
+    public static InputStream decode(final InputStream content, final String encoding) throws IOException {
+        if (encoding == null) {
+            return content;
+        }
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(content, 8192);
+        }
+        if ("deflate".equals(encoding)) {
+            return new InflaterInputStream(content);
+        }
+        throw new IOException("Unsupported Content-Encoding: "+encoding);
+    }
+
+    public void record(final String encoding, final long transferred, final long content) {
+        numResponses.incrementAndGet();
+        if (encoding != null) {
+            numCompressed.incrementAndGet();
+        }
+        transferredBytes.addAndGet(transferred);
+        contentBytes.addAndGet(content);
+    }
+
+    public long getNumResponses() {
+        return numResponses.get();
+    }
+
+    /** the number of compressed responses */
+    public long getNumCompressed() {
+        return numCompressed.get();
+    }
+
+    /** the number of response body bytes transferred */
+    public long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    /** the number of response body bytes after decompression */
+    public long getContentBytes() {
+        return contentBytes.get();
+    }
+
+    /** the content bytes per transferred byte, 1 when nothing was compressed */
+    public double getCompressionRatio() {
+        final long transferred=transferredBytes.get();
+        return transferred == 0 ? 1 : (double) contentBytes.get()/transferred;
+    }
+
+    public String toString() {
+        return "responses="+numResponses+", compressed="+numCompressed
+            +", transferredBytes="+transferredBytes+", contentBytes="+contentBytes;
+    }
+
+}
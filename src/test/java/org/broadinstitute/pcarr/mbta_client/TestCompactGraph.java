@@ -0,0 +1,359 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.jgrapht.GraphPath;
+import org.jgrapht.alg.shortestpath.DijkstraShortestPath;
+import org.junit.Test;
+
+/**
+ * CompactGraph tests, compared with the jgrapht shortest paths on the same graph.
+ */
+public class TestCompactGraph {
+
+    protected static Stop stop(final String id) {
+        return new Stop(id, id);
+    }
+
+    @Test
+    public void builder() {
+        final Route red=new Route("Red", "Red Line");
+        final Route blue=new Route("Blue", "Blue Line");
+        final Stop a=stop("a"), b=stop("b"), c=stop("c"), d=stop("d");
+        final CompactGraph.Builder builder=new CompactGraph.Builder();
+        builder.addStop(d);
+        assertEquals(true, builder.addEdge(a, b, red));
+        assertEquals("duplicate edge", false, builder.addEdge(a, b, blue));
+        assertEquals("loop", false, builder.addEdge(a, a, blue));
+        builder.addEdge(b, c, blue);
+        builder.addEdge(a, c, blue);
+        final CompactGraph graph=builder.build();
+
+        assertEquals(4, graph.getNumStops());
+        assertEquals(3, graph.getNumEdges());
+        assertEquals(2, graph.getNumRoutes());
+        assertEquals(0, graph.indexOf(d));
+        assertEquals(-1, graph.indexOf(stop("e")));
+
+        final int ia=graph.indexOf(a);
+        assertEquals("out degree of a", 2, graph.endEdge(ia)-graph.firstEdge(ia));
+        assertEquals("first edge of a is a->b", b, graph.getStop(graph.getTarget(graph.firstEdge(ia))));
+        assertEquals("route of a->b", red, graph.getRoute(graph.getEdgeRoute(graph.firstEdge(ia))));
+
+        final int[] path=graph.shortestPath(ia, graph.indexOf(c));
+        assertEquals(Arrays.asList(a, c), graph.pathStops(ia, path));
+        assertEquals(Arrays.asList(blue), graph.pathRoutes(path));
+        assertEquals("same stop", 0, graph.shortestPath(ia, ia).length);
+        assertNull("no path", graph.shortestPath(graph.indexOf(c), ia));
+        assertNull("isolated stop", graph.shortestPath(ia, graph.indexOf(d)));
+
+        assertEquals("jgrapht view, vertices", 4, graph.asGraph().vertexSet().size());
+        assertEquals("jgrapht view, edges", 3, graph.asGraph().edgeSet().size());
+    }
+
+    @Test
+    public void compareWithJgrapht() throws Exception {
+        final SystemGraph systemGraph=TestGraphSnapshot.fixtureGraph();
+        final CompactGraph graph=systemGraph.getCompactGraph();
+        final DijkstraShortestPath<Stop, RouteEdge> dijkstra=new DijkstraShortestPath<Stop, RouteEdge>(graph.asGraph());
+        for(int from=0; from<graph.getNumStops(); ++from) {
+            for(int to=0; to<graph.getNumStops(); ++to) {
+                final GraphPath<Stop, RouteEdge> expected=dijkstra.getPath(graph.getStop(from), graph.getStop(to));
+                final int[] actual=graph.shortestPath(from, to);
+                if (expected == null) {
+                    assertNull(actual);
+                    continue;
+                }
+                assertEquals("path length from "+graph.getStop(from)+" to "+graph.getStop(to), 
+                    expected.getLength(), actual.length);
+                final GraphPath<Stop, RouteEdge> adapter=graph.asGraphPath(from, to, actual);
+                assertEquals(expected.getStartVertex(), adapter.getStartVertex());
+                assertEquals(expected.getEndVertex(), adapter.getEndVertex());
+                assertEquals(actual.length, adapter.getEdgeList().size());
+            }
+        }
+    }
+
+    @Test
+    public void allPairs() throws Exception {
+        final SystemGraph systemGraph=TestGraphSnapshot.fixtureGraph();
+        final CompactGraph graph=systemGraph.getCompactGraph();
+        final AllPairsPaths table=AllPairsPaths.compute(graph);
+        for(int from=0; from<graph.getNumStops(); ++from) {
+            final int[] tree=graph.shortestPathTree(from);
+            for(int to=0; to<graph.getNumStops(); ++to) {
+                final int[] expected=graph.shortestPath(from, to);
+                assertArrayEquals("table path from "+graph.getStop(from)+" to "+graph.getStop(to), 
+                    expected, table.path(from, to));
+                assertArrayEquals("tree path from "+graph.getStop(from)+" to "+graph.getStop(to), 
+                    expected, graph.pathFromTree(tree, from, to));
+            }
+        }
+
+        final SystemGraph precomputed=new SystemGraph().withAllPairs(true).build(systemGraph.getRoutes());
+        assertNotNull(precomputed.getAllPairsPaths());
+        assertEquals(systemGraph.listRoutesFrom("Alewife", "Braintree"), precomputed.listRoutesFrom("Alewife", "Braintree"));
+        assertEquals(systemGraph.listStopsFrom("Bowdoin", "Wonderland"), precomputed.listStopsFrom("Bowdoin", "Wonderland"));
+        assertNull("no path", precomputed.listRoutesFrom("Alewife", "Wonderland"));
+    }
+
+    @Test
+    public void pathTreeCache() throws Exception {
+        final SystemGraph expected=TestGraphSnapshot.fixtureGraph();
+        final SystemGraph systemGraph=new SystemGraph().withPathTreeCache(2).build(expected.getRoutes());
+        final PathTreeCache cache=systemGraph.getPathTreeCache();
+        assertNotNull(cache);
+        for(final String to : Arrays.asList("Harvard", "Braintree", "Alewife")) {
+            assertEquals(expected.listStopsFrom("Alewife", to), systemGraph.listStopsFrom("Alewife", to));
+        }
+        assertEquals("hits", 2, cache.getHitCount());
+        assertEquals("misses", 1, cache.getMissCount());
+
+        systemGraph.listRoutesFrom("Ashmont", "Harvard");
+        systemGraph.listRoutesFrom("Wonderland", "Bowdoin");
+        assertEquals("evictions", 1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+        assertNull("no path", systemGraph.listRoutesFrom("Wonderland", "Alewife"));
+        assertEquals("hits", 3, cache.getHitCount());
+
+        // rebuilding the graph drops the cached trees
+        systemGraph.build(expected.getRoutes());
+        assertEquals("invalidations", 1, cache.getInvalidationCount());
+        assertEquals(0, cache.size());
+        assertEquals(expected.listRoutesFrom("Alewife", "Braintree"), systemGraph.listRoutesFrom("Alewife", "Braintree"));
+        assertEquals("misses", 4, cache.getMissCount());
+    }
+
+    @Test
+    public void batch() throws Exception {
+        final SystemGraph expected=TestGraphSnapshot.fixtureGraph();
+        final List<StopPair> pairs=new ArrayList<StopPair>();
+        for(final Stop from : expected.getStops()) {
+            for(final Stop to : expected.getStops()) {
+                pairs.add(new StopPair(from, to));
+            }
+        }
+        Collections.shuffle(pairs, new Random(8));
+
+        final ForkJoinPool pool=new ForkJoinPool(4);
+        try {
+            for(final SystemGraph systemGraph : Arrays.asList(
+                new SystemGraph().withBatchPool(pool).build(expected.getRoutes()),
+                new SystemGraph().withBatchPool(pool).withPathTreeCache(4).build(expected.getRoutes()),
+                new SystemGraph().withBatchPool(pool).withAllPairs(true).build(expected.getRoutes())))
+            {
+                final List<List<Route>> routes=systemGraph.listRoutesFrom(pairs);
+                final List<List<Stop>> stops=systemGraph.listStopsFrom(pairs);
+                assertEquals(pairs.size(), routes.size());
+                for(int i=0; i<pairs.size(); ++i) {
+                    final StopPair pair=pairs.get(i);
+                    assertEquals("routes "+pair, expected.listRoutesFrom(pair.getFrom(), pair.getTo()), routes.get(i));
+                    assertEquals("stops "+pair, expected.listStopsFrom(pair.getFrom(), pair.getTo()), stops.get(i));
+                }
+                // the pairs are distinct, any collection in the same order
+                final Set<StopPair> pairSet=new LinkedHashSet<StopPair>(pairs);
+                assertEquals(routes, systemGraph.listRoutesFrom(pairSet));
+                assertEquals(stops, systemGraph.listStopsFrom(pairSet));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /** a grid of stops, 'size' by 'size', about 500 m apart, with edges in both directions between neighbors */
+    protected static CompactGraph grid(final int size) {
+        final Route route=new Route("Grid", "Grid");
+        final Stop[][] stops=new Stop[size][size];
+        for(int i=0; i<size; ++i) {
+            for(int j=0; j<size; ++j) {
+                stops[i][j]=new Stop(i+","+j, i+","+j, 42.3+i*0.0045, -71.1+j*0.006, null, Stop.WHEELCHAIR_NO_INFO);
+            }
+        }
+        final CompactGraph.Builder builder=new CompactGraph.Builder();
+        for(int i=0; i<size; ++i) {
+            for(int j=0; j<size; ++j) {
+                if (i+1 < size) {
+                    builder.addEdge(stops[i][j], stops[i+1][j], route);
+                    builder.addEdge(stops[i+1][j], stops[i][j], route);
+                }
+                if (j+1 < size) {
+                    builder.addEdge(stops[i][j], stops[i][j+1], route);
+                    builder.addEdge(stops[i][j+1], stops[i][j], route);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    protected static void assertSameLengths(final CompactGraph graph) {
+        for(int from=0; from<graph.getNumStops(); ++from) {
+            for(int to=0; to<graph.getNumStops(); ++to) {
+                final int[] expected=graph.shortestPath(from, to);
+                for(final SearchMode mode : SearchMode.values()) {
+                    final int[] actual=graph.shortestPath(from, to, mode);
+                    final String message=mode+" from "+graph.getStop(from)+" to "+graph.getStop(to);
+                    if (expected == null) {
+                        assertNull(message, actual);
+                        continue;
+                    }
+                    assertEquals(message, expected.length, actual.length);
+                    // a connected path from 'from' to 'to'
+                    int v=from;
+                    for(final int e : actual) {
+                        assertEquals(message, v, graph.getSource(e));
+                        v=graph.getTarget(e);
+                    }
+                    assertEquals(message, to, v);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void searchModes() throws Exception {
+        final SystemGraph systemGraph=TestGraphSnapshot.fixtureGraph();
+        assertSameLengths(systemGraph.getCompactGraph());
+        assertSameLengths(grid(8));
+
+        final Stop alewife=systemGraph.stop("Alewife");
+        final Stop braintree=systemGraph.stop("Braintree");
+        for(final SearchMode mode : SearchMode.values()) {
+            assertEquals(mode.toString(), systemGraph.listStopsFrom(alewife, braintree), systemGraph.listStopsFrom(alewife, braintree, mode));
+            assertEquals(mode.toString(), systemGraph.listRoutesFrom(alewife, braintree), systemGraph.listRoutesFrom(alewife, braintree, mode));
+        }
+        assertNull(systemGraph.listRoutesFrom(alewife, systemGraph.stop("Wonderland"), SearchMode.A_STAR));
+    }
+
+    @Test
+    public void searchModes_visited() {
+        final CompactGraph graph=grid(40);
+        // from the middle to a nearby stop
+        final int from=graph.indexOf(stop("20,20"));
+        final int to=graph.indexOf(stop("24,26"));
+        final int[] numVisited=new int[SearchMode.values().length];
+        for(final SearchMode mode : SearchMode.values()) {
+            assertEquals(mode.toString(), 10, graph.shortestPath(from, to, mode).length);
+            numVisited[mode.ordinal()]=graph.getNumVisited();
+        }
+        final int bfs=numVisited[SearchMode.BREADTH_FIRST.ordinal()];
+        assertTrue("bidirectional visited "+numVisited[SearchMode.BIDIRECTIONAL.ordinal()]+" of "+bfs,
+            numVisited[SearchMode.BIDIRECTIONAL.ordinal()] < bfs);
+        assertTrue("A* visited "+numVisited[SearchMode.A_STAR.ordinal()]+" of "+bfs,
+            2*numVisited[SearchMode.A_STAR.ordinal()] < bfs);
+    }
+
+    @Test
+    public void sharedWorkspaces() throws Exception {
+        // the search workspaces are shared by the graphs, interleave searches on a small and a large graph
+        final CompactGraph small=grid(4);
+        final CompactGraph large=grid(24);
+        final List<Callable<Void>> tasks=new ArrayList<Callable<Void>>();
+        for(int t=0; t<8; ++t) {
+            final CompactGraph graph=t % 2 == 0 ? small : large;
+            final int[][] expected=new int[graph.getNumStops()][];
+            for(int to=0; to<graph.getNumStops(); ++to) {
+                expected[to]=graph.shortestPath(0, to, SearchMode.BREADTH_FIRST);
+            }
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for(int to=0; to<graph.getNumStops(); ++to) {
+                        for(final SearchMode mode : SearchMode.values()) {
+                            assertEquals(mode+" to "+to, expected[to].length, graph.shortestPath(0, to, mode).length);
+                        }
+                        assertEquals(expected[to].length, graph.pathFromTree(graph.shortestPathTree(0), 0, to).length);
+                    }
+                    return null;
+                }
+            });
+        }
+        final ForkJoinPool pool=new ForkJoinPool(4);
+        try {
+            for(final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void weighted() {
+        // local:  a - b - c - d, 10 per edge
+        // east:   a - x, north: x - d, 5 per edge
+        final Route local=new Route("Local", "Local Line");
+        final Route east=new Route("East", "East Line");
+        final Route north=new Route("North", "North Line");
+        final Stop a=stop("a"), b=stop("b"), c=stop("c"), d=stop("d"), x=stop("x");
+        final CompactGraph.Builder builder=new CompactGraph.Builder();
+        builder.addEdge(a, b, local);
+        builder.addEdge(b, c, local);
+        builder.addEdge(c, d, local);
+        builder.addEdge(a, x, east);
+        builder.addEdge(x, d, north);
+        final CompactGraph graph=builder.build();
+        final int[] weights=new int[graph.getNumEdges()];
+        for(int e=0; e<weights.length; ++e) {
+            weights[e]=graph.getRoute(graph.getEdgeRoute(e)) == local ? 10 : 5;
+        }
+        final int ia=graph.indexOf(a);
+        final int id=graph.indexOf(d);
+
+        final int[] fastest=graph.shortestPath(ia, id, weights, 0);
+        assertEquals(Arrays.asList(a, x, d), graph.pathStops(ia, fastest));
+        assertEquals(10, graph.pathWeight(fastest, weights, 0));
+        assertTrue(graph.getNumVisited() > 0);
+
+        // changing at 'x' costs more than the local
+        final int[] oneSeat=graph.shortestPath(ia, id, weights, 100);
+        assertEquals(Arrays.asList(local), graph.pathRoutes(oneSeat));
+        assertEquals(30, graph.pathWeight(oneSeat, weights, 100));
+        assertEquals(110, graph.pathWeight(fastest, weights, 100));
+
+        assertEquals("same stop", 0, graph.shortestPath(ia, ia, weights, 100).length);
+        assertNull("no path", graph.shortestPath(id, ia, weights, 100));
+    }
+
+    @Test
+    public void weighted_compareWithContractionHierarchy() {
+        final CompactGraph graph=grid(8);
+        final Random random=new Random(7);
+        final int[] weights=new int[graph.getNumEdges()];
+        for(int e=0; e<weights.length; ++e) {
+            weights[e]=1+random.nextInt(100);
+        }
+        final ContractionHierarchy index=ContractionHierarchy.build(graph, weights);
+        for(int from=0; from<graph.getNumStops(); ++from) {
+            for(int to=0; to<graph.getNumStops(); ++to) {
+                final int[] expected=index.shortestPath(from, to);
+                final int[] actual=graph.shortestPath(from, to, weights, 0);
+                assertEquals("path weight from "+graph.getStop(from)+" to "+graph.getStop(to),
+                    graph.pathWeight(expected, weights, 0), graph.pathWeight(actual, weights, 0));
+            }
+        }
+    }
+
+    @Test
+    public void consecutiveStops() throws Exception {
+        final SystemGraph systemGraph=TestGraphSnapshot.fixtureGraph();
+        final List<Stop> stops=systemGraph.listStopsFrom("Alewife", "Ashmont");
+        assertEquals(Arrays.asList("Alewife", "Harvard", "Park Street", "JFK/UMass", "Ashmont"), TestGraphSnapshot.stopNames(stops));
+    }
+
+}
@@ -0,0 +1,257 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.broadinstitute.pcarr.metrics.DefaultMetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.jgrapht.GraphPath;
+import org.jgrapht.alg.shortestpath.DijkstraShortestPath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ContractionHierarchy tests, compared with plain Dijkstra on every pair of stops.
+ */
+public class TestContractionHierarchy {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    /** a random graph with one-way edges, most stops have a few neighbors */
+    protected static CompactGraph randomGraph(final int numStops, final int numEdges, final long seed) {
+        final Random random=new Random(seed);
+        final Route route=new Route("Random", "Random");
+        final Stop[] stops=new Stop[numStops];
+        for(int i=0; i<numStops; ++i) {
+            stops[i]=new Stop("s"+i, "s"+i);
+        }
+        final CompactGraph.Builder builder=new CompactGraph.Builder();
+        for(final Stop stop : stops) {
+            builder.addStop(stop);
+        }
+        for(int i=0; i<numEdges; ++i) {
+            final int from=random.nextInt(numStops);
+            // mostly local edges, so that paths are long
+            final int to=Math.floorMod(from+random.nextInt(7)-3, numStops);
+            builder.addEdge(stops[from], stops[to], route);
+        }
+        return builder.build();
+    }
+
+    // the sum of the weights along the path, after checking that it goes from 'from' to 'to'
+    protected static int pathWeight(final CompactGraph graph, final int from, final int to, final int[] path, final int[] weights) {
+        int v=from;
+        int weight=0;
+        for(final int e : path) {
+            assertEquals("connected path", v, graph.getSource(e));
+            v=graph.getTarget(e);
+            weight+=weights[e];
+        }
+        assertEquals("path ends at 'to'", to, v);
+        return weight;
+    }
+
+    protected static void assertSameAsDijkstra(final CompactGraph graph) {
+        final ContractionHierarchy index=ContractionHierarchy.build(graph);
+        final DijkstraShortestPath<Stop, RouteEdge> dijkstra=new DijkstraShortestPath<Stop, RouteEdge>(graph.asGraph());
+        final int[] unit=new int[graph.getNumEdges()];
+        Arrays.fill(unit, 1);
+        for(int from=0; from<graph.getNumStops(); ++from) {
+            for(int to=0; to<graph.getNumStops(); ++to) {
+                final GraphPath<Stop, RouteEdge> expected=dijkstra.getPath(graph.getStop(from), graph.getStop(to));
+                final int[] actual=index.shortestPath(from, to);
+                final String message="from "+graph.getStop(from)+" to "+graph.getStop(to);
+                if (expected == null) {
+                    assertNull(message, actual);
+                    continue;
+                }
+                assertNotNull(message, actual);
+                assertEquals(message, expected.getLength(), pathWeight(graph, from, to, actual, unit));
+            }
+        }
+    }
+
+    @Test
+    public void fixture() throws Exception {
+        final SystemGraph expected=TestGraphSnapshot.fixtureGraph();
+        assertSameAsDijkstra(expected.getCompactGraph());
+
+        final SystemGraph systemGraph=new SystemGraph().withContractionHierarchy(true).build(expected.getRoutes());
+        assertNotNull(systemGraph.getContractionHierarchy());
+        for(final Stop from : expected.getStops()) {
+            for(final Stop to : expected.getStops()) {
+                assertEquals("routes from "+from+" to "+to, expected.listRoutesFrom(from, to), systemGraph.listRoutesFrom(from, to));
+                assertEquals("stops from "+from+" to "+to, expected.listStopsFrom(from, to), systemGraph.listStopsFrom(from, to));
+            }
+        }
+    }
+
+    @Test
+    public void grid() {
+        assertSameAsDijkstra(TestCompactGraph.grid(9));
+    }
+
+    @Test
+    public void oneWayEdges() {
+        assertSameAsDijkstra(randomGraph(120, 300, 14));
+    }
+
+    @Test
+    public void weighted() {
+        final CompactGraph graph=randomGraph(60, 180, 15);
+        final Random random=new Random(16);
+        final int n=graph.getNumStops();
+        final int[] weights=new int[graph.getNumEdges()];
+        // Floyd-Warshall
+        final long[][] expected=new long[n][n];
+        for(final long[] row : expected) {
+            Arrays.fill(row, Long.MAX_VALUE/4);
+        }
+        for(int i=0; i<n; ++i) {
+            expected[i][i]=0;
+        }
+        for(int e=0; e<weights.length; ++e) {
+            weights[e]=random.nextInt(10);
+            final int u=graph.getSource(e);
+            final int v=graph.getTarget(e);
+            expected[u][v]=Math.min(expected[u][v], weights[e]);
+        }
+        for(int k=0; k<n; ++k) {
+            for(int i=0; i<n; ++i) {
+                for(int j=0; j<n; ++j) {
+                    expected[i][j]=Math.min(expected[i][j], expected[i][k]+expected[k][j]);
+                }
+            }
+        }
+        final ContractionHierarchy index=ContractionHierarchy.build(graph, weights);
+        for(int from=0; from<n; ++from) {
+            for(int to=0; to<n; ++to) {
+                final int[] actual=index.shortestPath(from, to);
+                if (expected[from][to] >= Long.MAX_VALUE/4) {
+                    assertNull(actual);
+                    continue;
+                }
+                assertEquals("from "+from+" to "+to, expected[from][to], pathWeight(graph, from, to, actual, weights));
+            }
+        }
+    }
+
+    @Test
+    public void settledStops() {
+        final CompactGraph graph=TestCompactGraph.grid(30);
+        final ContractionHierarchy index=ContractionHierarchy.build(graph);
+        final int from=graph.indexOf(TestCompactGraph.stop("0,0"));
+        final int to=graph.indexOf(TestCompactGraph.stop("29,29"));
+        assertEquals(58, index.shortestPath(from, to).length);
+        graph.shortestPath(from, to);
+        assertTrue("settled "+index.getNumSettled()+", bfs visited "+graph.getNumVisited(),
+            index.getNumSettled() < graph.getNumVisited());
+    }
+
+    protected static ContractionHierarchy writeAndRead(final ContractionHierarchy index) throws Exception {
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final DataOutputStream out=new DataOutputStream(bytes);
+        index.write(out);
+        out.flush();
+        return ContractionHierarchy.read(ByteBuffer.wrap(bytes.toByteArray()), index.getGraph());
+    }
+
+    @Test
+    public void weightsInHeader() throws Exception {
+        final CompactGraph graph=randomGraph(30, 80, 17);
+        final Random random=new Random(18);
+        final int[] weights=new int[graph.getNumEdges()];
+        for(int e=0; e<weights.length; ++e) {
+            weights[e]=1+random.nextInt(10);
+        }
+        final ContractionHierarchy weighted=writeAndRead(ContractionHierarchy.build(graph, weights));
+        assertTrue(weighted.isFor(weights, 0));
+        assertFalse("fewest stops", weighted.isFor(null, 0));
+        assertFalse("transfer penalty", weighted.isFor(weights, 300));
+        final int[] other=Arrays.copyOf(weights, weights.length);
+        ++other[0];
+        assertFalse("different weights", weighted.isFor(other, 0));
+
+        final ContractionHierarchy stops=writeAndRead(ContractionHierarchy.build(graph));
+        assertTrue(stops.isFor(null, 0));
+        assertFalse(stops.isFor(weights, 0));
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        final SystemGraph expected=TestGraphSnapshot.fixtureGraph();
+        final SystemGraph systemGraph=new SystemGraph().withContractionHierarchy(true).build(expected.getRoutes());
+        final GraphSnapshot snapshot=new GraphSnapshot(new File(tmp.getRoot(), "mbta.graph"));
+        snapshot.write(systemGraph);
+        assertTrue("index file", snapshot.getIndexFile().exists());
+
+        assertNull("not used by default", snapshot.read().getContractionHierarchy());
+        final SystemGraph actual=snapshot.read(new SystemGraph().withContractionHierarchy(true));
+        assertNotNull("index is loaded with the snapshot", actual.getContractionHierarchy());
+        assertEquals(systemGraph.getContractionHierarchy().getNumShortcuts(), actual.getContractionHierarchy().getNumShortcuts());
+        TestGraphSnapshot.assertSameGraph(expected, actual);
+
+        // without the index
+        snapshot.write(expected);
+        assertTrue("stale index is removed", !snapshot.getIndexFile().exists());
+        assertNull(snapshot.read().getContractionHierarchy());
+
+        // the same route indices when the edges reference the routes in a different order than their names, 'C' before 'B'
+        for(final SystemGraph other : Arrays.asList(
+            systemGraph,
+            new SystemGraph().withContractionHierarchy(true).build(TestGraphDiff.routes("A:a,b,c", "B:b,c", "C:d,a"))))
+        {
+            snapshot.write(other);
+            final MetricsRegistry metrics=new DefaultMetricsRegistry();
+            final SystemGraph read=snapshot.read(new SystemGraph().withContractionHierarchy(true).withMetrics(metrics));
+            assertEquals("checksum", other.getCompactGraph().getChecksum(), read.getCompactGraph().getChecksum());
+            assertNotNull(read.getContractionHierarchy());
+            assertNull("the index is loaded, not rebuilt", metrics.snapshot().getDistribution("build.contraction_hierarchy"));
+            TestGraphSnapshot.assertSameGraph(other, read);
+        }
+    }
+
+    @Test
+    public void equalLengthPaths() throws Exception {
+        // two paths with two stops from 'a' to 'd'
+        final SystemGraph systemGraph=new SystemGraph().withContractionHierarchy(true).build(TestGraphDiff.routes("A:a,b,d", "B:a,c,d"));
+        final GraphSnapshot snapshot=new GraphSnapshot(new File(tmp.getRoot(), "mbta.graph"));
+        snapshot.write(systemGraph);
+        final SystemGraph actual=snapshot.read();
+        assertNull(actual.getContractionHierarchy());
+        assertEquals("the same path as the breadth-first search",
+            TestGraphSnapshot.stopNames(actual.listStopsFrom(actual.stop("a"), actual.stop("d"), SearchMode.BREADTH_FIRST)),
+            TestGraphSnapshot.stopNames(actual.listStopsFrom("a", "d")));
+    }
+
+    @Test(expected=IOException.class)
+    public void differentGraph() throws Exception {
+        // the same number of stops and edges
+        final CompactGraph.Builder one=new CompactGraph.Builder();
+        one.addEdge(TestCompactGraph.stop("a"), TestCompactGraph.stop("b"), new Route("R", "R"));
+        one.addEdge(TestCompactGraph.stop("b"), TestCompactGraph.stop("c"), new Route("R", "R"));
+        final CompactGraph.Builder other=new CompactGraph.Builder();
+        other.addEdge(TestCompactGraph.stop("a"), TestCompactGraph.stop("b"), new Route("R", "R"));
+        other.addEdge(TestCompactGraph.stop("a"), TestCompactGraph.stop("c"), new Route("R", "R"));
+        final CompactGraph graph=other.build();
+
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final DataOutputStream out=new DataOutputStream(bytes);
+        ContractionHierarchy.build(one.build()).write(out);
+        out.flush();
+        ContractionHierarchy.read(ByteBuffer.wrap(bytes.toByteArray()), graph);
+    }
+
+}
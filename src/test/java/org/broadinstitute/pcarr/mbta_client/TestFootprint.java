@@ -0,0 +1,182 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.StandInServer;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Check that Stops and Routes only keep their JSON representation when asked to,
+ * for a full-system sized dataset (all route types, ~8000 stops).
+ */
+public class TestFootprint {
+    private static final int NUM_STOPS=8000;
+
+    /** a stop resource with all of the attributes returned by GET /stops */
+    protected static String stopJson(final int i) {
+        return "{"
+            + "\"attributes\":{"
+            +   "\"address\":\""+i+" Massachusetts Ave, Cambridge, MA 02139\","
+            +   "\"at_street\":null,"
+            +   "\"description\":\"Stop "+i+" - Bus - Inbound\","
+            +   "\"latitude\":"+(42.0+i/100000.0)+","
+            +   "\"location_type\":0,"
+            +   "\"longitude\":"+(-71.0-i/100000.0)+","
+            +   "\"municipality\":\"Cambridge\","
+            +   "\"name\":\"Massachusetts Ave @ Stop "+i+"\","
+            +   "\"on_street\":\"Massachusetts Avenue\","
+            +   "\"platform_code\":null,"
+            +   "\"platform_name\":\"Inbound\","
+            +   "\"vehicle_type\":3,"
+            +   "\"wheelchair_boarding\":1"
+            + "},"
+            + "\"id\":\""+i+"\","
+            + "\"links\":{\"self\":\"/stops/"+i+"\"},"
+            + "\"relationships\":{"
+            +   "\"child_stops\":{},"
+            +   "\"facilities\":{\"links\":{\"related\":\"/facilities/?filter[stop]="+i+"\"}},"
+            +   "\"parent_station\":{\"data\":{\"id\":\"place-"+(i/4)+"\",\"type\":\"stop\"}},"
+            +   "\"zone\":{\"data\":{\"id\":\"LocalBus\",\"type\":\"zone\"}}"
+            + "},"
+            + "\"type\":\"stop\""
+            + "}";
+    }
+
+    protected static List<Stop> initStops(final int numStops, final boolean retainJson) {
+        final JsonParser parser=new JsonParser();
+        final List<Stop> stops=new ArrayList<Stop>(numStops);
+        for(int i=0; i<numStops; ++i) {
+            final JsonObject json=parser.parse(stopJson(i)).getAsJsonObject();
+            stops.add(new Stop(json.get("id").getAsString(), json, retainJson));
+        }
+        return stops;
+    }
+
+    /**
+     * The JSON elements reachable from the object, following the fields of the classes in this project
+     * and the elements of collections, maps and arrays.
+     */
+    protected static Set<JsonElement> retainedJson(final Object root) throws IllegalAccessException {
+        final Set<JsonElement> retained=Collections.newSetFromMap(new IdentityHashMap<JsonElement,Boolean>());
+        final Set<Object> visited=Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+        final Deque<Object> pending=new ArrayDeque<Object>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            final Object obj=pending.pop();
+            if (!visited.add(obj)) {
+                continue;
+            }
+            if (obj instanceof JsonElement) {
+                retained.add((JsonElement) obj);
+            }
+            else if (obj instanceof Collection) {
+                pushAll(pending, (Collection<?>) obj);
+            }
+            else if (obj instanceof Map) {
+                pushAll(pending, ((Map<?,?>) obj).keySet());
+                pushAll(pending, ((Map<?,?>) obj).values());
+            }
+            else if (obj instanceof Object[]) {
+                pushAll(pending, Arrays.asList((Object[]) obj));
+            }
+            else if (obj.getClass().getName().startsWith("org.broadinstitute.pcarr.")) {
+                for(Class<?> c=obj.getClass(); c != null; c=c.getSuperclass()) {
+                    for(final Field field : c.getDeclaredFields()) {
+                        if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        final Object value=field.get(obj);
+                        if (value != null) {
+                            pending.push(value);
+                        }
+                    }
+                }
+            }
+        }
+        return retained;
+    }
+
+    private static void pushAll(final Deque<Object> pending, final Collection<?> values) {
+        for(final Object value : values) {
+            if (value != null) {
+                pending.push(value);
+            }
+        }
+    }
+
+    @Test
+    public void parsedFields() {
+        final Stop stop=initStops(5, false).get(4);
+        assertEquals("4", stop.getId());
+        assertEquals("Massachusetts Ave @ Stop 4", stop.getName());
+        assertEquals(42.00004, stop.getLatitude(), 0.0000001);
+        assertEquals(-71.00004, stop.getLongitude(), 0.0000001);
+        assertEquals("place-1", stop.getParentStationId());
+        assertEquals(Stop.WHEELCHAIR_ACCESSIBLE, stop.getWheelchairBoarding());
+        assertNull("json is not retained by default", stop.getJson());
+    }
+
+    @Test
+    public void retainJson() {
+        assertNotNull(initStops(1, true).get(0).getJson());
+    }
+
+    @Test
+    public void compactFootprint() throws Exception {
+        final List<Stop> withJson=initStops(NUM_STOPS, true);
+        final Set<JsonElement> retained=retainedJson(withJson);
+        for(final Stop stop : withJson) {
+            assertTrue("retained json, stop="+stop, retained.contains(stop.getJson()));
+        }
+
+        final List<Stop> compact=initStops(NUM_STOPS, false);
+        assertEquals(NUM_STOPS, compact.size());
+        assertEquals("compact stops keep no references to the parsed json", 0, retainedJson(compact).size());
+    }
+
+    @Test
+    public void compactFootprint_standInServer() throws Exception {
+        final StandInServer server=TestMbtaClient.standInServer();
+        final RestClient client=new RestClient();
+        try {
+            client.withApiPrefix(server.start());
+            final SystemGraph compact=new SystemGraph().withClient(client).build();
+            assertEquals("routes and stops keep no references to the json responses", 0, retainedJson(compact.getRoutes()).size());
+
+            final SystemGraph withJson=new SystemGraph().withClient(client).withRetainJson(true).build();
+            for(final Route route : withJson.getRoutes()) {
+                assertNotNull("route="+route, route.getJson());
+            }
+            for(final Stop stop : withJson.getStops()) {
+                assertNotNull("stop="+stop, stop.getJson());
+            }
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * GraphDiff and SystemGraph.refresh tests, the refreshed graph must answer the same as a graph built from scratch.
+ */
+public class TestGraphDiff {
+
+    /**
+     * new Route and Stop instances, from specs like "Red:a,b,c", the stop names are the ids,
+     * unless renamed, e.g. "a=A"
+     */
+    protected static List<Route> routes(final String... specs) {
+        final Map<String,Stop> stops=new HashMap<String,Stop>();
+        final List<Route> routes=new ArrayList<Route>();
+        for(final String spec : specs) {
+            final String[] parts=spec.split(":");
+            final Route route=new Route(parts[0], parts[0]+" Line");
+            for(final String s : parts[1].split(",")) {
+                final String id=s.split("=")[0];
+                final String name=s.contains("=") ? s.split("=")[1] : id;
+                Stop stop=stops.get(id);
+                if (stop == null) {
+                    stop=new Stop(id, name);
+                    stops.put(id, stop);
+                }
+                stop.addRoute(route);
+                route.addStop(stop);
+            }
+            routes.add(route);
+        }
+        return routes;
+    }
+
+    @Test
+    public void compute() {
+        final GraphDiff diff=GraphDiff.compute(
+            routes("Red:a,b,c", "Blue:d,e", "Green:f,g"),
+            routes("Red:a,c,b", "Blue:d=D,e", "Orange:g,h"));
+        assertEquals("added routes", Arrays.asList(new Route("Orange", "")), diff.getAddedRoutes());
+        assertEquals("removed routes", Arrays.asList(new Route("Green", "")), diff.getRemovedRoutes());
+        assertEquals("changed routes, reordered stops", Arrays.asList(new Route("Red", "")), diff.getChangedRoutes());
+        assertEquals("added stops", Arrays.asList(new Stop("h", "h")), diff.getAddedStops());
+        assertEquals("removed stops", Arrays.asList(new Stop("f", "f")), diff.getRemovedStops());
+        assertEquals("changed stops, renamed", Arrays.asList(new Stop("d", "d")), diff.getChangedStops());
+        assertTrue(diff.getAddedEdges().contains(new GraphDiff.Edge("a", "c", "Red")));
+        assertTrue(diff.getRemovedEdges().contains(new GraphDiff.Edge("a", "b", "Red")));
+        assertTrue(diff.getAddedEdges().contains(new GraphDiff.Edge("h", "g", "Orange")));
+        assertFalse("b-c is still on Red", diff.getRemovedEdges().contains(new GraphDiff.Edge("b", "c", "Red")));
+        assertTrue(diff.isTopologyChanged());
+
+        assertTrue(GraphDiff.compute(routes("Red:a,b,c"), routes("Red:a,b,c")).isEmpty());
+        final GraphDiff renamed=GraphDiff.compute(routes("Red:a,b,c"), routes("Red:a,b=B,c"));
+        assertFalse(renamed.isEmpty());
+        assertFalse("only a name changed", renamed.isTopologyChanged());
+    }
+
+    @Test
+    public void refresh_noChanges() throws Exception {
+        final SystemGraph systemGraph=new SystemGraph()
+            .withPathTreeCache(8)
+            .withContractionHierarchy(true)
+            .build(TestGraphSnapshot.fixtureGraph().getRoutes());
+        final Stop alewife=systemGraph.stop("Alewife");
+        final List<Route> routes=systemGraph.listRoutesFrom("Alewife", "Braintree");
+        systemGraph.getPathTreeCache().getTree(systemGraph.getCompactGraph().indexOf(alewife));
+        final CompactGraph graph=systemGraph.getCompactGraph();
+        final ContractionHierarchy index=systemGraph.getContractionHierarchy();
+
+        final GraphDiff diff=systemGraph.refresh(TestGraphSnapshot.fixtureGraph().getRoutes());
+        assertTrue(diff.toString(), diff.isEmpty());
+        assertSame("same graph", graph, systemGraph.getCompactGraph());
+        assertSame("same index", index, systemGraph.getContractionHierarchy());
+        assertSame("same stops", alewife, systemGraph.stop("Alewife"));
+        assertEquals("cached trees kept", 1, systemGraph.getPathTreeCache().size());
+        assertEquals(routes, systemGraph.listRoutesFrom("Alewife", "Braintree"));
+    }
+
+    @Test
+    public void refresh() throws Exception {
+        final SystemGraph systemGraph=new SystemGraph()
+            .withPathTreeCache(8)
+            .build(routes("Red:a,b,c,d", "Blue:e,f,g", "Green:h,i"));
+        final Stop f=systemGraph.stop("f");
+        final Stop g=systemGraph.stop("g");
+        final Route red=systemGraph.routeById("Red");
+        final Route blue=systemGraph.routeById("Blue");
+        assertNull(systemGraph.listStopsFrom("a", "e"));
+        systemGraph.listStopsFrom("e", "g");
+        systemGraph.listStopsFrom("h", "i");
+        assertEquals(3, systemGraph.getPathTreeCache().size());
+
+        // extend Red to x and connect it to Blue at f, drop Green, rename g
+        final List<Route> fresh=routes("Red:a,b,c,d,x,f", "Blue:e,f,g=G");
+        final GraphDiff diff=systemGraph.refresh(fresh);
+        assertEquals(Arrays.asList(new Route("Red", "")), diff.getChangedRoutes());
+        assertEquals(Arrays.asList(new Route("Green", "")), diff.getRemovedRoutes());
+        assertEquals(Arrays.asList(new Stop("x", "x")), diff.getAddedStops());
+        assertEquals(Arrays.asList(new Stop("g", "g")), diff.getChangedStops());
+
+        TestGraphSnapshot.assertSameGraph(new SystemGraph().build(routes("Red:a,b,c,d,x,f", "Blue:e,f,g=G")), systemGraph);
+        assertNotSame("a route with a renamed stop is a new instance", blue, systemGraph.routeById("Blue"));
+        assertEquals("g", systemGraph.stop("G").getId());
+        assertEquals(Arrays.asList(systemGraph.routeById("Blue"), systemGraph.routeById("Red")), new ArrayList<Route>(systemGraph.stop("f").getRoutes()));
+        // the published instances are not modified
+        assertEquals(Arrays.asList(blue), new ArrayList<Route>(f.getRoutes()));
+        assertEquals("g", g.getName());
+        assertEquals(Arrays.asList("a", "b", "c", "d"), TestGraphSnapshot.stopNames(red.getStops()));
+        assertNull("removed stop", systemGraph.stop("h"));
+        assertNull(systemGraph.routeById("Green"));
+        assertEquals(Arrays.asList("a", "b", "c", "d", "x", "f", "e"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("a", "e")));
+    }
+
+    @Test
+    public void refresh_pathTreeCache() throws Exception {
+        final SystemGraph systemGraph=new SystemGraph()
+            .withPathTreeCache(8)
+            .build(routes("Red:a,b,c,d", "Blue:e,f,g", "Green:h,i"));
+        final PathTreeCache cache=systemGraph.getPathTreeCache();
+        final Route green=systemGraph.routeById("Green");
+        final Stop h=systemGraph.stop("h");
+        systemGraph.listStopsFrom("a", "d");
+        systemGraph.listStopsFrom("e", "g");
+        systemGraph.listStopsFrom("h", "i");
+
+        // a new stop at the end of Blue, only the tree from a Blue stop is affected
+        systemGraph.refresh(routes("Red:a,b,c,d", "Blue:e,f,g,k", "Green:h,i"));
+        assertEquals("trees kept", 2, cache.size());
+        assertSame("unchanged route", green, systemGraph.routeById("Green"));
+        assertSame("unchanged stop", h, systemGraph.stop("h"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("a", "d")));
+        assertEquals(Arrays.asList("i", "h"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("i", "h")));
+        assertEquals(Arrays.asList("e", "f", "g", "k"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("e", "k")));
+
+        // a shortcut on Red, only the tree from a Red stop is affected
+        final long misses=cache.getMissCount();
+        systemGraph.refresh(routes("Red:a,c,d", "Blue:e,f,g,k", "Green:h,i"));
+        assertEquals(Arrays.asList("a", "c", "d"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("a", "d")));
+        assertEquals(Arrays.asList("e", "f", "g"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("e", "g")));
+        assertEquals("recomputed the tree from a", misses+1, cache.getMissCount());
+        TestGraphSnapshot.assertSameGraph(new SystemGraph().build(routes("Red:a,c,d", "Blue:e,f,g,k", "Green:h,i")), systemGraph);
+    }
+
+}
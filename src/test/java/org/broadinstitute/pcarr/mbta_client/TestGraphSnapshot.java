@@ -0,0 +1,135 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * GraphSnapshot tests, run offline from recorded json responses and a checked-in snapshot.
+ */
+public class TestGraphSnapshot {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    /** build a SystemGraph from the recorded bulk responses */
+    protected static SystemGraph fixtureGraph() throws Exception {
+        final SortedSet<Route> routes=MbtaClient.assembleRoutes(
+            TestMbtaClient.fixture("bulk/routes.json"),
+            TestMbtaClient.fixture("bulk/route_patterns.json"),
+            TestMbtaClient.fixture("bulk/parent_stations.json"),
+            true);
+        return new SystemGraph().build(routes);
+    }
+
+    protected static List<String> routeIds(final List<Route> routes) {
+        final List<String> ids=new ArrayList<String>();
+        for(final Route route : routes) {
+            ids.add(route.getId());
+        }
+        return ids;
+    }
+
+    protected static List<String> stopNames(final List<Stop> stops) {
+        final List<String> names=new ArrayList<String>();
+        for(final Stop stop : stops) {
+            names.add(stop.getName());
+        }
+        return names;
+    }
+
+    protected static void assertSameGraph(final SystemGraph expected, final SystemGraph actual) {
+        assertEquals("numStops", expected.getNumStops(), actual.getNumStops());
+        assertEquals("longNames", expected.getLongNames(), actual.getLongNames());
+        assertEquals("stops", expected.getStops(), actual.getStops());
+        assertEquals("numEdges", expected.getGraph().edgeSet().size(), actual.getGraph().edgeSet().size());
+        assertEquals("longestRoutes", expected.getLongestRoutes(), actual.getLongestRoutes());
+        assertEquals("routeConnections", expected.getRouteConnections(), actual.getRouteConnections());
+        for(final Stop from : expected.getStops()) {
+            for(final Stop to : expected.getStops()) {
+                final Stop actualFrom=actual.stop(from.getName());
+                final Stop actualTo=actual.stop(to.getName());
+                assertEquals("has path from "+from+" to "+to, 
+                    expected.getGraphPath(from, to) == null, 
+                    actual.getGraphPath(actualFrom, actualTo) == null);
+                if (!from.equals(to) && expected.getGraphPath(from, to) != null) {
+                    assertEquals("routes from "+from+" to "+to,
+                        routeIds(expected.listRoutesFrom(from, to)),
+                        routeIds(actual.listRoutesFrom(actualFrom, actualTo)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final SystemGraph expected=fixtureGraph();
+        final GraphSnapshot snapshot=new GraphSnapshot(new File(tmp.getRoot(), "mbta.graph"));
+        snapshot.write(expected);
+        final SystemGraph actual=snapshot.read();
+        assertSameGraph(expected, actual);
+
+        final Stop alewife=actual.stop("Alewife");
+        assertEquals("place-alfcl", alewife.getId());
+        assertEquals("Red Line", alewife.getRoutes().first().getLongName());
+        assertEquals(1, actual.routeById("Red").getType());
+    }
+
+    @Test
+    public void checkedInSnapshot() throws Exception {
+        final File file=new File(TestGraphSnapshot.class.getResource("/fixtures/snapshot/bulk.graph").toURI());
+        final SystemGraph actual=new GraphSnapshot(file).read();
+        assertSameGraph(fixtureGraph(), actual);
+    }
+
+    @Test
+    public void freshness() throws Exception {
+        final GraphSnapshot snapshot=new GraphSnapshot(new File(tmp.getRoot(), "mbta.graph"));
+        assertEquals("no snapshot", -1, snapshot.getCreatedMillis());
+        assertFalse("no snapshot", snapshot.isFresh());
+        snapshot.write(fixtureGraph());
+        assertTrue(snapshot.isFresh());
+        Thread.sleep(5);
+        assertFalse(snapshot.withMaxAge(0, TimeUnit.MILLISECONDS).isFresh());
+    }
+
+    @Test
+    public void loadOrBuild() throws Exception {
+        final SystemGraph expected=fixtureGraph();
+        final SystemGraph builder=new SystemGraph() {
+            @Override
+            public SystemGraph build() {
+                return expected;
+            }
+        };
+        final GraphSnapshot snapshot=new GraphSnapshot(new File(tmp.getRoot(), "mbta.graph"));
+
+        // no snapshot, build and save
+        assertSameGraph(expected, snapshot.loadOrBuild(builder));
+        assertTrue(snapshot.getFile().exists());
+        assertNull("no refresh", snapshot.getRefresh());
+
+        // fresh snapshot
+        assertSameGraph(expected, snapshot.loadOrBuild(builder));
+        assertNull("no refresh", snapshot.getRefresh());
+
+        // stale snapshot, refresh in the background
+        Thread.sleep(5);
+        snapshot.withMaxAge(0, TimeUnit.MILLISECONDS);
+        assertSameGraph(expected, snapshot.loadOrBuild(builder));
+        assertNotNull("refresh", snapshot.getRefresh());
+        assertSameGraph(expected, snapshot.getRefresh().get(10, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.broadinstitute.pcarr.metrics.DefaultMetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsSnapshot;
+import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.StandInServer;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JourneyPlanner tests, on a small timetable with one transfer stop, and on the recorded schedules.
+ */
+public class TestJourneyPlanner {
+    private static final LocalDate SERVICE_DATE=LocalDate.of(2019, 5, 1);
+
+    private SystemGraph systemGraph;
+    private Timetable timetable;
+
+    protected static int hm(final int hours, final int minutes) {
+        return hours*3600+minutes*60;
+    }
+
+    // add a trip which stops every 'minutes', from the first stop at 'departure'
+    protected static void addTrip(final Timetable.Builder builder, final SystemGraph systemGraph, final String tripId, final String routeId,
+            final int departure, final int minutes, final String... stopIds) {
+        final Route route=systemGraph.routeById(routeId);
+        for(int i=0; i<stopIds.length; ++i) {
+            final int time=departure+i*minutes*60;
+            builder.addStopTime(tripId, route, systemGraph.stopById(stopIds[i]), i+1,
+                i == 0 ? Timetable.NO_TIME : time,
+                i == stopIds.length-1 ? Timetable.NO_TIME : time);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        //   Red:  a - b - c - d, every 10 minutes from 08:00, 5 minutes between stops
+        //   Blue: e - c - f, from 'c' at 08:12, 08:22 and 08:32
+        systemGraph=new SystemGraph().build(TestGraphDiff.routes("Red:a,b,c,d", "Blue:e,c,f"));
+        final Timetable.Builder builder=new Timetable.Builder(systemGraph.getCompactGraph());
+        for(int i=0; i<3; ++i) {
+            addTrip(builder, systemGraph, "red-"+i, "Red", hm(8, 10*i), 5, "a", "b", "c", "d");
+            addTrip(builder, systemGraph, "blue-"+i, "Blue", hm(8, 10*i+4), 8, "e", "c", "f");
+        }
+        // a local which leaves at 08:30 and is overtaken by an express at 08:32
+        addTrip(builder, systemGraph, "red-local", "Red", hm(8, 30), 10, "a", "b", "c", "d");
+        addTrip(builder, systemGraph, "red-express", "Red", hm(8, 32), 3, "a", "b", "c", "d");
+        timetable=builder.build(SERVICE_DATE);
+    }
+
+    @Test
+    public void timetable() {
+        assertEquals("the overtaken trip is in its own pattern", 3, timetable.getNumPatterns());
+        assertEquals(8, timetable.getNumTrips());
+        assertEquals(5*4+3*3, timetable.getNumStopTimes());
+        assertEquals(Arrays.asList(hm(8, 0), hm(8, 10), hm(8, 20), hm(8, 30), hm(8, 32)),
+            toList(timetable.departuresFrom(systemGraph.stop("a"))));
+        assertEquals("no departures from the last stop", 0, timetable.departuresFrom(systemGraph.stop("f")).length);
+    }
+
+    protected static List<Integer> toList(final int[] values) {
+        final Integer[] list=new Integer[values.length];
+        for(int i=0; i<values.length; ++i) {
+            list[i]=values[i];
+        }
+        return Arrays.asList(list);
+    }
+
+    @Test
+    public void earliestArrival() {
+        final JourneyPlanner planner=new JourneyPlanner(timetable);
+        final JourneyPlanner.Journey journey=planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(7, 55));
+        assertNotNull(journey);
+        // Red from 'a' at 08:00 to 'c' at 08:10, Blue from 'c' at 08:12 to 'f' at 08:20
+        assertEquals(hm(8, 0), journey.getDepartureTime());
+        assertEquals(hm(8, 20), journey.getArrivalTime());
+        assertEquals(Arrays.asList(systemGraph.routeById("Red"), systemGraph.routeById("Blue")), journey.getRoutes());
+        assertEquals(Arrays.asList(systemGraph.stop("c")), journey.getTransferStops());
+        assertEquals(1, journey.getNumTransfers());
+        final JourneyPlanner.Leg first=journey.getLegs().get(0);
+        assertEquals("red-0", first.getTripId());
+        assertEquals(hm(8, 10), first.getArrivalTime());
+        assertEquals("blue-0", journey.getLegs().get(1).getTripId());
+        assertEquals(journey.toString(), "08:00:00 -> 08:20:00 [Red a 08:00:00 -> c 08:10:00, Blue c 08:12:00 -> f 08:20:00]", journey.toString());
+    }
+
+    @Test
+    public void minTransferTime() {
+        // 3 minutes at 'c' misses the 08:12
+        final JourneyPlanner planner=new JourneyPlanner(timetable).withMinTransferSeconds(180);
+        final JourneyPlanner.Journey journey=planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0));
+        assertEquals(hm(8, 30), journey.getArrivalTime());
+        assertEquals("blue-1", journey.getLegs().get(1).getTripId());
+    }
+
+    @Test
+    public void overtaking() {
+        final JourneyPlanner planner=new JourneyPlanner(timetable);
+        final JourneyPlanner.Journey journey=planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("d"), hm(8, 25));
+        assertEquals("red-express", journey.getLegs().get(0).getTripId());
+        assertEquals(hm(8, 41), journey.getArrivalTime());
+        assertEquals(0, journey.getNumTransfers());
+    }
+
+    @Test
+    public void noJourney() {
+        final JourneyPlanner planner=new JourneyPlanner(timetable);
+        assertNull("no trips in that direction", planner.earliestArrival(systemGraph.stop("d"), systemGraph.stop("a"), hm(8, 0)));
+        assertNull("after the last trip", planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(9, 0)));
+        assertNull("no transfers", new JourneyPlanner(timetable).withMaxTransfers(0)
+            .earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0)));
+
+        final JourneyPlanner.Journey journey=planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("a"), hm(8, 0));
+        assertEquals(Collections.emptyList(), journey.getLegs());
+        assertEquals(hm(8, 0), journey.getArrivalTime());
+    }
+
+    @Test
+    public void maxTransfers_afterQuery() {
+        final JourneyPlanner planner=new JourneyPlanner(timetable).withMaxTransfers(0);
+        assertNull(planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0)));
+        // more rounds than the workspace of the first query
+        planner.withMaxTransfers(2);
+        assertEquals(hm(8, 20), planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0)).getArrivalTime());
+        planner.withMaxTransfers(0);
+        assertNull(planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0)));
+    }
+
+    @Test
+    public void profile() {
+        final JourneyPlanner planner=new JourneyPlanner(timetable);
+        final List<JourneyPlanner.Journey> journeys=planner.profile(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0), hm(9, 0));
+        assertEquals(journeys.toString(), 3, journeys.size());
+        assertEquals(hm(8, 0), journeys.get(0).getDepartureTime());
+        assertEquals(hm(8, 20), journeys.get(0).getArrivalTime());
+        assertEquals(hm(8, 10), journeys.get(1).getDepartureTime());
+        assertEquals(hm(8, 30), journeys.get(1).getArrivalTime());
+        assertEquals(hm(8, 20), journeys.get(2).getDepartureTime());
+        assertEquals(hm(8, 40), journeys.get(2).getArrivalTime());
+
+        // each journey is the earliest arrival for its departure time
+        for(final JourneyPlanner.Journey journey : journeys) {
+            assertEquals(journey.getArrivalTime(),
+                planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), journey.getDepartureTime()).getArrivalTime());
+        }
+
+        // the 08:30 local is dominated by the 08:32 express
+        final List<JourneyPlanner.Journey> direct=planner.profile(systemGraph.stop("a"), systemGraph.stop("d"), hm(8, 25), hm(9, 0));
+        assertEquals(direct.toString(), 1, direct.size());
+        assertEquals("red-express", direct.get(0).getLegs().get(0).getTripId());
+    }
+
+    @Test
+    public void metrics() {
+        final MetricsRegistry metrics=new DefaultMetricsRegistry();
+        final JourneyPlanner planner=new JourneyPlanner(timetable).withMetrics(metrics);
+        planner.earliestArrival(systemGraph.stop("a"), systemGraph.stop("f"), hm(8, 0));
+        planner.earliestArrival(systemGraph.stop("d"), systemGraph.stop("a"), hm(8, 0));
+        assertTrue(planner.getNumScanned() > 0);
+        final MetricsSnapshot snapshot=metrics.snapshot();
+        assertEquals(2, snapshot.getDistribution("query.latency:raptor").getCount());
+        assertEquals(2, snapshot.getDistribution("query.visited:raptor").getCount());
+        assertEquals(1, snapshot.getCount("query.no_path:raptor"));
+    }
+
+    @Test
+    public void secondsOfServiceDay() {
+        assertEquals(hm(8, 15), Timetable.secondsOfServiceDay(SERVICE_DATE, "2019-05-01T08:15:00-04:00"));
+        assertEquals("past midnight", hm(24, 30), Timetable.secondsOfServiceDay(SERVICE_DATE, "2019-05-02T00:30:00-04:00"));
+        assertEquals(hm(8, 15), Timetable.secondsOfServiceDay(LocalDate.of(2019, 12, 1), "2019-12-01T08:15:00-05:00"));
+        assertEquals("25:10:00", Timetable.formatTime(hm(25, 10)));
+    }
+
+    @Test
+    public void readTimetable_standInServer() throws Exception {
+        final StandInServer server=TestMbtaClient.standInServer();
+        final RestClient client=new RestClient();
+        try {
+            client.withApiPrefix(server.start());
+            final SystemGraph graph=new SystemGraph().withClient(client).build();
+            final Timetable timetable=MbtaClient.readTimetable(client, graph, SERVICE_DATE);
+            assertEquals("not found", 0, server.getNumNotFound());
+            // the southbound Ashmont trips share a pattern, Davis is not in the graph
+            assertEquals(timetable.toString(), 4, timetable.getNumPatterns());
+            assertEquals(5, timetable.getNumTrips());
+            assertEquals(5+5+5+5+3, timetable.getNumStopTimes());
+
+            final JourneyPlanner planner=new JourneyPlanner(timetable);
+            final JourneyPlanner.Journey direct=planner.earliestArrival(graph.stop("Alewife"), graph.stop("Ashmont"), hm(8, 1));
+            assertEquals("R-S2", direct.getLegs().get(0).getTripId());
+            assertEquals(hm(8, 40), direct.getArrivalTime());
+
+            // ride north to change to the Braintree branch, from a platform of the same station
+            final JourneyPlanner.Journey transfer=planner.earliestArrival(graph.stop("Ashmont"), graph.stop("Braintree"), hm(8, 0));
+            assertEquals(transfer.toString(), 1, transfer.getNumTransfers());
+            assertEquals("R-N1", transfer.getLegs().get(0).getTripId());
+            assertEquals("R-B1", transfer.getLegs().get(1).getTripId());
+            assertEquals(hm(8, 45), transfer.getArrivalTime());
+
+            assertNull(planner.earliestArrival(graph.stop("Alewife"), graph.stop("Wonderland"), hm(8, 0)));
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.broadinstitute.pcarr.rest.JsonApiResource;
+import org.broadinstitute.pcarr.rest.RecordedResponses;
+import org.broadinstitute.pcarr.rest.ServerSentEvent;
+import org.broadinstitute.pcarr.rest.StandInServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * LiveResources and LiveData tests, streamed from a StandInServer.
+ */
+public class TestLiveData {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    protected static String vehicle(final String id, final String routeId, final String stopId, final String status) {
+        return "{\"id\":\""+id+"\",\"type\":\"vehicle\","
+            +"\"attributes\":{\"label\":\""+id+"\",\"current_status\":\""+status+"\",\"speed\":12.5,\"occupancy_status\":null},"
+            +"\"relationships\":{\"route\":{\"data\":{\"id\":\""+routeId+"\",\"type\":\"route\"}},"
+            +"\"stop\":{\"data\":{\"id\":\""+stopId+"\",\"type\":\"stop\"}}}}";
+    }
+
+    protected static LiveResources vehicles(final int maxResources) {
+        return new LiveResources("vehicle", MbtaClient.vehicleAttributes, MbtaClient.vehicleRelationships, maxResources);
+    }
+
+    protected static List<String> ids(final List<JsonApiResource> resources) {
+        final List<String> ids=new ArrayList<String>();
+        for(final JsonApiResource resource : resources) {
+            ids.add(resource.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void events() {
+        final LiveResources vehicles=vehicles(100);
+        vehicles.onOpen();
+        assertFalse(vehicles.isCurrent());
+        vehicles.onEvent(new ServerSentEvent("reset", "["
+            +vehicle("y1", "Red", "70061", "STOPPED_AT")+","
+            +vehicle("y2", "Red", "70063", "IN_TRANSIT_TO")+","
+            +vehicle("y3", "Blue", "70038", "STOPPED_AT")+"]", null));
+        assertTrue(vehicles.isCurrent());
+        assertEquals(3, vehicles.size());
+        assertEquals(Arrays.asList("y1", "y2"), ids(vehicles.getByRoute("Red")));
+        assertEquals("STOPPED_AT", vehicles.get("y1").getString("current_status"));
+        assertNull("attributes which are not selected are dropped", vehicles.get("y1").getString("speed"));
+
+        vehicles.onEvent(new ServerSentEvent("update", vehicle("y1", "Red", "70063", "STOPPED_AT"), null));
+        assertEquals(Arrays.asList("y1", "y2"), ids(vehicles.getByStop("70063")));
+        assertEquals("moved", Collections.emptyList(), ids(vehicles.getByStop("70061")));
+
+        vehicles.onEvent(new ServerSentEvent("add", vehicle("y4", "Blue", "70040", "INCOMING_AT"), null));
+        vehicles.onEvent(new ServerSentEvent("remove", "{\"id\":\"y3\",\"type\":\"vehicle\"}", null));
+        assertEquals(Arrays.asList("y4"), ids(vehicles.getByRoute("Blue")));
+        assertNull(vehicles.get("y3"));
+        assertEquals(3, vehicles.size());
+
+        vehicles.onEvent(new ServerSentEvent("update", "{not json", null));
+        assertEquals(1, vehicles.getNumErrors());
+        assertEquals(3, vehicles.size());
+
+        // reconnected, the next reset replaces everything
+        vehicles.onOpen();
+        assertFalse(vehicles.isCurrent());
+        vehicles.onEvent(new ServerSentEvent("reset", "["+vehicle("y5", "Red", "70061", "STOPPED_AT")+"]", null));
+        assertEquals(Arrays.asList("y5"), ids(vehicles.getAll()));
+        assertEquals(Collections.emptyList(), ids(vehicles.getByRoute("Blue")));
+        assertEquals(2, vehicles.getNumResets());
+    }
+
+    @Test
+    public void maxResources() {
+        final LiveResources vehicles=vehicles(2);
+        vehicles.onEvent(new ServerSentEvent("add", vehicle("y1", "Red", "a", "STOPPED_AT"), null));
+        vehicles.onEvent(new ServerSentEvent("add", vehicle("y2", "Red", "b", "STOPPED_AT"), null));
+        vehicles.onEvent(new ServerSentEvent("update", vehicle("y1", "Red", "c", "STOPPED_AT"), null));
+        vehicles.onEvent(new ServerSentEvent("add", vehicle("y3", "Red", "d", "STOPPED_AT"), null));
+        assertEquals("the least recently updated is evicted", Arrays.asList("y1", "y3"), ids(vehicles.getAll()));
+        assertEquals(Arrays.asList("y1", "y3"), ids(vehicles.getByRoute("Red")));
+        assertEquals(Collections.emptyList(), ids(vehicles.getByStop("b")));
+        assertEquals(1, vehicles.getNumEvicted());
+    }
+
+    @Test
+    public void liveData() throws Exception {
+        final StandInServer server=new StandInServer(new RecordedResponses(tmp.newFolder("recordings")))
+            .withEventStream("/vehicles")
+            .withEventStream("/predictions");
+        final String apiPrefix=server.start();
+        server.publish("/vehicles", "reset", "["+vehicle("y1", "Red", "70061", "STOPPED_AT")+"]");
+        server.publish("/predictions", "reset", "[]");
+        final LiveData live=new LiveData(Arrays.asList(new Route("Red", "Red Line"), new Route("Blue", "Blue Line")))
+            .withApiPrefix(apiPrefix)
+            .withApiKey("test")
+            .start();
+        try {
+            assertEquals(apiPrefix+"/vehicles?filter[route]=Red,Blue", live.getStreams().get(0).getUrl());
+            final LiveResources vehicles=live.getVehicles();
+            await(vehicles, 1);
+            await(live.getPredictions(), 0);
+            assertEquals(1, server.getNumStreamClients("/vehicles"));
+
+            server.publish("/vehicles", "add", vehicle("y2", "Blue", "70038", "STOPPED_AT"));
+            await(vehicles, 2);
+            assertEquals(Arrays.asList("y2"), ids(vehicles.getByRoute("Blue")));
+        }
+        finally {
+            live.close();
+            server.stop();
+        }
+    }
+
+    protected static void await(final LiveResources resources, final int size) throws InterruptedException {
+        final long deadline=System.currentTimeMillis()+10*1000;
+        while (resources.size() != size || !resources.isCurrent()) {
+            assertTrue("timed out waiting for "+size+" "+resources.getType()+"s, "+resources, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,383 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.broadinstitute.pcarr.metrics.DefaultMetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsSnapshot;
+import org.broadinstitute.pcarr.rest.AsyncRestClient;
+import org.broadinstitute.pcarr.rest.RecordedResponses;
+import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.RestClientException;
+import org.broadinstitute.pcarr.rest.StandInServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * MbtaClient tests, run against recorded json responses.
+ * The recordings in 'fixtures/api' are served by a StandInServer for the loader tests.
+ */
+public class TestMbtaClient {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    protected static JsonObject fixture(final String path) throws Exception {
+        final Reader reader=new InputStreamReader(
+            TestMbtaClient.class.getResourceAsStream("/fixtures/"+path), "UTF-8");
+        try {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    protected static List<String> stopNames(final Route route) {
+        final List<String> names=new ArrayList<String>();
+        for(final Stop stop : route.getStops()) {
+            names.add(stop.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void assembleRoutes() throws Exception {
+        final SortedSet<Route> routes=MbtaClient.assembleRoutes(
+            fixture("bulk/routes.json"),
+            fixture("bulk/route_patterns.json"),
+            fixture("bulk/parent_stations.json"),
+            true);
+        assertEquals("num routes", 2, routes.size());
+
+        final Route blue=routes.first();
+        assertEquals("Blue Line", blue.getLongName());
+        assertEquals(Arrays.asList("Wonderland", "State", "Bowdoin"), stopNames(blue));
+
+        // both branches, in travel order, without the atypical shuttle pattern
+        final Route red=routes.last();
+        assertEquals("Red Line", red.getLongName());
+        assertEquals(Arrays.asList("Alewife", "Harvard", "Park Street", "JFK/UMass", "Ashmont", "Braintree"), stopNames(red));
+
+        // platforms are replaced by their parent station
+        final Stop parkStreet=red.getStops().get(2);
+        assertEquals("place-pktrm", parkStreet.getId());
+        assertEquals("routes at Park Street", 1, parkStreet.getRoutes().size());
+        assertSame(red, parkStreet.getRoutes().first());
+    }
+
+    @Test
+    public void parentStationIds() throws Exception {
+        assertEquals("num parent stations", 9,
+            MbtaClient.parentStationIds(fixture("bulk/route_patterns.json")).size());
+    }
+
+    @Test
+    public void assembleRoutes_noParentStations() throws Exception {
+        final SortedSet<Route> routes=MbtaClient.assembleRoutes(
+            fixture("bulk/routes.json"),
+            fixture("bulk/route_patterns.json"),
+            null,
+            false);
+        final Route blue=routes.first();
+        assertNotNull(blue);
+        assertEquals("platform stop id", "state-Blue", blue.getStops().get(1).getId());
+        assertEquals("platform stop name", "State", blue.getStops().get(1).getName());
+    }
+
+    protected static StandInServer standInServer() throws Exception {
+        return new StandInServer(new RecordedResponses(
+            new File(TestMbtaClient.class.getResource("/fixtures/api").toURI())));
+    }
+
+    @Test
+    public void initRoutes_standInServer() throws Exception {
+        final StandInServer server=standInServer()
+            .withLatency(5, 20);
+        final RestClient client=new RestClient();
+        try {
+            client.withApiPrefix(server.start());
+            final SortedSet<Route> routes=MbtaClient.initRoutes(client, true, true, 4);
+            assertEquals("num routes", 2, routes.size());
+            assertEquals(Arrays.asList("Wonderland", "State", "Bowdoin"), stopNames(routes.first()));
+            assertEquals(Arrays.asList("Alewife", "Harvard", "Park Street", "JFK/UMass", "Ashmont", "Braintree"), stopNames(routes.last()));
+            assertEquals("requests", 3, server.getNumRequests());
+
+            // the bulk loader gets the same routes and stops
+            final SortedSet<Route> bulk=MbtaClient.initRoutesBulk(client, true);
+            assertEquals(stopNames(routes.first()), stopNames(bulk.first()));
+            assertEquals(stopNames(routes.last()), stopNames(bulk.last()));
+            assertEquals("requests", 6, server.getNumRequests());
+            assertEquals("not found", 0, server.getNumNotFound());
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    // route -> stop ids, with the routes of each stop
+    protected static List<String> describe(final SortedSet<Route> routes) {
+        final List<String> lines=new ArrayList<String>();
+        for(final Route route : routes) {
+            final StringBuilder line=new StringBuilder(route.getId()).append(':');
+            for(final Stop stop : route.getStops()) {
+                line.append(' ').append(stop.getId()).append('[');
+                for(final Route stopRoute : stop.getRoutes()) {
+                    line.append(stopRoute.getId()).append(',');
+                }
+                line.append(']');
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    @Test
+    public void initRoutes_concurrent() throws Exception {
+        // the subway recordings, 8 routes
+        final StandInServer server=new StandInServer(new RecordedResponses(
+                new File(TestMbtaClient.class.getResource("/fixtures/subway").toURI())))
+            .withLatency(5, 20);
+        final RestClient client=new RestClient();
+        try {
+            client.withApiPrefix(server.start());
+            final SortedSet<Route> sequential=MbtaClient.initRoutes(client, true, true, 1);
+            final SortedSet<Route> concurrent=MbtaClient.initRoutes(client, true, true, 8);
+            assertEquals("num routes", 8, concurrent.size());
+            assertEquals(describe(sequential), describe(concurrent));
+            assertEquals("requests", 18, server.getNumRequests());
+            assertEquals("not found", 0, server.getNumNotFound());
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void loaderThreadFactory() throws Exception {
+        final Runnable noop=new Runnable() {
+            public void run() {
+            }
+        };
+        // no ofVirtual(), as on java 8 to 20
+        final Thread platform=MbtaClient.loaderThreadFactory(Object.class).newThread(noop);
+        assertTrue(platform.isDaemon());
+        assertTrue(platform.getName(), platform.getName().startsWith("mbta-loader-"));
+
+        final Thread thread=MbtaClient.loaderThreadFactory().newThread(noop);
+        boolean hasVirtualThreads;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            hasVirtualThreads=true;
+        }
+        catch (NoSuchMethodException e) {
+            hasVirtualThreads=false;
+        }
+        if (hasVirtualThreads) {
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+        }
+        else {
+            assertTrue("platform threads, when virtual threads are not available", thread.getName().startsWith("mbta-loader-"));
+        }
+
+        // the loader executor runs tasks on whichever threads are available
+        final ExecutorService exec=MbtaClient.newLoaderExecutor(2);
+        try {
+            assertEquals("done", exec.submit(new Callable<String>() {
+                public String call() {
+                    return "done";
+                }
+            }).get());
+        }
+        finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        final StandInServer server=standInServer();
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        final RestClient client=new RestClient()
+            .withMetrics(registry);
+        try {
+            client.withApiPrefix(server.start());
+            final SystemGraph graph=new SystemGraph()
+                .withClient(client)
+                .withContractionHierarchy(true)
+                .withMetrics(registry)
+                .build();
+            graph.listRoutesFrom("Alewife", "Ashmont");
+            graph.listRoutesFrom("Alewife", "Wonderland");
+            graph.listStopsFrom(graph.stop("Alewife"), graph.stop("Braintree"), SearchMode.BIDIRECTIONAL);
+            graph.findItinerary("Harvard", "Braintree");
+
+            final MetricsSnapshot snapshot=registry.snapshot();
+            for(final String phase : Arrays.asList("fetch_routes", "fetch_stops", "graph", "connections", "contraction_hierarchy", "total")) {
+                assertEquals("build."+phase, 1, snapshot.getDistribution("build."+phase).getCount());
+            }
+            assertEquals(1, snapshot.getDistribution("http.latency:/routes").getCount());
+            assertEquals("one request per route", 2, snapshot.getDistribution("http.latency:/stops").getCount());
+
+            assertEquals(2, snapshot.getDistribution("query.latency:contraction_hierarchy").getCount());
+            assertEquals(1, snapshot.getCount("query.no_path:contraction_hierarchy"));
+            assertTrue(snapshot.getDistribution("query.visited:contraction_hierarchy").getMax() > 0);
+            assertEquals(1, snapshot.getDistribution("query.latency:bidirectional").getCount());
+            assertTrue(snapshot.getDistribution("query.visited:bidirectional").getMax() > 0);
+            assertEquals(0, snapshot.getDistribution("query.latency:breadth_first").getCount());
+            assertEquals(1, snapshot.getDistribution("query.latency:itinerary").getCount());
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void initRoutes_errors() throws Exception {
+        // every request fails
+        final StandInServer server=standInServer()
+            .withErrorRate(1);
+        final RestClient client=new RestClient();
+        try {
+            client.withApiPrefix(server.start());
+            try {
+                MbtaClient.initRoutes(client, true, true, 4);
+                fail("expected RestClientException");
+            }
+            catch (RestClientException e) {
+                // expected
+            }
+            assertEquals("errors, with retries", client.getRetryPolicy().getMaxAttempts(), server.getNumErrors());
+            try {
+                new SystemGraph().withClient(client).build();
+                fail("expected IllegalStateException");
+            }
+            catch (IllegalStateException e) {
+                assertTrue(e.getCause() instanceof RestClientException);
+            }
+            try {
+                MbtaClient.initRoutesBulk(client, true);
+                fail("expected RestClientException, bulk");
+            }
+            catch (RestClientException e) {
+                // expected
+            }
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void initRoutesAsync() throws Exception {
+        final StandInServer server=standInServer()
+            .withLatency(5, 20);
+        final AsyncRestClient client=new AsyncRestClient();
+        try {
+            client.withApiPrefix(server.start());
+            final SortedSet<Route> routes=MbtaClient.initRoutesAsync(client, true).get();
+            assertEquals("num routes", 2, routes.size());
+            assertEquals(Arrays.asList("Wonderland", "State", "Bowdoin"), stopNames(routes.first()));
+            assertEquals(Arrays.asList("Alewife", "Harvard", "Park Street", "JFK/UMass", "Ashmont", "Braintree"), stopNames(routes.last()));
+            assertSame(routes.last(), routes.last().getStops().get(0).getRoutes().first());
+            assertEquals("requests", 3, server.getNumRequests());
+
+            final SortedSet<Route> noStops=MbtaClient.initRoutesAsync(client, false, true, false).get();
+            assertEquals("num routes", 2, noStops.size());
+            assertTrue(noStops.first().getStops().isEmpty());
+            assertEquals("only the routes", 4, server.getNumRequests());
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void initRoutesAsync_error() throws Exception {
+        // no recordings, every request is not found
+        final StandInServer server=new StandInServer(new RecordedResponses(tmp.newFolder("recordings")));
+        final AsyncRestClient client=new AsyncRestClient();
+        try {
+            client.withApiPrefix(server.start());
+            try {
+                MbtaClient.initRoutesAsync(client, true).get();
+                fail("the routes could not be loaded");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof RestClientException);
+            }
+            try {
+                new SystemGraph().withAsyncClient(client).build();
+                fail("the routes could not be loaded");
+            }
+            catch (IllegalStateException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof RestClientException);
+            }
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void initRoutesAsync_stopsError() throws Exception {
+        // the fixture without the Blue Line stops, which are not found
+        final File dir=tmp.newFolder("recordings");
+        for(final File file : new File(TestMbtaClient.class.getResource("/fixtures/api").toURI()).listFiles()) {
+            if (!file.getName().contains("filter-route-=Blue-")) {
+                Files.copy(file.toPath(), new File(dir, file.getName()).toPath());
+            }
+        }
+        final StandInServer server=new StandInServer(new RecordedResponses(dir));
+        final AsyncRestClient client=new AsyncRestClient();
+        try {
+            client.withApiPrefix(server.start());
+            try {
+                MbtaClient.initRoutesAsync(client, true).get();
+                fail("the Blue Line stops could not be loaded");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof RestClientException);
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("route=Blue"));
+            }
+            assertEquals("not found", 1, server.getNumNotFound());
+            try {
+                new SystemGraph().withAsyncClient(client).build();
+                fail("no partial graph");
+            }
+            catch (IllegalStateException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof RestClientException);
+            }
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+}
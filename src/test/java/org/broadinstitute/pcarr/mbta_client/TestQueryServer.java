@@ -0,0 +1,160 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * QueryServer tests, with the graph built from the recorded responses, and a throughput test.
+ */
+public class TestQueryServer {
+    private static SystemGraph graph;
+    private static QueryServer server;
+    private static String prefix;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        graph=TestGraphSnapshot.fixtureGraph();
+        server=new QueryServer(graph).withThreads(8);
+        prefix=server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    /** GET the endpoint, and return the status code and the body */
+    protected static String[] get(final String endpoint) throws Exception {
+        final HttpURLConnection conn=(HttpURLConnection) new URL(prefix+endpoint).openConnection();
+        final int status=conn.getResponseCode();
+        final InputStream in=status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final byte[] buf=new byte[4096];
+        int n;
+        while ((n=in.read(buf)) >= 0) {
+            bytes.write(buf, 0, n);
+        }
+        // closing the stream, instead of disconnecting, keeps the connection alive for the next request
+        in.close();
+        return new String[] { Integer.toString(status), bytes.toString("UTF-8") };
+    }
+
+    protected static JsonElement getJson(final String endpoint) throws Exception {
+        final String[] response=get(endpoint);
+        assertEquals(endpoint+": "+response[1], "200", response[0]);
+        return new JsonParser().parse(response[1]);
+    }
+
+    protected static String query(final String from, final String to) throws Exception {
+        return "?from="+URLEncoder.encode(from, "UTF-8")+"&to="+URLEncoder.encode(to, "UTF-8");
+    }
+
+    protected static List<String> ids(final JsonArray array) {
+        final List<String> ids=new ArrayList<String>();
+        for(final JsonElement element : array) {
+            ids.add(element.getAsJsonObject().get("id").getAsString());
+        }
+        return ids;
+    }
+
+    @Test
+    public void routes() throws Exception {
+        final JsonArray routes=getJson("/routes").getAsJsonArray();
+        assertEquals(graph.getRoutes().size(), routes.size());
+        final JsonArray longest=getJson("/routes/longest").getAsJsonArray();
+        final Route expected=graph.getLongestRoutes().asList().get(0);
+        assertEquals(expected.getId(), longest.get(0).getAsJsonObject().get("id").getAsString());
+        assertEquals(expected.getStops().size(), longest.get(0).getAsJsonObject().get("num_stops").getAsInt());
+        final JsonObject connections=getJson("/connections").getAsJsonObject();
+        assertEquals(graph.getRouteConnections().size(), connections.entrySet().size());
+    }
+
+    @Test
+    public void paths() throws Exception {
+        final JsonObject routes=getJson("/path/routes"+query("Alewife", "Braintree")).getAsJsonObject();
+        assertEquals("Alewife", routes.get("from").getAsJsonObject().get("name").getAsString());
+        assertEquals(TestGraphSnapshot.routeIds(graph.listRoutesFrom("Alewife", "Braintree")), ids(routes.get("routes").getAsJsonArray()));
+
+        final Stop bowdoin=graph.stop("Bowdoin");
+        final JsonObject stops=getJson("/path/stops"+query(bowdoin.getId(), "Wonderland")).getAsJsonObject();
+        assertEquals("by id", bowdoin.getId(), stops.get("from").getAsJsonObject().get("id").getAsString());
+        assertEquals(graph.listStopsFrom("Bowdoin", "Wonderland").size(), stops.get("stops").getAsJsonArray().size());
+
+        final JsonObject itinerary=getJson("/itinerary"+query("Ashmont", "Harvard")).getAsJsonObject();
+        assertEquals(TestGraphSnapshot.routeIds(graph.findItinerary("Ashmont", "Harvard").getRoutes()), ids(itinerary.get("routes").getAsJsonArray()));
+
+        final JsonObject noPath=getJson("/path/routes"+query("Alewife", "Wonderland")).getAsJsonObject();
+        assertTrue(noPath.get("routes").isJsonNull());
+    }
+
+    @Test
+    public void errors() throws Exception {
+        assertEquals("404", get("/path/routes"+query("Alewife", "Nowhere"))[0]);
+        assertEquals("400", get("/path/routes?from=Alewife")[0]);
+        assertEquals("malformed escape", "400", get("/path/routes?from=Alewife&to=%zz")[0]);
+        assertEquals("the server still answers", "200", get("/path/routes"+query("Alewife", "Braintree"))[0]);
+        assertEquals("404", get("/nothing")[0]);
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        final List<Stop> stops=graph.getStops().asList();
+        final int numClients=8;
+        final int numRequests=1000;
+        final ExecutorService exec=Executors.newFixedThreadPool(numClients);
+        try {
+            final List<Callable<Integer>> clients=new ArrayList<Callable<Integer>>();
+            for(int c=0; c<numClients; ++c) {
+                final Random random=new Random(c);
+                clients.add(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int ok=0;
+                        for(int i=0; i<numRequests; ++i) {
+                            final Stop from=stops.get(random.nextInt(stops.size()));
+                            final Stop to=stops.get(random.nextInt(stops.size()));
+                            if ("200".equals(get("/path/routes"+query(from.getId(), to.getId()))[0])) {
+                                ++ok;
+                            }
+                        }
+                        return ok;
+                    }
+                });
+            }
+            final long start=System.nanoTime();
+            int ok=0;
+            for(final Future<Integer> future : exec.invokeAll(clients)) {
+                ok+=future.get();
+            }
+            final double seconds=(System.nanoTime()-start)/1e9;
+            System.out.println(String.format("query server: %d route queries from %d clients in %.2f s, %.0f queries/s",
+                ok, numClients, seconds, ok/seconds));
+            assertEquals(numClients*numRequests, ok);
+        }
+        finally {
+            exec.shutdown();
+        }
+    }
+
+}
@@ -5,12 +5,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import org.broadinstitute.pcarr.rest.RecordedResponses;
 import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.StandInServer;
 import org.jgrapht.GraphPath;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -19,27 +23,40 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+/**
+ * SystemGraph tests, run against the recorded subway routes and stops in 'fixtures/subway'.
+ */
 public class TestSystemGraph {
+    private static StandInServer server;
     private static SystemGraph graph;
 
     @BeforeClass
-    public static void beforeClass() {
+    public static void beforeClass() throws Exception {
+        server=new StandInServer(new RecordedResponses(
+            new File(TestSystemGraph.class.getResource("/fixtures/subway").toURI())));
         RestClient client=new RestClient()
-            .withApiKey(MbtaClient.apiKey)
+            .withApiPrefix(server.start())
             .withVerbose(false);
         graph=new SystemGraph()
             .withClient(client)
         .build();
     }
+
+    @AfterClass
+    public static void afterClass() {
+        if (server != null) {
+            server.stop();
+        }
+    }
     
     protected static Route route(final String routeId) {
-        Route route=graph.routesById.get(routeId);
+        Route route=graph.routeById(routeId);
         assertNotNull("Invalid route, routeId='"+routeId+"'", route);
         return route;
     }
     
     protected static Route routeByName(final String routeName) {
-        Route route=graph.routesByName.get(routeName);
+        Route route=graph.routeByName(routeName);
         assertNotNull("Invalid route, routeName='"+routeName+"'", route);
         return route;
     } 
@@ -76,7 +93,7 @@ public class TestSystemGraph {
     public void numStops() {
         assertEquals("total number of stops",
             // expected
-            120, 
+            121, 
             // actual
             graph.getNumStops()
         );
@@ -145,12 +162,14 @@ public class TestSystemGraph {
     
     @Test
     public void getPath_Lechmere_to_Airport() {
-        assertPath("Lechmere", "Airport", "Green-E", "Blue");
+        // one stop fewer than staying on Green Line E to Government Center
+        assertPath("Lechmere", "Airport", "Green-E", "Orange", "Blue");
     }
 
     @Test
     public void getPath_Kendall_to_Airport() {
-        assertPath("Kendall/MIT", "Airport", "Red", "Green-D", "Blue");
+        // Park Street to Government Center, on the first of the Green Line branches along the edge
+        assertPath("Kendall/MIT", "Airport", "Red", "Green-C", "Blue");
     }
 
     
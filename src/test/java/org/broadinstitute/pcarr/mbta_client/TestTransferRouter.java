@@ -0,0 +1,106 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * TransferRouter tests, on a small network where the path with the fewest stops 
+ * is not the trip with the fewest transfers.
+ */
+public class TestTransferRouter {
+    private Route local;
+    private Route east;
+    private Route north;
+    private Route shuttle;
+    private SystemGraph systemGraph;
+
+    protected static Route route(final String id, final String... stopNames) {
+        final Route route=new Route(id, id+" Line");
+        for(final String name : stopNames) {
+            route.addStop(new Stop(name, name));
+        }
+        return route;
+    }
+
+    @Before
+    public void setUp() {
+        //   local:   a - b - c - d - e - f - g
+        //   east:    a - x
+        //   north:   x - g
+        //   shuttle: y - z
+        local=route("Local", "a", "b", "c", "d", "e", "f", "g");
+        east=route("East", "a", "x");
+        north=route("North", "x", "g");
+        shuttle=route("Shuttle", "y", "z");
+        systemGraph=new SystemGraph().build(Arrays.asList(local, east, north, shuttle));
+    }
+
+    @Test
+    public void fewestTransfers() {
+        // the shortest path changes routes at 'x'
+        assertEquals(Arrays.asList(east, north), systemGraph.listRoutesFrom("a", "g"));
+
+        final TransferRouter.Itinerary itinerary=systemGraph.findItinerary("a", "g");
+        assertEquals(Arrays.asList(local), itinerary.getRoutes());
+        assertEquals(0, itinerary.getNumTransfers());
+        assertEquals(6, itinerary.getNumStops());
+    }
+
+    @Test
+    public void routeConnections() {
+        // three routes through 's', each one connects to both of the others
+        final Route one=route("One", "a", "s");
+        final Route two=route("Two", "b", "s");
+        final Route three=route("Three", "c", "s");
+        final SystemGraph graph=new SystemGraph().build(Arrays.asList(one, two, three));
+        final Map<Route,Collection<Route>> connections=graph.getRouteConnections();
+        assertEquals(Arrays.asList(three, two), new ArrayList<Route>(connections.get(one)));
+        assertEquals(Arrays.asList(one, two), new ArrayList<Route>(connections.get(three)));
+        assertEquals(Arrays.asList(one, three), new ArrayList<Route>(connections.get(two)));
+    }
+
+    @Test
+    public void lowTransferPenalty() {
+        final SystemGraph graph=new SystemGraph().withTransferPenalty(1).build(systemGraph.getRoutes());
+        final TransferRouter.Itinerary itinerary=graph.findItinerary("a", "g");
+        assertEquals(Arrays.asList(east, north), itinerary.getRoutes());
+        assertEquals(Arrays.asList(graph.stop("x")), itinerary.getTransferStops());
+        assertEquals(2, itinerary.getNumStops());
+        assertEquals(3, itinerary.getCost(), 0);
+    }
+
+    @Test
+    public void transferRequired() {
+        final TransferRouter.Itinerary itinerary=systemGraph.findItinerary("c", "x");
+        assertEquals(Arrays.asList(local, east), itinerary.getRoutes());
+        assertEquals(Arrays.asList(systemGraph.stop("a")), itinerary.getTransferStops());
+        assertEquals(3, itinerary.getNumStops());
+    }
+
+    @Test
+    public void sameStop() {
+        final TransferRouter.Itinerary itinerary=systemGraph.findItinerary("d", "d");
+        assertEquals(Collections.emptyList(), itinerary.getRoutes());
+        assertEquals(0, itinerary.getNumStops());
+    }
+
+    @Test
+    public void noTrip() {
+        assertNull(systemGraph.findItinerary("a", "z"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void unknownStop() {
+        systemGraph.findItinerary(systemGraph.stop("a"), new Stop("nowhere", "Nowhere"));
+    }
+
+}
@@ -0,0 +1,203 @@
+package org.broadinstitute.pcarr.mbta_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+import org.broadinstitute.pcarr.metrics.DefaultMetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.rest.RestClient;
+import org.broadinstitute.pcarr.rest.StandInServer;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SystemGraph tests with the edges weighted by the scheduled travel times, on a small network
+ * where the path with the fewest stops is the slowest.
+ */
+public class TestTravelTimes {
+    private List<Route> routes;
+    private Timetable timetable;
+
+    @Before
+    public void setUp() {
+        //   Red:   a - b - c - d, 2 minutes per stop, one trip takes 4 minutes from 'a' to 'b'
+        //   Blue:  a - e - d, 10 minutes per stop
+        //   Green: b - f - d, 1 minute per stop
+        routes=TestGraphDiff.routes("Red:a,b,c,d", "Blue:a,e,d", "Green:b,f,d");
+        final SystemGraph systemGraph=new SystemGraph().build(routes);
+        final Timetable.Builder builder=new Timetable.Builder(systemGraph.getCompactGraph());
+        for(int i=0; i<3; ++i) {
+            final int start=TestJourneyPlanner.hm(8, 10*i);
+            if (i == 2) {
+                TestJourneyPlanner.addTrip(builder, systemGraph, "red-slow", "Red", start, 4, "a", "b");
+                TestJourneyPlanner.addTrip(builder, systemGraph, "red-"+i, "Red", start+240, 2, "b", "c", "d");
+            }
+            else {
+                TestJourneyPlanner.addTrip(builder, systemGraph, "red-"+i, "Red", start, 2, "a", "b", "c", "d");
+            }
+            TestJourneyPlanner.addTrip(builder, systemGraph, "blue-"+i, "Blue", start, 10, "a", "e", "d");
+            TestJourneyPlanner.addTrip(builder, systemGraph, "green-"+i, "Green", start, 1, "b", "f", "d");
+        }
+        timetable=builder.build(LocalDate.of(2019, 5, 1));
+    }
+
+    protected static Route route(final SystemGraph systemGraph, final String id) {
+        return systemGraph.routeById(id);
+    }
+
+    // the edge from one stop to another, by stop id
+    protected static int edge(final CompactGraph graph, final String from, final String to) {
+        for(int e=0; e<graph.getNumEdges(); ++e) {
+            if (graph.getStop(graph.getSource(e)).getId().equals(from) && graph.getStop(graph.getTarget(e)).getId().equals(to)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void medianTravelTimes() {
+        final CompactGraph graph=timetable.getGraph();
+        final int[] medians=timetable.medianTravelTimes(graph);
+        assertEquals("the slow trip is an outlier", 120, medians[edge(graph, "a", "b")]);
+        assertEquals(600, medians[edge(graph, "a", "e")]);
+        assertEquals(60, medians[edge(graph, "f", "d")]);
+        assertEquals("no trips from 'b' to 'a'", -1, medians[edge(graph, "b", "a")]);
+
+        // another build of the same routes
+        final CompactGraph other=new SystemGraph().build(routes).getCompactGraph();
+        assertEquals(Arrays.toString(medians), Arrays.toString(timetable.medianTravelTimes(other)));
+    }
+
+    @Test
+    public void fastestPath() {
+        final SystemGraph unweighted=new SystemGraph().build(routes);
+        assertEquals(Arrays.asList(route(unweighted, "Blue")), unweighted.listRoutesFrom("a", "d"));
+        assertEquals(-1, unweighted.getTravelSeconds(unweighted.stop("a"), unweighted.stop("d")));
+
+        // changing to Green at 'b' saves 2 minutes, less than the transfer penalty
+        final SystemGraph systemGraph=new SystemGraph().withTravelTimes(timetable).build(routes);
+        assertEquals(Arrays.asList(route(systemGraph, "Red")), systemGraph.listRoutesFrom("a", "d"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), TestGraphSnapshot.stopNames(systemGraph.listStopsFrom("a", "d")));
+        assertEquals(360, systemGraph.getTravelSeconds(systemGraph.stop("a"), systemGraph.stop("d")));
+        assertEquals("the other direction has the same times", 360, systemGraph.getTravelSeconds(systemGraph.stop("d"), systemGraph.stop("a")));
+        assertEquals("search modes find the fewest stops", Arrays.asList(route(systemGraph, "Blue")),
+            systemGraph.listRoutesFrom(systemGraph.stop("a"), systemGraph.stop("d"), SearchMode.BREADTH_FIRST));
+
+        final SystemGraph noPenalty=new SystemGraph().withTravelTimes(timetable).withTransferSeconds(0).build(routes);
+        assertEquals(Arrays.asList(route(noPenalty, "Red"), route(noPenalty, "Green")), noPenalty.listRoutesFrom("a", "d"));
+        assertEquals(240, noPenalty.getTravelSeconds(noPenalty.stop("a"), noPenalty.stop("d")));
+    }
+
+    @Test
+    public void sharedTrunk() {
+        //   B: p - q - r - s
+        //   C:     q - r - s - t, along the same edges as B from 'q' to 's'
+        final List<Route> trunk=TestGraphDiff.routes("B:p,q,r,s", "C:q,r,s,t");
+        final SystemGraph unweighted=new SystemGraph().build(trunk);
+        final Timetable.Builder builder=new Timetable.Builder(unweighted.getCompactGraph());
+        for(int i=0; i<3; ++i) {
+            final int start=TestJourneyPlanner.hm(8, 10*i);
+            TestJourneyPlanner.addTrip(builder, unweighted, "b-"+i, "B", start, 2, "p", "q", "r", "s");
+            TestJourneyPlanner.addTrip(builder, unweighted, "c-"+i, "C", start, 2, "q", "r", "s", "t");
+        }
+        final SystemGraph systemGraph=new SystemGraph().withTravelTimes(builder.build(LocalDate.of(2019, 5, 1))).build(trunk);
+
+        // C runs along every edge, no transfer
+        assertEquals(Arrays.asList(route(systemGraph, "C")), systemGraph.listRoutesFrom("q", "t"));
+        assertEquals(360, systemGraph.getTravelSeconds(systemGraph.stop("q"), systemGraph.stop("t")));
+        assertEquals(Arrays.asList(route(unweighted, "C")), unweighted.listRoutesFrom("q", "t"));
+        // one change of route, B as far as it goes
+        assertEquals(Arrays.asList(route(systemGraph, "B"), route(systemGraph, "C")), systemGraph.listRoutesFrom("p", "t"));
+    }
+
+    @Test
+    public void contractionHierarchy() {
+        final SystemGraph noPenalty=new SystemGraph().withTravelTimes(timetable).withTransferSeconds(0)
+            .withContractionHierarchy(true)
+            .build(routes);
+        assertNotNull("built on the travel times", noPenalty.getContractionHierarchy());
+        assertEquals(240, noPenalty.getTravelSeconds(noPenalty.stop("a"), noPenalty.stop("d")));
+
+        final SystemGraph systemGraph=new SystemGraph().withTravelTimes(timetable)
+            .withContractionHierarchy(true)
+            .withAllPairs(true)
+            .build(routes);
+        assertNull("no index with a transfer penalty", systemGraph.getContractionHierarchy());
+        assertNull("no fewest stops table", systemGraph.getAllPairsPaths());
+        assertEquals(Arrays.asList(route(systemGraph, "Red")), systemGraph.listRoutesFrom("a", "d"));
+    }
+
+    @Test
+    public void precomputeAllPairs() {
+        final SystemGraph systemGraph=new SystemGraph().withTravelTimes(timetable).build(routes);
+        try {
+            systemGraph.precomputeAllPairs();
+            fail("no fewest stops table for the travel times");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertNull(systemGraph.getAllPairsPaths());
+        assertEquals("still the fastest path", Arrays.asList(route(systemGraph, "Red")), systemGraph.listRoutesFrom("a", "d"));
+        assertEquals(360, systemGraph.getTravelSeconds(systemGraph.stop("a"), systemGraph.stop("d")));
+
+        final SystemGraph unweighted=new SystemGraph().build(routes);
+        unweighted.precomputeAllPairs();
+        assertNotNull(unweighted.getAllPairsPaths());
+        assertEquals(Arrays.asList(route(unweighted, "Blue")), unweighted.listRoutesFrom("a", "d"));
+    }
+
+    @Test
+    public void batch() {
+        final SystemGraph systemGraph=new SystemGraph().withTravelTimes(timetable).withPathTreeCache(4).build(routes);
+        final List<StopPair> pairs=Arrays.asList(
+            new StopPair(systemGraph.stop("a"), systemGraph.stop("d")),
+            new StopPair(systemGraph.stop("a"), systemGraph.stop("f")),
+            new StopPair(systemGraph.stop("e"), systemGraph.stop("c")));
+        final List<List<Route>> batch=systemGraph.listRoutesFrom(pairs);
+        for(int i=0; i<pairs.size(); ++i) {
+            assertEquals(pairs.get(i).toString(), systemGraph.listRoutesFrom(pairs.get(i).getFrom(), pairs.get(i).getTo()), batch.get(i));
+        }
+    }
+
+    @Test
+    public void metrics() {
+        final MetricsRegistry metrics=new DefaultMetricsRegistry();
+        final SystemGraph systemGraph=new SystemGraph().withTravelTimes(timetable).withMetrics(metrics).build(routes);
+        systemGraph.listRoutesFrom("a", "d");
+        assertEquals(1, metrics.snapshot().getDistribution("query.latency:"+SystemGraph.QUERY_TRAVEL_TIME).getCount());
+        assertEquals(1, metrics.snapshot().getDistribution("build.travel_times").getCount());
+    }
+
+    @Test
+    public void scheduleDate_standInServer() throws Exception {
+        final StandInServer server=TestMbtaClient.standInServer();
+        final RestClient client=new RestClient();
+        try {
+            client.withApiPrefix(server.start());
+            final SystemGraph systemGraph=new SystemGraph()
+                .withClient(client)
+                .withScheduleDate(LocalDate.of(2019, 5, 1))
+                .build();
+            assertEquals("not found", 0, server.getNumNotFound());
+            assertNotNull(systemGraph.getTimetable());
+            // 6 + 8 + 8 + 8 minutes
+            assertEquals(30*60, systemGraph.getTravelSeconds(systemGraph.stop("Alewife"), systemGraph.stop("Ashmont")));
+            assertEquals(22*60, systemGraph.getTravelSeconds(systemGraph.stop("Wonderland"), systemGraph.stop("Bowdoin")));
+            // no trips between Ashmont and Braintree in the fixture, the median of the scheduled edges
+            assertEquals(8*60, systemGraph.getTravelSeconds(systemGraph.stop("Ashmont"), systemGraph.stop("Braintree")));
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.broadinstitute.pcarr.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestMetrics {
+
+    @Test
+    public void distribution() {
+        final Distribution distribution=new Distribution("visited");
+        for(int i=1; i<=1000; ++i) {
+            distribution.record(i);
+        }
+        final Distribution.Snapshot snapshot=distribution.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(500.5, snapshot.getMean(), 5);
+        // within 1%
+        assertEquals(500, snapshot.getPercentile(50), 5);
+        assertEquals(990, snapshot.getPercentile(99), 10);
+        assertEquals(1000, snapshot.getMax(), 10);
+
+        distribution.record(-1);
+        assertEquals("recorded after the last snapshot", 1001, distribution.snapshot().getCount());
+        assertEquals("the snapshot doesn't change", 1000, snapshot.getCount());
+        assertEquals(0, distribution.snapshot().getMin());
+    }
+
+    @Test
+    public void timer() {
+        final Timer timer=new Timer("latency");
+        timer.record(2, TimeUnit.MILLISECONDS);
+        timer.stop(timer.start());
+        final Distribution.Snapshot snapshot=timer.snapshot();
+        assertTrue(snapshot.isTimer());
+        assertEquals(2, snapshot.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), snapshot.getMax(), 20000);
+        assertTrue(snapshot.toString(), snapshot.toString().contains("max=2.0"));
+    }
+
+    @Test
+    public void registry() {
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        final Counter counter=registry.counter("http.retries:/stops");
+        assertSame(counter, registry.counter("http.retries:/stops"));
+        counter.add(3);
+        registry.timer("http.latency:/stops").record(5, TimeUnit.MILLISECONDS);
+        registry.distribution("query.visited:breadth_first").record(42);
+        try {
+            registry.timer("http.retries:/stops");
+            fail("expecting IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            registry.distribution("http.latency:/stops");
+            fail("a timer is not a distribution");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        final MetricsSnapshot snapshot=registry.snapshot();
+        assertEquals(3, snapshot.getCount("http.retries:/stops"));
+        assertEquals(0, snapshot.getCount("http.retries:/routes"));
+        assertNull(snapshot.getDistribution("http.latency:/routes"));
+        assertEquals(42, snapshot.getDistribution("query.visited:breadth_first").getMax(), 1);
+        assertTrue(snapshot.toString(), snapshot.toString().startsWith("http.retries:/stops: 3\n"));
+    }
+
+    @Test
+    public void writeJson() throws Exception {
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        registry.counter("http.bytes:/stops").add(1234);
+        registry.timer("http.latency:/stops").record(5, TimeUnit.MILLISECONDS);
+        registry.distribution("query.visited:bidirectional").record(17);
+        final StringWriter out=new StringWriter();
+        registry.snapshot().writeJson(out);
+        final JsonObject json=new JsonParser().parse(out.toString()).getAsJsonObject();
+        assertEquals(1234, json.getAsJsonObject("counters").get("http.bytes:/stops").getAsLong());
+        assertEquals("milliseconds", 5.0, json.getAsJsonObject("timers").getAsJsonObject("http.latency:/stops").get("max").getAsDouble(), 0.05);
+        assertEquals(17, json.getAsJsonObject("distributions").getAsJsonObject("query.visited:bidirectional").get("p50").getAsDouble(), 0.5);
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        final int numThreads=4;
+        final int numValues=10000;
+        final Thread[] threads=new Thread[numThreads];
+        for(int t=0; t<numThreads; ++t) {
+            threads[t]=new Thread() {
+                public void run() {
+                    for(int i=0; i<numValues; ++i) {
+                        registry.timer("query.latency:breadth_first").record(i);
+                        registry.counter("query.no_path:breadth_first").increment();
+                        if (i % 1000 == 0) {
+                            registry.snapshot();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(final Thread thread : threads) {
+            thread.join();
+        }
+        final MetricsSnapshot snapshot=registry.snapshot();
+        assertEquals(numThreads*numValues, snapshot.getDistribution("query.latency:breadth_first").getCount());
+        assertEquals(numThreads*numValues, snapshot.getCount("query.no_path:breadth_first"));
+    }
+
+    @Test
+    public void reporter() throws Exception {
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        registry.counter("http.retries:/stops").increment();
+        final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+        final MetricsReporter reporter=new MetricsReporter(registry)
+            .withOutput(new PrintStream(bytes, true, "UTF-8"))
+            .start(10, TimeUnit.MILLISECONDS);
+        final long deadline=System.currentTimeMillis()+10*1000;
+        while (bytes.size() == 0) {
+            assertTrue("timed out waiting for a report", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        reporter.close();
+        final String output=bytes.toString("UTF-8");
+        assertTrue(output, output.startsWith("http.retries:/stops: 1\n"));
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.broadinstitute.pcarr.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * EventStreamReader and EventStreamClient tests, against a StandInServer event stream.
+ */
+public class TestEventStream {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private StandInServer server;
+    private EventStreamClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server=new StandInServer(new RecordedResponses(tmp.newFolder("recordings")))
+            .withEventStream("/vehicles");
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        server.stop();
+    }
+
+    /** collects the events, with an 'open' event for each connection */
+    protected static class Collector implements EventStreamClient.Listener {
+        final BlockingQueue<ServerSentEvent> events=new LinkedBlockingQueue<ServerSentEvent>();
+
+        public void onOpen() {
+            events.add(new ServerSentEvent("open", "", null));
+        }
+
+        public void onEvent(final ServerSentEvent event) throws Exception {
+            events.add(event);
+        }
+
+        ServerSentEvent next() throws InterruptedException {
+            final ServerSentEvent event=events.poll(10, TimeUnit.SECONDS);
+            assertNotNull("timed out waiting for an event", event);
+            return event;
+        }
+    }
+
+    protected static void awaitClients(final StandInServer server, final String path, final int numClients) throws InterruptedException {
+        final long deadline=System.currentTimeMillis()+10*1000;
+        while (server.getNumStreamClients(path) != numClients) {
+            assertTrue("timed out waiting for "+numClients+" clients", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void reader() throws Exception {
+        final EventStreamReader reader=new EventStreamReader(new StringReader(
+            ": keep-alive\n"
+            +"event: reset\n"
+            +"data: [1,\n"
+            +"data:2]\n"
+            +"\n"
+            +"data: no type\r\n"
+            +"id: 7\r\n"
+            +"retry: 2500\r\n"
+            +"\r\n"
+            +"event: update\r"
+            +"data: {}\r"
+            +"\r"
+            +"event: empty\n"
+            +"\n"
+            +"event: incomplete\n"
+            +"data: x\n"), 64, null);
+        ServerSentEvent event=reader.next();
+        assertEquals("reset", event.getType());
+        assertEquals("[1,\n2]", event.getData());
+        assertNull(event.getId());
+        event=reader.next();
+        assertEquals(ServerSentEvent.DEFAULT_TYPE, event.getType());
+        assertEquals("no type", event.getData());
+        assertEquals("7", event.getId());
+        event=reader.next();
+        assertEquals("update", event.getType());
+        assertEquals("{}", event.getData());
+        assertEquals("the last id is kept", "7", event.getId());
+        assertNull("an event without data is not dispatched, an incomplete event is discarded", reader.next());
+        assertEquals(2500, reader.getRetryMillis());
+        assertEquals(1, reader.getNumComments());
+    }
+
+    @Test
+    public void reader_oversized() throws Exception {
+        final StringBuilder big=new StringBuilder();
+        for(int i=0; i<100; ++i) {
+            big.append("data: 0123456789\n");
+        }
+        final EventStreamReader reader=new EventStreamReader(new StringReader(
+            "event: reset\n"+big+"\n"
+            +"event: long line\ndata: "+big.toString().replace("\n", "")+"\n\n"
+            +"event: add\ndata: ok\n\n"), 256, null);
+        final ServerSentEvent event=reader.next();
+        assertEquals("add", event.getType());
+        assertEquals("ok", event.getData());
+        assertEquals(2, reader.getNumOversized());
+    }
+
+    @Test
+    public void stream() throws Exception {
+        final String prefix=server.start();
+        server.publish("/vehicles", "reset", "[]");
+        final Collector collector=new Collector();
+        client=new EventStreamClient(prefix+"/vehicles?filter[route]=Red")
+            .withApiKey("test")
+            .start(collector);
+        assertEquals("open", collector.next().getType());
+        assertEquals("the last reset is sent first", "reset", collector.next().getType());
+        awaitClients(server, "/vehicles", 1);
+        assertTrue(client.isConnected());
+
+        server.publish("/vehicles", "add", "{\"id\":\"y1\"}");
+        server.publish("/vehicles", "update", "{\"id\":\"y1\",\n\"type\":\"vehicle\"}");
+        ServerSentEvent event=collector.next();
+        assertEquals("add", event.getType());
+        assertEquals("{\"id\":\"y1\"}", event.getData());
+        event=collector.next();
+        assertEquals("update", event.getType());
+        assertEquals("multi-line data", "{\"id\":\"y1\",\n\"type\":\"vehicle\"}", event.getData());
+        assertEquals(3, client.getNumEvents());
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        final String prefix=server.start();
+        server.publish("/vehicles", "reset", "[{\"id\":\"y1\"}]");
+        final Collector collector=new Collector();
+        client=new EventStreamClient(prefix+"/vehicles")
+            .withRetryPolicy(new RetryPolicy().withBackoff(10, 100))
+            .start(collector);
+        assertEquals("open", collector.next().getType());
+        assertEquals("reset", collector.next().getType());
+        awaitClients(server, "/vehicles", 1);
+
+        server.publish("/vehicles", "reset", "[{\"id\":\"y2\"}]");
+        assertEquals("reset", collector.next().getType());
+        server.disconnectStreams();
+        assertEquals("open", collector.next().getType());
+        final ServerSentEvent reset=collector.next();
+        assertEquals("reset", reset.getType());
+        assertEquals("the current state, after reconnecting", "[{\"id\":\"y2\"}]", reset.getData());
+        assertEquals(2, client.getNumConnects());
+        assertEquals(2, server.getNumStreams());
+    }
+
+    @Test
+    public void reconnect_afterErrors() throws Exception {
+        server.withErrorRate(1);
+        final String prefix=server.start();
+        final Collector collector=new Collector();
+        client=new EventStreamClient(prefix+"/vehicles")
+            .withRetryPolicy(new RetryPolicy().withBackoff(10, 20))
+            .start(collector);
+        final long deadline=System.currentTimeMillis()+10*1000;
+        while (server.getNumErrors() < 3) {
+            assertTrue("timed out waiting for retries", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(0, client.getNumConnects());
+        server.withErrorRate(0);
+        assertEquals("open", collector.next().getType());
+        assertEquals(1, client.getNumConnects());
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        final String prefix=server.start();
+        final CountDownLatch release=new CountDownLatch(1);
+        final AtomicInteger received=new AtomicInteger();
+        final BlockingQueue<String> order=new LinkedBlockingQueue<String>();
+        client=new EventStreamClient(prefix+"/vehicles")
+            .withQueueCapacity(4)
+            .start(new EventStreamClient.Listener() {
+                public void onOpen() {
+                }
+
+                public void onEvent(final ServerSentEvent event) throws Exception {
+                    // a slow listener, blocked until released
+                    release.await();
+                    order.add(event.getData());
+                    received.incrementAndGet();
+                }
+            });
+        awaitClients(server, "/vehicles", 1);
+        final int numEvents=200;
+        for(int i=0; i<numEvents; ++i) {
+            server.publish("/vehicles", "update", Integer.toString(i));
+        }
+        Thread.sleep(200);
+        assertTrue("bounded queue, max="+client.getMaxQueueSize(), client.getMaxQueueSize() <= 4);
+        assertTrue("the reader waited", client.getNumQueueFull() > 0);
+
+        release.countDown();
+        final long deadline=System.currentTimeMillis()+10*1000;
+        while (received.get() < numEvents) {
+            assertTrue("timed out, received "+received.get(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        for(int i=0; i<numEvents; ++i) {
+            assertEquals("in order", Integer.toString(i), order.take());
+        }
+    }
+
+}
@@ -0,0 +1,760 @@
+package org.broadinstitute.pcarr.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.pool.PoolStats;
+import org.broadinstitute.pcarr.metrics.DefaultMetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsRegistry;
+import org.broadinstitute.pcarr.metrics.MetricsSnapshot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * RestClient tests, run against a local http server.
+ */
+public class TestRestClient {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    protected static final String STOPS_JSON="{"
+        +"\"data\":["
+        +  "{\"id\":\"70061\",\"type\":\"stop\","
+        +   "\"attributes\":{\"name\":\"Alewife\",\"latitude\":42.396158,\"wheelchair_boarding\":1,\"address\":null,\"description\":\"Alewife - Red Line\"},"
+        +   "\"links\":{\"self\":\"/stops/70061\"},"
+        +   "\"relationships\":{\"parent_station\":{\"data\":{\"id\":\"place-alfcl\",\"type\":\"stop\"}},\"zone\":{\"data\":null}}},"
+        +  "{\"id\":\"place-davis\",\"type\":\"stop\","
+        +   "\"attributes\":{\"name\":\"Davis\",\"latitude\":42.39674,\"wheelchair_boarding\":null},"
+        +   "\"relationships\":{\"parent_station\":{\"data\":null}}}"
+        +"],"
+        +"\"jsonapi\":{\"version\":\"1.0\"}"
+        +"}";
+
+    private HttpServer server;
+    private String prefix;
+    // for the response cache tests
+    private volatile String etag="\"v1\"";
+    private final AtomicInteger numFullResponses=new AtomicInteger();
+    private final AtomicInteger numNotModified=new AtomicInteger();
+    // for the retry tests
+    private final AtomicInteger numFlaky=new AtomicInteger();
+    private final AtomicInteger numDown=new AtomicInteger();
+    // for the cancelled request tests
+    private final CountDownLatch slowStarted=new CountDownLatch(1);
+    private final CountDownLatch slowRelease=new CountDownLatch(1);
+    // for the streamed response tests
+    private final CountDownLatch firstParsed=new CountDownLatch(1);
+    private final AtomicBoolean parsedBeforeEnd=new AtomicBoolean();
+
+    protected static void respond(final HttpExchange exchange, final int statusCode, final String body) throws IOException {
+        final byte[] bytes=body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/vnd.api+json");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        final OutputStream out=exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server=HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/routes", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "{\"data\":[{\"id\":\"Red\",\"attributes\":{\"long_name\":\"Red Line\"}}]}");
+            }
+        });
+        server.createContext("/stops", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, 200, STOPS_JSON);
+            }
+        });
+        server.createContext("/cached", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String ifNoneMatch=exchange.getRequestHeaders().getFirst("If-None-Match");
+                if (etag.equals(ifNoneMatch)) {
+                    numNotModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                numFullResponses.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Last-Modified", "Wed, 01 May 2019 12:00:00 GMT");
+                respond(exchange, 200, STOPS_JSON);
+            }
+        });
+        server.createContext("/missing", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                respond(exchange, 404, "{\"errors\":[]}");
+            }
+        });
+        // fails twice, then succeeds
+        server.createContext("/flaky", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (numFlaky.incrementAndGet() <= 2) {
+                    respond(exchange, 503, "{\"errors\":[]}");
+                }
+                else {
+                    respond(exchange, 200, STOPS_JSON);
+                }
+            }
+        });
+        server.createContext("/down", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                numDown.incrementAndGet();
+                respond(exchange, 500, "{\"errors\":[]}");
+            }
+        });
+        // waits for the test to release it
+        server.createContext("/slow", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                slowStarted.countDown();
+                try {
+                    slowRelease.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, 200, STOPS_JSON);
+            }
+        });
+        // sends the first stop, then waits for the client to parse it before sending the rest
+        server.createContext("/halves", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final int split=STOPS_JSON.indexOf("{\"id\":\"place-davis\"");
+                exchange.getResponseHeaders().set("Content-Type", "application/vnd.api+json");
+                exchange.sendResponseHeaders(200, 0);
+                final OutputStream out=exchange.getResponseBody();
+                out.write(STOPS_JSON.substring(0, split).getBytes("UTF-8"));
+                out.flush();
+                try {
+                    parsedBeforeEnd.set(firstParsed.await(5, TimeUnit.SECONDS));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(STOPS_JSON.substring(split).getBytes("UTF-8"));
+                out.close();
+            }
+        });
+        server.start();
+        prefix="http://127.0.0.1:"+server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        slowRelease.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void getJson() throws Exception {
+        final RestClient client=new RestClient();
+        try {
+            final JsonObject json=client.getJson(prefix+"/routes");
+            assertEquals("data[0].id", "Red",
+                json.get("data").getAsJsonArray().get(0).getAsJsonObject().get("id").getAsString());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void getJson_apiPrefix() throws Exception {
+        final RestClient client=new RestClient();
+        try {
+            try {
+                client.getJson("/routes");
+                fail("expecting URISyntaxException");
+            }
+            catch (URISyntaxException e) {
+                // expected
+            }
+            client.withApiPrefix(prefix);
+            assertEquals(1, client.getJson("/routes").get("data").getAsJsonArray().size());
+            assertEquals("absolute endpoints are not changed", 1, client.getJson(prefix+"/routes").get("data").getAsJsonArray().size());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void getJson_stream() throws Exception {
+        final List<JsonApiResource> resources=new ArrayList<JsonApiResource>();
+        final RestClient client=new RestClient();
+        try {
+            final int count=client.getJson(prefix+"/stops", new JsonApiReader(
+                ImmutableSet.of("name", "latitude", "wheelchair_boarding", "address"),
+                ImmutableSet.of("parent_station", "zone"),
+                new JsonApiReader.Callback() {
+                    public void onResource(final JsonApiResource resource) {
+                        resources.add(resource);
+                    }
+                }));
+            assertEquals("count", 2, count);
+        }
+        finally {
+            client.close();
+        }
+        final JsonApiResource alewife=resources.get(0);
+        assertEquals("70061", alewife.getId());
+        assertEquals("stop", alewife.getType());
+        assertEquals("Alewife", alewife.getString("name"));
+        assertEquals(42.396158, alewife.getDouble("latitude", 0), 0.0000001);
+        assertEquals(1, alewife.getInt("wheelchair_boarding", 0));
+        assertEquals("place-alfcl", alewife.getRelatedId("parent_station"));
+        // null and unselected values are not kept
+        assertNull(alewife.getString("address"));
+        assertNull(alewife.getString("description"));
+        assertNull(alewife.getRelatedId("zone"));
+
+        final JsonApiResource davis=resources.get(1);
+        assertEquals("Davis", davis.getString("name"));
+        assertEquals(-1, davis.getInt("wheelchair_boarding", -1));
+        assertNull(davis.getRelatedId("parent_station"));
+    }
+
+    @Test
+    public void responseCache() throws Exception {
+        final LruResponseCache cache=new LruResponseCache();
+        final RestClient client=new RestClient()
+            .withApiKey("test-key")
+            .withResponseCache(cache);
+        try {
+            final JsonObject first=client.getJson(prefix+"/cached");
+            final JsonObject second=client.getJson(prefix+"/cached");
+            assertEquals("full responses", 1, numFullResponses.get());
+            assertEquals("not modified", 1, numNotModified.get());
+            assertEquals("client not modified count", 1, client.getNotModifiedCount());
+            assertSame("304 is served without parsing again", first, second);
+
+            // streaming handlers replay the cached body
+            final int count=client.getJson(prefix+"/cached", new JsonApiReader(ImmutableSet.of("name"), new JsonApiReader.Callback() {
+                public void onResource(final JsonApiResource resource) {
+                }
+            }));
+            assertEquals("count", 2, count);
+            assertEquals("not modified", 2, numNotModified.get());
+
+            // changed on the server
+            etag="\"v2\"";
+            final JsonObject third=client.getJson(prefix+"/cached");
+            assertEquals("full responses", 2, numFullResponses.get());
+            assertNotSame(first, third);
+            assertEquals(first, third);
+            assertEquals("cache entries", 1, cache.size());
+
+            // responses without validators are not cached
+            client.getJson(prefix+"/routes");
+            assertEquals("cache entries", 1, cache.size());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void lruEviction() {
+        final LruResponseCache cache=new LruResponseCache(100);
+        cache.put(new CachedResponse("a", "\"a\"", null, 0, new byte[40]));
+        cache.put(new CachedResponse("b", "\"b\"", null, 0, new byte[40]));
+        assertNotNull(cache.get("a"));
+        // evicts 'b', the least recently used
+        cache.put(new CachedResponse("c", "\"c\"", null, 0, new byte[40]));
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals("evictions", 1, cache.getEvictionCount());
+        assertEquals("hits", 3, cache.getHitCount());
+        assertEquals("misses", 1, cache.getMissCount());
+        assertTrue(cache.getNumBytes() <= 100);
+    }
+
+    @Test
+    public void diskTier() throws Exception {
+        final File dir=tmp.newFolder("cache");
+        final LruResponseCache cache=new LruResponseCache(100).withSecondTier(new DiskResponseCache(dir));
+        cache.put(new CachedResponse("a", "\"a\"", "Wed, 01 May 2019 12:00:00 GMT", 1234, new byte[] { 1, 2, 3 }));
+        cache.put(new CachedResponse("b", null, null, 0, new byte[99]));
+        assertEquals("'a' is evicted from memory", 1, cache.size());
+
+        final CachedResponse a=new LruResponseCache().withSecondTier(new DiskResponseCache(dir)).get("a");
+        assertNotNull("'a' is on disk", a);
+        assertEquals("\"a\"", a.getEtag());
+        assertEquals("Wed, 01 May 2019 12:00:00 GMT", a.getLastModified());
+        assertEquals(1234, a.getStoredMillis());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, a.getBody());
+        assertNull(new DiskResponseCache(dir).get("c"));
+    }
+
+    @Test
+    public void reusePooledConnection() throws Exception {
+        final RestClient client=new RestClient()
+            .withMaxConnections(4, 2);
+        assertNull("no pool before first request", client.getPoolStats());
+        try {
+            for(int i=0; i<10; ++i) {
+                client.getJson(prefix+"/routes");
+            }
+            // error responses must release the connection too
+            try {
+                client.getJson(prefix+"/missing");
+                fail("expecting RestClientException");
+            }
+            catch (RestClientException e) {
+                // expected
+            }
+            final PoolStats stats=client.getPoolStats();
+            assertNotNull(stats);
+            assertEquals("leased", 0, stats.getLeased());
+            assertEquals("available", 1, stats.getAvailable());
+            assertEquals("max", 4, stats.getMax());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void configureAfterStart() throws Exception {
+        final RestClient client=new RestClient();
+        try {
+            client.getJson(prefix+"/routes");
+            client.withReadTimeout(1000);
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void getJsonAfterClose() throws Exception {
+        final RestClient client=new RestClient();
+        client.close();
+        client.getJson(prefix+"/routes");
+    }
+
+    @Test(expected=RestClientException.class)
+    public void getJson_static_missing() throws Exception {
+        final RestClient client=new RestClient();
+        try {
+            RestClient.getJson(client, prefix+"/missing");
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void retry() throws Exception {
+        final RestClient client=new RestClient()
+            .withRetryPolicy(new RetryPolicy().withBackoff(1, 10));
+        try {
+            final JsonObject json=client.getJson(prefix+"/flaky");
+            assertEquals(2, json.get("data").getAsJsonArray().size());
+            assertEquals("requests", 3, numFlaky.get());
+            assertEquals("retries", 2, client.getRetryCount());
+
+            // not retried
+            try {
+                client.getJson(prefix+"/missing");
+                fail("expecting RestClientException");
+            }
+            catch (RestClientException e) {
+                // expected
+            }
+            assertEquals("retries", 2, client.getRetryCount());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void retry_giveUp() throws Exception {
+        final RestClient client=new RestClient()
+            .withRetryPolicy(new RetryPolicy().withMaxAttempts(2).withBackoff(1, 10));
+        try {
+            client.getJson(prefix+"/flaky");
+            fail("expecting RestClientException");
+        }
+        catch (RestClientException e) {
+            // expected
+        }
+        finally {
+            client.close();
+        }
+        assertEquals("requests", 2, numFlaky.get());
+    }
+
+    @Test
+    public void retry_droppedConnection() throws Exception {
+        final RecordedResponses recordings=new RecordedResponses(tmp.newFolder("recordings"));
+        recordings.put("/stops", STOPS_JSON.getBytes("UTF-8"));
+        final StandInServer server=new StandInServer(recordings)
+            .withDropRate(1);
+        final RestClient client=new RestClient()
+            .withRetryPolicy(new RetryPolicy().withMaxAttempts(3).withBackoff(1, 10));
+        try {
+            client.getJson(server.start()+"/stops");
+            fail("expecting IOException");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+        assertEquals("one request per attempt of the retry policy", 3, server.getNumRequests());
+        assertEquals(3, server.getNumDropped());
+        assertEquals("retries", 2, client.getRetryCount());
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        final RestClient client=new RestClient()
+            .withRetryPolicy(new RetryPolicy().withBackoff(1, 10))
+            .withMetrics(registry);
+        try {
+            client.getJson(prefix+"/flaky?page=1");
+            try {
+                client.getJson(prefix+"/missing");
+                fail("expecting RestClientException");
+            }
+            catch (RestClientException e) {
+                // expected
+            }
+        }
+        finally {
+            client.close();
+        }
+        final MetricsSnapshot snapshot=registry.snapshot();
+        assertEquals("per request, with retries", 1, snapshot.getDistribution("http.latency:/flaky").getCount());
+        assertEquals(2, snapshot.getCount("http.status.503:/flaky"));
+        assertEquals(1, snapshot.getCount("http.status.200:/flaky"));
+        assertEquals(2, snapshot.getCount("http.retries:/flaky"));
+        assertEquals(STOPS_JSON.length(), snapshot.getCount("http.bytes:/flaky"));
+        assertEquals(0, snapshot.getCount("http.failures:/flaky"));
+        assertEquals(1, snapshot.getCount("http.status.404:/missing"));
+        assertEquals(1, snapshot.getCount("http.failures:/missing"));
+        assertEquals(1, snapshot.getDistribution("http.latency:/missing").getCount());
+    }
+
+    @Test
+    public void retryAfter() {
+        final long now=System.currentTimeMillis();
+        final BasicHttpResponse response=new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, "Too Many Requests");
+        assertEquals("no header", -1, RetryPolicy.retryAfterMillis(response, now));
+
+        response.setHeader("x-ratelimit-limit", "1000");
+        response.setHeader("x-ratelimit-remaining", "10");
+        response.setHeader("x-ratelimit-reset", Long.toString(TimeUnit.MILLISECONDS.toSeconds(now)+5));
+        assertEquals("quota not used up", -1, RetryPolicy.retryAfterMillis(response, now));
+        response.setHeader("x-ratelimit-remaining", "0");
+        final long untilReset=RetryPolicy.retryAfterMillis(response, now);
+        assertTrue("untilReset="+untilReset, untilReset > 4000 && untilReset <= 5000);
+
+        response.setHeader("Retry-After", "2");
+        assertEquals(2000, RetryPolicy.retryAfterMillis(response, now));
+        response.setHeader("Retry-After", DateUtils.formatDate(new Date(now+60000)));
+        final long untilDate=RetryPolicy.retryAfterMillis(response, now);
+        assertTrue("untilDate="+untilDate, untilDate > 58000 && untilDate <= 60000);
+        // longer than the max wait
+        assertEquals(-1, new RetryPolicy().withMaxRetryAfter(30000).delayMillis(1, response));
+        // no attempts left
+        response.setHeader("Retry-After", "0");
+        assertEquals(0, new RetryPolicy().delayMillis(1, response));
+        assertEquals(-1, new RetryPolicy().withMaxAttempts(1).delayMillis(1, response));
+    }
+
+    @Test
+    public void circuitBreaker() throws Exception {
+        final CircuitBreaker circuitBreaker=new CircuitBreaker(2, 100, TimeUnit.MILLISECONDS);
+        final RestClient client=new RestClient()
+            .withRetryPolicy(RetryPolicy.none())
+            .withCircuitBreaker(circuitBreaker);
+        try {
+            for(int i=0; i<4; ++i) {
+                try {
+                    client.getJson(prefix+"/down");
+                    fail("expecting RestClientException");
+                }
+                catch (RestClientException e) {
+                    // expected
+                }
+            }
+            assertEquals("fail fast after 2 failures", 2, numDown.get());
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+            assertEquals("rejected", 2, circuitBreaker.getNumRejected());
+
+            // half-open, the trial request succeeds
+            Thread.sleep(150);
+            client.getJson(prefix+"/routes");
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+            assertEquals("opened", 1, circuitBreaker.getNumOpened());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void circuitBreaker_cancelTrial() throws Exception {
+        final CircuitBreaker circuitBreaker=new CircuitBreaker(1, 100, TimeUnit.MILLISECONDS);
+        final AsyncRestClient client=new AsyncRestClient()
+            .withRetryPolicy(RetryPolicy.none())
+            .withCircuitBreaker(circuitBreaker);
+        try {
+            try {
+                client.getJson(prefix+"/down").get();
+                fail("expecting ExecutionException");
+            }
+            catch (ExecutionException e) {
+                // expected
+            }
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+            // the half-open trial is cancelled while it is in flight
+            Thread.sleep(150);
+            final CompletableFuture<JsonObject> trial=client.getJson(prefix+"/slow");
+            assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+            trial.cancel(true);
+            assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+            slowRelease.countDown();
+
+            // the next request is the trial
+            client.getJson(prefix+"/routes").get();
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+            assertEquals("rejected", 0, circuitBreaker.getNumRejected());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void tokenBucket() throws Exception {
+        final TokenBucket bucket=new TokenBucket(20, 1);
+        final long start=System.currentTimeMillis();
+        for(int i=0; i<5; ++i) {
+            assertTrue(bucket.acquire());
+        }
+        assertTrue("4 waits of 50 ms", System.currentTimeMillis()-start >= 150);
+        assertEquals(4, bucket.getNumWaits());
+
+        // the server's quota is used up
+        bucket.withMaxWait(10, TimeUnit.MILLISECONDS).pauseUntil(System.currentTimeMillis()+1000);
+        assertTrue("wait longer than max", !bucket.acquire());
+    }
+
+    @Test
+    public void async() throws Exception {
+        final AsyncRestClient client=new AsyncRestClient()
+            .withApiKey("test-key")
+            .withRetryPolicy(new RetryPolicy().withBackoff(1, 10));
+        try {
+            final CompletableFuture<JsonObject> routes=client.getJson(prefix+"/routes");
+            final CompletableFuture<JsonObject> flaky=client.getJson(prefix+"/flaky");
+            final CompletableFuture<JsonObject> missing=client.getJson(prefix+"/missing");
+            assertEquals("Red", routes.get().get("data").getAsJsonArray().get(0).getAsJsonObject().get("id").getAsString());
+            assertEquals(2, flaky.get().get("data").getAsJsonArray().size());
+            assertEquals("retries", 2, client.getRetryCount());
+            try {
+                missing.get();
+                fail("expecting ExecutionException");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RestClientException);
+            }
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void async_metrics() throws Exception {
+        final MetricsRegistry registry=new DefaultMetricsRegistry();
+        final AsyncRestClient client=new AsyncRestClient()
+            .withRetryPolicy(new RetryPolicy().withBackoff(1, 10))
+            .withMetrics(registry);
+        try {
+            client.getJson(prefix+"/flaky").get();
+        }
+        finally {
+            client.close();
+        }
+        final MetricsSnapshot snapshot=registry.snapshot();
+        assertEquals(1, snapshot.getDistribution("http.latency:/flaky").getCount());
+        assertEquals(2, snapshot.getCount("http.status.503:/flaky"));
+        assertEquals(2, snapshot.getCount("http.retries:/flaky"));
+        assertEquals(STOPS_JSON.length(), snapshot.getCount("http.content_bytes:/flaky"));
+    }
+
+    @Test
+    public void async_stream() throws Exception {
+        final List<JsonApiResource> resources=new ArrayList<JsonApiResource>();
+        final AsyncRestClient client=new AsyncRestClient();
+        try {
+            final int count=client.getJson(prefix+"/stops", new JsonApiReader(ImmutableSet.of("name"), new JsonApiReader.Callback() {
+                public void onResource(final JsonApiResource resource) {
+                    resources.add(resource);
+                }
+            })).get();
+            assertEquals(2, count);
+            assertEquals("Alewife", resources.get(0).getString("name"));
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void async_incremental() throws Exception {
+        final List<JsonApiResource> resources=new ArrayList<JsonApiResource>();
+        final AsyncRestClient client=new AsyncRestClient();
+        try {
+            final int count=client.getJson(prefix+"/halves", new JsonApiReader(ImmutableSet.of("name"), new JsonApiReader.Callback() {
+                public void onResource(final JsonApiResource resource) {
+                    resources.add(resource);
+                    firstParsed.countDown();
+                }
+            })).get();
+            assertEquals(2, count);
+            assertTrue("the first stop is parsed before the rest of the response is sent", parsedBeforeEnd.get());
+            assertEquals(STOPS_JSON.length(), client.getTransferStats().getTransferredBytes());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void async_manyInFlight() throws Exception {
+        final File dir=tmp.newFolder("recordings");
+        final RecordedResponses recordings=new RecordedResponses(dir);
+        recordings.put("/stops", STOPS_JSON.getBytes("UTF-8"));
+        final StandInServer server=new StandInServer(recordings)
+            .withLatency(100, 100);
+        // one i/o thread for all of the connections
+        final AsyncRestClient client=new AsyncRestClient()
+            .withIoThreads(1)
+            .withMaxConnections(50, 50);
+        try {
+            final String standInPrefix=server.start();
+            final long start=System.currentTimeMillis();
+            final List<CompletableFuture<JsonObject>> futures=new ArrayList<CompletableFuture<JsonObject>>();
+            for(int i=0; i<40; ++i) {
+                futures.add(client.getJson(standInPrefix+"/stops"));
+            }
+            for(final CompletableFuture<JsonObject> future : futures) {
+                assertEquals(2, future.get().get("data").getAsJsonArray().size());
+            }
+            final long elapsed=System.currentTimeMillis()-start;
+            assertTrue("maxInFlight="+client.getMaxInFlight(), client.getMaxInFlight() >= 20);
+            assertTrue("elapsed="+elapsed, elapsed < 2000);
+        }
+        finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    // a /stops response with many stops, which compresses well
+    protected static String manyStopsJson(final int numStops) {
+        final StringBuilder json=new StringBuilder("{\"data\":[");
+        for(int i=0; i<numStops; ++i) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"stop-"+i+"\",\"type\":\"stop\",\"attributes\":{\"name\":\"Stop "+i+"\",\"latitude\":42.39,\"longitude\":-71.14,\"wheelchair_boarding\":1}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    @Test
+    public void compression() throws Exception {
+        final RecordedResponses recordings=new RecordedResponses(tmp.newFolder("recordings"));
+        recordings.put("/stops", manyStopsJson(500).getBytes("UTF-8"));
+        final StandInServer server=new StandInServer(recordings);
+        final RestClient client=new RestClient();
+        final RestClient uncompressed=new RestClient()
+            .withCompression(false);
+        final RestClient cached=new RestClient()
+            .withResponseCache(new LruResponseCache());
+        final AsyncRestClient async=new AsyncRestClient();
+        try {
+            final String standInPrefix=server.start();
+            // streamed
+            final int count=client.getJson(standInPrefix+"/stops", new JsonApiReader(ImmutableSet.of("name"), new JsonApiReader.Callback() {
+                public void onResource(final JsonApiResource resource) {
+                }
+            }));
+            assertEquals(500, count);
+            final TransferStats stats=client.getTransferStats();
+            assertEquals(1, stats.getNumCompressed());
+            assertEquals(recordings.get("/stops").length, stats.getContentBytes());
+            assertTrue("ratio="+stats.getCompressionRatio(), stats.getCompressionRatio() > 5);
+
+            assertEquals(500, uncompressed.getJson(standInPrefix+"/stops").get("data").getAsJsonArray().size());
+            assertEquals(0, uncompressed.getTransferStats().getNumCompressed());
+            assertEquals(stats.getContentBytes(), uncompressed.getTransferStats().getTransferredBytes());
+
+            // the response cache keeps the decompressed body
+            final JsonObject first=cached.getJson(standInPrefix+"/stops");
+            assertEquals(1, cached.getTransferStats().getNumCompressed());
+            assertTrue(((LruResponseCache) cached.getResponseCache()).getNumBytes() >= recordings.get("/stops").length);
+            assertSame(first, cached.getJson(standInPrefix+"/stops"));
+
+            assertEquals(500, async.getJson(standInPrefix+"/stops").get().get("data").getAsJsonArray().size());
+            assertEquals(1, async.getTransferStats().getNumCompressed());
+            assertEquals(stats.getTransferredBytes(), async.getTransferStats().getTransferredBytes());
+        }
+        finally {
+            client.close();
+            uncompressed.close();
+            cached.close();
+            async.close();
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.broadinstitute.pcarr.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+
+/**
+ * StandInServer tests.
+ */
+public class TestStandInServer {
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    private RecordedResponses recordings;
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        recordings=new RecordedResponses(tmp.newFolder("recordings"));
+        recordings.put("/routes", "{\"data\":[{\"id\":\"Red\",\"attributes\":{\"long_name\":\"Red Line\"}}]}".getBytes("UTF-8"));
+        recordings.put(RecordedResponses.key("/stops", "filter[route]=Red&filter[direction_id]=0"), TestRestClient.STOPS_JSON.getBytes("UTF-8"));
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    protected static int status(final String endpoint) throws Exception {
+        final HttpURLConnection conn=(HttpURLConnection) new URL(endpoint).openConnection();
+        try {
+            return conn.getResponseCode();
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void key() throws Exception {
+        assertEquals("/stops?filter[direction_id]=0&filter[route]=Red",
+            RecordedResponses.key("https://api-v3.mbta.com/stops?filter%5Broute%5D=Red&filter%5Bdirection_id%5D=0"));
+        assertEquals("/routes", RecordedResponses.key("http://127.0.0.1:8080/routes"));
+    }
+
+    @Test
+    public void replay() throws Exception {
+        server=new StandInServer(recordings);
+        final String prefix=server.start();
+        final RestClient client=new RestClient()
+            .withResponseCache(new LruResponseCache());
+        try {
+            final JsonObject routes=client.getJson(prefix+"/routes");
+            assertEquals("Red", routes.get("data").getAsJsonArray().get(0).getAsJsonObject().get("id").getAsString());
+            // the query parameters, in any order and encoding
+            final JsonObject stops=client.getJson(prefix+"/stops?filter%5Bdirection_id%5D=0&filter%5Broute%5D=Red");
+            assertEquals(2, stops.get("data").getAsJsonArray().size());
+            assertSame("304 Not Modified", stops, client.getJson(prefix+"/stops?filter%5Bdirection_id%5D=0&filter%5Broute%5D=Red"));
+            assertEquals(1, server.getNumNotModified());
+            try {
+                client.getJson(prefix+"/stops?filter[route]=Blue");
+                fail("expecting RestClientException");
+            }
+            catch (RestClientException e) {
+                // expected
+            }
+            assertEquals(1, server.getNumNotFound());
+            assertEquals(4, server.getNumRequests());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void injectedErrors() throws Exception {
+        server=new StandInServer(recordings)
+            .withErrorRate(0.5)
+            .withSeed(42);
+        final String prefix=server.start();
+        int numErrors=0;
+        for(int i=0; i<100; ++i) {
+            final int status=status(prefix+"/routes");
+            if (status == 500) {
+                ++numErrors;
+            }
+            else {
+                assertEquals(200, status);
+            }
+        }
+        assertEquals(numErrors, server.getNumErrors());
+        assertTrue("numErrors="+numErrors, numErrors > 25 && numErrors < 75);
+    }
+
+    @Test
+    public void latency() throws Exception {
+        server=new StandInServer(recordings)
+            .withLatency(50, 60);
+        final String prefix=server.start();
+        final long start=System.currentTimeMillis();
+        assertEquals(200, status(prefix+"/routes"));
+        assertTrue(System.currentTimeMillis()-start >= 50);
+    }
+
+    @Test
+    public void rateLimit() throws Exception {
+        server=new StandInServer(recordings)
+            .withRateLimit(3);
+        final String prefix=server.start();
+        int numThrottled=0;
+        for(int i=0; i<10; ++i) {
+            final HttpURLConnection conn=(HttpURLConnection) new URL(prefix+"/routes").openConnection();
+            try {
+                assertEquals("3", conn.getHeaderField("x-ratelimit-limit"));
+                assertNotNull(conn.getHeaderField("x-ratelimit-reset"));
+                if (conn.getResponseCode() == 429) {
+                    ++numThrottled;
+                    assertEquals("0", conn.getHeaderField("x-ratelimit-remaining"));
+                    assertTrue(Integer.parseInt(conn.getHeaderField("Retry-After")) >= 1);
+                }
+                else {
+                    assertNull(conn.getHeaderField("Retry-After"));
+                }
+            }
+            finally {
+                conn.disconnect();
+            }
+        }
+        // the requests may span two windows
+        assertTrue("numThrottled="+numThrottled, numThrottled >= 1);
+        assertEquals(numThrottled, server.getNumThrottled());
+    }
+
+    @Test
+    public void record() throws Exception {
+        server=new StandInServer(recordings);
+        final String upstreamPrefix=server.start();
+        final File dir=tmp.newFolder("recorded");
+        final StandInServer recorder=new StandInServer(new RecordedResponses(dir))
+            .withRecording(upstreamPrefix);
+        try {
+            final String prefix=recorder.start();
+            assertEquals(200, status(prefix+"/routes"));
+            assertEquals(404, status(prefix+"/missing"));
+            assertEquals(1, recorder.getNumRecorded());
+            assertEquals(1, dir.list().length);
+
+            // replay without the upstream service
+            server.stop();
+            assertEquals(200, status(prefix+"/routes"));
+            assertEquals(1, recorder.getNumRecorded());
+        }
+        finally {
+            recorder.stop();
+        }
+    }
+
+}